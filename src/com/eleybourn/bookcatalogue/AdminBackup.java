@@ -561,7 +561,7 @@ public class AdminBackup extends ActivityWithTasks implements CredentialListener
                 return;
             }
 
-            if (request.equals(BookCatalogueAPI.REQUEST_BACKUP_ALL)) {
+            if (request.equals(BookCatalogueAPI.REQUEST_BACKUP_ALL) || request.equals(BookCatalogueAPI.REQUEST_SYNC)) {
                 String statsText;
                 if (message == null || message.isEmpty()) {
                     statsText = current + " of " + total + " books backed up";
@@ -595,7 +595,8 @@ public class AdminBackup extends ActivityWithTasks implements CredentialListener
             }
 
             // Disable buttons if backup or restore is running
-            if (request.equals(BookCatalogueAPI.REQUEST_BACKUP_ALL) || request.equals(BookCatalogueAPI.REQUEST_RESTORE_ALL)) {
+            if (request.equals(BookCatalogueAPI.REQUEST_BACKUP_ALL) || request.equals(BookCatalogueAPI.REQUEST_SYNC)
+                    || request.equals(BookCatalogueAPI.REQUEST_RESTORE_ALL)) {
                 if (current != total) {
                     activity.mBackupNowButton.setEnabled(false);
                     activity.mRestoreNowButton.setEnabled(false);
@@ -649,6 +650,7 @@ public class AdminBackup extends ActivityWithTasks implements CredentialListener
                     break;
                 }
                 case BookCatalogueAPI.REQUEST_BACKUP_ALL:
+                case BookCatalogueAPI.REQUEST_SYNC:
                     // Reload stats after full backup completes
                     new BookCatalogueAPI(activity.getApplicationContext(), BookCatalogueAPI.REQUEST_INFO_COUNT, this);
                     new BookCatalogueAPI(activity.getApplicationContext(), BookCatalogueAPI.REQUEST_INFO_LAST, this);
@@ -689,7 +691,8 @@ public class AdminBackup extends ActivityWithTasks implements CredentialListener
                 Toast.makeText(activity, "Error: " + error, Toast.LENGTH_LONG).show();
             }
             activity.mSyncProgressBar.setVisibility(View.GONE);
-            if (request.equals(BookCatalogueAPI.REQUEST_BACKUP_ALL) || request.equals(BookCatalogueAPI.REQUEST_RESTORE_ALL) || request.equals(BookCatalogueAPI.REQUEST_DELETE_ALL)) {
+            if (request.equals(BookCatalogueAPI.REQUEST_BACKUP_ALL) || request.equals(BookCatalogueAPI.REQUEST_SYNC)
+                    || request.equals(BookCatalogueAPI.REQUEST_RESTORE_ALL) || request.equals(BookCatalogueAPI.REQUEST_DELETE_ALL)) {
                 BookCatalogueAPI.isBackupRunning = false;
                 BookCatalogueAPI.isRestoreRunning = false;
                 if (activity.mBackupNowButton != null) {
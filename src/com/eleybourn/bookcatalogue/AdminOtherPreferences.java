@@ -22,6 +22,7 @@ package com.eleybourn.bookcatalogue;
 
 import android.os.Bundle;
 
+import com.eleybourn.bookcatalogue.booklist.LibraryBuilder;
 import com.eleybourn.bookcatalogue.properties.BooleanProperty;
 import com.eleybourn.bookcatalogue.properties.IntegerListProperty;
 import com.eleybourn.bookcatalogue.properties.ListProperty;
@@ -76,6 +77,11 @@ public class AdminOtherPreferences extends PreferencesBase {
 			.add(ScannerManager.SCANNER_ZXING, R.string.option_zxing_scanner)
 			.add(ScannerManager.SCANNER_PIC2SHOP, R.string.option_pic2shop_scanner);
 	
+	/** Booklist generation property values */
+	private static final ItemEntries<Integer> mGenerationModeListItems = new ItemEntries<Integer>()
+			.add(LibraryBuilder.BOOKLIST_GENERATE_NESTED_TRIGGER, R.string.option_booklist_generate_nested_trigger)
+			.add(LibraryBuilder.BOOKLIST_GENERATE_GROUPED, R.string.option_booklist_generate_grouped);
+
 	private static final Properties mProperties = new Properties()
 
         //.add(new StringProperty(BookCataloguePreferences.PREF_ACCOUNT_EMAIL, PropertyGroup.GRP_SYNC, R.string.label_email_address)
@@ -174,6 +180,38 @@ public class AdminOtherPreferences extends PreferencesBase {
 		.setGlobal(true)
 		.setNameResourceId(R.string.preference_use_external_image_cropper)
 		.setGroup(PropertyGroup.GRP_THUMBNAILS))		
+
+		/*
+		 * Write-ahead logging lets the book list and covers be read on separate connections
+		 * while a long import or restore is writing. Applied when the database is next opened.
+		 */
+	.add (new BooleanProperty(BookCataloguePreferences.PREF_DB_WAL_MODE)
+		.setDefaultValue(false)
+		.setPreferenceKey(BookCataloguePreferences.PREF_DB_WAL_MODE)
+		.setGlobal(true)
+		.setNameResourceId(R.string.preference_db_wal_mode)
+		.setGroup(PropertyGroup.GRP_GENERAL))
+
+	.add(new IntegerListProperty( mGenerationModeListItems, BookCataloguePreferences.PREF_BOOKLIST_GENERATION_MODE)
+		.setDefaultValue(LibraryBuilder.BOOKLIST_GENERATE_NESTED_TRIGGER)
+		.setPreferenceKey(BookCataloguePreferences.PREF_BOOKLIST_GENERATION_MODE)
+		.setGlobal(true)
+		.setNameResourceId(R.string.preference_booklist_generation_mode)
+		.setGroup(PropertyGroup.GRP_GENERAL) )
+
+	.add (new BooleanProperty(BookCataloguePreferences.PREF_BOOKLIST_IN_MEMORY)
+		.setDefaultValue(false)
+		.setPreferenceKey(BookCataloguePreferences.PREF_BOOKLIST_IN_MEMORY)
+		.setGlobal(true)
+		.setNameResourceId(R.string.preference_booklist_in_memory)
+		.setGroup(PropertyGroup.GRP_GENERAL))
+
+	.add (new BooleanProperty(BookCataloguePreferences.PREF_BACKUP_COMPRESSED)
+		.setDefaultValue(false)
+		.setPreferenceKey(BookCataloguePreferences.PREF_BACKUP_COMPRESSED)
+		.setGlobal(true)
+		.setNameResourceId(R.string.preference_backup_compressed)
+		.setGroup(PropertyGroup.GRP_GENERAL))
 	;
 
 	@Override
@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.JsonReader;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -14,6 +15,7 @@ import com.eleybourn.bookcatalogue.data.AnthologyTitle;
 import com.eleybourn.bookcatalogue.data.Author;
 import com.eleybourn.bookcatalogue.data.Bookshelf;
 import com.eleybourn.bookcatalogue.data.Series;
+import com.eleybourn.bookcatalogue.database.CoversDbHelper;
 import com.eleybourn.bookcatalogue.database.DbSync;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
@@ -22,6 +24,7 @@ import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
@@ -39,6 +42,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 
 public class BookCatalogueAPI implements SimpleTask {
@@ -50,10 +55,33 @@ public class BookCatalogueAPI implements SimpleTask {
     public static final String REQUEST_RESTORE_ALL = "restore";
     public static final String REQUEST_DELETE_BOOK = "delete_book";
     public static final String REQUEST_DELETE_ALL = "delete_all";
+    public static final String REQUEST_FLUSH_OUTBOX = "flush_outbox";
+    public static final String REQUEST_SYNC = "sync";
     public static final String METHOD_POST = "POST";
     public static final String METHOD_GET = "GET";
     public static final String METHOD_DEL = "DELETE";
     private static final SimpleTaskQueue mSyncQueue = new SimpleTaskQueue("BookCatalogueSyncQueue");
+    /** Number of outbox books sent in each batch request; the outbox is flushed as soon as it has this many */
+    private static final int OUTBOX_BATCH_SIZE = 30;
+    /** How long after the first edit a smaller outbox is flushed */
+    private static final long OUTBOX_FLUSH_DELAY_MS = 10000;
+    /** Delay before the outbox is flushed again after a failed flush; doubled for each further failure */
+    private static final long OUTBOX_RETRY_DELAY_MS = 60000;
+    /** Longest delay between retries of a failing outbox */
+    private static final long OUTBOX_MAX_RETRY_DELAY_MS = 60 * 60000;
+    /** Number of failed flushes after which an outbox entry is dropped, and left for the next sync */
+    private static final int OUTBOX_MAX_FAILURES = 5;
+    private static final Handler mOutboxHandler = new Handler(Looper.getMainLooper());
+    /** Pending delayed flush of the outbox, if any */
+    private static Runnable mOutboxFlush = null;
+    /** Delay of the last retry of a failing outbox; 0 once a flush has got through */
+    private static long mOutboxRetryDelay = 0;
+    /** Held while the outbox is being flushed, since the sync queue has several threads */
+    private static final Object mOutboxLock = new Object();
+    /** Changes not yet written to the outbox, by book ID, in the order made; true for deletes */
+    private static final LinkedHashMap<Long, Boolean> mPendingOutbox = new LinkedHashMap<>();
+    /** Held while logging in again after a refused request, so only one worker does it */
+    private static final Object mLoginLock = new Object();
     private static final String BASE_URL = "https://book-catalogue.com/api";
     public static String REQUEST_GET_BOOKS = "get_books";
     public static String REQUEST_GET_BOOK = "get_book";
@@ -61,14 +89,13 @@ public class BookCatalogueAPI implements SimpleTask {
     public static volatile boolean isRestoreRunning = false;
     private final String mEmail;
     private final boolean mOptIn;
-    private String mApiToken;
+    private volatile String mApiToken;
     private final BookCataloguePreferences mPrefs;
     // Add a static field to hold the currently active listener.
     private static ApiListener sActiveListener;
     private final Context mContext;
     private final String mRequest;
     private SimpleTaskContext mTaskContext;
-    private boolean retry = true;
     private long mBookId;
     private final ApiListener mInstanceListener;
 
@@ -111,33 +138,129 @@ public class BookCatalogueAPI implements SimpleTask {
 
     /**
      * Helper method to automatically sync a book to the cloud if the user is subscribed and sync is enabled.
+     * The book is added to the sync outbox and sent with the next batch.
      */
     public static void syncBook(Context context, long bookId) {
         BookCataloguePreferences prefs = new BookCataloguePreferences();
         if (prefs.isSubscribed() && prefs.isOnlineSyncEnabled() && !prefs.getAccountApiToken().isEmpty()) {
-            new BookCatalogueAPI(context, REQUEST_BACKUP_BOOK, bookId, null);
+            addToOutbox(context, bookId, false);
         }
     }
 
     /**
      * Helper method to automatically delete a book from the cloud if the user is subscribed and sync is enabled.
+     * The delete is added to the sync outbox and sent with the next batch.
      */
     public static void syncDeleteBook(Context context, long bookId) {
         BookCataloguePreferences prefs = new BookCataloguePreferences();
         if (prefs.isSubscribed() && prefs.isOnlineSyncEnabled() && !prefs.getAccountApiToken().isEmpty()) {
-            new BookCatalogueAPI(context, REQUEST_DELETE_BOOK, bookId, null);
+            addToOutbox(context, bookId, true);
         }
     }
 
     /**
-     * Helper method to automatically run a full backup in the background when the app starts.
+     * Record a change in the sync outbox, and flush it now if a full batch is waiting, or
+     * shortly otherwise. Callers are usually on the UI thread, so the outbox is written by
+     * the sync queue.
+     */
+    private static void addToOutbox(Context context, long bookId, boolean delete) {
+        synchronized (mPendingOutbox) {
+            // Move the book to the end, as 'Insert or Replace' does in the outbox
+            mPendingOutbox.remove(bookId);
+            mPendingOutbox.put(bookId, delete);
+        }
+        final Context appContext = context.getApplicationContext();
+        mSyncQueue.enqueue(new SimpleTask() {
+            @Override
+            public void run(SimpleTaskContext taskContext) {
+                taskContext.setRequiresFinish(false);
+                writePendingOutbox(appContext);
+            }
+
+            @Override
+            public void onFinish(Exception e) {
+            }
+        });
+    }
+
+    /**
+     * Write the pending changes to the sync outbox. The queue may run these tasks in any order
+     * and on several threads, so each one writes everything pending, in the order it was made.
+     */
+    private static void writePendingOutbox(Context context) {
+        long waiting;
+        synchronized (mPendingOutbox) {
+            if (mPendingOutbox.isEmpty()) {
+                return;
+            }
+            CatalogueDBAdapter db = new CatalogueDBAdapter(context);
+            try {
+                db.open();
+                for (Map.Entry<Long, Boolean> e : mPendingOutbox.entrySet()) {
+                    db.addToSyncOutbox(e.getKey(), e.getValue());
+                }
+                mPendingOutbox.clear();
+                waiting = db.getSyncOutboxCount();
+            } finally {
+                db.close();
+            }
+        }
+        scheduleOutboxFlush(context, waiting >= OUTBOX_BATCH_SIZE);
+    }
+
+    /**
+     * Queue a flush of the sync outbox, unless one is already waiting. A waiting delayed flush
+     * is brought forward if 'now' is set.
+     */
+    private static synchronized void scheduleOutboxFlush(Context context, boolean now) {
+        if (mOutboxFlush != null) {
+            if (!now) {
+                return;
+            }
+            mOutboxHandler.removeCallbacks(mOutboxFlush);
+        }
+        postOutboxFlush(context, now ? 0 : OUTBOX_FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Queue another flush after one failed, unless a flush is already waiting. The delay doubles
+     * with each failed flush in a row.
+     */
+    private static synchronized void scheduleOutboxRetry(Context context) {
+        mOutboxRetryDelay = mOutboxRetryDelay == 0 ? OUTBOX_RETRY_DELAY_MS : Math.min(mOutboxRetryDelay * 2, OUTBOX_MAX_RETRY_DELAY_MS);
+        if (mOutboxFlush == null) {
+            postOutboxFlush(context, mOutboxRetryDelay);
+        }
+    }
+
+    /**
+     * Note that a flush got through, so the next failure waits the shortest time again.
+     */
+    private static synchronized void resetOutboxRetry() {
+        mOutboxRetryDelay = 0;
+    }
+
+    private static synchronized void postOutboxFlush(Context context, long delayMs) {
+        final Context appContext = context.getApplicationContext();
+        mOutboxFlush = () -> {
+            synchronized (BookCatalogueAPI.class) {
+                mOutboxFlush = null;
+            }
+            new BookCatalogueAPI(appContext, REQUEST_FLUSH_OUTBOX, null);
+        };
+        mOutboxHandler.postDelayed(mOutboxFlush, delayMs);
+    }
+
+    /**
+     * Helper method to automatically run a backup in the background when the app starts. Only books
+     * changed since the last complete sync are sent, unless the server has changed since then.
      */
     public static void backgroundFullBackup(Context context) {
         BookCataloguePreferences prefs = new BookCataloguePreferences();
         if (prefs.isSubscribed() && prefs.isOnlineSyncEnabled() && !prefs.getAccountApiToken().isEmpty()) {
             final Context appContext = context.getApplicationContext();
             Toast.makeText(appContext, "Checking online backup status...", Toast.LENGTH_SHORT).show();
-            new BookCatalogueAPI(appContext, REQUEST_BACKUP_ALL, new ApiListener() {
+            new BookCatalogueAPI(appContext, REQUEST_SYNC, new ApiListener() {
                 @Override
                 public void onApiProgress(String request, int current, int total, String message) {}
 
@@ -146,7 +269,7 @@ public class BookCatalogueAPI implements SimpleTask {
 
                 @Override
                 public void onApiComplete(String request, String message) {
-                    if (REQUEST_BACKUP_ALL.equals(request)) {
+                    if (REQUEST_SYNC.equals(request)) {
                         Toast.makeText(appContext, "Backup check complete", Toast.LENGTH_SHORT).show();
                     }
                 }
@@ -155,6 +278,17 @@ public class BookCatalogueAPI implements SimpleTask {
                 public void onApiError(String request, String error) {
                 }
             });
+
+            // Send any edits left in the outbox when the app last stopped
+            CatalogueDBAdapter db = new CatalogueDBAdapter(appContext);
+            try {
+                db.open();
+                if (db.getSyncOutboxCount() > 0) {
+                    scheduleOutboxFlush(appContext, true);
+                }
+            } finally {
+                db.close();
+            }
         }
     }
 
@@ -308,6 +442,11 @@ public class BookCatalogueAPI implements SimpleTask {
             if (json.has("api_token")) {
                 mApiToken = json.getString("api_token");
                 mPrefs.setAccountApiToken(mApiToken);
+                // A different account has its own books, so the next sync compares everything
+                if (!mEmail.equals(mPrefs.getSyncAccount())) {
+                    mPrefs.clearSyncWatermark();
+                    mPrefs.setSyncAccount(mEmail);
+                }
                 if (json.has("subscription_expiry")) {
                     mPrefs.setSubscriptionExpiry(json.getString("subscription_expiry"));
                 }
@@ -325,6 +464,23 @@ public class BookCatalogueAPI implements SimpleTask {
         }
     }
 
+    /**
+     * Log in again after the server refused a token, unless the token has been replaced
+     * since; another worker, or another request, may already have logged in.
+     *
+     * @param refusedToken  Token the refused request was sent with
+     */
+    private void relogin(String refusedToken) {
+        synchronized (mLoginLock) {
+            String current = mPrefs.getAccountApiToken();
+            if (!current.isEmpty() && !current.equals(refusedToken)) {
+                mApiToken = current;
+                return;
+            }
+            login();
+        }
+    }
+
     public void runBackupBook() {
         CatalogueDBAdapter db = new CatalogueDBAdapter(mContext);
         try {
@@ -352,6 +508,8 @@ public class BookCatalogueAPI implements SimpleTask {
         try {
             isBackupRunning = true;
             db.open();
+            // Books changed after this point may be missed, so the next sync must send them
+            String watermark = Utils.toSqlDateTime(new Date());
             // 1. Fetch current cloud state to identify orphaned records
             notifyProgress(0, 1, "Reviewing online backup...");
             JSONArray serverBooks = getAllBooks(false);
@@ -386,7 +544,9 @@ public class BookCatalogueAPI implements SimpleTask {
 
             // 2. Perform the backup of local books (only those that are different)
             try (Cursor bookCursor = db.fetchAllBooks()) {
-                runBatchBackup(bookCursor, db, serverMap);
+                if (runBatchBackup(bookCursor, db, serverMap)) {
+                    mPrefs.setSyncWatermark(watermark, getServerChangeToken());
+                }
                 notifyComplete("Backup completed successfully.");
             }
         } catch (Exception e) {
@@ -554,7 +714,11 @@ public class BookCatalogueAPI implements SimpleTask {
         }
     }
 
-    private void runBatchBackup(Cursor bookCursor, CatalogueDBAdapter db, HashMap<Long, JSONObject> serverMap) {
+    /**
+     * @return true if every book that needed it was sent
+     */
+    private boolean runBatchBackup(Cursor bookCursor, CatalogueDBAdapter db, HashMap<Long, JSONObject> serverMap) {
+        boolean complete = true;
         if (bookCursor != null && bookCursor.moveToFirst()) {
             int total = bookCursor.getCount();
             int count = 0;
@@ -562,7 +726,7 @@ public class BookCatalogueAPI implements SimpleTask {
             ArrayList<String> batchFields = new ArrayList<>();
             ArrayList<String> batchValues = new ArrayList<>();
             ArrayList<Integer> batchBookIds = new ArrayList<>();
-            ArrayList<ThumbnailTask> thumbnailTasks = new ArrayList<>();
+            ArrayList<CoverTransferQueue.Transfer> thumbnailTasks = new ArrayList<>();
             int batchCount = 0;
 
             // Get column indices
@@ -602,24 +766,25 @@ public class BookCatalogueAPI implements SimpleTask {
                     }
 
                     // Check if thumbnail changed independently
-                    String localMd5 = (thumbFile != null && thumbFile.exists()) ? Utils.calculateMD5(thumbFile) : "";
+                    String localMd5 = mTaskContext.getUtils().getCoverMd5(uuid, thumbFile);
                     String serverMd5 = (serverBook != null) ? getStringOrEmpty(serverBook, "thumbnail_md5") : "";
                     boolean thumbChanged = !localMd5.equals(serverMd5);
 
                     if (thumbChanged) {
                         // Queue thumbnail work
-                        thumbnailTasks.add(new ThumbnailTask(bookId, (thumbFile != null && thumbFile.exists()) ? thumbFile : null));
+                        thumbnailTasks.add(new CoverTransferQueue.Transfer(CoverTransferQueue.UPLOAD, bookId, uuid, "", ""));
                     }
 
                     if (batchCount >= 30) {
                         try {
                             sendBatch(batchFields, batchValues);
                         } catch (Exception e) {
+                            complete = false;
                             Log.e("BookCatalogueAPI", "Batch failed, removing associated thumbnails from queue", e);
                             // If batch fails, remove any thumbnails from this batch from the tasks
                             for (Integer failedId : batchBookIds) {
                                 for (int i = thumbnailTasks.size() - 1; i >= 0; i--) {
-                                    if (thumbnailTasks.get(i).id == failedId) {
+                                    if (thumbnailTasks.get(i).bookId == failedId) {
                                         thumbnailTasks.remove(i);
                                     }
                                 }
@@ -633,6 +798,7 @@ public class BookCatalogueAPI implements SimpleTask {
                     }
                 } catch (Exception e) {
                     // Log the specific error for this book/batch, but continue the loop
+                    complete = false;
                     Log.e("BookCatalogueAPI", "Error syncing book batch starting near index " + (count - 1), e);
                     // Ensure the batch is cleared so we don't keep failing on the same bad record
                     batchFields.clear();
@@ -647,10 +813,11 @@ public class BookCatalogueAPI implements SimpleTask {
                 try {
                     sendBatch(batchFields, batchValues);
                 } catch (Exception e) {
+                    complete = false;
                     Log.e("BookCatalogueAPI", "Final batch failed, removing associated thumbnails from queue", e);
                     for (Integer failedId : batchBookIds) {
                         for (int i = thumbnailTasks.size() - 1; i >= 0; i--) {
-                            if (thumbnailTasks.get(i).id == failedId) {
+                            if (thumbnailTasks.get(i).bookId == failedId) {
                                 thumbnailTasks.remove(i);
                             }
                         }
@@ -659,25 +826,97 @@ public class BookCatalogueAPI implements SimpleTask {
             }
 
             // Sync thumbnails
-            int skippedThumbs = total - thumbnailTasks.size();
+            final int skippedThumbs = total - thumbnailTasks.size();
             if (thumbnailTasks.isEmpty()) {
                 notifyProgress(total, total, "thumbnails backed up");
             }
-            for (int i = 0; i < thumbnailTasks.size(); i++) {
-                if (mTaskContext.isTerminating()) break;
-                ThumbnailTask task = thumbnailTasks.get(i);
-                notifyProgress(skippedThumbs + i + 1, total, "thumbnails backed up");
-                try {
-                    if (task.file != null) {
-                        backupThumbnail(task.id, task.file);
-                    } else {
-                        deleteThumbnail(task.id);
-                    }
-                } catch (Exception e) {
-                    Log.e("BookCatalogueAPI", "Thumbnail sync failed for book " + task.id, e);
-                }
+            if (!CoverTransferQueue.run(CoverTransferQueue.UPLOAD, thumbnailTasks, mTaskContext,
+                    this::uploadThumbnail,
+                    (done, transfers, rate) -> notifyProgress(Math.min(skippedThumbs + done, total), total, "thumbnails backed up" + formatRate(rate)))) {
+                complete = false;
             }
         }
+        return complete && !mTaskContext.isTerminating();
+    }
+
+    /**
+     * Send the current cover of a book to the server, or remove it there if the book no longer has one.
+     *
+     * @return Number of bytes sent
+     */
+    private long uploadThumbnail(CoverTransferQueue.Transfer task, SimpleTaskContext taskContext) throws Exception {
+        File thumbFile = CatalogueDBAdapter.fetchThumbnailByUuid(task.uuid);
+        if (thumbFile != null && thumbFile.exists()) {
+            String md5 = taskContext.getUtils().getCoverMd5(task.uuid, thumbFile);
+            if (backupThumbnail(task.bookId, thumbFile)) {
+                saveSyncedCoverMd5(taskContext, task.uuid, md5);
+            }
+            return thumbFile.length();
+        }
+        deleteThumbnail(task.bookId);
+        saveSyncedCoverMd5(taskContext, task.uuid, null);
+        return 0;
+    }
+
+    /**
+     * Fetch the cover of a restored book, unless the one we have already matches the server's.
+     *
+     * @return Number of bytes received
+     */
+    private long downloadThumbnail(CoverTransferQueue.Transfer task, SimpleTaskContext taskContext) throws Exception {
+        String coverKey = !task.uuid.isEmpty() ? task.uuid : Long.toString(task.bookId);
+        File permanentFile = CatalogueDBAdapter.fetchThumbnailByUuid(coverKey);
+
+        // Optimization: Check if the file already exists and if MD5 matches
+        if (permanentFile.exists() && !task.md5.isEmpty()) {
+            String localMd5 = taskContext.getUtils().getCoverMd5(coverKey, permanentFile);
+            if (task.md5.equalsIgnoreCase(localMd5)) {
+                // Already have it and it matches? Then, skip download
+                saveSyncedCoverMd5(taskContext, coverKey, localMd5);
+                return 0;
+            }
+        }
+
+        String filename = Utils.saveThumbnailFromUrl(task.url, "");
+        if (filename.isEmpty()) {
+            throw new IOException("Failed to download thumbnail for UUID/ID " + coverKey);
+        }
+        File downloadedFile = new File(filename);
+        long size = downloadedFile.length();
+
+        // Ensure parent directory exists
+        File parent = permanentFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+
+        // Move the file to its permanent location. Try to rename first, then copy if necessary.
+        boolean moved = downloadedFile.renameTo(permanentFile);
+        if (!moved) {
+            try {
+                Utils.copyFile(downloadedFile, permanentFile);
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                downloadedFile.delete();
+            }
+        }
+        // The cover changed, so cached images and its saved hash are stale
+        taskContext.getUtils().eraseCachedBookCover(coverKey);
+        if (!task.md5.isEmpty()) {
+            saveSyncedCoverMd5(taskContext, coverKey, task.md5);
+        }
+        return size;
+    }
+
+    /**
+     * Format a transfer rate for progress messages.
+     */
+    private static String formatRate(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return "";
+        }
+        return " (" + (bytesPerSecond + 512) / 1024 + " KB/s)";
     }
 
     /**
@@ -725,7 +964,7 @@ public class BookCatalogueAPI implements SimpleTask {
 
             // Check Thumbnail MD5
             if (checkThumbnail) {
-                String localMd5 = (thumbFile != null && thumbFile.exists()) ? Utils.calculateMD5(thumbFile) : "";
+                String localMd5 = mTaskContext.getUtils().getCoverMd5(getString(local, CatalogueDBAdapter.KEY_BOOK_UUID), thumbFile);
                 String serverMd5 = getStringOrEmpty(server, "thumbnail_md5");
                 if (checkDiff(bookId, "thumbnail_md5", localMd5, serverMd5)) return true;
             }
@@ -884,13 +1123,18 @@ public class BookCatalogueAPI implements SimpleTask {
         connection("/books", METHOD_POST, fields, values);
     }
 
-    public void backupThumbnail(long bookId, File thumbFile) throws Exception {
+    /**
+     * @return true if the server now has the cover; false if it does not have the book
+     */
+    public boolean backupThumbnail(long bookId, File thumbFile) throws Exception {
         String url = "/book/" + bookId + "/thumb";
         try {
             connection(url, METHOD_POST, null, null, thumbFile);
+            return true;
         } catch (Exception e) {
             if (e.getMessage() != null && e.getMessage().contains("error code 404")) {
                 Log.w("BookCatalogueAPI", "Skipping thumbnail for book " + bookId + " - book not found on server (likely batch failure)");
+                return false;
             } else {
                 throw e;
             }
@@ -921,6 +1165,285 @@ public class BookCatalogueAPI implements SimpleTask {
         return obj.optString(key, "");
     }
 
+    /**
+     * Send the changes in the sync outbox to the server. Edited books go through the batch
+     * endpoint used by the full backup, and each batch leaves the outbox once the server has it.
+     * Books are sent as they are now, so a book edited many times is only sent once. If a batch
+     * fails, its entries are sent one at a time so a bad entry does not hold up the others, and
+     * the rest of the outbox waits for a retry.
+     */
+    public void runFlushOutbox() {
+        synchronized (mOutboxLock) {
+            ArrayList<CoverTransferQueue.Transfer> covers = new ArrayList<>();
+            CatalogueDBAdapter db = new CatalogueDBAdapter(mContext);
+            boolean failed = false;
+            try {
+                db.open();
+                while (!failed && !mTaskContext.isTerminating()) {
+                    ArrayList<OutboxEntry> entries = new ArrayList<>();
+                    try (Cursor c = db.fetchSyncOutbox(OUTBOX_BATCH_SIZE)) {
+                        while (c.moveToNext()) {
+                            entries.add(new OutboxEntry(c.getLong(0), c.getLong(1), c.getInt(2) != 0, c.getInt(3)));
+                        }
+                    }
+                    if (entries.isEmpty()) {
+                        break;
+                    }
+                    try {
+                        sendOutboxEntries(db, entries, covers);
+                        db.removeFromSyncOutbox(OutboxEntry.getIds(entries));
+                    } catch (Exception e) {
+                        Log.w("BookCatalogueAPI", "Sync outbox batch failed, sending its entries one at a time", e);
+                        failed = true;
+                        sendOutboxEntriesSingly(db, entries, covers);
+                    }
+                }
+            } catch (Exception e) {
+                failed = true;
+                Log.e("BookCatalogueAPI", "Sync outbox flush failed", e);
+            } finally {
+                db.close();
+            }
+            if (failed) {
+                scheduleOutboxRetry(mContext);
+            } else {
+                resetOutboxRetry();
+            }
+
+            // Also resumes any uploads left over from an earlier run
+            CoverTransferQueue.run(CoverTransferQueue.UPLOAD, covers, mTaskContext, this::uploadThumbnail,
+                    (done, total, rate) -> notifyProgress(done, total, "thumbnails backed up" + formatRate(rate)));
+        }
+    }
+
+    /**
+     * Background backup that sends only the books updated since the last complete sync. That is
+     * only safe while the server holds exactly what the last sync left there, which the server
+     * change token shows; if the token differs, or there has been no complete sync, the whole
+     * catalogue is compared by runFullBackup() instead. Outbox flushes leave the token alone, as
+     * the server cannot tell us which changes were ours, so a sync after one compares everything.
+     */
+    public void runSync() {
+        String watermark = mPrefs.getSyncWatermark();
+        String storedToken = mPrefs.getSyncServerToken();
+        if (watermark.isEmpty() || storedToken.isEmpty() || !storedToken.equals(getServerChangeToken())) {
+            runFullBackup();
+            return;
+        }
+
+        synchronized (mOutboxLock) {
+            ArrayList<CoverTransferQueue.Transfer> covers = new ArrayList<>();
+            CatalogueDBAdapter db = new CatalogueDBAdapter(mContext);
+            try {
+                isBackupRunning = true;
+                db.open();
+                String newWatermark = Utils.toSqlDateTime(new Date());
+                ArrayList<Long> changed = db.getBookIdsUpdatedSince(watermark);
+                int total = changed.size();
+                notifyProgress(0, total, "books backed up");
+                for (int start = 0; start < total; start += OUTBOX_BATCH_SIZE) {
+                    if (mTaskContext.isTerminating()) break;
+                    int end = Math.min(start + OUTBOX_BATCH_SIZE, total);
+                    sendOutboxBooks(db, new ArrayList<>(changed.subList(start, end)), covers);
+                    notifyProgress(end, total, "books backed up");
+                }
+
+                boolean coversSent = CoverTransferQueue.run(CoverTransferQueue.UPLOAD, covers, mTaskContext, this::uploadThumbnail,
+                        (done, transfers, rate) -> notifyProgress(done, transfers, "thumbnails backed up" + formatRate(rate)));
+                // Books whose covers failed must be sent again by the next sync
+                if (coversSent && !mTaskContext.isTerminating()) {
+                    mPrefs.setSyncWatermark(newWatermark, getServerChangeToken());
+                }
+                notifyComplete("Backup completed successfully.");
+            } catch (Exception e) {
+                Log.e("BookCatalogueAPI", "Sync failed", e);
+                notifyError("Backup failed: " + e.getMessage());
+            } finally {
+                isBackupRunning = false;
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Get a token that changes whenever the books stored on the server change, made from the
+     * number of books and the time of the last backup the server has.
+     *
+     * @return The token, or an empty string if it could not be retrieved
+     */
+    private String getServerChangeToken() {
+        try {
+            JSONObject count = new JSONObject(connection("/books/count", METHOD_GET));
+            JSONObject last = new JSONObject(connection("/books/last_backup", METHOD_GET));
+            return count.optString("count") + "|" + last.optString("last_backup");
+        } catch (Exception e) {
+            Log.e("BookCatalogueAPI", "Failed to get server change token", e);
+            return "";
+        }
+    }
+
+    /**
+     * Send the passed books in one batch request. Covers that differ from the last one sent
+     * are added to the passed list, to be uploaded once the books are on the server.
+     */
+    private void sendOutboxBooks(CatalogueDBAdapter db, ArrayList<Long> bookIds, ArrayList<CoverTransferQueue.Transfer> covers) throws Exception {
+        ArrayList<String> fields = new ArrayList<>();
+        ArrayList<String> values = new ArrayList<>();
+        ArrayList<CoverTransferQueue.Transfer> changedCovers = new ArrayList<>();
+        ArrayList<String> removedCovers = new ArrayList<>();
+        int count = 0;
+
+        // Books deleted since they were edited are not returned
+        try (Cursor bookCursor = db.fetchBooksByIds(bookIds)) {
+            int idIndex = bookCursor.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ROW_ID);
+            int uuidIndex = bookCursor.getColumnIndexOrThrow(DatabaseDefinitions.DOM_BOOK_UUID.name);
+            CoversDbHelper coversDb = mTaskContext.getCoversDb();
+            while (bookCursor.moveToNext()) {
+                int bookId = bookCursor.getInt(idIndex);
+                String uuid = bookCursor.getString(uuidIndex);
+                File thumbFile = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+                boolean hasThumb = thumbFile != null && thumbFile.exists();
+                populateBookFields(fields, values, "books[" + count + "][", "]", bookId, bookCursor,
+                        db.getBookAuthorList(bookId), db.getBookBookshelfList(bookId), db.getBookSeriesList(bookId),
+                        db.getBookAnthologyTitleList(bookId), hasThumb ? "SKIP" : "DEL");
+                count++;
+
+                if (hasThumb) {
+                    String md5 = mTaskContext.getUtils().getCoverMd5(uuid, thumbFile);
+                    String syncedMd5 = coversDb == null ? null : coversDb.getSyncedCoverMd5(uuid);
+                    if (!md5.equals(syncedMd5)) {
+                        changedCovers.add(new CoverTransferQueue.Transfer(CoverTransferQueue.UPLOAD, bookId, uuid, "", ""));
+                    }
+                } else {
+                    removedCovers.add(uuid);
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        sendBatch(fields, values);
+        covers.addAll(changedCovers);
+        for (String uuid : removedCovers) {
+            saveSyncedCoverMd5(mTaskContext, uuid, null);
+        }
+    }
+
+    /**
+     * Send the passed outbox entries: deletes one at a time, since there is no batch delete but
+     * deletes are rare, then the edited books in one batch.
+     */
+    private void sendOutboxEntries(CatalogueDBAdapter db, ArrayList<OutboxEntry> entries, ArrayList<CoverTransferQueue.Transfer> covers) throws Exception {
+        ArrayList<Long> updated = new ArrayList<>();
+        for (OutboxEntry entry : entries) {
+            if (entry.delete) {
+                deleteBookFromServer(entry.bookId);
+            } else {
+                updated.add(entry.bookId);
+            }
+        }
+        if (!updated.isEmpty()) {
+            sendOutboxBooks(db, updated, covers);
+        }
+    }
+
+    /**
+     * Send the entries of a failed batch one at a time, removing each one the server takes. A
+     * failure is only counted against an entry if another one got through, as otherwise the
+     * server or the network is the more likely cause. An entry that fails too often is dropped;
+     * the next sync sends an edited book again, and the next full backup removes a deleted one.
+     */
+    private void sendOutboxEntriesSingly(CatalogueDBAdapter db, ArrayList<OutboxEntry> entries, ArrayList<CoverTransferQueue.Transfer> covers) {
+        ArrayList<OutboxEntry> failed = new ArrayList<>();
+        boolean anySent = false;
+        for (OutboxEntry entry : entries) {
+            if (mTaskContext.isTerminating()) {
+                return;
+            }
+            ArrayList<OutboxEntry> single = new ArrayList<>();
+            single.add(entry);
+            try {
+                sendOutboxEntries(db, single, covers);
+                db.removeFromSyncOutbox(OutboxEntry.getIds(single));
+                anySent = true;
+            } catch (Exception e) {
+                Log.w("BookCatalogueAPI", "Sync outbox entry for book " + entry.bookId + " failed", e);
+                failed.add(entry);
+            }
+        }
+        if (!anySent) {
+            return;
+        }
+        for (OutboxEntry entry : failed) {
+            if (entry.failures + 1 >= OUTBOX_MAX_FAILURES) {
+                Log.e("BookCatalogueAPI", "Dropping sync outbox entry for book " + entry.bookId + " after " + OUTBOX_MAX_FAILURES + " failures");
+                ArrayList<Long> ids = new ArrayList<>();
+                ids.add(entry.id);
+                db.removeFromSyncOutbox(ids);
+            } else {
+                db.recordSyncOutboxFailure(entry.id);
+            }
+        }
+    }
+
+    /**
+     * A row of the sync outbox.
+     */
+    private static class OutboxEntry {
+        final long id;
+        final long bookId;
+        final boolean delete;
+        /** Number of earlier flushes this entry failed in */
+        final int failures;
+
+        OutboxEntry(long id, long bookId, boolean delete, int failures) {
+            this.id = id;
+            this.bookId = bookId;
+            this.delete = delete;
+            this.failures = failures;
+        }
+
+        static ArrayList<Long> getIds(ArrayList<OutboxEntry> entries) {
+            ArrayList<Long> ids = new ArrayList<>();
+            for (OutboxEntry entry : entries) {
+                ids.add(entry.id);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Remove a deleted book from the server; a book the server does not have is not an error.
+     */
+    private void deleteBookFromServer(long bookId) throws Exception {
+        try {
+            connection("/book/" + bookId, METHOD_DEL);
+        } catch (Exception e) {
+            if (e.getMessage() != null && e.getMessage().contains("error code 404")) {
+                Log.w("BookCatalogueAPI", "Book " + bookId + " already gone from server");
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Remember the MD5 of the cover the server has for a book, so unchanged covers are not sent again.
+     *
+     * @param md5 MD5 of the cover, or null if the server has none
+     */
+    private static void saveSyncedCoverMd5(SimpleTaskContext taskContext, String uuid, String md5) {
+        CoversDbHelper coversDb = taskContext.getCoversDb();
+        if (coversDb != null && uuid != null && !uuid.isEmpty()) {
+            try {
+                coversDb.saveSyncedCoverMd5(uuid, md5);
+            } catch (Exception e) {
+                Log.e("BookCatalogueAPI", "Failed to save synced cover MD5", e);
+            }
+        }
+    }
+
     public void runDeleteBook() {
         try {
             if (mApiToken.isEmpty()) {
@@ -955,6 +1478,7 @@ public class BookCatalogueAPI implements SimpleTask {
             }
             JSONObject json = new JSONObject(response);
             if (json.has("status") && json.getString("status").equals("ok")) {
+                mPrefs.clearSyncWatermark();
                 notifyComplete("Online backup cleared");
             } else {
                 throw new Exception("Invalid response from delete_all endpoint.");
@@ -1013,258 +1537,309 @@ public class BookCatalogueAPI implements SimpleTask {
         return books;
     }
 
-    public void runRestoreAll() {
-        CatalogueDBAdapter db = null;
-        DbSync.Synchronizer.SyncLock txLock = null;
-        ArrayList<HashMap<String, String>> thumbnailTasks = new ArrayList<>();
-
+    /**
+     * Get the number of books on the server, for progress reporting.
+     *
+     * @return The count, or 0 if it could not be retrieved
+     */
+    private int getServerBookCount() {
         try {
-            isRestoreRunning = true;
-            notifyProgress(0, 1, "Getting restore information..."); // Indicate that the process has started
-            JSONArray books = getAllBooks(false);
-
-            db = new CatalogueDBAdapter(mContext);
-            db.open(); // Ensure DB is open
+            JSONObject json = new JSONObject(connection("/books/count", METHOD_GET));
+            return json.optInt("count", 0);
+        } catch (Exception e) {
+            Log.e("BookCatalogueAPI", "Failed to get book count", e);
+            return 0;
+        }
+    }
 
-            int total = books.length();
-            final int NOTIFY_INTERVAL = 50; // Update UI thread every 50 books
-            final int BATCH_SIZE = 50;      // Commit transaction every 50 books
+    /**
+     * Read the JSON array of books from the server one book at a time, writing them to the database
+     * in batches as they arrive.
+     *
+     * @param in             Response stream
+     * @param db             Database to restore into
+     * @param expected       Number of books expected, or 0 if not known; only used for progress
+     * @param thumbnailTasks Thumbnails to download once the books are restored
+     * @return The number of books read
+     */
+    private int restoreBooks(InputStream in, CatalogueDBAdapter db, int expected, ArrayList<CoverTransferQueue.Transfer> thumbnailTasks) throws Exception {
+        final int NOTIFY_INTERVAL = 50; // Update UI thread every 50 books
+        final int BATCH_SIZE = 50;      // Commit transaction every 50 books
+        int count = 0;
+        DbSync.Synchronizer.SyncLock txLock = null;
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)))) {
+            reader.beginArray();
             txLock = db.startTransaction(true);
-
-            for (int i = 0; i < total; i++) {
+            while (reader.hasNext()) {
                 if (mTaskContext.isTerminating()) break;
 
-                if (i > 0 && i % BATCH_SIZE == 0) {
+                if (count > 0 && count % BATCH_SIZE == 0) {
                     db.setTransactionSuccessful();
                     db.endTransaction(txLock);
+                    txLock = null;
                     txLock = db.startTransaction(true);
                 }
 
-                JSONObject bookJson = books.getJSONObject(i);
-                BookData values = new BookData(mContext);
-
-                long bcid = bookJson.getLong("bcid");
-                String uuid = getStringOrEmpty(bookJson, "book_uuid");
-                String title = getStringOrEmpty(bookJson, "title");
-
-                values.putLong(CatalogueDBAdapter.KEY_ROW_ID, bcid);
-                values.putString(CatalogueDBAdapter.KEY_TITLE, title);
-                values.putString(CatalogueDBAdapter.KEY_ISBN, getStringOrEmpty(bookJson, "isbn"));
-                values.putString(CatalogueDBAdapter.KEY_PUBLISHER, getStringOrEmpty(bookJson, "publisher"));
-                values.putString(CatalogueDBAdapter.KEY_DATE_PUBLISHED, getStringOrEmpty(bookJson, "date_published"));
-                values.putString(CatalogueDBAdapter.KEY_RATING, getStringOrEmpty(bookJson, "rating"));
-                values.putInt(CatalogueDBAdapter.KEY_READ, bookJson.optInt("read", 0));
-                values.putString(CatalogueDBAdapter.KEY_PAGES, cleanInt(getStringOrEmpty(bookJson, "pages")));
-                values.putString(CatalogueDBAdapter.KEY_NOTES, getStringOrEmpty(bookJson, "notes"));
-                values.putString(CatalogueDBAdapter.KEY_LIST_PRICE, getStringOrEmpty(bookJson, "list_price"));
-                values.putString(CatalogueDBAdapter.KEY_LOCATION, getStringOrEmpty(bookJson, "location"));
-                values.putString(CatalogueDBAdapter.KEY_READ_START, getStringOrEmpty(bookJson, "read_start"));
-                values.putString(CatalogueDBAdapter.KEY_READ_END, getStringOrEmpty(bookJson, "read_end"));
-                values.putString(CatalogueDBAdapter.KEY_FORMAT, getStringOrEmpty(bookJson, "format"));
-                values.putInt(CatalogueDBAdapter.KEY_SIGNED, bookJson.optInt("signed", 0));
-                values.putString(CatalogueDBAdapter.KEY_DESCRIPTION, getStringOrEmpty(bookJson, "description"));
-                values.putString(CatalogueDBAdapter.KEY_GENRE, getStringOrEmpty(bookJson, "genre"));
-                values.putString(CatalogueDBAdapter.KEY_LANGUAGE, getStringOrEmpty(bookJson, "language"));
-                values.putString(CatalogueDBAdapter.KEY_DATE_ADDED, getStringOrEmpty(bookJson, "date_added"));
-                values.putString(CatalogueDBAdapter.KEY_LAST_UPDATE_DATE, getStringOrEmpty(bookJson, "last_update_date"));
-                values.putString(CatalogueDBAdapter.KEY_BOOK_UUID, uuid);
-                values.putString(CatalogueDBAdapter.KEY_LOANED_TO, getStringOrEmpty(bookJson, "loaned_to"));
-                values.putInt(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK, bookJson.optInt("anthology", 0));
-
-                JSONArray authorsJson = bookJson.optJSONArray("authors");
-                if (authorsJson == null || authorsJson.length() == 0) {
-                    continue;
+                Object book = readJsonValue(reader);
+                if (book instanceof JSONObject) {
+                    restoreBook(db, (JSONObject) book, thumbnailTasks, count);
                 }
-                ArrayList<Author> authors = new ArrayList<>();
-                for (int author_i = 0; author_i < authorsJson.length(); author_i++) {
-                    try {
-                        JSONObject authorJson = authorsJson.getJSONObject(author_i);
-                        Author author = new Author(authorJson.optLong("bcid", 0), getStringOrEmpty(authorJson, "family_name"), getStringOrEmpty(authorJson, "given_names"));
-                        authors.add(author);
-                    } catch (Exception e) {
-                        Log.e("BookCatalogueAPI", "Failed to parse or insert author for book " + title, e);
-                    }
+                count++;
+                // Throttle UI updates to prevent ANR
+                if (count % NOTIFY_INTERVAL == 0) {
+                    notifyProgress(count, Math.max(expected, count), "books restored");
                 }
-                values.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, authors);
+            }
+            // Commit the final batch
+            db.setTransactionSuccessful();
+            db.endTransaction(txLock);
+            txLock = null;
+        } finally {
+            // This ensures the transaction is always closed, even on error.
+            if (txLock != null) {
+                db.endTransaction(txLock);
+            }
+        }
+        notifyProgress(count, count, "books restored");
+        return count;
+    }
 
-                JSONArray seriesJson = bookJson.optJSONArray("series");
-                if (seriesJson != null) {
-                    ArrayList<Series> series = new ArrayList<>();
-                    for (int series_i = 0; series_i < seriesJson.length(); series_i++) {
-                        try {
-                            JSONObject seriesEntryJson = seriesJson.getJSONObject(series_i);
-                            Series seriesEntry = new Series(seriesEntryJson.optLong("bcid", 0), getStringOrEmpty(seriesEntryJson, "series_name"), getStringOrEmpty(seriesEntryJson, "series_num"));
-                            series.add(seriesEntry);
-                        } catch (Exception e) {
-                            Log.e("BookCatalogueAPI", "Failed to parse or insert series for book " + title, e);
-                        }
-                    }
-                    Utils.pruneSeriesList(series);
-                    Utils.pruneList(db, series);
-                    values.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, series);
+    /**
+     * Read the next JSON value, and everything nested in it, from the stream.
+     */
+    private static Object readJsonValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject obj = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    obj.put(reader.nextName(), readJsonValue(reader));
                 }
+                reader.endObject();
+                return obj;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readJsonValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            default:
+                return reader.nextString();
+        }
+    }
 
-                JSONArray bookshelvesJson = bookJson.optJSONArray("bookshelves");
-                if (bookshelvesJson != null) {
-                    StringBuilder bookshelves_list = new StringBuilder();
-                    for (int bookshelf_i = 0; bookshelf_i < bookshelvesJson.length(); bookshelf_i++) {
-                        try {
-                            JSONObject bookshelfJson = bookshelvesJson.getJSONObject(bookshelf_i);
-                            String name = getStringOrEmpty(bookshelfJson, "bookshelf");
-                            String encoded_name = Utils.encodeListItem(name, BookAbstract.BOOKSHELF_SEPARATOR);
-                            if (bookshelves_list.length() == 0) {
-                                bookshelves_list = new StringBuilder(encoded_name);
-                            } else {
-                                bookshelves_list.append(BookAbstract.BOOKSHELF_SEPARATOR).append(encoded_name);
-                            }
+    /**
+     * Write a single book from the server to the database.
+     *
+     * @param db             Database to restore into
+     * @param bookJson       Book details from the server
+     * @param thumbnailTasks Thumbnails to download once the books are restored
+     * @param row            Position of the book in the response, for logging
+     */
+    private void restoreBook(CatalogueDBAdapter db, JSONObject bookJson, ArrayList<CoverTransferQueue.Transfer> thumbnailTasks, int row) throws Exception {
+        BookData values = new BookData(mContext);
+
+        long bcid = bookJson.getLong("bcid");
+        String uuid = getStringOrEmpty(bookJson, "book_uuid");
+        String title = getStringOrEmpty(bookJson, "title");
+
+        values.putLong(CatalogueDBAdapter.KEY_ROW_ID, bcid);
+        values.putString(CatalogueDBAdapter.KEY_TITLE, title);
+        values.putString(CatalogueDBAdapter.KEY_ISBN, getStringOrEmpty(bookJson, "isbn"));
+        values.putString(CatalogueDBAdapter.KEY_PUBLISHER, getStringOrEmpty(bookJson, "publisher"));
+        values.putString(CatalogueDBAdapter.KEY_DATE_PUBLISHED, getStringOrEmpty(bookJson, "date_published"));
+        values.putString(CatalogueDBAdapter.KEY_RATING, getStringOrEmpty(bookJson, "rating"));
+        values.putInt(CatalogueDBAdapter.KEY_READ, bookJson.optInt("read", 0));
+        values.putString(CatalogueDBAdapter.KEY_PAGES, cleanInt(getStringOrEmpty(bookJson, "pages")));
+        values.putString(CatalogueDBAdapter.KEY_NOTES, getStringOrEmpty(bookJson, "notes"));
+        values.putString(CatalogueDBAdapter.KEY_LIST_PRICE, getStringOrEmpty(bookJson, "list_price"));
+        values.putString(CatalogueDBAdapter.KEY_LOCATION, getStringOrEmpty(bookJson, "location"));
+        values.putString(CatalogueDBAdapter.KEY_READ_START, getStringOrEmpty(bookJson, "read_start"));
+        values.putString(CatalogueDBAdapter.KEY_READ_END, getStringOrEmpty(bookJson, "read_end"));
+        values.putString(CatalogueDBAdapter.KEY_FORMAT, getStringOrEmpty(bookJson, "format"));
+        values.putInt(CatalogueDBAdapter.KEY_SIGNED, bookJson.optInt("signed", 0));
+        values.putString(CatalogueDBAdapter.KEY_DESCRIPTION, getStringOrEmpty(bookJson, "description"));
+        values.putString(CatalogueDBAdapter.KEY_GENRE, getStringOrEmpty(bookJson, "genre"));
+        values.putString(CatalogueDBAdapter.KEY_LANGUAGE, getStringOrEmpty(bookJson, "language"));
+        values.putString(CatalogueDBAdapter.KEY_DATE_ADDED, getStringOrEmpty(bookJson, "date_added"));
+        values.putString(CatalogueDBAdapter.KEY_LAST_UPDATE_DATE, getStringOrEmpty(bookJson, "last_update_date"));
+        values.putString(CatalogueDBAdapter.KEY_BOOK_UUID, uuid);
+        values.putString(CatalogueDBAdapter.KEY_LOANED_TO, getStringOrEmpty(bookJson, "loaned_to"));
+        values.putInt(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK, bookJson.optInt("anthology", 0));
+
+        JSONArray authorsJson = bookJson.optJSONArray("authors");
+        if (authorsJson == null || authorsJson.length() == 0) {
+            return;
+        }
+        ArrayList<Author> authors = new ArrayList<>();
+        for (int author_i = 0; author_i < authorsJson.length(); author_i++) {
+            try {
+                JSONObject authorJson = authorsJson.getJSONObject(author_i);
+                Author author = new Author(authorJson.optLong("bcid", 0), getStringOrEmpty(authorJson, "family_name"), getStringOrEmpty(authorJson, "given_names"));
+                authors.add(author);
+            } catch (Exception e) {
+                Log.e("BookCatalogueAPI", "Failed to parse or insert author for book " + title, e);
+            }
+        }
+        values.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, authors);
 
-                        } catch (Exception e) {
-                            Log.e("BookCatalogueAPI", "Failed to parse or insert bookshelf for book " + title, e);
-                        }
-                    }
-                    values.setBookshelfList(bookshelves_list.toString());
+        JSONArray seriesJson = bookJson.optJSONArray("series");
+        if (seriesJson != null) {
+            ArrayList<Series> series = new ArrayList<>();
+            for (int series_i = 0; series_i < seriesJson.length(); series_i++) {
+                try {
+                    JSONObject seriesEntryJson = seriesJson.getJSONObject(series_i);
+                    Series seriesEntry = new Series(seriesEntryJson.optLong("bcid", 0), getStringOrEmpty(seriesEntryJson, "series_name"), getStringOrEmpty(seriesEntryJson, "series_num"));
+                    series.add(seriesEntry);
+                } catch (Exception e) {
+                    Log.e("BookCatalogueAPI", "Failed to parse or insert series for book " + title, e);
                 }
+            }
+            Utils.pruneSeriesList(series);
+            Utils.pruneList(db, series);
+            values.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, series);
+        }
 
+        JSONArray bookshelvesJson = bookJson.optJSONArray("bookshelves");
+        if (bookshelvesJson != null) {
+            StringBuilder bookshelves_list = new StringBuilder();
+            for (int bookshelf_i = 0; bookshelf_i < bookshelvesJson.length(); bookshelf_i++) {
                 try {
-                    boolean exists = false;
-                    if (bcid > 0) {
-                        exists = db.checkBookExists(bcid);
-                    }
-                    if (exists) {
-                        db.updateBook(bcid, values, CatalogueDBAdapter.BOOK_UPDATE_SKIP_PURGE_REFERENCES | CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+                    JSONObject bookshelfJson = bookshelvesJson.getJSONObject(bookshelf_i);
+                    String name = getStringOrEmpty(bookshelfJson, "bookshelf");
+                    String encoded_name = Utils.encodeListItem(name, BookAbstract.BOOKSHELF_SEPARATOR);
+                    if (bookshelves_list.length() == 0) {
+                        bookshelves_list = new StringBuilder(encoded_name);
                     } else {
-                        // Always import empty IDs...even if they are duplicates.
-                        if (bcid > 0) {
-                            bcid = db.createBook(bcid, values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
-                        } else {
-                            bcid = db.createBook(values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
-                        }
-                    }
-                    values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(bcid));
-
-                    // Defer thumbnail download
-                    String backup_filename = getStringOrEmpty(bookJson, "thumbnail");
-                    if (!backup_filename.isEmpty()) {
-                        HashMap<String, String> task = new HashMap<>();
-                        task.put("bcid", Long.toString(bcid));
-                        task.put("url", backup_filename);
-                        task.put("uuid", uuid);
-                        String md5 = getStringOrEmpty(bookJson, "thumbnail_md5");
-                        if (!md5.isEmpty()) {
-                            task.put("md5", md5);
-                        }
-                        thumbnailTasks.add(task);
+                        bookshelves_list.append(BookAbstract.BOOKSHELF_SEPARATOR).append(encoded_name);
                     }
 
-                    if (values.containsKey(CatalogueDBAdapter.KEY_LOANED_TO) && !values.get(CatalogueDBAdapter.KEY_LOANED_TO).equals("")) {
-                        db.deleteLoan(bcid, false);
-                        db.createLoan(values, false);
-                    }
-
-                    if (values.containsKey(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK)) {
-                        int anthology;
-                        try {
-                            anthology = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
-                        } catch (Exception e) {
-                            anthology = 0;
-                        }
-                        if (anthology != 0) {
-                            int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROW_ID));
-                            // We have anthology details, delete the current details.
-                            db.deleteAnthologyTitles(id, false);
-                            int oldi = 0;
-                            String anthology_titles = values.getString("anthology_titles");
-                            try {
-                                int anthology_i = anthology_titles.indexOf("|", oldi);
-                                while (anthology_i > -1) {
-                                    String extracted_title = anthology_titles.substring(oldi, anthology_i).trim();
-
-                                    int anthology_j = extracted_title.indexOf("*");
-                                    if (anthology_j > -1) {
-                                        String anthology_title = extracted_title.substring(0, anthology_j).trim();
-                                        String anthology_author = extracted_title.substring((anthology_j + 1)).trim();
-                                        db.createAnthologyTitle(id, anthology_author, anthology_title, true, false);
-                                    }
-                                    oldi = anthology_i + 1;
-                                    anthology_i = anthology_titles.indexOf("|", oldi);
-                                }
-                            } catch (NullPointerException e) {
-                                //do nothing. There are no anthology titles
-                            }
-                        }
-                    }
                 } catch (Exception e) {
-                    Logger.logError(e, "Import at row " + i);
-                }
-                // Throttle UI updates to prevent ANR
-                if ((i + 1) % NOTIFY_INTERVAL == 0 || (i + 1) == total) {
-                    notifyProgress(i + 1, total, "books restored");
+                    Log.e("BookCatalogueAPI", "Failed to parse or insert bookshelf for book " + title, e);
                 }
             }
-            // Commit the final batch
-            db.setTransactionSuccessful();
-            db.endTransaction(txLock);
-            txLock = null; // Mark transaction as ended
+            values.setBookshelfList(bookshelves_list.toString());
+        }
 
-            // --- Download Thumbnails ---
-            int skippedThumbs = total - thumbnailTasks.size();
-            if (thumbnailTasks.isEmpty()) {
-                notifyProgress(total, total, "thumbnails restored");
+        try {
+            boolean exists = false;
+            if (bcid > 0) {
+                exists = db.checkBookExists(bcid);
             }
-            for (int i = 0; i < thumbnailTasks.size(); i++) {
-                HashMap<String, String> task = thumbnailTasks.get(i);
-                try {
-                    String url = task.get("url");
-                    String uuid = task.get("uuid");
-                    String bcid = task.get("bcid");
-                    String remoteMd5 = task.get("md5");
-
-                    File permanentFile;
-                    if (uuid != null && !uuid.isEmpty()) {
-                        permanentFile = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
-                    } else {
-                        permanentFile = CatalogueDBAdapter.fetchThumbnailByUuid(bcid);
-                    }
-
-                    // Optimization: Check if the file already exists and if MD5 matches
-                    if (permanentFile.exists() && remoteMd5 != null) {
-                        String localMd5 = Utils.calculateMD5(permanentFile);
-                        if (remoteMd5.equalsIgnoreCase(localMd5)) {
-                            // Already have it and it matches? Then, skip download
-                            // Notify progress for thumbnail download as well
-                            notifyProgress(skippedThumbs + i + 1, total, "thumbnails restored");
-                            continue;
-                        }
-                    }
+            if (exists) {
+                db.updateBook(bcid, values, CatalogueDBAdapter.BOOK_UPDATE_SKIP_PURGE_REFERENCES | CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+            } else {
+                // Always import empty IDs...even if they are duplicates.
+                if (bcid > 0) {
+                    bcid = db.createBook(bcid, values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+                } else {
+                    bcid = db.createBook(values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+                }
+            }
+            values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(bcid));
 
-                    String filename = Utils.saveThumbnailFromUrl(url, "");
-                    if (!filename.isEmpty()) {
-                        File downloadedFile = new File(filename);
+            // Defer thumbnail download; bcid is now the local ID the book was saved under
+            String backup_filename = getStringOrEmpty(bookJson, "thumbnail");
+            if (!backup_filename.isEmpty()) {
+                String md5 = getStringOrEmpty(bookJson, "thumbnail_md5");
+                thumbnailTasks.add(new CoverTransferQueue.Transfer(CoverTransferQueue.DOWNLOAD, bcid, uuid, backup_filename, md5));
+            }
 
-                        // Ensure parent directory exists
-                        File parent = permanentFile.getParentFile();
-                        if (parent != null && !parent.exists()) {
-                            //noinspection ResultOfMethodCallIgnored
-                            parent.mkdirs();
-                        }
+            if (values.containsKey(CatalogueDBAdapter.KEY_LOANED_TO) && !values.get(CatalogueDBAdapter.KEY_LOANED_TO).equals("")) {
+                db.deleteLoan(bcid, false);
+                db.createLoan(values, false);
+            }
 
-                        // Move the file to its permanent location. Try to rename first, then copy if necessary.
-                        boolean moved = downloadedFile.renameTo(permanentFile);
-                        if (!moved) {
-                            try {
-                                Utils.copyFile(downloadedFile, permanentFile);
-                                //noinspection ResultOfMethodCallIgnored
-                                downloadedFile.delete();
-                            } catch (IOException e) {
-                                Log.e("BookCatalogueAPI", "Failed to copy thumbnail for UUID/ID " + (uuid != null ? uuid : bcid), e);
+            if (values.containsKey(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK)) {
+                int anthology;
+                try {
+                    anthology = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
+                } catch (Exception e) {
+                    anthology = 0;
+                }
+                if (anthology != 0) {
+                    int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROW_ID));
+                    // We have anthology details, delete the current details.
+                    db.deleteAnthologyTitles(id, false);
+                    int oldi = 0;
+                    String anthology_titles = values.getString("anthology_titles");
+                    try {
+                        int anthology_i = anthology_titles.indexOf("|", oldi);
+                        while (anthology_i > -1) {
+                            String extracted_title = anthology_titles.substring(oldi, anthology_i).trim();
+
+                            int anthology_j = extracted_title.indexOf("*");
+                            if (anthology_j > -1) {
+                                String anthology_title = extracted_title.substring(0, anthology_j).trim();
+                                String anthology_author = extracted_title.substring((anthology_j + 1)).trim();
+                                db.createAnthologyTitle(id, anthology_author, anthology_title, true, false);
                             }
+                            oldi = anthology_i + 1;
+                            anthology_i = anthology_titles.indexOf("|", oldi);
                         }
+                    } catch (NullPointerException e) {
+                        //do nothing. There are no anthology titles
                     }
-                } catch (Exception e) {
-                    Log.e("BookCatalogueAPI", "Failed to download or save thumbnail", e);
                 }
-                // Notify progress for thumbnail download as well
-                notifyProgress(skippedThumbs + i + 1, total, "thumbnails restored");
+            }
+        } catch (Exception e) {
+            Logger.logError(e, "Import at row " + row);
+        }
+    }
+
+    public void runRestoreAll() {
+        CatalogueDBAdapter db = null;
+        ArrayList<CoverTransferQueue.Transfer> thumbnailTasks = new ArrayList<>();
+
+        try {
+            isRestoreRunning = true;
+            notifyProgress(0, 1, "Getting restore information..."); // Indicate that the process has started
+            // Restored books keep their server update dates, so they are all before this
+            String watermark = Utils.toSqlDateTime(new Date());
+            if (mApiToken.isEmpty()) {
+                throw new Exception("No API Token set for runRestoreAll");
+            }
+            final int expected = getServerBookCount();
+
+            db = new CatalogueDBAdapter(mContext);
+            db.open(); // Ensure DB is open
+
+            // Books are written as they are parsed, so the catalogue is never held in memory
+            final CatalogueDBAdapter restoreDb = db;
+            final int[] restored = new int[1];
+            connection("/books", METHOD_GET, null, null, null, in -> {
+                restored[0] = restoreBooks(in, restoreDb, expected, thumbnailTasks);
+                return null;
+            });
+            int total = restored[0];
+
+            // --- Download Thumbnails ---
+            // Downloads left from an earlier restore are replaced by this one's
+            CoverTransferQueue.discardSaved(CoverTransferQueue.DOWNLOAD, mTaskContext);
+            final int skippedThumbs = total - thumbnailTasks.size();
+            if (thumbnailTasks.isEmpty()) {
+                notifyProgress(total, total, "thumbnails restored");
+            }
+            boolean coversFetched = CoverTransferQueue.run(CoverTransferQueue.DOWNLOAD, thumbnailTasks, mTaskContext,
+                    this::downloadThumbnail,
+                    (done, transfers, rate) -> notifyProgress(Math.min(skippedThumbs + done, total), total, "thumbnails restored" + formatRate(rate)));
+            if (coversFetched && !mTaskContext.isTerminating()) {
+                // The catalogue now matches the server
+                mPrefs.setSyncWatermark(watermark, getServerChangeToken());
             }
             notifyComplete("Restore completed successfully.");
         } catch (Exception e) {
@@ -1272,11 +1847,6 @@ public class BookCatalogueAPI implements SimpleTask {
             notifyError("Restore failed: " + e.getMessage());
         } finally {
             isRestoreRunning = false;
-            // --- ROBUST FINALLY BLOCK ---
-            // This ensures the transaction is always closed, even on error.
-            if (db != null && txLock != null) {
-                db.endTransaction(txLock);
-            }
             // Close the database connection if it's open
             if (db != null) {
                 db.close();
@@ -1352,9 +1922,19 @@ public class BookCatalogueAPI implements SimpleTask {
     }
 
     public String connection(String urlEndPoint, String method, ArrayList<String> fields, ArrayList<String> values, File thumbnailFile) throws Exception {
+        return connection(urlEndPoint, method, fields, values, thumbnailFile, BookCatalogueAPI::readStream);
+    }
+
+    /**
+     * Call the API, passing the body of a successful response to the passed reader.
+     */
+    private String connection(String urlEndPoint, String method, ArrayList<String> fields, ArrayList<String> values, File thumbnailFile, ResponseReader responseReader) throws Exception {
         int deadlockRetries = 3;
+        // Only log in again once per request; never for the login itself
+        boolean canRelogin = !urlEndPoint.equals("/login");
         while (true) {
             HttpURLConnection conn = null;
+            final String token = mApiToken;
             try {
                 String boundary = UUID.randomUUID().toString();
                 String urlString = BASE_URL + urlEndPoint;
@@ -1364,8 +1944,8 @@ public class BookCatalogueAPI implements SimpleTask {
                 conn.setRequestProperty("Accept", "application/json");
                 conn.setReadTimeout(60000); // 60 seconds
                 conn.setConnectTimeout(60000); // 60 seconds
-                if (mApiToken != null && !mApiToken.isEmpty()) {
-                    conn.setRequestProperty("Authorization", "Bearer " + mApiToken);
+                if (token != null && !token.isEmpty()) {
+                    conn.setRequestProperty("Authorization", "Bearer " + token);
                 }
 
                 if (method.equals("POST")) {
@@ -1393,11 +1973,11 @@ public class BookCatalogueAPI implements SimpleTask {
                 int responseCode = conn.getResponseCode();
                 String response;
                 if (responseCode == HttpURLConnection.HTTP_OK) {
-                    response = readStream(conn.getInputStream());
+                    response = responseReader.read(conn.getInputStream());
                     return response;
-                } else if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED && retry) {
-                    login();
-                    retry = false;
+                } else if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED && canRelogin) {
+                    relogin(token);
+                    canRelogin = false;
                     continue; // Retry after login
                 } else {
                     // If it's an error, read the error stream.
@@ -1433,7 +2013,8 @@ public class BookCatalogueAPI implements SimpleTask {
         }
 
         if (mRequest.equals(REQUEST_BACKUP_ALL) || mRequest.equals(REQUEST_RESTORE_ALL) ||
-                mRequest.equals(REQUEST_BACKUP_BOOK) || mRequest.equals(REQUEST_DELETE_ALL)) {
+                mRequest.equals(REQUEST_BACKUP_BOOK) || mRequest.equals(REQUEST_DELETE_ALL) ||
+                mRequest.equals(REQUEST_FLUSH_OUTBOX) || mRequest.equals(REQUEST_SYNC)) {
             startSyncService(mContext);
         }
 
@@ -1461,6 +2042,10 @@ public class BookCatalogueAPI implements SimpleTask {
             runFullBackup();
         }
 
+        if (mRequest.equals(REQUEST_SYNC)) {
+            runSync();
+        }
+
         if (mRequest.equals(REQUEST_RESTORE_ALL)) {
             runRestoreAll();
         }
@@ -1473,6 +2058,10 @@ public class BookCatalogueAPI implements SimpleTask {
             runDeleteBook();
         }
 
+        if (mRequest.equals(REQUEST_FLUSH_OUTBOX)) {
+            runFlushOutbox();
+        }
+
         if (mRequest.equals(REQUEST_DELETE_ALL)) {
             notifyProgress(0, 1, "Clearing online backup...");
             runDeleteAll();
@@ -1508,14 +2097,11 @@ public class BookCatalogueAPI implements SimpleTask {
         mSyncQueue.finish();
     }
 
-    private static class ThumbnailTask {
-        long id;
-        File file;
-
-        ThumbnailTask(long id, File file) {
-            this.id = id;
-            this.file = file;
-        }
+    /**
+     * Reads the body of a successful API response.
+     */
+    private interface ResponseReader {
+        String read(InputStream in) throws Exception;
     }
 
     // Callback interface to update the UI (MainMenu)
@@ -22,14 +22,20 @@ public class BookCataloguePreferences {
 	public static final String PREF_USE_EXTERNAL_IMAGE_CROPPER = "App.UseExternalImageCropper";
 	public static final String PREF_AUTOROTATE_CAMERA_IMAGES = "App.AutorotateCameraImages";
 	public static final String PREF_CROP_FRAME_WHOLE_IMAGE = "App.CropFrameWholeImage";
-	///** Force list construction to compatible mode (compatible with Android 1.6) */
-	//public static final String PREF_BOOKLIST_GENERATION_MODE = "App.BooklistGenerationMode";
+	/** How booklist header rows are generated; one of LibraryBuilder.BOOKLIST_GENERATE_* */
+	public static final String PREF_BOOKLIST_GENERATION_MODE = "App.BooklistGenerationMode";
+	/** Keep a copy of the book list in memory once built; see LibraryBuilder.createSnapshot() */
+	public static final String PREF_BOOKLIST_IN_MEMORY = "App.BooklistInMemory";
 	/** Is book info opened in read-only mode. Default is false (opened in edit mode) */
 	public static final String PREF_OPEN_BOOK_READ_ONLY = "App.OpenBookReadOnly";
 	/** Last full backup date */
 	public static final String PREF_LAST_BACKUP_DATE = "Backup.LastDate";
 	/** Last full backup file path */
 	public static final String PREF_LAST_BACKUP_FILE = "Backup.LastFile";
+	/** Write new backups as compressed ZIP files rather than TAR */
+	public static final String PREF_BACKUP_COMPRESSED = "Backup.Compressed";
+	/** File name of the last full or incremental backup, which the next incremental backup is based on */
+	public static final String PREF_BACKUP_BASE_FILE = "Backup.BaseFile";
 	/** Preferred interface locale */
 	public static final String PREF_APP_LOCALE = "App.Locale";
     public static final String PREF_ACCOUNT_EMAIL = "Account.Email";
@@ -40,6 +46,12 @@ public class BookCataloguePreferences {
     public static final String PREF_IS_AUTO_RENEWING = "App.IsAutoRenewing";
     public static final String PREF_SUBSCRIPTION_EXPIRY = "App.SubscriptionExpiry";
     public static final String PREF_ONLINE_SYNC_ENABLED = "App.OnlineSyncEnabled";
+    /** Time (UTC, SQL format) the last complete cloud sync started; books updated since then are sent by the next one */
+    public static final String PREF_SYNC_WATERMARK = "Sync.Watermark";
+    /** Server change token seen at the end of the last complete cloud sync */
+    public static final String PREF_SYNC_SERVER_TOKEN = "Sync.ServerToken";
+    /** Email of the account the sync watermark belongs to */
+    public static final String PREF_SYNC_ACCOUNT = "Sync.Account";
     public static final String PREF_THEME = "App.Theme";
     public static final String PREF_THEME_DEFAULT = "App.Theme.Default";
     public static final String PREF_THEME_LIGHT = "App.Theme.Light";
@@ -54,6 +66,8 @@ public class BookCataloguePreferences {
     public static final String PREF_SCREEN_ORIENTATION_LANDSCAPE = "landscape";
     public static final String PREF_LAST_BOOKSHELVES = "App.LastBookshelves";
     public static final String PREF_REMEMBER_LAST_BOOKSHELVES = "App.RememberLastBookshelves";
+    /** Use write-ahead logging and a read connection pool; takes effect when the database is next opened */
+    public static final String PREF_DB_WAL_MODE = "App.DbWalMode";
 
 	/** Get startup activity preference */
 	public boolean getStartInMyBook() {
@@ -202,4 +216,36 @@ public class BookCataloguePreferences {
         setBoolean(PREF_ONLINE_SYNC_ENABLED, value);
     }
 
+    public String getSyncWatermark() {
+        return getString(PREF_SYNC_WATERMARK, "");
+    }
+
+    public String getSyncServerToken() {
+        return getString(PREF_SYNC_SERVER_TOKEN, "");
+    }
+
+    /** Record a complete cloud sync */
+    public void setSyncWatermark(String watermark, String serverToken) {
+        Editor ed = this.edit();
+        try {
+            ed.putString(PREF_SYNC_WATERMARK, watermark);
+            ed.putString(PREF_SYNC_SERVER_TOKEN, serverToken);
+        } finally {
+            ed.commit();
+        }
+    }
+
+    public String getSyncAccount() {
+        return getString(PREF_SYNC_ACCOUNT, "");
+    }
+
+    public void setSyncAccount(String email) {
+        setString(PREF_SYNC_ACCOUNT, email);
+    }
+
+    /** Forget the last complete cloud sync, so the next one compares the whole catalogue */
+    public void clearSyncWatermark() {
+        setSyncWatermark("", "");
+    }
+
 }
\ No newline at end of file
@@ -37,19 +37,19 @@ import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_LOCAT
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_NOTES;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_PUBLISHER;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_ID;
-import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_NAME;
-import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_NUM;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_STYLE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SYNC_DELETE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SYNC_FAILURES;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_TITLE;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_ANTHOLOGY;
-import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_AUTHORS;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS_FTS;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS_FTS_DIRTY;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_AUTHOR;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_BOOKSHELF;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_LIST_STYLES;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_SERIES;
-import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_SERIES;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_SYNC_OUTBOX;
 
 import android.app.SearchManager;
 import android.content.ContentValues;
@@ -76,6 +76,7 @@ import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedStatement;
 import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer;
 import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
 import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
+import com.eleybourn.bookcatalogue.database.FtsBuilder;
 import com.eleybourn.bookcatalogue.database.SerializationUtils;
 import com.eleybourn.bookcatalogue.database.SqlStatementManager;
 import com.eleybourn.bookcatalogue.utils.IsbnUtils;
@@ -89,12 +90,14 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Book Catalogue database access helper class. Defines the basic CRUD operations
@@ -184,7 +187,7 @@ public class CatalogueDBAdapter {
     public static final String META_EMPTY_GENRE = "<Empty Genre>";
     public static final String META_EMPTY_DATE_PUBLISHED = "<No Valid Published Date>";
     //TODO: Update database version RELEASE: Update database version
-    public static final int DATABASE_VERSION = 82;
+    public static final int DATABASE_VERSION = 85;
     /**
      * Flag indicating the UPDATE_DATE field from the bundle should be trusted. If this flag is not set, the UPDATE_DATE will be set based on the current time
      */
@@ -430,7 +433,7 @@ public class CatalogueDBAdapter {
     /**
      * Static Factory object to create the custom cursor
      */
-    private static final CursorFactory m_booksFactory = (db, masterQuery, editTable, query) -> new BooksCursor(db, masterQuery, editTable, query, mSynchronizer);
+    private static final CursorFactory m_booksFactory = (db, masterQuery, editTable, query) -> new BooksCursor(db, masterQuery, editTable, query, CatalogueDBAdapter.mDb.getSynchronizerFor(db));
     public static String message = "";
     /**
      * Debug counter
@@ -507,13 +510,49 @@ public class CatalogueDBAdapter {
      */
     private SynchronizedStatement mInsertFtsStmt = null;
     /**
-     * Update an existing FTS record.
+     * Record a book in the FTS change log.
      */
-    private SynchronizedStatement mUpdateFtsStmt = null;
+    private SynchronizedStatement mMarkFtsDirtyStmt = null;
     /**
-     * Delete an existing FTS record
+     * Record a book in the cloud sync outbox.
      */
-    private SynchronizedStatement mDeleteFtsStmt = null;
+    private SynchronizedStatement mAddToSyncOutboxStmt = null;
+    /**
+     * Held by rebuildFts() for its duration, and by refreshDirtyFts() for each batch, so that
+     * the background indexer never updates the old FTS table while a rebuild is copying it.
+     * Always taken before the database lock, ie. outside any transaction.
+     */
+    private static final ReentrantLock mFtsMaintenanceLock = new ReentrantLock();
+    /**
+     * Maximum number of books refreshed in each FTS indexer transaction
+     */
+    private static final int FTS_INDEXER_BATCH_SIZE = 500;
+    /**
+     * Maximum number of books searchFts() will refresh itself before searching
+     */
+    private static final int FTS_SEARCH_REFRESH_LIMIT = 20;
+    /**
+     * Name to ID maps for authors, series and bookshelves, used during bulk updates to avoid
+     * a query for every name of every book. Null when no bulk update is in progress; see
+     * startBulkUpdate(). Only exact names that were found or created are stored, so a miss
+     * just falls through to the database.
+     */
+    private HashMap<String, Long> mAuthorIdCache = null;
+    private HashMap<String, Long> mSeriesIdCache = null;
+    private HashMap<String, Long> mBookshelfIdCache = null;
+    /**
+     * Books whose FTS data needs refreshing at the end of a bulk update, or null if FTS
+     * changes are being recorded as they happen.
+     */
+    private HashSet<Long> mDeferredFtsBooks = null;
+    /**
+     * Number of read-only connections opened when WAL mode is enabled
+     */
+    private static final int READ_POOL_SIZE = 2;
+    /**
+     * Application context, used to start the background FTS indexer
+     */
+    private static Context mAppContext = null;
 
     /**
      * Constructor - takes the context to allow the database to be
@@ -529,8 +568,10 @@ public class CatalogueDBAdapter {
             }
         }
         synchronized (mDbLock) {
-            if (mDbHelper == null)
+            if (mDbHelper == null) {
                 mDbHelper = new DatabaseHelper(ctx);
+                mAppContext = ctx.getApplicationContext();
+            }
         }
     }
 
@@ -909,12 +950,18 @@ public class CatalogueDBAdapter {
     public CatalogueDBAdapter open() throws SQLException {
         synchronized (mDbLock) {
             if (mDb == null || !mDb.isOpen()) {
+                // The old connection was closed under us; its read pool would still see the old file
+                if (mDb != null)
+                    mDb.closeReadPool();
                 // Get the DB wrapper
                 mDb = new SynchronizedDb(mDbHelper, mSynchronizer);
                 // Turn on foreign key support so that CASCADE works.
                 mDb.execSQL("PRAGMA foreign_keys = ON");
                 // Turn on recursive triggers; not strictly necessary
                 mDb.execSQL("PRAGMA recursive_triggers = ON");
+                // Optionally let list queries run on separate connections while imports etc. are writing
+                if (BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_DB_WAL_MODE, false))
+                    mDb.enableWriteAheadLogging(READ_POOL_SIZE);
             }
         }
         //mDb.execSQL("PRAGMA temp_store = FILE");
@@ -1006,8 +1053,8 @@ public class CatalogueDBAdapter {
         mUpdateBooklistStyleStmt = null;
         mDeleteBooklistStyleStmt = null;
         mInsertFtsStmt = null;
-        mUpdateFtsStmt = null;
-        mDeleteFtsStmt = null;
+        mMarkFtsDirtyStmt = null;
+        mAddToSyncOutboxStmt = null;
     }
 
     @Override
@@ -1140,6 +1187,72 @@ public class CatalogueDBAdapter {
         return fetchBooks(sql, EMPTY_STRING_ARRAY);
     }
 
+    /**
+     * Authors of the books returned by exportBooks(), in book id order: book, family name,
+     * given names. Within a book, the order matches fetchAllAuthorsByBook().
+     */
+    public Cursor exportBookAuthors(Date sinceDate) {
+        String sql = "SELECT ba." + KEY_BOOK + ", a." + KEY_FAMILY_NAME + ", a." + KEY_GIVEN_NAMES
+                + " FROM " + DB_TB_BOOK_AUTHOR + " ba Join " + DB_TB_AUTHORS + " a "
+                + "       On a." + KEY_ROW_ID + " = ba." + KEY_AUTHOR_ID
+                + getExportSinceJoin("ba." + KEY_BOOK, sinceDate)
+                + " ORDER BY ba." + KEY_BOOK + ", ba." + KEY_AUTHOR_POSITION + " Asc, Upper(a." + KEY_FAMILY_NAME + ") " + COLLATION + " ASC,"
+                + " Upper(a." + KEY_GIVEN_NAMES + ") " + COLLATION + " ASC";
+        return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+    }
+
+    /**
+     * Series of the books returned by exportBooks(), in book id order: book, series name,
+     * series number. Within a book, the order matches fetchAllSeriesByBook().
+     */
+    public Cursor exportBookSeries(Date sinceDate) {
+        String sql = "SELECT bs." + KEY_BOOK + ", s." + KEY_SERIES_NAME + ", bs." + KEY_SERIES_NUM
+                + " FROM " + DB_TB_BOOK_SERIES + " bs Join " + DB_TB_SERIES + " s "
+                + "       On s." + KEY_ROW_ID + " = bs." + KEY_SERIES_ID
+                + getExportSinceJoin("bs." + KEY_BOOK, sinceDate)
+                + " ORDER BY bs." + KEY_BOOK + ", bs." + KEY_SERIES_POSITION + ", Upper(s." + KEY_SERIES_NAME + ") " + COLLATION + " ASC";
+        return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+    }
+
+    /**
+     * Bookshelves of the books returned by exportBooks(), in book id order: book, bookshelf id,
+     * bookshelf name. Within a book, the order matches fetchAllBookshelvesByBook().
+     */
+    public Cursor exportBookBookshelves(Date sinceDate) {
+        String sql = "SELECT DISTINCT w." + KEY_BOOK + ", bs." + KEY_ROW_ID + ", bs." + KEY_BOOKSHELF
+                + " FROM " + DB_TB_BOOK_BOOKSHELF_WEAK + " w Join " + DB_TB_BOOKSHELF + " bs "
+                + "       On bs." + KEY_ROW_ID + " = w." + KEY_BOOKSHELF
+                + getExportSinceJoin("w." + KEY_BOOK, sinceDate)
+                + " ORDER BY w." + KEY_BOOK + ", Upper(bs." + KEY_BOOKSHELF + ") " + COLLATION;
+        return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+    }
+
+    /**
+     * Anthology titles of the books returned by exportBooks(), in book id order: book, title,
+     * author name. Within a book, the order matches fetchAnthologyTitlesByBook().
+     */
+    public Cursor exportAnthologyTitles(Date sinceDate) {
+        String sql = "SELECT an." + KEY_BOOK + ", an." + KEY_TITLE
+                + ", au." + KEY_FAMILY_NAME + " || ', ' || au." + KEY_GIVEN_NAMES
+                + " FROM " + DB_TB_ANTHOLOGY + " an Join " + DB_TB_AUTHORS + " au "
+                + "       On au." + KEY_ROW_ID + " = an." + KEY_AUTHOR_ID
+                + getExportSinceJoin("an." + KEY_BOOK, sinceDate)
+                + " ORDER BY an." + KEY_BOOK + ", an." + KEY_POSITION;
+        return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+    }
+
+    /**
+     * Join used by the export queries to restrict them to the books selected by exportBooks().
+     *
+     * @param bookColumn Column holding the book id
+     */
+    private String getExportSinceJoin(String bookColumn, Date sinceDate) {
+        if (sinceDate == null)
+            return "";
+        return " Join " + DB_TB_BOOKS + " b On b." + KEY_ROW_ID + " = " + bookColumn
+                + " And b." + DOM_LAST_UPDATE_DATE + " > '" + Utils.toSqlDateTime(sinceDate) + "' ";
+    }
+
     /**
      * Return a Cursor over the list of all books in the database
      *
@@ -1927,6 +2040,46 @@ public class CatalogueDBAdapter {
         return fetchAllBooks("", "", "", where, "", "", "");
     }
 
+    /**
+     * Return the books (Cursor) with the given rowIds.
+     *
+     * @param rowIds ids of books to retrieve
+     * @return Cursor of the books that still exist
+     */
+    public BooksCursor fetchBooksByIds(ArrayList<Long> rowIds) {
+        if (rowIds.isEmpty())
+            throw new RuntimeException("No IDs specified in lookup");
+
+        StringBuilder where = new StringBuilder("b." + KEY_ROW_ID + " in (");
+        boolean first = true;
+        for (long id : rowIds) {
+            if (first)
+                first = false;
+            else
+                where.append(",");
+            where.append(id);
+        }
+        where.append(")");
+        return fetchAllBooks("", "", "", where.toString(), "", "", "");
+    }
+
+    /**
+     * Get the ids of books updated at or after the passed time, oldest change first.
+     *
+     * @param sinceDate Time in SQL format (UTC)
+     */
+    public ArrayList<Long> getBookIdsUpdatedSince(String sinceDate) {
+        ArrayList<Long> ids = new ArrayList<>();
+        String sql = "Select " + KEY_ROW_ID + " From " + DB_TB_BOOKS
+                + " Where " + DOM_LAST_UPDATE_DATE + " >= ? Order By " + DOM_LAST_UPDATE_DATE + ", " + KEY_ROW_ID;
+        try (Cursor c = mDb.rawQuery(sql, new String[]{sinceDate})) {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        }
+        return ids;
+    }
+
     /**
      * Return a book (Cursor) that matches the given ISBN.
      * Note: MAYBE RETURN MORE THAN ONE BOOK
@@ -2066,6 +2219,11 @@ public class CatalogueDBAdapter {
     }
 
     public long fetchBookshelfIdByName(String name) {
+        if (mBookshelfIdCache != null) {
+            Long cached = mBookshelfIdCache.get(name);
+            if (cached != null)
+                return cached;
+        }
         if (mFetchBookshelfIdByNameStmt == null) {
             mFetchBookshelfIdByNameStmt = mStatements.add("mFetchBookshelfIdByNameStmt", "Select " + KEY_ROW_ID + " From " + KEY_BOOKSHELF
                     + " Where Upper(" + KEY_BOOKSHELF + ") = Upper(?)" + COLLATION);
@@ -2077,6 +2235,8 @@ public class CatalogueDBAdapter {
         } catch (SQLiteDoneException e) {
             id = 0L;
         }
+        if (id > 0 && mBookshelfIdCache != null)
+            mBookshelfIdCache.put(name, id);
         return id;
     }
 
@@ -2416,7 +2576,6 @@ public class CatalogueDBAdapter {
      */
     private long getAnthologyTitleId(long bookId, long authorId, String title) {
         if (mGetAnthologyTitleIdStmt == null) {
-            // Build the FTS update statement base. The parameter order MUST match the order expected in ftsSendBooks().
             String sql = "Select Coalesce( Min(" + KEY_ROW_ID + "),-1) from " + DB_TB_ANTHOLOGY + " Where " + KEY_BOOK + " = ? and " + KEY_AUTHOR_ID + " = ? and " + KEY_TITLE + " = ? " + COLLATION;
             mGetAnthologyTitleIdStmt = mStatements.add("mGetAnthologyTitleIdStmt", sql);
         }
@@ -2438,6 +2597,8 @@ public class CatalogueDBAdapter {
         initialValues.put(KEY_FAMILY_NAME, family_name);
         initialValues.put(KEY_GIVEN_NAMES, given_names);
         long result = mDb.insert(DB_TB_AUTHORS, null, initialValues);
+        if (result > 0 && mAuthorIdCache != null)
+            mAuthorIdCache.put(getAuthorCacheKey(family_name, given_names), result);
         return result;
     }
 
@@ -2451,6 +2612,8 @@ public class CatalogueDBAdapter {
         ContentValues initialValues = new ContentValues();
         initialValues.put(KEY_SERIES_NAME, seriesName);
         long result = mDb.insert(DB_TB_SERIES, null, initialValues);
+        if (result > 0 && mSeriesIdCache != null)
+            mSeriesIdCache.put(seriesName, result);
         return result;
     }
 
@@ -2534,7 +2697,7 @@ public class CatalogueDBAdapter {
             createBookAnthologyTitles(rowId, anthologyTitles, false);
 
             try {
-                insertFts(rowId);
+                markFtsDirty(rowId);
             } catch (Exception e) {
                 Logger.logError(e, "Failed to update FTS");
             }
@@ -2564,6 +2727,8 @@ public class CatalogueDBAdapter {
         ContentValues initialValues = new ContentValues();
         initialValues.put(KEY_BOOKSHELF, bookshelf);
         long result = mDb.insert(DB_TB_BOOKSHELF, null, initialValues);
+        if (result > 0 && mBookshelfIdCache != null)
+            mBookshelfIdCache.put(bookshelf, result);
         return result;
     }
 
@@ -2714,6 +2879,11 @@ public class CatalogueDBAdapter {
     }
 
     private long getSeriesId(String name) {
+        if (mSeriesIdCache != null) {
+            Long cached = mSeriesIdCache.get(name);
+            if (cached != null)
+                return cached;
+        }
         if (mGetSeriesIdStmt == null) {
             mGetSeriesIdStmt = mStatements.add("mGetSeriesIdStmt", "Select " + KEY_ROW_ID + " From " + DB_TB_SERIES
                     + " Where Upper(" + KEY_SERIES_NAME + ") = Upper(?)" + COLLATION);
@@ -2725,6 +2895,8 @@ public class CatalogueDBAdapter {
         } catch (SQLiteDoneException e) {
             id = 0;
         }
+        if (id > 0 && mSeriesIdCache != null)
+            mSeriesIdCache.put(name, id);
         return id;
     }
 
@@ -2737,6 +2909,13 @@ public class CatalogueDBAdapter {
     }
 
     private long getAuthorId(String[] names) {
+        String key = null;
+        if (mAuthorIdCache != null) {
+            key = getAuthorCacheKey(names[0], names[1]);
+            Long cached = mAuthorIdCache.get(key);
+            if (cached != null)
+                return cached;
+        }
         if (mGetAuthorIdStmt == null) {
             mGetAuthorIdStmt = mStatements.add("mGetAuthorIdStmt", "Select " + KEY_ROW_ID + " From " + DB_TB_AUTHORS
                     + " Where Upper(" + KEY_FAMILY_NAME + ") = Upper(?) " + COLLATION
@@ -2750,9 +2929,15 @@ public class CatalogueDBAdapter {
         } catch (SQLiteDoneException e) {
             id = 0;
         }
+        if (id > 0 && key != null)
+            mAuthorIdCache.put(key, id);
         return id;
     }
 
+    private static String getAuthorCacheKey(String familyName, String givenNames) {
+        return familyName + '\u0000' + givenNames;
+    }
+
     private String getAuthorIdOrCreate(String[] names) {
         long id = getAuthorId(names);
         if (id == 0)
@@ -3178,7 +3363,7 @@ public class CatalogueDBAdapter {
             }
 
             try {
-                updateFts(rowId);
+                markFtsDirty(rowId);
             } catch (Exception e) {
                 Logger.logError(e, "Failed to update FTS");
             }
@@ -3351,6 +3536,7 @@ public class CatalogueDBAdapter {
         ContentValues args = new ContentValues();
         args.put(KEY_BOOKSHELF, bookshelf);
         success = mDb.update(DB_TB_BOOKSHELF, args, KEY_ROW_ID + "=" + bookshelfId, null) > 0;
+        clearIdCaches();
         purgeAuthors();
 
         // Mark all related book as dirty
@@ -3384,6 +3570,13 @@ public class CatalogueDBAdapter {
                 + " Exists(Select * From " + TBL_BOOK_AUTHOR.ref() + " Where " + TBL_BOOK_AUTHOR.dot(DOM_AUTHOR_ID) + " = " + authorId
                 + " and " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + " = " + TBL_BOOKS + "." + DOM_ID + ")";
         mDb.execSQL(sql);
+
+        // The author name is part of the FTS data for all these books
+        markFtsDirty("Select " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + " From " + TBL_BOOK_AUTHOR.ref()
+                + " Where " + TBL_BOOK_AUTHOR.dot(DOM_AUTHOR_ID) + " = " + authorId
+                + " Union Select " + TBL_ANTHOLOGY.dot(DOM_BOOK) + " From " + TBL_ANTHOLOGY.ref()
+                + " Where " + TBL_ANTHOLOGY.dot(DOM_AUTHOR_ID) + " = " + authorId
+                + " and " + TBL_ANTHOLOGY.dot(DOM_BOOK) + " is not null");
     }
 
     private void setBooksDirtyBySeries(long seriesId) {
@@ -3392,6 +3585,10 @@ public class CatalogueDBAdapter {
                 + " Exists(Select * From " + TBL_BOOK_SERIES.ref() + " Where " + TBL_BOOK_SERIES.dot(DOM_SERIES_ID) + " = " + seriesId
                 + " and " + TBL_BOOK_SERIES.dot(DOM_BOOK) + " = " + TBL_BOOKS + "." + DOM_ID + ")";
         mDb.execSQL(sql);
+
+        // The series name is part of the FTS data for all these books
+        markFtsDirty("Select " + TBL_BOOK_SERIES.dot(DOM_BOOK) + " From " + TBL_BOOK_SERIES.ref()
+                + " Where " + TBL_BOOK_SERIES.dot(DOM_SERIES_ID) + " = " + seriesId);
     }
 
     private void setBooksDirtyByBookshelf(long bookshelfId) {
@@ -3447,6 +3644,7 @@ public class CatalogueDBAdapter {
                 v.put(KEY_FAMILY_NAME, a.familyName);
                 v.put(KEY_GIVEN_NAMES, a.givenNames);
                 mDb.update(DB_TB_AUTHORS, v, KEY_ROW_ID + " = " + a.id, null);
+                clearIdCaches();
                 // Mark any book referencing this author as dirty.
                 setBooksDirtyByAuthor(a.id);
             }
@@ -3551,6 +3749,7 @@ public class CatalogueDBAdapter {
                 ContentValues v = new ContentValues();
                 v.put(KEY_SERIES_NAME, s.name);
                 mDb.update(DB_TB_SERIES, v, KEY_ROW_ID + " = " + s.id, null);
+                clearIdCaches();
 
                 // Mark all books referencing this series as dirty
                 this.setBooksDirtyBySeries(s.id);
@@ -3610,6 +3809,7 @@ public class CatalogueDBAdapter {
      * Delete the author with the given rowId
      */
     public void purgeAuthors() {
+        clearIdCaches();
         // Delete DB_TB_BOOK_AUTHOR with no books
         if (mPurgeBookAuthorsStmt == null) {
             mPurgeBookAuthorsStmt = mStatements.add("mPurgeBookAuthorsStmt", "Delete from " + DB_TB_BOOK_AUTHOR + " Where " + KEY_BOOK
@@ -3642,6 +3842,7 @@ public class CatalogueDBAdapter {
      * @return true if deleted, false otherwise
      */
     public boolean purgeSeries() {
+        clearIdCaches();
         if (mPurgeBookSeriesStmt == null) {
             mPurgeBookSeriesStmt = mStatements.add("mPurgeBookSeriesStmt", "Delete From " + DB_TB_BOOK_SERIES + " Where "
                     + KEY_BOOK + " NOT IN (SELECT DISTINCT " + KEY_ROW_ID + " FROM " + DB_TB_BOOKS + ")");
@@ -3716,7 +3917,7 @@ public class CatalogueDBAdapter {
         purgeAuthors();
 
         try {
-            deleteFts(rowId);
+            markFtsDirty(rowId);
         } catch (Exception e) {
             Logger.logError(e, "Failed to delete FTS");
         }
@@ -3765,10 +3966,12 @@ public class CatalogueDBAdapter {
      * some of the fields from the books table! If a method call is made to retrieve
      * a column that does not exist, an exception will be thrown.
      *
+     * In WAL mode the query runs on a read-only connection, so it must not use temporary tables.
+     *
      * @return A new BooksCursor
      */
     public BooksCursor fetchBooks(String sql, String[] selectionArgs) {
-        return (BooksCursor) mDb.rawQueryWithFactory(m_booksFactory, sql, selectionArgs, "");
+        return (BooksCursor) mDb.rawQueryForRead(m_booksFactory, sql, selectionArgs);
     }
 
     /**
@@ -4295,264 +4498,312 @@ public class CatalogueDBAdapter {
     }
 
     /**
-     * Send the book details from the cursor to the passed fts query.
-     * NOTE: This assumes a specific order for query parameters.
-     *
-     * @param books Cursor of books to update
-     * @param stmt  Statement to execute
-     */
-    public void ftsSendBooks(BooksCursor books, SynchronizedStatement stmt) {
-
-        // Get a RowView for the cursor
-        final BooksRowView book = books.getRowView();
-        // Build the SQL to get author details for a book.
-        // ... all authors
-        final String authorBaseSql = "Select " + TBL_AUTHORS.dot("*") + " from " + TBL_BOOK_AUTHOR.ref() + TBL_BOOK_AUTHOR.join(TBL_AUTHORS) +
-                " Where " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + " = ";
-        // ... all series
-        final String seriesBaseSql = "Select " + TBL_SERIES.dot(DOM_SERIES_NAME) + " || ' ' || Coalesce(" + TBL_BOOK_SERIES.dot(DOM_SERIES_NUM) + ",'') as seriesInfo from " + TBL_BOOK_SERIES.ref() + TBL_BOOK_SERIES.join(TBL_SERIES) +
-                " Where " + TBL_BOOK_SERIES.dot(DOM_BOOK) + " = ";
-        // ... all anthology titles
-        final String anthologyBaseSql = "Select " + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME) + " as anthologyAuthorInfo, " + DOM_TITLE + " as anthologyTitleInfo "
-                + " from " + TBL_ANTHOLOGY.ref() + TBL_ANTHOLOGY.join(TBL_AUTHORS) +
-                " Where " + TBL_ANTHOLOGY.dot(DOM_BOOK) + " = ";
-
-        // Accumulator for author names for each book
-        StringBuilder authorText = new StringBuilder();
-        // Accumulator for series names for each book
-        StringBuilder seriesText = new StringBuilder();
-        // Accumulator for title names for each anthology
-        StringBuilder titleText = new StringBuilder();
-        // Indexes of author name fields.
-        int colGivenNames = -1;
-        int colFamilyName = -1;
-        int colSeriesInfo = -1;
-        int colAnthologyAuthorInfo = -1;
-        int colAnthologyTitleInfo = -1;
-
-        // Process each book
-        while (books.moveToNext()) {
-            // Reset authors/series/title
-            authorText.setLength(0);
-            seriesText.setLength(0);
-            titleText.setLength(0);
-            // Get list of authors
-            {
-                try (Cursor c = mDb.rawQuery(authorBaseSql + book.getId())) {
-                    // Get column indexes, if not already got
-                    if (colGivenNames < 0)
-                        colGivenNames = c.getColumnIndex(KEY_GIVEN_NAMES);
-                    if (colFamilyName < 0)
-                        colFamilyName = c.getColumnIndex(KEY_FAMILY_NAME);
-                    // Append each author
-                    while (c.moveToNext()) {
-                        authorText.append(c.getString(colGivenNames));
-                        authorText.append(" ");
-                        authorText.append(c.getString(colFamilyName));
-                        authorText.append(";");
-                    }
-                }
-            }
+     * Rebuild the entire FTS database. This can take several seconds with many books or a slow phone.
+     * <p>
+     * The new index is built into a temporary copy of the FTS table using a set-based FtsBuilder,
+     * committing in batches. Books edited while the copy is being built stay in the FTS change
+     * log and are refreshed by the background indexer once the new table is in place.
+     */
+    public void rebuildFts() {
+        if (!mDb.outsideTransaction())
+            throw new RuntimeException("rebuildFts() can not be called inside a transaction");
 
-            // Get list of series
-            {
-                try (Cursor c = mDb.rawQuery(seriesBaseSql + book.getId())) {
-                    // Get column indexes, if not already got
-                    if (colSeriesInfo < 0)
-                        colSeriesInfo = c.getColumnIndex("seriesInfo");
-                    // Append each series
-                    while (c.moveToNext()) {
-                        seriesText.append(c.getString(colSeriesInfo));
-                        seriesText.append(";");
-                    }
-                }
+        boolean gotError = false;
+
+        // Make a copy of the FTS table definition for our temp table.
+        TableDefinition ftsTemp = TBL_BOOKS_FTS.clone();
+        // Give it a new name
+        ftsTemp.setName(ftsTemp.getName() + "_temp");
+
+        mFtsMaintenanceLock.lock();
+        try {
+            try {
+                // Drop and recreate our temp copy
+                ftsTemp.drop(mDb);
+                ftsTemp.create(mDb, false);
+
+                // Send every book, in batches
+                new FtsBuilder(mDb).fill(ftsTemp);
+            } catch (Exception e) {
+                Logger.logError(e);
+                gotError = true;
             }
 
-            // Get list of anthology data (author and title)
-            {
-                try (Cursor c = mDb.rawQuery(anthologyBaseSql + book.getId())) {
-                    // Get column indexes, if not already got
-                    if (colAnthologyAuthorInfo < 0)
-                        colAnthologyAuthorInfo = c.getColumnIndex("anthologyAuthorInfo");
-                    if (colAnthologyTitleInfo < 0)
-                        colAnthologyTitleInfo = c.getColumnIndex("anthologyTitleInfo");
-                    // Append each series
-                    while (c.moveToNext()) {
-                        authorText.append(c.getString(colAnthologyAuthorInfo));
-                        authorText.append(";");
-                        titleText.append(c.getString(colAnthologyTitleInfo));
-                        titleText.append(";");
-                    }
-                }
+            SyncLock l = mDb.beginTransaction(true);
+            try {
+                // Drop old table, ready for rename
+                if (!gotError)
+                    TBL_BOOKS_FTS.drop(mDb);
+                // Done
+                mDb.setTransactionSuccessful();
+            } catch (Exception e) {
+                Logger.logError(e);
+                gotError = true;
+            } finally {
+                mDb.endTransaction(l);
+
+                // According to this:
+                //
+                //    http://old.nabble.com/Bug-in-FTS3-when-trying-to-rename-table-within-a-transaction-td29474500.html
+                //
+                // FTS tables should only be renamed outside of transactions. Which is a pain.
+                //
+                // Delete old table and rename the new table
+                //
+                if (!gotError)
+                    mDb.execSQL("Alter Table " + ftsTemp + " rename to " + TBL_BOOKS_FTS);
             }
+        } finally {
+            mFtsMaintenanceLock.unlock();
+        }
 
-            // Set the parameters and call
-            bindStringOrNull(stmt, 1, authorText.toString());
-            // Titles should only contain title, not SERIES
-            bindStringOrNull(stmt, 2, book.getTitle() + "; " + titleText);
-            // We could add a 'series' column, or just add it as part of the description
-            bindStringOrNull(stmt, 3, book.getDescription() + seriesText);
-            bindStringOrNull(stmt, 4, book.getNotes());
-            bindStringOrNull(stmt, 5, book.getPublisher());
-            bindStringOrNull(stmt, 6, book.getGenre());
-            bindStringOrNull(stmt, 7, book.getLocation());
-            bindStringOrNull(stmt, 8, book.getIsbn());
-            stmt.bindLong(9, book.getId());
+        // Apply anything that changed while we were busy.
+        scheduleFtsIndexer();
+    }
 
-            stmt.execute();
+    /**
+     * Record that the FTS data for a book (or a deleted book) needs to be refreshed, and
+     * make sure the background indexer will run.
+     *
+     * @param bookId Book to refresh
+     */
+    public void markFtsDirty(long bookId) {
+        if (mDeferredFtsBooks != null) {
+            mDeferredFtsBooks.add(bookId);
+            return;
         }
+        if (mMarkFtsDirtyStmt == null) {
+            String sql = "Insert or Ignore Into " + TBL_BOOKS_FTS_DIRTY + " (" + DOM_BOOK + ") Values (?)";
+            mMarkFtsDirtyStmt = mStatements.add("mMarkFtsDirtyStmt", sql);
+        }
+        mMarkFtsDirtyStmt.bindLong(1, bookId);
+        mMarkFtsDirtyStmt.execute();
+        scheduleFtsIndexer();
     }
 
-    public void insertFts(long bookId) {
-        //long t0 = System.currentTimeMillis();
+    /**
+     * Record that the FTS data for all books returned by the passed query needs to be refreshed.
+     *
+     * @param bookIdSql SQL returning a single column of book ids
+     */
+    private void markFtsDirty(String bookIdSql) {
+        mDb.execSQL("Insert or Ignore Into " + TBL_BOOKS_FTS_DIRTY + " (" + DOM_BOOK + ") " + bookIdSql);
+        scheduleFtsIndexer();
+    }
 
-        if (mInsertFtsStmt == null) {
-            // Build the FTS insert statement base. The parameter order MUST match the order expected in ftsSendBooks().
-            String sql = TBL_BOOKS_FTS.getInsert(DOM_AUTHOR_NAME, DOM_TITLE, DOM_DESCRIPTION, DOM_NOTES,
-                    DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN, DOM_DOCID)
-                    + " Values (?,?,?,?,?,?,?,?,?)";
-            mInsertFtsStmt = mStatements.add("mInsertFtsStmt", sql);
+    /**
+     * Prepare for a large number of book inserts and updates through this adapter (eg. an
+     * import). Author, series and bookshelf IDs are remembered by name rather than looked up
+     * for every book, and FTS changes are collected in memory rather than sent to the change
+     * log, so the background indexer does not compete with the updates.
+     * <p>
+     * Must be followed by endBulkUpdate(), outside of any transaction.
+     */
+    public void startBulkUpdate() {
+        mAuthorIdCache = new HashMap<>();
+        mSeriesIdCache = new HashMap<>();
+        mBookshelfIdCache = new HashMap<>();
+        mDeferredFtsBooks = new HashSet<>();
+    }
+
+    /**
+     * Finish a bulk update started by startBulkUpdate(): forget the cached IDs and bring the
+     * FTS data up to date. A few changed books go into the FTS change log as usual; if more
+     * than one indexer batch changed, it is quicker to rebuild the whole FTS table once.
+     */
+    public void endBulkUpdate() {
+        mAuthorIdCache = null;
+        mSeriesIdCache = null;
+        mBookshelfIdCache = null;
+
+        final HashSet<Long> books = mDeferredFtsBooks;
+        mDeferredFtsBooks = null;
+        if (books == null || books.isEmpty())
+            return;
+
+        if (books.size() > FTS_INDEXER_BATCH_SIZE && mDb.outsideTransaction()) {
+            rebuildFts();
+        } else {
+            SyncLock l = null;
+            if (mDb.outsideTransaction())
+                l = mDb.beginTransaction(true);
+            try {
+                for (long id : books)
+                    markFtsDirty(id);
+                if (l != null)
+                    mDb.setTransactionSuccessful();
+            } finally {
+                if (l != null)
+                    mDb.endTransaction(l);
+            }
         }
+    }
 
-        BooksCursor books = null;
+    /**
+     * Forget the IDs cached during a bulk update, after authors, series or bookshelves
+     * have been renamed, merged or deleted.
+     */
+    private void clearIdCaches() {
+        if (mAuthorIdCache != null)
+            mAuthorIdCache.clear();
+        if (mSeriesIdCache != null)
+            mSeriesIdCache.clear();
+        if (mBookshelfIdCache != null)
+            mBookshelfIdCache.clear();
+    }
 
-        // Start an update TX
-        SyncLock l = null;
-        if (mDb.outsideTransaction())
-            l = mDb.beginTransaction(true);
-        try {
-            // Compile statement and get books cursor
-            books = fetchBooks("select * from " + TBL_BOOKS + " where " + DOM_ID + " = " + bookId, EMPTY_STRING_ARRAY);
-            // Send the book
-            ftsSendBooks(books, mInsertFtsStmt);
-            if (l != null)
-                mDb.setTransactionSuccessful();
-        } finally {
-            // Cleanup
-            if (books != null)
-                try {
-                    books.close();
-                } catch (Exception ignored) {
-                }
-            if (l != null)
-                mDb.endTransaction(l);
+    /**
+     * Start the background FTS indexer, if it is not already pending.
+     */
+    private static void scheduleFtsIndexer() {
+        if (mAppContext != null)
+            FtsIndexerTask.schedule(mAppContext);
+    }
+
+    /**
+     * Get the number of books waiting in the FTS change log.
+     */
+    public long getFtsDirtyCount() {
+        try (Cursor c = mDb.rawQuery("Select Count(*) From " + TBL_BOOKS_FTS_DIRTY)) {
+            c.moveToFirst();
+            return c.getLong(0);
         }
     }
 
-    public void updateFts(long bookId) {
-        //long t0 = System.currentTimeMillis();
+    /**
+     * Refresh the FTS rows for all books in the FTS change log, in batches. Each batch removes
+     * the existing FTS rows for its books, re-sends the books that still exist and clears their
+     * change log entries in a single transaction. A book edited many times is only refreshed once.
+     * <p>
+     * Does nothing if a full rebuild is in progress; the rebuild will schedule the indexer
+     * when it finishes. Also does nothing inside a transaction, since the FTS maintenance lock
+     * must be taken first; the indexer has already been scheduled for those changes.
+     *
+     * @return Number of change log entries processed
+     */
+    public int refreshDirtyFts() {
+        return refreshDirtyFts(FTS_INDEXER_BATCH_SIZE, true);
+    }
 
-        if (mUpdateFtsStmt == null) {
-            // Build the FTS update statement base. The parameter order MUST match the order expected in ftsSendBooks().
-            String sql = TBL_BOOKS_FTS.getUpdate(DOM_AUTHOR_NAME, DOM_TITLE, DOM_DESCRIPTION, DOM_NOTES,
-                    DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN)
-                    + " Where " + DOM_DOCID + " = ?";
-            mUpdateFtsStmt = mStatements.add("mUpdateFtsStmt", sql);
+    /**
+     * @param batchSize  Maximum number of books refreshed in each transaction
+     * @param allBatches false to stop after the first batch
+     *
+     * @return Number of change log entries processed
+     */
+    private int refreshDirtyFts(int batchSize, boolean allBatches) {
+        if (!mDb.outsideTransaction())
+            return 0;
+        if (mInsertFtsStmt == null) {
+            mInsertFtsStmt = mStatements.add("mInsertFtsStmt", FtsBuilder.getInsertSql(TBL_BOOKS_FTS));
         }
-        BooksCursor books = null;
+        final String selectSql = "Select " + DOM_BOOK + " From " + TBL_BOOKS_FTS_DIRTY
+                + " Order by " + DOM_BOOK + " Limit " + batchSize;
 
-        SyncLock l = null;
-        if (mDb.outsideTransaction())
-            l = mDb.beginTransaction(true);
-        try {
-            // Compile statement and get cursor
-            books = fetchBooks("select * from " + TBL_BOOKS + " where " + DOM_ID + " = " + bookId, EMPTY_STRING_ARRAY);
-            ftsSendBooks(books, mUpdateFtsStmt);
-            if (l != null)
-                mDb.setTransactionSuccessful();
-        } finally {
-            // Cleanup
-            if (books != null)
+        int total = 0;
+        final StringBuilder ids = new StringBuilder();
+        while (true) {
+            if (!mFtsMaintenanceLock.tryLock())
+                return total;
+            try {
+                SyncLock l = mDb.beginTransaction(true);
                 try {
-                    books.close();
-                } catch (Exception ignored) {
+                    ids.setLength(0);
+                    int count = 0;
+                    try (Cursor c = mDb.rawQuery(selectSql)) {
+                        while (c.moveToNext()) {
+                            if (count > 0)
+                                ids.append(",");
+                            ids.append(c.getLong(0));
+                            count++;
+                        }
+                    }
+                    if (count == 0)
+                        return total;
+
+                    final String idFilter = " in (" + ids + ")";
+                    mDb.execSQL("Delete From " + TBL_BOOKS_FTS + " Where " + DOM_DOCID + idFilter);
+                    new FtsBuilder(mDb).sendBooks(mInsertFtsStmt, idFilter);
+                    mDb.execSQL("Delete From " + TBL_BOOKS_FTS_DIRTY + " Where " + DOM_BOOK + idFilter);
+                    mDb.setTransactionSuccessful();
+                    total += count;
+                    if (!allBatches || count < batchSize)
+                        return total;
+                } finally {
+                    mDb.endTransaction(l);
                 }
-            if (l != null)
-                mDb.endTransaction(l);
+            } finally {
+                mFtsMaintenanceLock.unlock();
+            }
         }
     }
 
-    public void deleteFts(long bookId) {
-        //long t0 = System.currentTimeMillis();
-        if (mDeleteFtsStmt == null) {
-            String sql = "Delete from " + TBL_BOOKS_FTS + " Where " + DOM_DOCID + " = ?";
-            mDeleteFtsStmt = mStatements.add("mDeleteFtsStmt", sql);
+    /**
+     * Record that a book needs to be sent to, or removed from, the cloud backup. A book already
+     * in the outbox is moved to the end with the new action, so it is only sent once.
+     *
+     * @param bookId Book that changed
+     * @param delete true if the book was deleted
+     */
+    public void addToSyncOutbox(long bookId, boolean delete) {
+        if (mAddToSyncOutboxStmt == null) {
+            String sql = "Insert or Replace Into " + TBL_SYNC_OUTBOX + " (" + DOM_BOOK + ", " + DOM_SYNC_DELETE + ") Values (?, ?)";
+            mAddToSyncOutboxStmt = mStatements.add("mAddToSyncOutboxStmt", sql);
         }
-        mDeleteFtsStmt.bindLong(1, bookId);
-        mDeleteFtsStmt.execute();
+        mAddToSyncOutboxStmt.bindLong(1, bookId);
+        mAddToSyncOutboxStmt.bindLong(2, delete ? 1 : 0);
+        mAddToSyncOutboxStmt.execute();
     }
 
     /**
-     * Rebuild the entire FTS database. This can take several seconds with many books or a slow phone.
-     *
+     * Get the number of books waiting in the cloud sync outbox.
      */
-    public void rebuildFts() {
-        long t0 = System.currentTimeMillis();
-        boolean gotError = false;
-
-        // Make a copy of the FTS table definition for our temp table.
-        TableDefinition ftsTemp = TBL_BOOKS_FTS.clone();
-        // Give it a new name
-        ftsTemp.setName(ftsTemp.getName() + "_temp");
-
-        SynchronizedStatement insert = null;
-        BooksCursor c = null;
+    public long getSyncOutboxCount() {
+        try (Cursor c = mDb.rawQuery("Select Count(*) From " + TBL_SYNC_OUTBOX)) {
+            c.moveToFirst();
+            return c.getLong(0);
+        }
+    }
 
-        SyncLock l = null;
-        if (mDb.outsideTransaction())
-            l = mDb.beginTransaction(true);
-        try {
-            // Drop and recreate our temp copy
-            ftsTemp.drop(mDb);
-            ftsTemp.create(mDb, false);
-
-            // Build the FTS update statement base. The parameter order MUST match the order expected in ftsSendBooks().
-            final String sql = ftsTemp.getInsert(DOM_AUTHOR_NAME, DOM_TITLE, DOM_DESCRIPTION, DOM_NOTES, DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN, DOM_DOCID)
-                    + " values (?,?,?,?,?,?,?,?,?)";
-
-            // Compile an INSERT statement
-            insert = mDb.compileStatement(sql);
-
-            // Get ALL books in the DB
-            c = fetchBooks("select * from " + TBL_BOOKS, EMPTY_STRING_ARRAY);
-            // Send each book
-            ftsSendBooks(c, insert);
-            // Drop old table, ready for rename
-            TBL_BOOKS_FTS.drop(mDb);
-            // Done
-            if (l != null)
-                mDb.setTransactionSuccessful();
-        } catch (Exception e) {
-            Logger.logError(e);
-            gotError = true;
-        } finally {
-            // Cleanup
-            if (c != null)
-                try {
-                    c.close();
-                } catch (Exception ignored) {
-                }
-            if (insert != null)
-                try {
-                    insert.close();
-                } catch (Exception ignored) {
-                }
-            if (l != null)
-                mDb.endTransaction(l);
+    /**
+     * Get the oldest entries in the cloud sync outbox; entries that have failed to send come last.
+     *
+     * @param limit Maximum number of entries
+     * @return Cursor of outbox id, book id, delete flag and failure count
+     */
+    public Cursor fetchSyncOutbox(int limit) {
+        String sql = "Select " + DOM_ID + ", " + DOM_BOOK + ", " + DOM_SYNC_DELETE + ", " + DOM_SYNC_FAILURES + " From " + TBL_SYNC_OUTBOX
+                + " Order by " + DOM_SYNC_FAILURES + ", " + DOM_ID + " Limit " + limit;
+        return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+    }
 
-            // According to this:
-            //
-            //    http://old.nabble.com/Bug-in-FTS3-when-trying-to-rename-table-within-a-transaction-td29474500.html
-            //
-            // FTS tables should only be renamed outside of transactions. Which is a pain.
-            //
-            // Delete old table and rename the new table
-            //
-            if (!gotError)
-                mDb.execSQL("Alter Table " + ftsTemp + " rename to " + TBL_BOOKS_FTS);
+    /**
+     * Remove sent entries from the cloud sync outbox. Entries are removed by outbox id, so a book
+     * that changed again while it was being sent stays in the outbox.
+     *
+     * @param ids Outbox ids from fetchSyncOutbox()
+     */
+    public void removeFromSyncOutbox(ArrayList<Long> ids) {
+        if (ids.isEmpty())
+            return;
+        StringBuilder list = new StringBuilder();
+        for (long id : ids) {
+            if (list.length() > 0)
+                list.append(",");
+            list.append(id);
         }
+        mDb.execSQL("Delete From " + TBL_SYNC_OUTBOX + " Where " + DOM_ID + " in (" + list + ")");
+    }
 
-        long t1 = System.currentTimeMillis();
+    /**
+     * Count a failed send of a cloud sync outbox entry. A new change to the book replaces the
+     * entry, which starts the count again.
+     *
+     * @param id Outbox id from fetchSyncOutbox()
+     */
+    public void recordSyncOutboxFailure(long id) {
+        mDb.execSQL("Update " + TBL_SYNC_OUTBOX + " Set " + DOM_SYNC_FAILURES + " = " + DOM_SYNC_FAILURES + " + 1"
+                + " Where " + DOM_ID + " = " + id);
     }
 
     /**
@@ -4581,6 +4832,13 @@ public class CatalogueDBAdapter {
      * @param anywhere Keywords to find anywhere in book
      */
     public Cursor searchFts(String author, String title, String anywhere) {
+        // Make sure recent edits are searchable without holding up the UI thread for long;
+        // anything more is left to the background indexer.
+        if (getFtsDirtyCount() <= FTS_SEARCH_REFRESH_LIMIT)
+            refreshDirtyFts(FTS_SEARCH_REFRESH_LIMIT, false);
+        else
+            scheduleFtsIndexer();
+
         author = cleanupFtsCriterion(author);
         title = cleanupFtsCriterion(title);
         anywhere = cleanupFtsCriterion(anywhere);
@@ -4663,6 +4921,18 @@ public class CatalogueDBAdapter {
             super(context, StorageUtils.getDatabaseName(), mTrackedCursorFactory, DATABASE_VERSION);
         }
 
+        /**
+         * Close the read pool along with the database, so that it does not outlive it.
+         */
+        @Override
+        public synchronized void close() {
+            synchronized (mDbLock) {
+                if (mDb != null)
+                    mDb.closeReadPool();
+            }
+            super.close();
+        }
+
         /**
          * Return a boolean indicating if this was a new install
          */
@@ -4694,6 +4964,8 @@ public class CatalogueDBAdapter {
 
             DatabaseDefinitions.TBL_BOOK_LIST_NODE_SETTINGS.createAll(sdb, true);
             DatabaseDefinitions.TBL_BOOKS_FTS.create(sdb, false);
+            DatabaseDefinitions.TBL_BOOKS_FTS_DIRTY.createAll(sdb, true);
+            DatabaseDefinitions.TBL_SYNC_OUTBOX.createAll(sdb, true);
             DatabaseDefinitions.TBL_BOOK_LIST_STYLES.createAll(sdb, true);
 
             createTriggers(sdb);
@@ -5656,6 +5928,21 @@ public class CatalogueDBAdapter {
                 curVersion++;
                 recreateAndReloadTable(sdb, DB_TB_BOOKS, DATABASE_CREATE_BOOKS);
             }
+            if (curVersion == 82) {
+                curVersion++;
+                // Change log for the background FTS indexer
+                DatabaseDefinitions.TBL_BOOKS_FTS_DIRTY.createAll(sdb, true);
+            }
+            if (curVersion == 83) {
+                curVersion++;
+                // Outbox for the cloud sync of edited books
+                DatabaseDefinitions.TBL_SYNC_OUTBOX.createAll(sdb, true);
+            }
+            if (curVersion == 84) {
+                curVersion++;
+                // Count of failed sends, so one bad outbox entry cannot hold up the rest
+                db.execSQL("ALTER TABLE " + TBL_SYNC_OUTBOX + " Add " + DOM_SYNC_FAILURES.getDefinition(true));
+            }
             // !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
             // NOTE: As of 4.2, DO NOT USE OnUpgrade TO DISPLAY UPGRADE MESSAGES. See header for details.
             // !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
@@ -0,0 +1,237 @@
+package com.eleybourn.bookcatalogue;
+
+import android.util.Log;
+
+import com.eleybourn.bookcatalogue.database.CoversDbHelper;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the cover uploads and downloads of a cloud backup or restore on a few worker threads,
+ * retrying failures after an increasing delay.
+ * <p>
+ * Pending transfers are saved in the covers database before they start and removed as each one
+ * succeeds, so transfers left over by a run that was stopped or killed, or that failed every
+ * attempt, are picked up by the next run in the same direction. A transfer that has failed in
+ * MAX_FAILED_RUNS runs is dropped.
+ * <p>
+ * HttpURLConnection keeps connections to the same host alive between requests once a response
+ * has been read to the end, so each worker reuses its connection across transfers.
+ */
+public class CoverTransferQueue {
+    public static final int UPLOAD = 1;
+    public static final int DOWNLOAD = 2;
+
+    /** Number of transfers run at the same time */
+    private static final int MAX_WORKERS = 4;
+    /** Number of times a transfer is tried before it is left for the next run */
+    private static final int MAX_ATTEMPTS = 3;
+    /** Number of runs a saved transfer may fail in before it is dropped */
+    private static final int MAX_FAILED_RUNS = 3;
+    /** Delay before the first retry; doubled for each further retry */
+    private static final long RETRY_DELAY_MS = 1000;
+    /** How often the waiting thread checks whether it has been asked to stop */
+    private static final long WAIT_POLL_MS = 500;
+
+    /** Worker threads, shared by all runs */
+    private static final SimpleTaskQueue mWorkers = new SimpleTaskQueue("covertransfers", MAX_WORKERS);
+
+    /**
+     * A single cover to send or fetch.
+     */
+    public static class Transfer {
+        public final int direction;
+        /**
+         * Local book ID. A restored book keeps the server's bcid as its ID when it can,
+         * but the ID passed for a download is always the one the book was saved under.
+         */
+        public final long bookId;
+        /** Book UUID, used to find the cover file; may be empty for downloads */
+        public final String uuid;
+        /** Where to download the cover from; empty for uploads */
+        public final String url;
+        /** Expected MD5 of a downloaded cover, or empty if not known */
+        public final String md5;
+
+        public Transfer(int direction, long bookId, String uuid, String url, String md5) {
+            this.direction = direction;
+            this.bookId = bookId;
+            this.uuid = uuid == null ? "" : uuid;
+            this.url = url == null ? "" : url;
+            this.md5 = md5 == null ? "" : md5;
+        }
+    }
+
+    /**
+     * Performs a transfer. Called on a worker thread.
+     */
+    public interface TransferHandler {
+        /**
+         * @param transfer    Transfer to perform
+         * @param taskContext Context of the worker thread, for its DB connections
+         * @return Number of bytes sent or received
+         */
+        long transfer(Transfer transfer, SimpleTaskContext taskContext) throws Exception;
+    }
+
+    /**
+     * Told about each finished transfer. Called on a worker thread.
+     */
+    public interface ProgressListener {
+        void onProgress(int done, int total, long bytesPerSecond);
+    }
+
+    private CoverTransferQueue() {
+    }
+
+    /**
+     * Run the passed transfers, along with any in the same direction left over from an earlier
+     * run. Returns when all have finished, or once the caller's task is terminating; transfers
+     * that have not run, or that failed, stay saved for the next run.
+     *
+     * @param direction   UPLOAD or DOWNLOAD
+     * @param transfers   New transfers; these replace any saved ones for the same book
+     * @param taskContext Context of the calling task
+     * @param handler     Performs each transfer
+     * @param listener    Told about progress
+     * @return true if every transfer succeeded
+     */
+    public static boolean run(int direction, Collection<Transfer> transfers, SimpleTaskContext taskContext,
+                          final TransferHandler handler, final ProgressListener listener) {
+        Collection<Transfer> all = transfers;
+        CoversDbHelper db = taskContext.getCoversDb();
+        if (db != null) {
+            try {
+                db.saveCoverTransfers(transfers);
+                db.deleteCoverTransfers(direction, MAX_FAILED_RUNS);
+                all = db.getCoverTransfers(direction);
+            } catch (Exception e) {
+                // We can still do the work, we just won't be able to resume it
+                Log.e("CoverTransferQueue", "Failed to save pending transfers", e);
+            }
+        }
+
+        final int total = all.size();
+        if (total == 0) {
+            return true;
+        }
+
+        final CountDownLatch remaining = new CountDownLatch(total);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final long startTime = System.currentTimeMillis();
+
+        for (final Transfer t : all) {
+            mWorkers.enqueue(new SimpleTask() {
+                @Override
+                public void run(SimpleTaskContext workerContext) {
+                    workerContext.setRequiresFinish(false);
+                    try {
+                        if (cancelled.get() || !runTransfer(t, workerContext, handler, bytes, failed, cancelled)) {
+                            return;
+                        }
+                        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+                        listener.onProgress(done.incrementAndGet(), total, bytes.get() * 1000 / elapsed);
+                    } finally {
+                        remaining.countDown();
+                    }
+                }
+
+                @Override
+                public void onFinish(Exception e) {
+                }
+            });
+        }
+
+        try {
+            while (!remaining.await(WAIT_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (taskContext.isTerminating()) {
+                    cancelled.set(true);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+        }
+        return done.get() == total && failed.get() == 0;
+    }
+
+    /**
+     * Forget the saved transfers in the passed direction; used when new transfers replace them all.
+     *
+     * @param direction   UPLOAD or DOWNLOAD
+     * @param taskContext Context of the calling task
+     */
+    public static void discardSaved(int direction, SimpleTaskContext taskContext) {
+        CoversDbHelper db = taskContext.getCoversDb();
+        if (db != null) {
+            try {
+                db.deleteCoverTransfers(direction, 0);
+            } catch (Exception e) {
+                Log.e("CoverTransferQueue", "Failed to remove saved transfers", e);
+            }
+        }
+    }
+
+    /**
+     * Try a transfer until it works, then forget it, or until it runs out of attempts, then
+     * count a failed run against it and leave it saved.
+     *
+     * @return true if the transfer finished; false if it was stopped and should be resumed later
+     */
+    private static boolean runTransfer(Transfer t, SimpleTaskContext workerContext, TransferHandler handler,
+                                       AtomicLong bytes, AtomicInteger failed, AtomicBoolean cancelled) {
+        long delay = RETRY_DELAY_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                bytes.addAndGet(handler.transfer(t, workerContext));
+                break;
+            } catch (Exception e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    Log.e("CoverTransferQueue", "Leaving cover for book " + t.bookId + " for the next run", e);
+                    failed.incrementAndGet();
+                    CoversDbHelper db = workerContext.getCoversDb();
+                    if (db != null) {
+                        try {
+                            db.recordCoverTransferFailure(t.direction, t.bookId);
+                        } catch (Exception e2) {
+                            Log.e("CoverTransferQueue", "Failed to record failed transfer", e2);
+                        }
+                    }
+                    return true;
+                }
+                Log.w("CoverTransferQueue", "Cover transfer for book " + t.bookId + " failed, retrying", e);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (cancelled.get()) {
+                return false;
+            }
+            delay *= 2;
+        }
+
+        CoversDbHelper db = workerContext.getCoversDb();
+        if (db != null) {
+            try {
+                db.deleteCoverTransfer(t.direction, t.bookId);
+            } catch (Exception e) {
+                Log.e("CoverTransferQueue", "Failed to remove finished transfer", e);
+            }
+        }
+        return true;
+    }
+}
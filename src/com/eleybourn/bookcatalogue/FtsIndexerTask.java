@@ -0,0 +1,105 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import android.content.Context;
+
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background task to apply the FTS change log (see CatalogueDBAdapter.markFtsDirty()) to
+ * the FTS table. Book edits only record the book id; this task coalesces the ids and
+ * refreshes the affected FTS rows in batches.
+ * This class also has its own static SimpleTaskQueue.
+ *
+ * @author Philip Warner
+ */
+public class FtsIndexerTask implements SimpleTask {
+
+	// ******** STATIC Data ******** //
+
+	/**
+	 * Single-thread queue for the indexer. There is no point in more than one thread since
+	 * the database will force serialization of the updates.
+	 */
+	private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("ftsindexer", 1);
+
+	/** Set while a task is queued but has not yet started reading the change log */
+	private static final AtomicBoolean mIsPending = new AtomicBoolean(false);
+
+	/**
+	 * Queue a run of the indexer unless one is already waiting to start. Any run that
+	 * starts after this call will see all changes logged before it.
+	 *
+	 * @param context	Context used to open the database
+	 */
+	public static void schedule(Context context) {
+		if (mIsPending.compareAndSet(false, true))
+			mQueue.enqueue(new FtsIndexerTask(context.getApplicationContext()));
+	}
+
+	/**
+	 * Check if there is an active task in the queue.
+	 */
+	public static boolean hasActiveTasks() {
+		return mQueue.hasActiveTasks();
+	}
+
+	// ******** INSTANCE Data ******** //
+
+	/** Context used to open the database */
+	private final Context mContext;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context	Application context
+	 */
+	private FtsIndexerTask(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * Do the main work in the background thread.
+	 */
+	@Override
+	public void run(SimpleTaskContext taskContext) {
+		// Anything logged from now on needs another run.
+		mIsPending.set(false);
+
+		CatalogueDBAdapter db = new CatalogueDBAdapter(mContext);
+		try {
+			db.open();
+			db.refreshDirtyFts();
+		} finally {
+			db.close();
+		}
+	}
+
+	@Override
+	public void onFinish(Exception e) {
+	}
+
+}
@@ -24,6 +24,7 @@ import android.graphics.Bitmap;
 import android.widget.ImageView;
 
 import com.eleybourn.bookcatalogue.booklist.AdminLibraryPreferences;
+import com.eleybourn.bookcatalogue.utils.CoverMemoryCache;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
@@ -43,10 +44,13 @@ import java.lang.ref.WeakReference;
  */
 public class GetThumbnailTask implements SimpleTask {
 
-    // Queue for background thumbnail retrieval; allow 2 threads. More is nice, but with
-    // many books to process it introduces what looks like lag when scrolling: 5 tasks
-    // building now-invisible views is pointless.
-    private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("thumbnails", 1);
+    // Queue for background thumbnail retrieval and scaling, with one thread per core (up to 4).
+    // The queue is a stack, so the most recently bound views -- the ones on screen -- are done
+    // first, and a task is removed from the queue as soon as its view is re-used for another row,
+    // so building now-invisible views costs nothing. Writing to the cache is done in batches
+    // by ThumbnailCacheWriterTask.
+    private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("thumbnails",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
     /**
      * ID of book whose cover we are getting
      */
@@ -138,6 +142,13 @@ public class GetThumbnailTask implements SimpleTask {
         }
     }
 
+    /**
+     * Check if the view has been re-used for another row.
+     */
+    private boolean isCancelled(final ImageView v) {
+        return !this.equals(ViewTagger.getTag(v, R.id.TAG_GET_THUMBNAIL_TASK));
+    }
+
     /**
      * Do the image manipulation. We wait at start to prevent a flood of images from hitting the UI thread.
      */
@@ -153,7 +164,7 @@ public class GetThumbnailTask implements SimpleTask {
 
         // Make sure the view is still associated with this task. We don't want to overwrite the wrong image
         // in a recycled view.
-        if (!this.equals(ViewTagger.getTag(v, R.id.TAG_GET_THUMBNAIL_TASK))) {
+        if (isCancelled(v)) {
             mWantFinished = false;
             return;
         }
@@ -166,6 +177,12 @@ public class GetThumbnailTask implements SimpleTask {
             mWasInCache = (mBitmap != null);
         }
 
+        // Scaling the original is the slow part; check again in case the view has moved on
+        if (mBitmap == null && isCancelled(v)) {
+            mWantFinished = false;
+            return;
+        }
+
         if (mBitmap == null)
             mBitmap = taskContext.getUtils().fetchBookCoverIntoImageView(null, mWidth, mHeight, true, mBookHash, false, false);
         //}
@@ -192,16 +209,23 @@ public class GetThumbnailTask implements SimpleTask {
             ViewTagger.setTag(v, R.id.TAG_GET_THUMBNAIL_TASK, null);
 
         if (mBitmap != null) {
-            if (!mWasInCache && AdminLibraryPreferences.isThumbnailCacheEnabled()) {
+            final String cacheId = Utils.getCoverCacheId(mBookHash, mWidth, mHeight);
+            final boolean writeToCache = !mWasInCache && AdminLibraryPreferences.isThumbnailCacheEnabled();
+            if (writeToCache) {
                 // Queue the image to be written to the cache. Do it in a separate queue to avoid delays in displaying image
                 // and to avoid contention -- the cache queue only has one thread. Tell the cache write it can be recycled
                 // if we don't have a valid view.
-                ThumbnailCacheWriterTask.writeToCache(Utils.getCoverCacheId(mBookHash, mWidth, mHeight), mBitmap, !viewIsValid);
+                ThumbnailCacheWriterTask.writeToCache(cacheId, mBitmap, !viewIsValid);
             }
             if (viewIsValid) {
+                // Keep it in memory for when the row is next displayed
+                if (AdminLibraryPreferences.isThumbnailCacheEnabled())
+                    CoverMemoryCache.getInstance().put(cacheId, mBitmap);
                 v.setImageBitmap(mBitmap);
-            } else {
-                mBitmap.recycle();
+            } else if (!mWasInCache && !writeToCache) {
+                // Only a bitmap this task decoded can be reused for the next decode. A cache hit
+                // may be on screen in another row, even if it has since left the cache.
+                CoverMemoryCache.getInstance().release(mBitmap);
                 mBitmap = null;
             }
         } else {
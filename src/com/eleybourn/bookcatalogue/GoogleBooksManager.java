@@ -21,6 +21,40 @@ import com.eleybourn.bookcatalogue.utils.Utils;
 
 public class GoogleBooksManager {
 
+	/** Minimum time between requests to Google, so bulk updates stay polite */
+	private static final long REQUEST_INTERVAL_MS = 250;
+	/** Lock for mLastRequestTime */
+	private static final Object mRequestSync = new Object();
+	/** Time the last request was (or will be) made */
+	private static long mLastRequestTime = 0L;
+
+	/**
+	 * Wait until it is our turn to send a request to Google; searches running at the same
+	 * time are spaced at least REQUEST_INTERVAL_MS apart.
+	 *
+	 * @return false if the thread was interrupted while waiting, in which case no request should be made
+	 */
+	public static boolean waitUntilRequestAllowed() {
+		long now = System.currentTimeMillis();
+		long wait;
+		synchronized (mRequestSync) {
+			wait = REQUEST_INTERVAL_MS - (now - mLastRequestTime);
+			if (wait < 0)
+				wait = 0;
+			mLastRequestTime = now + wait;
+		}
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				// Leave the flag set so the task sees it has been cancelled
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
 	static public File getThumbnailFromIsbn(String isbn) {
 		Bundle b = new Bundle();
 		try {
@@ -63,6 +97,8 @@ public class GoogleBooksManager {
 			int count;
 			// We can't Toast anything from here; it no longer runs in UI thread. So let the caller deal 
 			// with any exceptions.
+			if (!waitUntilRequestAllowed())
+				return;
 			InputStream is = Utils.getInputStream(url);
 			if (is != null) {
 				parser.parse(is, handler);
@@ -71,6 +107,8 @@ public class GoogleBooksManager {
 					String id = handler.getId();
 					url = new URL(id);
 					parser = factory.newSAXParser();
+					if (!waitUntilRequestAllowed())
+						return;
 					is = Utils.getInputStream(url);
 					if (is != null) {
 						parser.parse(is, entryHandler);
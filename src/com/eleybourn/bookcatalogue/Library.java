@@ -427,6 +427,15 @@ public class Library extends BookCatalogueActivity implements BooklistChangeList
         showProgress();
     }
 
+    /**
+     * Queue an update of the current list to reflect changed books. Falls back to a full
+     * rebuild if the list can not be updated in place; see LibraryBuilder.buildWithChanges().
+     */
+    private void refreshList() {
+        mTaskQueue.enqueue(new GetListTask(false));
+        showProgress();
+    }
+
     /**
      * Fix background
      */
@@ -637,36 +646,36 @@ public class Library extends BookCatalogueActivity implements BooklistChangeList
      * @return The LibraryBuilder object used to build the data
      */
     private LibraryBuilder buildBooklist(boolean isFullRebuild) {
-        // If not a full rebuild then just use the current builder to requery the underlying data
+        // If not a full rebuild then apply the book changes to a copy of the current list, if possible
         if (mList != null && !isFullRebuild) {
-            LibraryBuilder b = mList.getBuilder();
-            b.rebuild();
-            return b;
-        } else {
-            // Make sure we have a style chosen
-            BooklistStyles styles = BooklistStyles.getAllStyles(mDb);
-            if (mCurrentStyle == null) {
-                String prefStyle = BookCatalogueApp.getAppPreferences().getString(BookCataloguePreferences.PREF_BOOKLIST_STYLE, getString(R.string.sort_author_series));
-                mCurrentStyle = styles.findCanonical(prefStyle);
-                if (mCurrentStyle == null)
-                    mCurrentStyle = styles.get(0);
-                BookCatalogueApp.getAppPreferences().setString(BookCataloguePreferences.PREF_BOOKLIST_STYLE, mCurrentStyle.getCanonicalName());
-            }
+            LibraryBuilder b = mList.getBuilder().buildWithChanges();
+            if (b != null)
+                return b;
+        }
+
+        // Make sure we have a style chosen
+        BooklistStyles styles = BooklistStyles.getAllStyles(mDb);
+        if (mCurrentStyle == null) {
+            String prefStyle = BookCatalogueApp.getAppPreferences().getString(BookCataloguePreferences.PREF_BOOKLIST_STYLE, getString(R.string.sort_author_series));
+            mCurrentStyle = styles.findCanonical(prefStyle);
+            if (mCurrentStyle == null)
+                mCurrentStyle = styles.get(0);
+            BookCatalogueApp.getAppPreferences().setString(BookCataloguePreferences.PREF_BOOKLIST_STYLE, mCurrentStyle.getCanonicalName());
+        }
 
-            // get a new builder and add the required extra domains
-            LibraryBuilder builder = new LibraryBuilder(mDb, mCurrentStyle);
+        // get a new builder and add the required extra domains
+        LibraryBuilder builder = new LibraryBuilder(mDb, mCurrentStyle);
 
-            builder.requireDomain(DOM_TITLE, TBL_BOOKS.dot(DOM_TITLE), true);
-            builder.requireDomain(DOM_READ, TBL_BOOKS.dot(DOM_READ), false);
+        builder.requireDomain(DOM_TITLE, TBL_BOOKS.dot(DOM_TITLE), true);
+        builder.requireDomain(DOM_READ, TBL_BOOKS.dot(DOM_READ), false);
 
-            // Build based on our current criteria and return
-            builder.build(mRebuildState, mMarkBookId, mCurrentBookshelf, "", "", "", "", mSearchText);
+        // Build based on our current criteria and return
+        builder.build(mRebuildState, mMarkBookId, mCurrentBookshelf, "", "", "", "", mSearchText);
 
-            // After first build, always preserve this object state
-            mRebuildState = AdminLibraryPreferences.LIBRARY_STATE_PRESERVED;
+        // After first build, always preserve this object state
+        mRebuildState = AdminLibraryPreferences.LIBRARY_STATE_PRESERVED;
 
-            return builder;
-        }
+        return builder;
     }
 
     /**
@@ -899,9 +908,9 @@ public class Library extends BookCatalogueActivity implements BooklistChangeList
                             mMarkBookId = newId;
                         }
                     }
-                    // Always rebuild, even after a cancelled edit because the series may have had global edits
-                    // ENHANCE: Allow detection of global changes to avoid unnecessary rebuilds
-                    this.setupList();
+                    // Always refresh, even after a cancelled edit because the series may have had global edits;
+                    // books changed by global edits have their last update date set, so get picked up too.
+                    this.refreshList();
                 } catch (NullPointerException e) {
                     // This is not a scan result, but a normal return
                     //fillData();
@@ -918,9 +927,9 @@ public class Library extends BookCatalogueActivity implements BooklistChangeList
                             mMarkBookId = id;
                         }
                     }
-                    // Always rebuild, even after a cancelled edit because the series may have had global edits
-                    // ENHANCE: Allow detection of global changes to avoid unnecessary rebuilds
-                    this.setupList();
+                    // Always refresh, even after a cancelled edit because the series may have had global edits;
+                    // books changed by global edits have their last update date set, so get picked up too.
+                    this.refreshList();
                 } catch (Exception e) {
                     Logger.logError(e);
                 }
@@ -1100,6 +1109,9 @@ public class Library extends BookCatalogueActivity implements BooklistChangeList
             try {
                 // Build the underlying data
                 LibraryBuilder b = buildBooklist(mIsFullRebuild);
+                // Load it into memory now, if wanted, so the list cursor can use it
+                if (BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_BOOKLIST_IN_MEMORY, false))
+                    b.createSnapshot();
                 // Try to sync the previously selected book ID
                 if (mMarkBookId != 0) {
                     // get all positions of the book
@@ -452,7 +452,7 @@ public class LibraryMultitypeHandler implements MultitypeListHandler {
 
             // Update the book into the DB
             dba.updateBook(bookId, mBookData, 0);
-            new BookCatalogueAPI(context, BookCatalogueAPI.REQUEST_BACKUP_BOOK, bookId, null);
+            BookCatalogueAPI.syncBook(context, bookId);
 
         } else if (itemId == R.id.MENU_MARK_AS_UNREAD) {
             // Force the book status to : unread.
@@ -466,7 +466,7 @@ public class LibraryMultitypeHandler implements MultitypeListHandler {
 
             // Update the book into the DB
             dba.updateBook(bookId, mBookData, 0);
-            new BookCatalogueAPI(context, BookCatalogueAPI.REQUEST_BACKUP_BOOK, bookId, null);
+            BookCatalogueAPI.syncBook(context, bookId);
         }
         return false;
     }
@@ -0,0 +1,196 @@
+/*
+ * @copyright 2011 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import android.os.Bundle;
+
+import com.eleybourn.bookcatalogue.database.CoversDbHelper;
+import com.eleybourn.bookcatalogue.database.SerializationUtils;
+import com.eleybourn.bookcatalogue.utils.IsbnUtils;
+import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
+import com.eleybourn.bookcatalogue.utils.Utils;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Search that answers from the cache of earlier search results in the covers database. The cache
+ * is keyed by normalized ISBN, so the ISBN-10 and ISBN-13 forms of a book share an entry.
+ * SearchManager runs this before any other search; unless the cache holds a full record from
+ * every source asked for, the real searches are started.
+ * <p>
+ * Each entry records which sources were searched to the end; a search that was cut short, or
+ * timed out, leaves results that are not used in place of that source.
+ * <p>
+ * The thumbnails themselves are not cached, only the URLs they came from, so a cache hit still
+ * downloads the covers but skips the searches.
+ */
+public class SearchCacheThread extends SearchThread {
+
+	/** Key used by searches to record the URLs of the thumbnails they downloaded */
+	public static final String THUMBNAIL_URL_KEY = "__thumbnail_url";
+	/** Entry in the cache that records the sources searched; not a DataSource, so skipped as results */
+	private static final String SEARCHED_KEY = "__searched";
+	/** Key of the SearchManager flags of the sources searched, in the SEARCHED_KEY entry */
+	private static final String SOURCES_KEY = "sources";
+
+	/** Entries older than this are ignored, and removed on the next write */
+	private static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+	/** Maximum number of ISBNs kept in the cache; the oldest entries are removed first */
+	private static final int MAX_ENTRIES = 2000;
+
+	/** Single-thread queue for writing to the cache; it is only an optimization, so failures are ignored */
+	private static final SimpleTaskQueue mWriteQueue = new SimpleTaskQueue("searchcachewriter", 1);
+
+	/** SearchManager flags of the sources the cached entry was searched in to the end */
+	private int mSearchedSources = 0;
+
+	public SearchCacheThread(TaskManager manager, String isbn, boolean fetchThumbnail) {
+		super(manager, "", "", isbn, fetchThumbnail);
+	}
+
+	/**
+	 * Accessor; only valid once the thread has finished.
+	 *
+	 * @return SearchManager flags of the sources whose cached results are complete
+	 */
+	public int getSearchedSources() {
+		return mSearchedSources;
+	}
+
+	@Override
+	protected void onRun() {
+		this.doProgress(getString(R.string.searching_ellipsis), 0);
+
+		final String isbn = IsbnUtils.normalize(mIsbn);
+		if (isbn == null)
+			return;
+
+		HashMap<String, HashMap<String, String>> cached = null;
+		CoversDbHelper db = null;
+		try {
+			db = new CoversDbHelper();
+			byte[] blob = db.getSearchResults(isbn, new Date(System.currentTimeMillis() - MAX_AGE_MS));
+			if (blob != null)
+				cached = SerializationUtils.deserializeObject(blob);
+		} catch (Exception e) {
+			// A broken cache just means we search
+			Logger.logError(e, "Failed to read search cache");
+		} finally {
+			if (db != null)
+				db.close();
+		}
+
+		if (cached == null)
+			return;
+
+		HashMap<String, String> searched = cached.get(SEARCHED_KEY);
+		if (searched != null) {
+			try {
+				mSearchedSources = Integer.parseInt(searched.get(SOURCES_KEY));
+			} catch (NumberFormatException ignored) {
+			}
+		}
+
+		for(Map.Entry<String, HashMap<String, String>> e: cached.entrySet()) {
+			DataSource source;
+			try {
+				source = DataSource.valueOf(e.getKey());
+			} catch (IllegalArgumentException ignored) {
+				continue;
+			}
+			Bundle bookData = new Bundle();
+			for(Map.Entry<String, String> v: e.getValue().entrySet())
+				bookData.putString(v.getKey(), v.getValue());
+
+			if (mFetchThumbnail && bookData.containsKey(THUMBNAIL_URL_KEY)) {
+				for(String url: Utils.decodeList(bookData.getString(THUMBNAIL_URL_KEY), '|')) {
+					if (isCancelled())
+						break;
+					String filename = Utils.saveThumbnailFromUrl(url, "_SC_" + source);
+					if (!filename.isEmpty())
+						Utils.appendOrAdd(bookData, "__thumbnail", filename);
+				}
+			}
+			mResults.add(new BookSearchResults(source, bookData));
+		}
+	}
+
+	/**
+	 * Return the global ID for this searcher
+	 */
+	@Override
+	public DataSource getSearchId() {
+		return DataSource.Other;
+	}
+
+	/**
+	 * Queue the results of a search to be saved in the cache. Thumbnail files are not saved since
+	 * they will be gone by the time the entry is used; their URLs are.
+	 *
+	 * @param isbn		ISBN that was searched for
+	 * @param results	Results from each source
+	 * @param searchedSources	SearchManager flags of the sources that were searched to the end
+	 */
+	public static void saveResults(String isbn, Map<DataSource, Bundle> results, int searchedSources) {
+		final String key = IsbnUtils.normalize(isbn);
+		if (key == null)
+			return;
+
+		// Copy the data now; the bundles are not ours once we return.
+		final HashMap<String, HashMap<String, String>> entry = new HashMap<>();
+		for(Map.Entry<DataSource, Bundle> e: results.entrySet()) {
+			Bundle bookData = e.getValue();
+			if (bookData == null || bookData.isEmpty())
+				continue;
+			HashMap<String, String> values = new HashMap<>();
+			for(String k: bookData.keySet()) {
+				Object o = bookData.get(k);
+				if (o != null && !k.equals("__thumbnail"))
+					values.put(k, o.toString());
+			}
+			entry.put(e.getKey().name(), values);
+		}
+		if (entry.isEmpty())
+			return;
+		HashMap<String, String> searched = new HashMap<>();
+		searched.put(SOURCES_KEY, Integer.toString(searchedSources));
+		entry.put(SEARCHED_KEY, searched);
+
+		mWriteQueue.enqueue(new SimpleTask() {
+			@Override
+			public void run(SimpleTaskContext taskContext) {
+				CoversDbHelper db = taskContext.getCoversDb();
+				byte[] blob = SerializationUtils.serializeObject(entry);
+				if (db != null && blob != null)
+					db.saveSearchResults(key, blob, new Date(System.currentTimeMillis() - MAX_AGE_MS), MAX_ENTRIES);
+			}
+
+			@Override
+			public void onFinish(Exception e) {
+			}
+		});
+	}
+}
@@ -111,7 +111,7 @@ public class SearchGoogleBooksEntryHandler extends DefaultHandler {
 	private StringBuilder builder;
 	
 	private final Bundle mValues;
-	private static boolean mFetchThumbnail;
+	private final boolean mFetchThumbnail;
 
 	public static final String ID = "id";
 	public static final String AUTHOR = "creator";
@@ -196,9 +196,14 @@ public class SearchGoogleBooksEntryHandler extends DefaultHandler {
 		if (mFetchThumbnail && localName.equalsIgnoreCase(THUMBNAIL)){
 			if (attributes.getValue("", "rel").equals("http://schemas.google.com/books/2008/thumbnail")) {
 				String thumbnail = attributes.getValue("", "href");
+				if (!GoogleBooksManager.waitUntilRequestAllowed())
+					return;
 				String filename = Utils.saveThumbnailFromUrl(thumbnail, "_GB");
-				if (!filename.isEmpty())
+				if (!filename.isEmpty()) {
 					Utils.appendOrAdd(mValues, THUMBNAIL_KEY, filename);
+					// Remember where it came from, for the search cache
+					Utils.appendOrAdd(mValues, SearchCacheThread.THUMBNAIL_URL_KEY, thumbnail);
+				}
 			}
 		}
 	}
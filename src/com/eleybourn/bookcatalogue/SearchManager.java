@@ -33,7 +33,6 @@ import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Hashtable;
@@ -42,8 +41,10 @@ import java.util.Hashtable;
  * Class to co-ordinate multiple SearchThread objects using an existing TaskManager.
  * It uses the task manager it is passed and listens to OnTaskEndedListener messages;
  * it maintains its own internal list of tasks and as tasks it knows about end, it
- * processes the data. Once all tasks are complete, it sends a message to its
- * creator via its SearchHandler.
+ * processes the data. All sources are searched at once, each with its own deadline;
+ * once all tasks are complete, or the most reliable source has returned a full record,
+ * it cancels any searches still running and sends a message to its creator via its
+ * SearchHandler.
  * 
  * @author Philip Warner
  */
@@ -64,6 +65,11 @@ public class SearchManager implements TaskManagerListener {
 	private static final DataSource[] mDefaultReliabilityOrder = new DataSource[]
 			{DataSource.BCDB, DataSource.Google, DataSource.OpenLibrary, DataSource.Other};
 
+	/** Time allowed for the BC service, which relays several upstream sources, before it is abandoned */
+	private static final long BC_TIMEOUT_MS = 30000;
+	/** Time allowed for any other source before it is abandoned */
+	private static final long DEFAULT_TIMEOUT_MS = 15000;
+
 	/** Flags applicable to *current* search */
 	private int mSearchFlags;
 
@@ -73,8 +79,12 @@ public class SearchManager implements TaskManagerListener {
 	private Bundle mBookData = null;
 	// Flag indicating searches will be non-concurrent title/author found via ASIN
 	private boolean mSearchingAsin = false;
-	// Flag indicating searches will be non-concurrent until an ISBN is found
-	private boolean mWaitingForIsbn = false;
+	// Flag indicating the results of the current search have been sent
+	private boolean mFinished = false;
+	// Flag indicating the results came from the search cache
+	private boolean mFromCache = false;
+	// Suffix of the temp file that receives the chosen thumbnail
+	private String mThumbnailSuffix = "";
 	// Flag indicating a task was cancelled.
 	private boolean mCancelledFlg = false;
 	// Original author for search
@@ -90,6 +100,8 @@ public class SearchManager implements TaskManagerListener {
 
 	/** Searches that have been executed */
 	private HashSet<DataSource> mSearchesCompleted = new HashSet<>();
+	/** Flags of the searches that ran to the end, rather than being cut short or timing out */
+	private int mSearchesAnswered = 0;
 	/** Output from search threads */
 	private Hashtable<DataSource,Bundle> mSearchResults = new Hashtable<>();
     private final Object mSearchResultsLock = new Object();
@@ -99,6 +111,8 @@ public class SearchManager implements TaskManagerListener {
 
 	// List of threads created by *this* object.
 	private final ArrayList<ManagedTask> mRunningTasks = new ArrayList<>();
+	// Pending deadline for each running task; removed when the task ends or is abandoned.
+	private final Hashtable<ManagedTask, Runnable> mDeadlines = new Hashtable<>();
 
     /**
 	 * Constructor.
@@ -114,13 +128,20 @@ public class SearchManager implements TaskManagerListener {
 	}
 
 	/**
-	 * When a task has ended, see if we are finished (no more tasks running).
-	 * If so, finish.
+	 * When a task has ended, see if we are finished (no more tasks running, or
+	 * we already have a full record from the most reliable source). If so, finish.
 	 */
 	@Override
 	public void onTaskEnded(TaskManager manager, ManagedTask task) {
 		//Logger.logError(new RuntimeException("BC_DEBUG: SearchManager.onTaskEnded: " + task.getClass().getSimpleName()));
-		boolean allDone = false;
+		boolean allDone;
+
+		// Ignore tasks we did not start, and tasks abandoned after their deadline.
+		synchronized(mRunningTasks) {
+			if (!mRunningTasks.contains(task))
+				return;
+		}
+		clearDeadline(task);
 
 		// Handle the result, and optionally queue another task
 		if (task instanceof SearchThread)
@@ -129,18 +150,155 @@ public class SearchManager implements TaskManagerListener {
 		// Remove the finished task, and terminate if no more.
 		synchronized(mRunningTasks) {
 			mRunningTasks.remove(task);
-			if (mRunningTasks.isEmpty()) {
-				allDone = true;
+			allDone = mRunningTasks.isEmpty();
+		}
+
+		if (allDone || mCancelledFlg || hasReliableResult()) {
+			finishSearch();
+		}
+	}
+
+	/**
+	 * Cancel any searches still running, stop listening and send the results. Only the
+	 * first call for a given search does anything.
+	 */
+	private void finishSearch() {
+		if (mFinished)
+			return;
+		mFinished = true;
+
+		// Whatever the remaining searches find will not be used.
+		ArrayList<ManagedTask> abandoned;
+		synchronized(mRunningTasks) {
+			abandoned = new ArrayList<>(mRunningTasks);
+			mRunningTasks.clear();
+		}
+		for(ManagedTask t: abandoned) {
+			clearDeadline(t);
+			((SearchThread)t).abandon();
+		}
+
+		// Stop listening FIRST...otherwise, if sendResults() calls a listener that starts
+		// a new task, we will stop listening for the new task.
+		TaskManager.getMessageSwitch().removeListener(mTaskManager.getSenderId(), this);
+		// Notify the listeners.
+		sendResults();
+	}
+
+	/**
+	 * Arrange for a search to be abandoned if it has not finished in time. Deadlines run on
+	 * the UI thread, which is also where task-ended messages are delivered.
+	 * 
+	 * @param thread	Search just started
+	 */
+	private void setDeadline(final SearchThread thread) {
+		Runnable deadline = () -> onSearchTimedOut(thread);
+		mDeadlines.put(thread, deadline);
+		long timeout = thread.getSearchId() == DataSource.BCDB ? BC_TIMEOUT_MS : DEFAULT_TIMEOUT_MS;
+		MessageSwitch.getHandler().postDelayed(deadline, timeout);
+	}
+
+	/**
+	 * Remove the deadline for a task that has ended or been abandoned.
+	 */
+	private void clearDeadline(ManagedTask task) {
+		Runnable deadline = mDeadlines.remove(task);
+		if (deadline != null)
+			MessageSwitch.getHandler().removeCallbacks(deadline);
+	}
+
+	/**
+	 * A search ran past its deadline: cancel it and carry on without it. A blocked network
+	 * read may not notice the interrupt, so the thread can linger; when it does end, it is
+	 * no longer one of ours and onTaskEnded() ignores it.
+	 * 
+	 * @param thread	Search that timed out
+	 */
+	private void onSearchTimedOut(SearchThread thread) {
+		boolean allDone;
+		synchronized(mRunningTasks) {
+			if (!mRunningTasks.remove(thread))
+				return;
+			allDone = mRunningTasks.isEmpty();
+		}
+		mDeadlines.remove(thread);
+		mSearchesCompleted.add(thread.getSearchId());
+		thread.abandon();
+
+		// If the cache was too slow, search anyway
+		if (thread instanceof SearchCacheThread && !mCancelledFlg) {
+			synchronized(mRunningTasks) {
+				startSearches(mSearchFlags);
+				allDone = mRunningTasks.isEmpty();
+			}
+		}
+
+		if (allDone || hasReliableResult()) {
+			finishSearch();
+		}
+	}
+
+	/**
+	 * Check if waiting for the remaining searches can still improve the result: go through
+	 * the sources in reliability order, and stop at the first one that has returned a full
+	 * record (done) or may still report (keep waiting).
+	 */
+	private boolean hasReliableResult() {
+		if (mSearchingAsin)
+			return false;
+		for(DataSource source: mDefaultReliabilityOrder) {
+			Bundle bookData = mSearchResults.get(source);
+			if (bookData != null) {
+				if (isFullRecord(bookData))
+					return true;
+			} else if (mayStillReport(source)) {
+				return false;
 			}
 		}
+		return false;
+	}
+
+	/**
+	 * A full record has title, author and ISBN (the one we searched for, if any), and a
+	 * thumbnail if we asked for one.
+	 */
+	private boolean isFullRecord(Bundle bookData) {
+		if (!Utils.isNonBlankString(bookData, CatalogueDBAdapter.KEY_TITLE)
+				|| !Utils.isNonBlankString(bookData, CatalogueDBAdapter.KEY_AUTHOR_DETAILS)
+				|| !Utils.isNonBlankString(bookData, CatalogueDBAdapter.KEY_ISBN))
+			return false;
+		if (mHasIsbn && !IsbnUtils.matches(mIsbn, bookData.getString(CatalogueDBAdapter.KEY_ISBN)))
+			return false;
+		return !mFetchThumbnail || Utils.isNonBlankString(bookData, "__thumbnail");
+	}
+
+	/**
+	 * Check if the cache answered this search in full: every source asked for was searched to
+	 * the end when the entry was saved, and one of them returned a full record.
+	 */
+	private boolean isCompleteCacheResult(SearchCacheThread st) {
+		if ((st.getSearchedSources() & mSearchFlags) != mSearchFlags)
+			return false;
+		for(BookSearchResults result: st.getBookData()) {
+			if (isFullRecord(result.data))
+				return true;
+		}
+		return false;
+	}
 
-		if (allDone) {
-			// Stop listening FIRST...otherwise, if sendResults() calls a listener that starts
-			// a new task, we will stop listening for the new task.
-			TaskManager.getMessageSwitch().removeListener(mTaskManager.getSenderId(), this);
-			// Notify the listeners.
-			sendResults();
+	/**
+	 * Check if a running search may still return data for the passed source. The BC service
+	 * relays several sources, so while it runs any of them may arrive.
+	 */
+	private boolean mayStillReport(DataSource source) {
+		synchronized(mRunningTasks) {
+			for(ManagedTask t: mRunningTasks) {
+				DataSource id = ((SearchThread)t).getSearchId();
+				if (id == source || id == DataSource.BCDB)
+					return true;
+			}
 		}
+		return false;
 	}
 
 	/**
@@ -164,6 +322,7 @@ public class SearchManager implements TaskManagerListener {
 			mRunningTasks.add(thread);
 			mTaskManager.addTask(thread);
 		}
+		setDeadline(thread);
 		thread.start();
 	}
 
@@ -179,6 +338,18 @@ public class SearchManager implements TaskManagerListener {
 		}
 	}
 
+	/**
+	 * Start a search of the cached results
+	 */
+	private boolean startCacheSearch() {
+		if (!mCancelledFlg) {
+			startOne( new SearchCacheThread(mTaskManager, mIsbn, mFetchThumbnail) );
+			return true;
+		} else {
+			return false;
+		}
+	}
+
 	/**
 	 * Start a Google search
 	 */
@@ -191,6 +362,16 @@ public class SearchManager implements TaskManagerListener {
 		}
 	}
 
+	/**
+	 * Set the suffix of the temp thumbnail file used for results, so that several managers can
+	 * search at the same time. The default is the standard temp thumbnail.
+	 * 
+	 * @param suffix	Suffix passed to CatalogueDBAdapter.getTempThumbnail()
+	 */
+	public void setThumbnailSuffix(String suffix) {
+		mThumbnailSuffix = suffix;
+	}
+
     /**
 	 * Start a search
 	 * 
@@ -213,9 +394,11 @@ public class SearchManager implements TaskManagerListener {
 		mBookData = new Bundle();
 		mSearchResults = new Hashtable<>();
 		mSearchesCompleted = new HashSet<>();
+		mSearchesAnswered = 0;
 
-		mWaitingForIsbn = false;
 		mCancelledFlg = false;
+		mFinished = false;
+		mFromCache = false;
 
 		mAuthor = author;
 		mTitle = title;
@@ -232,34 +415,26 @@ public class SearchManager implements TaskManagerListener {
 		// List for task ends
 		TaskManager.getMessageSwitch().addListener(mTaskManager.getSenderId(), this, false);
 
-		// We really want to ensure we get the same book from each, so if isbn is not present, do
-		// these in series.
+		// Search all sources at once. We really want to ensure we get the same book from each, so
+		// if isbn is not present, sendResults() only merges results that agree with the ISBN from
+		// the most reliable source.
 		boolean tasksStarted = false;
 		mSearchingAsin = false;
 		synchronized(mRunningTasks) {
 			try {
-				if (mIsbn != null && !mIsbn.isEmpty()) {
-					if (IsbnUtils.isValid(mIsbn)) {
-						// We have an ISBN, just do the search
-						mWaitingForIsbn = false;
-						tasksStarted = this.startSearches(mSearchFlags);
-					} else {
-						// Assume it's an ASIN, and just search Amazon
-						mSearchingAsin = true;
-						mWaitingForIsbn = false;
-						//mSearchFlags = SEARCH_AMAZON;
-						tasksStarted = startOneSearch(SEARCH_BC);
-						//tasksStarted = this.startSearches(mSearchFlags);
-					}
+				if (mIsbn != null && !mIsbn.isEmpty() && !IsbnUtils.isValid(mIsbn)) {
+					// Assume it's an ASIN, and just search Amazon; the rest follow once we know the book
+					mSearchingAsin = true;
+					tasksStarted = startOneSearch(SEARCH_BC);
+				} else if (mHasIsbn) {
+					// Try the cache first; the searches are started only if it has nothing
+					tasksStarted = startCacheSearch();
 				} else {
-					// Run one at a time, startNext() defined the order.
-					mWaitingForIsbn = true;
-					tasksStarted = startNext();
+					tasksStarted = this.startSearches(mSearchFlags);
 				}
 			} finally {
 				if (!tasksStarted) {
-					sendResults();
-					TaskManager.getMessageSwitch().removeListener(mTaskManager.getSenderId(), this);
+					finishSearch();
 				}
 			}
 		}
@@ -352,20 +527,53 @@ public class SearchManager implements TaskManagerListener {
 			// Add the passed ISBN first; avoid overwriting
 			mBookData.putString(CatalogueDBAdapter.KEY_ISBN, mIsbn);
 		} else {
-			// If ISBN was not passed, then just used the default order
-			Collections.addAll(results, mDefaultReliabilityOrder);
+			// If ISBN was not passed, the most reliable result with an ISBN decides which book we
+			// found; ignore entries with a different ISBN.
+			String foundIsbn = null;
+			for(DataSource i: mDefaultReliabilityOrder) {
+				Bundle bookData = mSearchResults.get(i);
+				if (bookData != null) {
+					String isbn = bookData.getString(CatalogueDBAdapter.KEY_ISBN);
+					if (isbn == null || isbn.trim().isEmpty()) {
+						results.add(i);
+					} else if (foundIsbn == null) {
+						foundIsbn = isbn;
+						results.add(i);
+					} else if (IsbnUtils.matches(foundIsbn, isbn)) {
+						results.add(i);
+					}
+				}
+			}
 		}
 
 		
+		// Remember what we found for next time
+		if (mHasIsbn && !mFromCache && !mCancelledFlg && mSearchesAnswered != 0) {
+			Hashtable<DataSource, Bundle> found = new Hashtable<>();
+			for(DataSource i: results) {
+				Bundle bookData = mSearchResults.get(i);
+				if (bookData != null && Utils.isNonBlankString(bookData, CatalogueDBAdapter.KEY_TITLE))
+					found.put(i, bookData);
+			}
+			SearchCacheThread.saveResults(mIsbn, found, mSearchesAnswered);
+		}
+
 		// Merge the data we have. We do this in a fixed order rather than as the threads finish.
 		for(DataSource i: results)
 			accumulateData(i);
+		// Thumbnails of results we did not use are not cleaned up below
+		for(DataSource i: mSearchResults.keySet()) {
+			if (!results.contains(i))
+				SearchThread.deleteThumbnails(mSearchResults.get(i));
+		}
+		// Only needed by the cache
+		mBookData.remove(SearchCacheThread.THUMBNAIL_URL_KEY);
 
 		// Debug search results
 		//mBookData.putString("___DEBUG___", mDebugText);
 
 		// If there are thumbnails present, pick the biggest, delete others and rename.
-		Utils.cleanupThumbnails(mBookData);
+		Utils.cleanupThumbnails(mBookData, CatalogueDBAdapter.getTempThumbnail(mThumbnailSuffix));
 
 		// Try to use/construct authors
 		String authors = null;
@@ -453,25 +661,6 @@ public class SearchManager implements TaskManagerListener {
 							listener -> listener.onSearchFinished(mBookData, mCancelledFlg)
 		);		
 	}
-	/**
-	 * When running in single-stream mode, start the next thread that has no data.
-	 * While Google is reputedly most likely to succeed, it also produces false positives a lot.
-	 * So we search Amazon, Google and LT last as it REQUIRES an ISBN.
-	 */
-	private boolean startNext() {
-		// Loop though in 'search-priority' order
-        for (DataSource source: mDefaultSearchOrder) {
-			// If this search includes the source, check it
-			if ( (mSearchFlags & source.getValue()) != 0) {
-				// If the source has not been search, search it
-				if (!mSearchesCompleted.contains(source)) {
-					return startOneSearch(source.getValue());
-				}
-			}
-		}
-        return false;
-	}
-
 	/**
 	 * Start all searches listed in passed parameter that have not been run yet.
 	 * 
@@ -510,19 +699,30 @@ public class SearchManager implements TaskManagerListener {
 	}
 
 	/**
-	 * Handle task search results; start another task if necessary.
+	 * Handle task search results; start the other searches if the cache had nothing, or an ASIN
+	 * search found the book.
 	 * 
 	 * @param st		Thread that finished
 	 */
 	private void handleSearchTaskFinished(SearchThread st) {
 		mCancelledFlg = st.isCancelled();
-		if (mCancelledFlg) {
-			mWaitingForIsbn = false;
-		}
 
 		mSearchesCompleted.add(st.getSearchId());
 
-		boolean startNext = false;
+		// Unless the cache has everything this search asked for, search the network instead
+		if (st instanceof SearchCacheThread) {
+			mFromCache = isCompleteCacheResult((SearchCacheThread)st);
+			if (!mFromCache) {
+				for(BookSearchResults result: st.getBookData())
+					SearchThread.deleteThumbnails(result.data);
+				if (!mCancelledFlg)
+					startSearches(mSearchFlags);
+				return;
+			}
+		} else if (!mCancelledFlg) {
+			mSearchesAnswered |= st.getSearchId().getValue();
+		}
+
 		boolean startAll = false;
 
 		ArrayList<BookSearchResults> resultList = st.getBookData();
@@ -542,44 +742,27 @@ public class SearchManager implements TaskManagerListener {
 					mIsbn = "";
 					mHasIsbn = false;
 					if (Utils.isNonBlankString(bookData, CatalogueDBAdapter.KEY_ISBN)) {
-						// We got an ISBN, so pretend we were searching for an ISBN
-						mWaitingForIsbn = true;
+						// We got an ISBN, so search the others for it
+						mIsbn = bookData.getString(CatalogueDBAdapter.KEY_ISBN);
+						mHasIsbn = mIsbn != null && !mIsbn.trim().isEmpty() && IsbnUtils.isValid(mIsbn);
+						startAll = true;
 					} else {
 						// See if we got author/title
 						mAuthor = bookData.getString(CatalogueDBAdapter.KEY_AUTHOR_NAME);
 						mTitle = bookData.getString(CatalogueDBAdapter.KEY_TITLE);
 						if (mAuthor != null && !mAuthor.isEmpty() && mTitle != null && !mTitle.isEmpty()) {
-							// We got them, so pretend we are searching by author/title now, and waiting for an ASIN...
-							mWaitingForIsbn = true;
+							// We got them, so search the others by author/title now
+							startAll = true;
 						}
 					}
 				}
 			}
-			if (mWaitingForIsbn) {
-				if (Utils.isNonBlankString(bookData, CatalogueDBAdapter.KEY_ISBN)) {
-					mWaitingForIsbn = false;
-					// Start the other two...even if they have run before
-					mIsbn = bookData.getString(CatalogueDBAdapter.KEY_ISBN);
-					mHasIsbn = mIsbn != null && !mIsbn.trim().isEmpty() && IsbnUtils.isValid(mIsbn);
-					startAll = true;
-				} else {
-					// Start next one that has not run.
-					startNext = true;
-				}
-			}
-		}
-
-		if (resultList.isEmpty()) {
-			if (mWaitingForIsbn) {
-					// Start next one that has not run.
-					startNext = true;
-			}
 		}
+		// Nothing found for an ASIN means nothing else to search.
+		mSearchingAsin = false;
 
 		if (startAll) {
 			startSearches(mSearchFlags);
-		} else if (startNext) {
-			startNext();
 		}
 	}
 
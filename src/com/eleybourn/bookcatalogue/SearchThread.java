@@ -20,6 +20,7 @@
 
 package com.eleybourn.bookcatalogue;
 
+import java.io.File;
 import java.util.ArrayList;
 
 import android.os.Bundle;
@@ -33,7 +34,9 @@ abstract public class SearchThread extends ManagedTask {
 	protected final String mAuthor;
 	protected final String mTitle;
 	protected final String mIsbn;
-	protected static boolean mFetchThumbnail;
+	protected final boolean mFetchThumbnail;
+	// Set when the SearchManager no longer wants the results
+	private volatile boolean mAbandoned = false;
 
 	public enum DataSource {
 		Amazon(0),
@@ -86,9 +89,34 @@ abstract public class SearchThread extends ManagedTask {
 
 	@Override
 	protected void onThreadFinish() {
+		// Nobody will use the thumbnails of an abandoned search, so delete them now
+		if (mAbandoned) {
+			for(BookSearchResults result: mResults)
+				deleteThumbnails(result.data);
+		}
 		doProgress("Done",0);
 	}
 
+	/**
+	 * Delete the thumbnail files downloaded for a result that will not be used.
+	 */
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	static void deleteThumbnails(Bundle bookData) {
+		String files = bookData == null ? null : bookData.getString("__thumbnail");
+		if (files != null) {
+			for(String f: Utils.decodeList(files, '|'))
+				new File(f).delete();
+		}
+	}
+
+	/**
+	 * Cancel the search, and mark its results as unwanted.
+	 */
+	public void abandon() {
+		mAbandoned = true;
+		cancelTask();
+	}
+
 	/**
 	 * Look in the data for a title, if present try to get a series name from it.
 	 * In any case, clear the title (and save if none saved already) so that the 
@@ -202,6 +202,8 @@ public class StartupActivity
             // Always enqueue it; it will get a DB and check if required...
             q.enqueue(new RebuildFtsTask());
             q.enqueue(new AnalyzeDbTask());
+            // Apply any FTS changes left over from the last session
+            FtsIndexerTask.schedule(this);
             // Remove old logs
             Logger.clearLog();
             // Clear the flag
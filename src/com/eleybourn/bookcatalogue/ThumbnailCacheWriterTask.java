@@ -23,14 +23,20 @@ package com.eleybourn.bookcatalogue;
 import android.graphics.Bitmap;
 
 import com.eleybourn.bookcatalogue.database.CoversDbHelper;
+import com.eleybourn.bookcatalogue.utils.CoverMemoryCache;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
 
+import java.util.ArrayList;
+
 /**
- * Background task to save a bitmap into the covers thumbnail database. Runs in background
+ * Background task to save bitmaps into the covers thumbnail database. Runs in background
  * because it involves compression and IO, and can be safely queued. Failures can be ignored
  * because it is just writing to a cache used solely for optimization.
+ * <p>
+ * Requests are collected in a pending list and written in batches, one transaction per
+ * batch, by a single task; while a task is waiting to run, further requests just join the list.
  * This class also has its own static SimpleTaskQueue.
  * 
  * @author Philip Warner
@@ -45,6 +51,14 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	 */
 	private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("cachewriter", 1);
 
+	/** Maximum number of images written in one transaction */
+	private static final int MAX_BATCH_SIZE = 16;
+
+	/** Requests not yet written; guarded by itself */
+	private static final ArrayList<ThumbnailCacheWriterTask> mPending = new ArrayList<>();
+	/** Set while a task is queued or running; guarded by mPending */
+	private static boolean mIsQueued = false;
+
 	/**
 	 * Queue the passed bitmap to be compressed and written to the database, will be recycled if
 	 * flag is set.
@@ -55,6 +69,12 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	 */
 	public static void writeToCache(String cacheId, Bitmap source, boolean canRecycle) {
 		ThumbnailCacheWriterTask t = new ThumbnailCacheWriterTask(cacheId, source, canRecycle);
+		synchronized(mPending) {
+			mPending.add(t);
+			if (mIsQueued)
+				return;
+			mIsQueued = true;
+		}
 		mQueue.enqueue(t);
 	}
 
@@ -65,6 +85,21 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 		return mQueue.hasActiveTasks();
 	}
 
+	/**
+	 * Take the next batch of pending requests. When none are left, the next request
+	 * will queue a new task.
+	 */
+	private static ArrayList<ThumbnailCacheWriterTask> takeBatch() {
+		synchronized(mPending) {
+			final int n = Math.min(mPending.size(), MAX_BATCH_SIZE);
+			final ArrayList<ThumbnailCacheWriterTask> batch = new ArrayList<>(mPending.subList(0, n));
+			mPending.subList(0, n).clear();
+			if (n == 0)
+				mIsQueued = false;
+			return batch;
+		}
+	}
+
 	// ******** INSTANCE Data ******** //
 
 	/** Cache ID of this object */
@@ -75,7 +110,7 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	private Bitmap mBitmap;
 
 	/**
-	 * Create a task that will compress the passed bitmap and write it to the database, 
+	 * Create a request that will compress the passed bitmap and write it to the database, 
 	 * it will also be recycled if flag is set.
 	 * 
 	 * @param cacheId		Cache ID to use
@@ -89,32 +124,54 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	}
 
 	/**
-	 * Do the main work in the background thread.
+	 * Do the main work in the background thread: write all pending requests, in batches.
 	 */
 	@Override
 	public void run(SimpleTaskContext taskContext) {
-		if (mBitmap.isRecycled()) {
-			// Was probably recycled by rapid scrolling of view
-			mBitmap = null;
-		} else {
-			CoversDbHelper db = null;
-			try {
-				db = taskContext.getCoversDb();
-			} catch (Exception e) {
-				// No db...
+		CoversDbHelper db = null;
+		try {
+			db = taskContext.getCoversDb();
+		} catch (Exception e) {
+			// No db...
+		}
+
+		ArrayList<ThumbnailCacheWriterTask> batch;
+		while (!(batch = takeBatch()).isEmpty()) {
+			final String[] ids = new String[batch.size()];
+			final Bitmap[] bms = new Bitmap[batch.size()];
+			for(int i = 0; i < ids.length; i++) {
+				final ThumbnailCacheWriterTask t = batch.get(i);
+				ids[i] = t.mCacheId;
+				// Skip any that were probably recycled by rapid scrolling of view
+				if (!t.mBitmap.isRecycled())
+					bms[i] = t.mBitmap;
 			}
-			if (db != null)
-				db.saveFile(mCacheId, mBitmap);
-			if (mCanRecycle) {
-				mBitmap.recycle();
-				mBitmap = null;
+			try {
+				if (db != null)
+					db.saveFiles(ids, bms);
+			} finally {
+				for(ThumbnailCacheWriterTask t: batch) {
+					if (t.mCanRecycle)
+						CoverMemoryCache.getInstance().release(t.mBitmap);
+					t.mBitmap = null;
+					t.mCacheId = null;
+				}
 			}
 		}
-		mCacheId = null;
 	}
 
 	@Override
 	public void onFinish(Exception e) {
+		if (e != null) {
+			// Make sure later requests are not left waiting for a task that is not coming
+			synchronized(mPending) {
+				mIsQueued = false;
+				if (!mPending.isEmpty()) {
+					mIsQueued = true;
+					mQueue.enqueue(mPending.get(0));
+				}
+			}
+		}
 	}
 
 }
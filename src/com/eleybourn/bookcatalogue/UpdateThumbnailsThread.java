@@ -30,6 +30,7 @@ import com.eleybourn.bookcatalogue.AdminUpdateFromInternet.FieldUsages.Usages;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
 import com.eleybourn.bookcatalogue.data.Author;
 import com.eleybourn.bookcatalogue.data.Series;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
@@ -37,45 +38,38 @@ import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Objects;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Class to update all thumbnails (and some other data) in a background thread.
+ * <p>
+ * Up to MAX_BOOKS_IN_FLIGHT books are searched at the same time, each with its own
+ * SearchManager; the search sources limit their own request rates. Updates are
+ * written in batches of WRITE_BATCH_SIZE books, one transaction per batch.
  *
  * @author Philip Warner
  */
 public class UpdateThumbnailsThread extends ManagedTask {
+    /** Maximum number of books being searched at the same time */
+    private static final int MAX_BOOKS_IN_FLIGHT = 4;
+    /** Number of updated books written in one transaction */
+    private static final int WRITE_BATCH_SIZE = 20;
+
     private final Context mContext;
     // The fields that the user requested to update
     private final FieldUsages mRequestedFields;
 
-    // Lock help by pop and by push when an item was added to an empty stack.
-    private final ReentrantLock mSearchLock = new ReentrantLock();
-    // Signal for available items
-    private final Condition mSearchDone = mSearchLock.newCondition();
     // DB connection
     protected CatalogueDBAdapter mDbHelper;
     private String mFinalMessage;
-    // Data related to current row being processed
-    // - Original row data
-    private Bundle mOrigData = null;
-    // - current book ID
-    private long mCurrId = 0;
-    // - current book UUID
-    private String mCurrUuid = null;
-    // - The (subset) of fields relevant to the current book
-    private FieldUsages mCurrFieldUsages;
-    // Active search manager
-    private final SearchManager mSearchManager;
-    // Search listener
-    private final SearchManager.SearchListener mSearchListener = this::handleSearchFinished;
-    /** Flag to indicate search is complete */
-    private boolean mSearchFinished = false;
-    /** Data from search */
-    private Bundle mNewBookData = null;
-    /** Flag to indicate if search was cancelled */
-    private boolean mSearchCancelled = false;
+    // Searches not in use; only used in this thread
+    private final ArrayList<BookSearch> mIdleSearches = new ArrayList<>();
+    // Searches that have finished and are waiting for their results to be processed
+    private final LinkedBlockingQueue<BookSearch> mFinishedSearches = new LinkedBlockingQueue<>();
+    // Number of searches started and not yet processed
+    private int mSearchesRunning = 0;
+    // Updates waiting to be written
+    private final ArrayList<PendingUpdate> mPendingUpdates = new ArrayList<>();
 
     /**
      * Constructor.
@@ -91,7 +85,9 @@ public class UpdateThumbnailsThread extends ManagedTask {
         mDbHelper.open();
 
         mRequestedFields = requestedFields;
-        mSearchManager = new SearchManager(mManager, mSearchListener);
+        for (int i = 0; i < MAX_BOOKS_IN_FLIGHT; i++) {
+            mIdleSearches.add(new BookSearch(i));
+        }
         mManager.doProgress(BookCatalogueApp.getRes().getString(R.string.starting_search));
         getMessageSwitch().addListener(getSenderId(), listener, false);
     }
@@ -119,7 +115,6 @@ public class UpdateThumbnailsThread extends ManagedTask {
         newData.putSerializable(key, origList);
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     @Override
     public void onRun() throws InterruptedException {
         int counter = 0;
@@ -130,147 +125,43 @@ public class UpdateThumbnailsThread extends ManagedTask {
             return;
 
         mManager.setMax(this, books.getCount());
+        mDbHelper.startBulkUpdate();
         try {
             while (books.moveToNext() && !isCancelled()) {
                 // Increment the progress counter
                 counter++;
 
-                // Copy the fields from the cursor and build a complete set of data for this book.
-                // This only needs to include data that we can fetch (so, for example, bookshelves are ignored).
-                mOrigData = new Bundle();
-                for (int i = 0; i < books.getColumnCount(); i++) {
-                    mOrigData.putString(books.getColumnName(i), books.getString(i));
-                }
-                // Get the book ID
-                mCurrId = Utils.getAsLong(mOrigData, CatalogueDBAdapter.KEY_ROW_ID);
-                // Get the book UUID
-                mCurrUuid = mOrigData.getString(DatabaseDefinitions.DOM_BOOK_UUID.name);
-                // Get the extra data about the book
-                mOrigData.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, mDbHelper.getBookAuthorList(mCurrId));
-                mOrigData.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, mDbHelper.getBookSeriesList(mCurrId));
-
-                // Grab the searchable fields. Ideally we will have an ISBN, but we may not.
-                String isbn = mOrigData.getString(CatalogueDBAdapter.KEY_ISBN, "");
-                String author = mOrigData.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED, "");
-                String title = mOrigData.getString(CatalogueDBAdapter.KEY_TITLE, "");
-
-                // Reset the fields we want for THIS book
-                mCurrFieldUsages = new FieldUsages();
-
-                // See if there is a reason to fetch ANY data by checking which fields this book needs.
-                for (FieldUsage usage : mRequestedFields.values()) {
-                    // Not selected, we dont want it
-                    if (usage.selected) {
-                        switch (usage.usage) {
-                            case ADD_EXTRA:
-                            case OVERWRITE:
-                                // Add and Overwrite mean we always get the data
-                                mCurrFieldUsages.put(usage);
-                                break;
-                            case COPY_IF_BLANK:
-                                // Handle special cases
-                                // - If it's a thumbnail, then see if it's missing or empty.
-                                switch (usage.fieldName) {
-                                    case CatalogueDBAdapter.KEY_THUMBNAIL:
-                                        File file = CatalogueDBAdapter.fetchThumbnailByUuid(mCurrUuid);
-                                        if (!file.exists() || file.length() == 0)
-                                            mCurrFieldUsages.put(usage);
-                                        break;
-                                    case CatalogueDBAdapter.KEY_AUTHOR_ARRAY:
-                                        // We should never have a book with no authors, but let's be paranoid
-                                        if (mOrigData.containsKey(usage.fieldName)) {
-                                            ArrayList<Author> origAuthors = Utils.getAuthorsFromBundle(mOrigData);
-                                            if (origAuthors == null || origAuthors.isEmpty())
-                                                mCurrFieldUsages.put(usage);
-                                        }
-                                        break;
-                                    case CatalogueDBAdapter.KEY_SERIES_ARRAY:
-                                        if (mOrigData.containsKey(usage.fieldName)) {
-                                            ArrayList<Series> origSeries = Utils.getSeriesFromBundle(mOrigData);
-                                            if (origSeries == null || origSeries.isEmpty())
-                                                mCurrFieldUsages.put(usage);
-                                        }
-                                        break;
-                                    default:
-                                        // If the original was blank, add to list
-                                        if (!mOrigData.containsKey(usage.fieldName) || mOrigData.getString(usage.fieldName) == null || Objects.requireNonNull(mOrigData.getString(usage.fieldName)).isEmpty())
-                                            mCurrFieldUsages.put(usage);
-                                        break;
-                                }
-                                break;
-                        }
-                    }
-                }
-
-                // Cache the value to indicate we need thumbnails (or not).
-                boolean tmpThumbWanted = mCurrFieldUsages.containsKey(CatalogueDBAdapter.KEY_THUMBNAIL);
-
-                if (tmpThumbWanted) {
-                    // delete any temporary thumbnails //
-                    try {
-                        File delete_thumb = CatalogueDBAdapter.getTempThumbnail();
-                        delete_thumb.delete();
-                    } catch (Exception e) {
-                        // do nothing - this is the expected behaviour
-                    }
+                // Wait for a free search, processing the results of the ones that finish
+                while (mIdleSearches.isEmpty()) {
+                    processFinishedSearch(mFinishedSearches.take());
                 }
 
-                // Use this to flag if we actually need a search.
-                boolean wantSearch = false;
-                // Update the progress appropriately
-                if (mCurrFieldUsages.isEmpty() || (isbn.isEmpty() && (author.isEmpty() || title.isEmpty()))) {
-                    mManager.doProgress(String.format(getString(R.string.skip_title), title));
-                } else {
-                    wantSearch = true;
-                    if (!title.isEmpty())
-                        mManager.doProgress(title);
-                    else
-                        mManager.doProgress(isbn);
+                BookSearch search = mIdleSearches.get(mIdleSearches.size() - 1);
+                if (startSearch(books, search, counter)) {
+                    mIdleSearches.remove(mIdleSearches.size() - 1);
+                    mSearchesRunning++;
                 }
-                mManager.doProgress(this, null, counter);
-
-                // Start searching if we need it, then wait...
-                if (wantSearch) {
-                    //Logger.logError(new RuntimeException("BC_DEBUG: Starting search for book " + counter + ": " + title));
-                    mSearchLock.lock();
-                    try {
-                        mSearchFinished = false;
-                        mNewBookData = null;
-                        mSearchCancelled = false;
-                    } finally {
-                        mSearchLock.unlock();
-                    }
 
-                    mSearchManager.search(author, title, isbn, tmpThumbWanted, SearchManager.SEARCH_ALL);
-
-                    // Wait for the search to complete; when the search has completed it uses class-level state
-                    // data when processing the results. It will signal this lock when it no longer needs any class
-                    // level state data (e.g. mOrigData).
-                    mSearchLock.lock();
-                    try {
-                        while (!mSearchFinished && !isCancelled()) {
-                            mSearchDone.await();
-                        }
-                    } finally {
-                        mSearchLock.unlock();
-                    }
-
-                    if (!isCancelled() && mNewBookData != null) {
-                        //Logger.logError(new RuntimeException("BC_DEBUG: Search finished for book " + counter + ", processing results"));
-                        processSearchResults(mCurrId, mCurrUuid, mCurrFieldUsages, mNewBookData, mOrigData);
-                    } else if (mNewBookData == null) {
-                        //Logger.logError(new RuntimeException("BC_DEBUG: Search finished for book " + counter + " with no results"));
-                    }
-                    mNewBookData = null;
-
-                    // Small delay to avoid hammering the servers
-                    Thread.sleep(500);
-                } else {
-                    //Logger.logError(new RuntimeException("BC_DEBUG: Skipping search for book " + counter + ": " + title));
+                // Process any results that have arrived in the meantime
+                BookSearch done;
+                while ((done = mFinishedSearches.poll()) != null) {
+                    processFinishedSearch(done);
                 }
+            }
 
+            // Wait for the last searches
+            while (mSearchesRunning > 0 && !isCancelled()) {
+                processFinishedSearch(mFinishedSearches.take());
             }
         } finally {
+            // Write what we have, even if cancelled
+            try {
+                writePendingUpdates();
+            } catch (Exception e) {
+                Logger.logError(e);
+            }
+            mDbHelper.endBulkUpdate();
+
             // Clean up the cursor
             if (!books.isClosed())
                 books.close();
@@ -284,47 +175,194 @@ public class UpdateThumbnailsThread extends ManagedTask {
         }
     }
 
-    @Override
-    public void onThreadFinish() {
+    /**
+     * Work out what the book at the current cursor position needs and, if anything, start
+     * searching for it.
+     *
+     * @param books   Cursor positioned on the book
+     * @param search  Idle search to use
+     * @param counter Progress counter
+     *
+     * @return true if a search was started
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private boolean startSearch(Cursor books, BookSearch search, int counter) {
+        // Copy the fields from the cursor and build a complete set of data for this book.
+        // This only needs to include data that we can fetch (so, for example, bookshelves are ignored).
+        Bundle origData = new Bundle();
+        for (int i = 0; i < books.getColumnCount(); i++) {
+            origData.putString(books.getColumnName(i), books.getString(i));
+        }
+        // Get the book ID
+        long bookId = Utils.getAsLong(origData, CatalogueDBAdapter.KEY_ROW_ID);
+        // Get the book UUID
+        String bookUuid = origData.getString(DatabaseDefinitions.DOM_BOOK_UUID.name);
+        // Get the extra data about the book
+        origData.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, mDbHelper.getBookAuthorList(bookId));
+        origData.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, mDbHelper.getBookSeriesList(bookId));
+
+        // Grab the searchable fields. Ideally we will have an ISBN, but we may not.
+        String isbn = origData.getString(CatalogueDBAdapter.KEY_ISBN, "");
+        String author = origData.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED, "");
+        String title = origData.getString(CatalogueDBAdapter.KEY_TITLE, "");
+
+        // Reset the fields we want for THIS book
+        FieldUsages fieldUsages = new FieldUsages();
+
+        // See if there is a reason to fetch ANY data by checking which fields this book needs.
+        for (FieldUsage usage : mRequestedFields.values()) {
+            // Not selected, we dont want it
+            if (usage.selected) {
+                switch (usage.usage) {
+                    case ADD_EXTRA:
+                    case OVERWRITE:
+                        // Add and Overwrite mean we always get the data
+                        fieldUsages.put(usage);
+                        break;
+                    case COPY_IF_BLANK:
+                        // Handle special cases
+                        // - If it's a thumbnail, then see if it's missing or empty.
+                        switch (usage.fieldName) {
+                            case CatalogueDBAdapter.KEY_THUMBNAIL:
+                                File file = CatalogueDBAdapter.fetchThumbnailByUuid(bookUuid);
+                                if (!file.exists() || file.length() == 0)
+                                    fieldUsages.put(usage);
+                                break;
+                            case CatalogueDBAdapter.KEY_AUTHOR_ARRAY:
+                                // We should never have a book with no authors, but let's be paranoid
+                                if (origData.containsKey(usage.fieldName)) {
+                                    ArrayList<Author> origAuthors = Utils.getAuthorsFromBundle(origData);
+                                    if (origAuthors == null || origAuthors.isEmpty())
+                                        fieldUsages.put(usage);
+                                }
+                                break;
+                            case CatalogueDBAdapter.KEY_SERIES_ARRAY:
+                                if (origData.containsKey(usage.fieldName)) {
+                                    ArrayList<Series> origSeries = Utils.getSeriesFromBundle(origData);
+                                    if (origSeries == null || origSeries.isEmpty())
+                                        fieldUsages.put(usage);
+                                }
+                                break;
+                            default:
+                                // If the original was blank, add to list
+                                if (!origData.containsKey(usage.fieldName) || origData.getString(usage.fieldName) == null || Objects.requireNonNull(origData.getString(usage.fieldName)).isEmpty())
+                                    fieldUsages.put(usage);
+                                break;
+                        }
+                        break;
+                }
+            }
+        }
+
+        // Cache the value to indicate we need thumbnails (or not).
+        boolean tmpThumbWanted = fieldUsages.containsKey(CatalogueDBAdapter.KEY_THUMBNAIL);
+
+        if (tmpThumbWanted) {
+            // delete any temporary thumbnails //
+            try {
+                File delete_thumb = CatalogueDBAdapter.getTempThumbnail(search.thumbnailSuffix);
+                delete_thumb.delete();
+            } catch (Exception e) {
+                // do nothing - this is the expected behaviour
+            }
+        }
+
+        // Use this to flag if we actually need a search.
+        boolean wantSearch = false;
+        // Update the progress appropriately
+        if (fieldUsages.isEmpty() || (isbn.isEmpty() && (author.isEmpty() || title.isEmpty()))) {
+            mManager.doProgress(String.format(getString(R.string.skip_title), title));
+        } else {
+            wantSearch = true;
+            if (!title.isEmpty())
+                mManager.doProgress(title);
+            else
+                mManager.doProgress(isbn);
+        }
+        mManager.doProgress(this, null, counter);
+
+        // Start searching if we need it; the results are processed when it finishes.
+        if (wantSearch) {
+            search.bookId = bookId;
+            search.bookUuid = bookUuid;
+            search.origData = origData;
+            search.fieldUsages = fieldUsages;
+            search.newData = null;
+            search.searchManager.search(author, title, isbn, tmpThumbWanted, SearchManager.SEARCH_ALL);
+        }
+        return wantSearch;
+    }
+
+    /**
+     * Process the results of a finished search, and make it available for the next book.
+     *
+     * @param search Search that finished
+     */
+    private void processFinishedSearch(BookSearch search) {
+        mSearchesRunning--;
         try {
-            mManager.doToast(mFinalMessage);
+            if (!isCancelled() && search.newData != null) {
+                processSearchResults(search.bookId, search.bookUuid, search.fieldUsages, search.newData, search.origData,
+                        CatalogueDBAdapter.getTempThumbnail(search.thumbnailSuffix));
+            }
         } finally {
-            cleanup();
+            search.newData = null;
+            search.origData = null;
+            mIdleSearches.add(search);
         }
+
+        if (mPendingUpdates.size() >= WRITE_BATCH_SIZE)
+            writePendingUpdates();
     }
 
     /**
-     * Called in the main thread for this object when a search has completed.
+     * Write the queued updates in one transaction, then tell the sync service about them.
      */
-    private boolean handleSearchFinished(Bundle bookData, boolean cancelled) {
-        // Set cancelled flag if the task was cancelled
-        if (cancelled) {
-            cancelTask();
-        } else if (bookData == null) {
-            mManager.doToast("Unable to find book details");
-        }
+    private void writePendingUpdates() {
+        if (mPendingUpdates.isEmpty())
+            return;
 
-        mNewBookData = bookData;
-        mSearchCancelled = cancelled;
+        try {
+            SyncLock txLock = mDbHelper.startTransaction(true);
+            try {
+                for (PendingUpdate u : mPendingUpdates) {
+                    if (u.data != null)
+                        mDbHelper.updateBook(u.bookId, u.data, 0);
+                }
+                mDbHelper.setTransactionSuccessful();
+            } finally {
+                mDbHelper.endTransaction(txLock);
+            }
 
-        // Done! This need to go after processSearchResults() because doSearchDone() frees
-        // main thread which may disconnect database connection if on last book.
-        doSearchDone();
+            for (PendingUpdate u : mPendingUpdates) {
+                BookCatalogueAPI.syncBook(mContext, u.bookId);
+            }
+        } finally {
+            mPendingUpdates.clear();
+        }
+    }
 
-        return true;
+    @Override
+    public void onThreadFinish() {
+        try {
+            mManager.doToast(mFinalMessage);
+        } finally {
+            cleanup();
+        }
     }
 
     /**
-     * Passed the old & new data, construct the update data and perform the update.
+     * Passed the old & new data, construct the update data and queue the update.
      *
      * @param bookId          Book ID
      * @param bookUuid        The Book UUID
      * @param requestedFields which fields to get
      * @param newData         Data gathered from internet
      * @param origData        Original data
+     * @param downloadedFile  Thumbnail found by the search, if any
      */
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void processSearchResults(long bookId, String bookUuid, FieldUsages requestedFields, Bundle newData, Bundle origData) {
+    private void processSearchResults(long bookId, String bookUuid, FieldUsages requestedFields, Bundle newData, Bundle origData, File downloadedFile) {
         // First, filter the data to remove keys we don't care about
         ArrayList<String> toRemove = new ArrayList<>();
         for (String key : newData.keySet()) {
@@ -342,7 +380,6 @@ public class UpdateThumbnailsThread extends ManagedTask {
             if (newData.containsKey(usage.fieldName)) {
                 // Handle thumbnail specially
                 if (usage.fieldName.equals(CatalogueDBAdapter.KEY_THUMBNAIL)) {
-                    File downloadedFile = CatalogueDBAdapter.getTempThumbnail();
                     boolean copyThumb = false;
                     if (usage.usage == Usages.COPY_IF_BLANK) {
                         File file = CatalogueDBAdapter.fetchThumbnailByUuid(bookUuid);
@@ -357,6 +394,8 @@ public class UpdateThumbnailsThread extends ManagedTask {
                         }
                         if (downloadedFile.renameTo(file)) {
                             thumbChanged = true;
+                            // Cached images and the saved hash of the old cover are now stale
+                            mDbHelper.getUtils().deleteCachedBookCovers(bookUuid);
                         } else {
                             downloadedFile.delete();
                         }
@@ -406,32 +445,14 @@ public class UpdateThumbnailsThread extends ManagedTask {
             }
         }
 
-        // Update
-        if (recordChanged && !newData.isEmpty()) {
-            mDbHelper.updateBook(bookId, new BookData(mContext, newData), 0);
-        }
-
+        // Queue the update; it is written with the rest of its batch
         if (recordChanged || thumbChanged) {
-            BookCatalogueAPI.syncBook(mContext, bookId);
+            BookData data = (recordChanged && !newData.isEmpty()) ? new BookData(mContext, newData) : null;
+            mPendingUpdates.add(new PendingUpdate(bookId, data));
         }
 
     }
 
-    /**
-     * Called to signal that the search is complete AND the class-level data has
-     * been cached by the processing thread, so that a new search can begin.
-     */
-    private void doSearchDone() {
-        // Let another search begin
-        mSearchLock.lock();
-        try {
-            mSearchFinished = true;
-            mSearchDone.signalAll();
-        } finally {
-            mSearchLock.unlock();
-        }
-    }
-
     /**
      * Clean-up any DB connection etc after main task has run.
      */
@@ -448,4 +469,62 @@ public class UpdateThumbnailsThread extends ManagedTask {
         super.finalize();
     }
 
+    /**
+     * One of the searches used to process books concurrently, with the data of the book it is
+     * working on. Each has its own SearchManager and temp thumbnail file.
+     */
+    private class BookSearch implements SearchManager.SearchListener {
+        // Active search manager
+        final SearchManager searchManager;
+        // Suffix of the temp thumbnail file for this search
+        final String thumbnailSuffix;
+        // Data related to the book being processed
+        // - book ID
+        long bookId = 0;
+        // - book UUID
+        String bookUuid = null;
+        // - Original row data
+        Bundle origData = null;
+        // - The (subset) of fields relevant to the book
+        FieldUsages fieldUsages;
+        // - Data from search
+        Bundle newData = null;
+
+        BookSearch(int index) {
+            thumbnailSuffix = "_update" + index;
+            searchManager = new SearchManager(mManager, this);
+            searchManager.setThumbnailSuffix(thumbnailSuffix);
+        }
+
+        /**
+         * Called in the main thread when the search has completed; hand it back to the task thread.
+         */
+        @Override
+        public boolean onSearchFinished(Bundle bookData, boolean cancelled) {
+            // Set cancelled flag if the task was cancelled
+            if (cancelled) {
+                cancelTask();
+            } else if (bookData == null) {
+                mManager.doToast("Unable to find book details");
+            }
+            newData = bookData;
+            mFinishedSearches.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * An update waiting to be written.
+     */
+    private static class PendingUpdate {
+        final long bookId;
+        // Data to write; null if only the thumbnail changed
+        final BookData data;
+
+        PendingUpdate(long bookId, BookData data) {
+            this.bookId = bookId;
+            this.data = data;
+        }
+    }
+
 }
@@ -71,6 +71,18 @@ public class BackupInfo {
      * Standard INFO item
      */
     public static final String INFO_COMPAT_ARCHIVER = "CompatArchiver";
+    /**
+     * Unique ID of a full or incremental backup
+     */
+    public static final String INFO_BACKUP_ID = "BackupId";
+    /**
+     * ID of the backup an incremental backup is based on
+     */
+    public static final String INFO_BASE_ID = "BaseId";
+    /**
+     * File name of the backup an incremental backup is based on
+     */
+    public static final String INFO_BASE_NAME = "BaseName";
     /**
      * Bundle retrieved from the archive for this instance
      */
@@ -152,4 +164,32 @@ public class BackupInfo {
         return mBundle.getInt(INFO_NUM_COVERS);
     }
 
+    /**
+     * Accessor; null for partial backups and archives written before incremental backups
+     */
+    public String getBackupId() {
+        return mBundle.getString(INFO_BACKUP_ID);
+    }
+
+    /**
+     * Accessor; null unless this is an incremental backup
+     */
+    public String getBaseId() {
+        return mBundle.getString(INFO_BASE_ID);
+    }
+
+    /**
+     * Accessor
+     */
+    public String getBaseName() {
+        return mBundle.getString(INFO_BASE_NAME);
+    }
+
+    /**
+     * Check if this is an incremental backup, which must be restored after its base
+     */
+    public boolean isIncremental() {
+        return getBaseId() != null;
+    }
+
 }
@@ -22,7 +22,12 @@ package com.eleybourn.bookcatalogue.backup;
 import android.content.Context;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.BookCataloguePreferences;
@@ -30,6 +35,7 @@ import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.backup.BackupReader.BackupReaderListener;
 import com.eleybourn.bookcatalogue.backup.BackupWriter.BackupWriterListener;
 import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
+import com.eleybourn.bookcatalogue.backup.zip.ZipBackupContainer;
 import com.eleybourn.bookcatalogue.compat.BookCatalogueActivity;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
@@ -60,9 +66,7 @@ public class BackupManager {
 		if (!file.exists())
 			throw new java.io.FileNotFoundException("Attempt to open non-existent backup file");
 
-		// We only support one backup format; so we use that. In future, we would need to
-		// explore the file to determine which format to use
-		TarBackupContainer bkp = new TarBackupContainer(context, file);
+		BackupContainer bkp = openContainer(context, file);
 		// Each format should provide a validator of some kind
 		if (!bkp.isValid())
 			throw new IOException("Not a valid backup file");
@@ -70,6 +74,32 @@ public class BackupManager {
 		return bkp.newReader();
 	}
 
+	/**
+	 * Get a container for an existing backup file, based on its contents.
+	 *
+	 * @param file	DocumentFile to read
+	 *
+	 * @return	a ZIP container for ZIP files, otherwise TAR
+	 */
+	public static BackupContainer openContainer(Context context, DocumentFile file) {
+		if (ZipBackupContainer.isZipFile(context, file))
+			return new ZipBackupContainer(context, file);
+		else
+			return new TarBackupContainer(context, file);
+	}
+
+	/**
+	 * Get a container for a new backup file, in the format chosen in preferences.
+	 *
+	 * @param file	DocumentFile to write
+	 */
+	public static BackupContainer newContainer(Context context, DocumentFile file) {
+		if (BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_BACKUP_COMPRESSED, false))
+			return new ZipBackupContainer(context, file);
+		else
+			return new TarBackupContainer(context, file);
+	}
+
 	public interface BackupListener {
 		void onFinish(SimpleTaskQueueProgressFragment fragment, int taskId, FragmentTask task);
 	}
@@ -92,7 +122,7 @@ public class BackupManager {
 				BackupWriter wrt = null;
 
 				try {
-					TarBackupContainer bkp = new TarBackupContainer(context, requestedFile);
+					BackupContainer bkp = newContainer(context, requestedFile);
 					wrt = bkp.newWriter(context);
 
 					wrt.backup(fragment.getContext(), new BackupWriterListener() {
@@ -163,6 +193,10 @@ public class BackupManager {
 						prefs.setString(BookCataloguePreferences.PREF_LAST_BACKUP_DATE, mBackupDate);
 					}
 					prefs.setString(BookCataloguePreferences.PREF_LAST_BACKUP_FILE, requestedFile.getName());
+					// The next incremental backup will be based on this one, if it was full or incremental
+					BackupManifest.commitPending(requestedFile.getName());
+				} else {
+					BackupManifest.discardPending();
 				}
 				if (listener != null) {
 					listener.onFinish(fragment, taskId, this);
@@ -175,37 +209,112 @@ public class BackupManager {
 	}
 
 	/**
-	 * Start a foreground task that backs up the entire catalogue.
+	 * Put a full backup and the incremental backups based on it into the order they must be
+	 * restored, using the backup and base IDs in the INFO block of each.
+	 *
+	 * @param files	Backup files, in any order
+	 *
+	 * @return	the files, starting with the one whose base is not in the list
+	 *
+	 * @throws IOException if a file can not be read, or the files are not a single chain
+	 */
+	public static ArrayList<DocumentFile> getRestoreOrder(Context context, List<DocumentFile> files) throws IOException {
+		final HashMap<String, DocumentFile> byBaseId = new HashMap<>();
+		final HashMap<DocumentFile, String> ids = new HashMap<>();
+		final HashSet<String> allIds = new HashSet<>();
+		final HashMap<DocumentFile, String> baseIds = new HashMap<>();
+
+		for (DocumentFile f : files) {
+			BackupReader rdr = readBackup(context, f);
+			BackupInfo info;
+			try {
+				info = rdr.getInfo();
+			} finally {
+				rdr.close();
+			}
+			if (info.getBackupId() != null) {
+				ids.put(f, info.getBackupId());
+				allIds.add(info.getBackupId());
+			}
+			if (info.getBaseId() != null) {
+				baseIds.put(f, info.getBaseId());
+				if (byBaseId.put(info.getBaseId(), f) != null)
+					throw new IOException("More than one backup is based on the same backup");
+			}
+		}
+
+		// The first is the one whose base was not selected; usually the full backup
+		DocumentFile first = null;
+		for (DocumentFile f : files) {
+			final String baseId = baseIds.get(f);
+			if (baseId == null || !allIds.contains(baseId)) {
+				if (first != null)
+					throw new IOException("The backups are not a single chain");
+				first = f;
+			}
+		}
+
+		final ArrayList<DocumentFile> order = new ArrayList<>();
+		DocumentFile f = first;
+		while (f != null && order.size() < files.size()) {
+			order.add(f);
+			final String id = ids.get(f);
+			f = id == null ? null : byBaseId.get(id);
+		}
+		if (order.size() != files.size())
+			throw new IOException("The backups are not a single chain");
+		return order;
+	}
+
+	/**
+	 * Start a foreground task that restores a backup.
 	 * We use a FragmentTask so that long actions do not occur in the UI thread.
 	 */
 	public static void restoreCatalogue(final BookCatalogueActivity context, final DocumentFile inputFile, int taskId, final int importFlags, BackupListener listener) {
+		restoreCatalogue(context, Collections.singletonList(inputFile), taskId, importFlags, listener);
+	}
+
+	/**
+	 * Start a foreground task that restores a list of backups in turn, eg. a full backup
+	 * followed by incremental backups in the order given by getRestoreOrder().
+	 * We use a FragmentTask so that long actions do not occur in the UI thread.
+	 */
+	public static void restoreCatalogue(final BookCatalogueActivity context, final List<DocumentFile> inputFiles, int taskId, final int importFlags, BackupListener listener) {
 
 		FragmentTask task = new FragmentTaskAbstract() {
 			@Override
 			public void run(final SimpleTaskQueueProgressFragment fragment, SimpleTaskContext taskContext) {
 				try {
-					BackupReader rdr = BackupManager.readBackup(context, inputFile);
-					rdr.restore(new BackupReaderListener() {
-						@Override
-						public void setMax(int max) {
-							fragment.setMax(max);
-						}
-
-						@Override
-						public void step(String message, int delta) {
-							fragment.step(message, delta);
-						}
-
-						@Override
-						public boolean isCancelled() {
-							return fragment.isCancelled();
-						}}, importFlags);
+					for (DocumentFile inputFile : inputFiles) {
+						if (fragment.isCancelled())
+							break;
+						restoreFile(fragment, inputFile);
+					}
 				} catch (Exception e) {
 					Logger.logError(e);
 					throw new RuntimeException("Error during restore", e);
 				}
 			}
 
+			private void restoreFile(final SimpleTaskQueueProgressFragment fragment, DocumentFile inputFile) throws IOException {
+				BackupReader rdr = BackupManager.readBackup(context, inputFile);
+				rdr.restore(new BackupReaderListener() {
+					@Override
+					public void setMax(int max) {
+						fragment.setMax(max);
+					}
+
+					@Override
+					public void step(String message, int delta) {
+						fragment.step(message, delta);
+					}
+
+					@Override
+					public boolean isCancelled() {
+						return fragment.isCancelled();
+					}}, importFlags);
+			}
+
 			@Override
 			public void onFinish(SimpleTaskQueueProgressFragment fragment, Exception exception) {
 				super.onFinish(fragment, exception);
@@ -0,0 +1,361 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.backup;
+
+import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookCataloguePreferences;
+import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.utils.StorageUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * List of the books and covers in a full or incremental backup, with the size, date and CRC of
+ * each cover.
+ * <p>
+ * Every full or incremental backup stores its manifest in the archive, and a copy of the manifest
+ * of the last one is kept in the app data directory as the 'base'. An incremental backup compares
+ * the catalogue with the base and only contains books updated since the base was made, covers that
+ * differ from the base, and a list of the books and covers that have been deleted. Restoring the
+ * full backup, then each incremental backup in turn, gives the catalogue as it was at the time of
+ * the last one; the INFO block of each archive holds its ID and the ID of its base so the chain
+ * can be put back in order (see BackupManager.getRestoreOrder()).
+ * <p>
+ * The manifest is a text file: '#' lines for the backup ID, base ID and scan time, then the
+ * column names and one line for each book.
+ *
+ * @author pjw
+ */
+public class BackupManifest {
+    /** Column names */
+    private static final String COLUMNS = "uuid,cover_size,cover_date,cover_crc";
+    /** Header tags */
+    private static final String TAG_ID = "# id=";
+    private static final String TAG_BASE = "# base=";
+    private static final String TAG_TIME = "# time=";
+    /** Column names in the list of deletions */
+    private static final String DELETION_COLUMNS = "uuid,type";
+    /** Deletion type: the book was deleted */
+    public static final String DELETED_BOOK = "book";
+    /** Deletion type: the book still exists but its cover was deleted */
+    public static final String DELETED_COVER = "cover";
+
+    /** Manifest of the last full or incremental backup */
+    private static final String BASE_FILE = "backup_base.manifest";
+    /** Manifest of the backup being written; becomes the base if the backup succeeds */
+    private static final String PENDING_FILE = "backup_pending.manifest";
+
+    /** Unique ID of the backup */
+    private final String mId;
+    /** ID of the backup this one is based on, or null for a full backup */
+    private final String mBaseId;
+    /** Time the catalogue was scanned; books updated after this go in the next incremental backup */
+    private final long mTime;
+    /** Details of each book, by UUID */
+    private final LinkedHashMap<String, Item> mItems = new LinkedHashMap<>();
+
+    /**
+     * Details of one book
+     */
+    public static class Item {
+        public final String uuid;
+        /** Size of the cover file, or -1 if there is no cover */
+        public long coverSize = -1;
+        /** Date of the cover file */
+        public long coverDate = 0;
+        /** CRC32 of the cover file, or -1 if not known */
+        public long coverCrc = -1;
+
+        Item(String uuid) {
+            this.uuid = uuid;
+        }
+
+        public boolean hasCover() {
+            return coverSize >= 0;
+        }
+
+        /**
+         * Check if the cover file has the same size and date as in another manifest,
+         * in which case it is taken to be unchanged without reading it.
+         */
+        public boolean isSameCoverFile(Item other) {
+            return other != null && hasCover() && other.hasCover()
+                    && coverSize == other.coverSize && coverDate == other.coverDate;
+        }
+    }
+
+    /**
+     * Constructor for the manifest of a new backup.
+     *
+     * @param base Manifest of the backup this one is based on, or null for a full backup
+     */
+    public BackupManifest(BackupManifest base) {
+        this(UUID.randomUUID().toString(), base == null ? null : base.getId(), System.currentTimeMillis());
+    }
+
+    private BackupManifest(String id, String baseId, long time) {
+        mId = id;
+        mBaseId = baseId;
+        mTime = time;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getBaseId() {
+        return mBaseId;
+    }
+
+    public Date getDate() {
+        return new Date(mTime);
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public Item get(String uuid) {
+        return mItems.get(uuid);
+    }
+
+    /**
+     * Add a book; the cover details are filled in by the caller.
+     */
+    public Item add(String uuid) {
+        Item item = new Item(uuid);
+        mItems.put(uuid, item);
+        return item;
+    }
+
+    /**
+     * Get the books and covers in the base but not in this manifest.
+     *
+     * @return The list of deletions, in the format read by BackupReaderAbstract
+     */
+    public byte[] getDeletions(BackupManifest base) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Writer out = new BufferedWriter(new OutputStreamWriter(data, StandardCharsets.UTF_8));
+        out.write(DELETION_COLUMNS + "\n");
+        for (Item old : base.mItems.values()) {
+            Item item = mItems.get(old.uuid);
+            if (item == null)
+                out.write(old.uuid + "," + DELETED_BOOK + "\n");
+            else if (old.hasCover() && !item.hasCover())
+                out.write(old.uuid + "," + DELETED_COVER + "\n");
+        }
+        out.close();
+        return data.toByteArray();
+    }
+
+    /**
+     * Read a list of deletions written by getDeletions().
+     *
+     * @param handler Called for each deletion
+     */
+    public static void readDeletions(InputStream in, DeletionHandler handler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.equals(DELETION_COLUMNS))
+                continue;
+            int comma = line.indexOf(',');
+            if (comma <= 0)
+                throw new IOException("Invalid deletion: " + line);
+            handler.onDeletion(line.substring(0, comma), line.substring(comma + 1));
+        }
+    }
+
+    /**
+     * Interface for processing each deletion
+     */
+    public interface DeletionHandler {
+        void onDeletion(String uuid, String type) throws IOException;
+    }
+
+    /**
+     * Write the manifest to a stream; the stream is not closed.
+     */
+    public void write(OutputStream stream) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 32768);
+        out.write(TAG_ID + mId + "\n");
+        if (mBaseId != null)
+            out.write(TAG_BASE + mBaseId + "\n");
+        out.write(TAG_TIME + mTime + "\n");
+        out.write(COLUMNS + "\n");
+        for (Item item : mItems.values()) {
+            out.write(item.uuid + "," + item.coverSize + "," + item.coverDate + "," + item.coverCrc + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Get the manifest as bytes, for storing in an archive.
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        write(data);
+        return data.toByteArray();
+    }
+
+    /**
+     * Read a manifest written by write().
+     */
+    public static BackupManifest read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 32768);
+        String id = null;
+        String baseId = null;
+        long time = -1;
+        BackupManifest manifest = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(TAG_ID)) {
+                id = line.substring(TAG_ID.length());
+            } else if (line.startsWith(TAG_BASE)) {
+                baseId = line.substring(TAG_BASE.length());
+            } else if (line.startsWith(TAG_TIME)) {
+                try {
+                    time = Long.parseLong(line.substring(TAG_TIME.length()));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid manifest time: " + line, e);
+                }
+            } else if (line.equals(COLUMNS)) {
+                if (id == null || time < 0)
+                    throw new IOException("Manifest header is incomplete");
+                manifest = new BackupManifest(id, baseId, time);
+            } else if (!line.isEmpty()) {
+                String[] fields = line.split(",");
+                if (manifest == null || fields.length != 4)
+                    throw new IOException("Invalid manifest line: " + line);
+                try {
+                    Item item = manifest.add(fields[0]);
+                    item.coverSize = Long.parseLong(fields[1]);
+                    item.coverDate = Long.parseLong(fields[2]);
+                    item.coverCrc = Long.parseLong(fields[3]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid manifest line: " + line, e);
+                }
+            }
+        }
+        if (manifest == null)
+            throw new IOException("Manifest is empty");
+        return manifest;
+    }
+
+    /**
+     * Get the CRC32 of a file
+     *
+     * @return the CRC, or -1 if the file could not be read
+     */
+    public static long getCrc(File file) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[32768];
+        try (InputStream in = new FileInputStream(file)) {
+            int cnt;
+            while ((cnt = in.read(buffer)) > 0)
+                crc.update(buffer, 0, cnt);
+        } catch (IOException e) {
+            Logger.logError(e, "Unable to read " + file.getName());
+            return -1;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Get the manifest of the last full or incremental backup.
+     *
+     * @return the manifest, or null if there is none or it can not be read
+     */
+    public static BackupManifest loadBase() {
+        File f = new File(StorageUtils.getBCData(), BASE_FILE);
+        if (!f.exists())
+            return null;
+        try (InputStream in = new FileInputStream(f)) {
+            return read(in);
+        } catch (IOException e) {
+            Logger.logError(e, "Unable to read backup manifest");
+            return null;
+        }
+    }
+
+    /**
+     * Get the file name of the last full or incremental backup
+     */
+    public static String getBaseName() {
+        return BookCatalogueApp.getAppPreferences().getString(BookCataloguePreferences.PREF_BACKUP_BASE_FILE, null);
+    }
+
+    /**
+     * Save the manifest of a backup that is being written; it becomes the base when
+     * commitPending() is called.
+     */
+    public void savePending() throws IOException {
+        try (OutputStream out = new FileOutputStream(new File(StorageUtils.getBCData(), PENDING_FILE))) {
+            write(out);
+        }
+    }
+
+    /**
+     * Make the manifest saved by savePending() the base for the next incremental backup.
+     * Does nothing if there is no pending manifest (eg. after a partial backup).
+     *
+     * @param name File name of the backup, for display
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void commitPending(String name) {
+        File pending = new File(StorageUtils.getBCData(), PENDING_FILE);
+        if (!pending.exists())
+            return;
+        File base = new File(StorageUtils.getBCData(), BASE_FILE);
+        base.delete();
+        if (pending.renameTo(base)) {
+            BookCatalogueApp.getAppPreferences().setString(BookCataloguePreferences.PREF_BACKUP_BASE_FILE, name);
+        } else {
+            Logger.logError(new IOException("Unable to save backup manifest"));
+            pending.delete();
+        }
+    }
+
+    /**
+     * Remove any manifest saved by savePending()
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void discardPending() {
+        File pending = new File(StorageUtils.getBCData(), PENDING_FILE);
+        if (pending.exists())
+            pending.delete();
+    }
+}
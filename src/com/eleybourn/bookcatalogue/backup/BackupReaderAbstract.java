@@ -87,6 +87,10 @@ public abstract class BackupReaderAbstract implements BackupReader {
                     break;
                 case Database:
                 case Info:
+                case Manifest:
+                    break;
+                case Deletions:
+                    restoreDeletions(listener, entity);
                     break;
                 case Preferences:
                     restorePreferences(listener, entity);
@@ -158,6 +162,35 @@ public abstract class BackupReaderAbstract implements BackupReader {
         curr.setLastModified(covDate.getTime());
     }
 
+    /**
+     * Delete the books and covers listed in an incremental backup as deleted since its base.
+     */
+    private void restoreDeletions(BackupReaderListener listener, ReaderEntity entity) throws IOException {
+        listener.step("Deleted books...", 1);
+        BackupManifest.readDeletions(entity.getStream(), (uuid, type) -> {
+            if (BackupManifest.DELETED_BOOK.equals(type)) {
+                long id = mDbHelper.getBookIdFromUuid(uuid);
+                if (id != 0)
+                    mDbHelper.deleteBook(id);
+            } else if (BackupManifest.DELETED_COVER.equals(type)) {
+                deleteCover(uuid);
+            }
+        });
+    }
+
+    /**
+     * Delete all cover files for a book
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void deleteCover(String uuid) {
+        File f = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+        while (f.exists()) {
+            f.delete();
+            f = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+        }
+        mDbHelper.getUtils().eraseCachedBookCover(uuid);
+    }
+
     /**
      * Restore the app preferences
      */
@@ -21,6 +21,7 @@ package com.eleybourn.bookcatalogue.backup;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 import android.content.Context;
@@ -66,12 +67,24 @@ public interface BackupWriter {
     void putInfo(BackupInfo info) throws IOException;
 	/** Write an export file to the archive */
     void putBooks(File books) throws IOException;
+	/** Write an export of known size from a stream to the archive */
+    void putBooks(InputStream books, long size) throws IOException;
 	/** Store a cover file */
     void putCoverFile(File source) throws IOException;
+	/** Store a cover that has already been read into memory */
+    void putCoverFile(String name, long lastModified, byte[] data) throws IOException;
+	/** Get the number of bytes written to the archive so far */
+    long getBytesWritten();
+	/** Get the write rate of the last backup() call, in bytes per second */
+    long getBytesPerSecond();
 	/** Store a Booklist Style */
     void putBooklistStyle(LibraryStyle style) throws IOException;
 	/** Store a SharedPreferences */
     void putPreferences(SharedPreferences prefs) throws IOException;
+	/** Store the manifest of a full or incremental backup; see BackupManifest */
+    void putManifest(byte[] manifest) throws IOException;
+	/** Store the books and covers deleted since the base of an incremental backup */
+    void putDeletions(byte[] deletions) throws IOException;
 	/** Close the writer */
     void close() throws IOException;
 }
\ No newline at end of file
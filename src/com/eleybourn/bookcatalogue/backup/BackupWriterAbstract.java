@@ -22,6 +22,7 @@ package com.eleybourn.bookcatalogue.backup;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.os.Bundle;
 
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.BookCataloguePreferences;
@@ -32,10 +33,15 @@ import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
 import com.eleybourn.bookcatalogue.booklist.LibraryStyle;
 import com.eleybourn.bookcatalogue.utils.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.zip.CRC32;
 
 /**
  * Basic implementation of format-agnostic BackupWriter methods using
@@ -46,6 +52,8 @@ import java.util.Date;
 public abstract class BackupWriterAbstract implements BackupWriter {
     private final Context mContext;
     private final CatalogueDBAdapter mDbHelper;
+    /** Write rate of the last backup, in bytes per second */
+    private long mBytesPerSecond = 0;
 
     /**
      * Constructor
@@ -57,10 +65,37 @@ public abstract class BackupWriterAbstract implements BackupWriter {
     }
 
     /**
-     * Do a full backup, sending progress to the listener
+     * Do a full backup, sending progress to the listener.
+     * <p>
+     * The covers are found in a single pass before anything is written; each one is read when it
+     * is written, since it may have been replaced in the meantime. The books export is collected
+     * in a SpillOutputStream, in memory unless it gets large, then written to the archive.
+     * <p>
+     * Full and incremental backups also get a manifest of their books and covers, which becomes the
+     * base for the next incremental backup once the backup has succeeded; see BackupManifest. The
+     * CRC of each cover written is worked out from the data read for the archive, so covers are
+     * never read twice.
      */
     @Override
-    public void backup(Context context, BackupWriterListener listener, final int backupFlags, Date since) throws IOException {
+    public void backup(Context context, BackupWriterListener listener, int backupFlags, Date since) throws IOException {
+        final long started = System.currentTimeMillis();
+        SpillOutputStream books = null;
+
+        // Only backups of everything can start or continue a chain of incremental backups
+        final boolean complete = (backupFlags & Exporter.EXPORT_ALL) == Exporter.EXPORT_ALL
+                && (backupFlags & Exporter.EXPORT_SINCE) == 0;
+        BackupManifest base = null;
+        if (complete && (backupFlags & Exporter.EXPORT_INCREMENTAL) != 0) {
+            base = BackupManifest.loadBase();
+            // With nothing to base it on, this becomes the full backup that starts the chain
+            if (base != null) {
+                // Allow a second for books updated in the same second as the base was made
+                since = new Date(base.getDate().getTime() - 1000);
+                backupFlags |= Exporter.EXPORT_SINCE;
+            }
+        }
+        final BackupManifest manifest = complete ? new BackupManifest(base) : null;
+        BackupManifest.discardPending();
 
         try {
             // Estimate the total steps
@@ -68,11 +103,12 @@ public abstract class BackupWriterAbstract implements BackupWriter {
             // First, see how many books in total
             final int maxBooks = (int) mDbHelper.getBookCount();
 
-            int coverCount;
+            CoverList covers;
             if ((backupFlags & Exporter.EXPORT_COVERS) != 0)
-                coverCount = writeCovers(listener, backupFlags, since, true);
+                covers = findCovers(listener, backupFlags, since, manifest, base);
             else
-                coverCount = 0;
+                covers = new CoverList();
+            final int coverCount = covers.size();
 
             // If we are doing books, add them
             if ((backupFlags & Exporter.EXPORT_DETAILS) != 0)
@@ -85,22 +121,35 @@ public abstract class BackupWriterAbstract implements BackupWriter {
             listener.setMax(estTotal);
 
             // Generate the book list first, so we know how many there are.
-            File temp = generateBooks(context, listener, backupFlags, since, coverCount);
+            books = generateBooks(context, listener, backupFlags, since, coverCount);
 
             listener.setMax(coverCount + listener.getTotalBooks() + 1);
 
             // Process each component of the Archive, unless we are cancelled, as in Nikita
             if (!listener.isCancelled())
-                writeInfo(listener, listener.getTotalBooks(), coverCount);
+                writeInfo(listener, listener.getTotalBooks(), coverCount, manifest);
+            if (!listener.isCancelled() && base != null)
+                putDeletions(manifest.getDeletions(base));
             if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_DETAILS) != 0)
-                writeBooks(temp);
+                writeBooks(books);
             if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_COVERS) != 0)
-                writeCovers(listener, backupFlags, since, false);
+                writeCovers(listener, covers);
             if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_PREFERENCES) != 0)
                 writePreferences(listener);
             if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_STYLES) != 0)
                 writeStyles(listener);
+            if (!listener.isCancelled() && manifest != null)
+                putManifest(manifest.toBytes());
+            if (!listener.isCancelled())
+                finishArchive();
+            if (!listener.isCancelled() && manifest != null)
+                manifest.savePending();
+
+            final long elapsed = Math.max(1, System.currentTimeMillis() - started);
+            mBytesPerSecond = getBytesWritten() * 1000 / elapsed;
         } finally {
+            if (books != null)
+                books.delete();
             try {
                 close();
             } catch (Exception e) {
@@ -109,25 +158,49 @@ public abstract class BackupWriterAbstract implements BackupWriter {
         }
     }
 
+    /**
+     * Called after all entities have been written, so that writers which buffer or index
+     * entries can complete the archive; errors here must fail the backup, whereas errors
+     * from close() are only logged. Does nothing by default.
+     */
+    protected void finishArchive() throws IOException {
+    }
+
+    /**
+     * Write rate of the last backup
+     */
+    @Override
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
     /**
      * Generate a bundle containing the INFO block, and send it to the archive
      */
-    private void writeInfo(BackupWriterListener listener, int bookCount, int coverCount) throws IOException {
+    private void writeInfo(BackupWriterListener listener, int bookCount, int coverCount, BackupManifest manifest) throws IOException {
         BackupInfo info = BackupInfo.createInfo(getContainer(), mContext, bookCount, coverCount);
+        if (manifest != null) {
+            Bundle b = info.getBundle();
+            b.putString(BackupInfo.INFO_BACKUP_ID, manifest.getId());
+            if (manifest.getBaseId() != null) {
+                b.putString(BackupInfo.INFO_BASE_ID, manifest.getBaseId());
+                b.putString(BackupInfo.INFO_BASE_NAME, BackupManifest.getBaseName());
+            }
+        }
         putInfo(info);
         listener.step(null, 1);
     }
 
     /**
-     * Generate a temporary file containing a books export, and send it to the archive
+     * Generate a books export, and keep it until it can be sent to the archive
      * NOTE: This implementation is built around the TAR format; it is not a fixed design.
      * We could for example pass an Exporter to the writer and leave it to decide if a
-     * temp file or a stream were appropriate. Sadly, tar archives need to know size before
+     * buffer or a stream were appropriate. Sadly, tar archives need to know size before
      * the header can be written.
      * It IS convenient to do it here because we can capture the progress, but we could also
      * have writer.putBooks(exporter, listener) as the method.
      */
-    private File generateBooks(Context context, final BackupWriterListener listener, final int backupFlags, final Date since, final int numCovers) throws IOException {
+    private SpillOutputStream generateBooks(Context context, final BackupWriterListener listener, final int backupFlags, final Date since, final int numCovers) throws IOException {
         // This is an estimate only; we actually don't know how many covers
         // there are in the backup.
         listener.setMax((int) (mDbHelper.getBookCount() * 2 + 1));
@@ -156,40 +229,48 @@ public abstract class BackupWriterAbstract implements BackupWriter {
             }
         };
 
-        // Get a temp file and mark for delete
-        File temp = File.createTempFile("book-cat", ".tmp");
-        temp.deleteOnExit();
-        FileOutputStream output = null;
+        SpillOutputStream output = new SpillOutputStream(SpillOutputStream.DEFAULT_MEMORY_LIMIT);
         try {
             CsvExporter exporter = new CsvExporter();
-            output = new FileOutputStream(temp);
             exporter.export(context, output, exportListener, backupFlags, since);
             output.close();
-        } finally {
-            if (output != null && output.getChannel().isOpen())
-                output.close();
+        } catch (IOException | RuntimeException e) {
+            output.delete();
+            throw e;
         }
 
-        return temp;
+        return output;
     }
 
     /**
-     * @param exportFile the file containing the exported books in CSV format
+     * @param export the exported books in CSV format
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void writeBooks(File exportFile) throws IOException {
-        try {
-            putBooks(exportFile);
-        } finally {
-            if (exportFile.exists())
-                exportFile.delete();
+    private void writeBooks(SpillOutputStream export) throws IOException {
+        putBooks(export.getInputStream(), export.size());
+    }
+
+    /**
+     * Covers found for the backup
+     */
+    private static class CoverList {
+        final ArrayList<File> files = new ArrayList<>();
+        /** Manifest entry for each file, or null if the backup has no manifest */
+        final ArrayList<BackupManifest.Item> items = new ArrayList<>();
+        int missing = 0;
+        int skipped = 0;
+
+        int size() {
+            return files.size();
         }
     }
 
     /**
-     * Write each cover file corresponding to a book to the archive
+     * Find the cover file corresponding to each book, and add each book to the manifest (if any).
+     * For an incremental backup, the covers that differ from the base are chosen; otherwise
+     * those changed since the passed date (if any).
      */
-    private int writeCovers(final BackupWriterListener listener, final int backupFlags, final Date since, boolean dryRun) throws IOException {
+    private CoverList findCovers(final BackupWriterListener listener, final int backupFlags, final Date since,
+                                 final BackupManifest manifest, final BackupManifest base) {
         long sinceTime = 0;
         if (since != null && (backupFlags & Exporter.EXPORT_SINCE) != 0) {
             try {
@@ -200,37 +281,37 @@ public abstract class BackupWriterAbstract implements BackupWriter {
             }
         }
 
-        int ok = 0;
-        int missing = 0;
-        int skipped = 0;
-        String fmt_no_skip = BookCatalogueApp.getRes().getString(R.string.covers_progress);
-        String fmt_skip = BookCatalogueApp.getRes().getString(R.string.covers_progress_increment);
-
+        CoverList covers = new CoverList();
         Cursor c = mDbHelper.getUuidList();
         try {
             final int uuidCol = c.getColumnIndex(DatabaseDefinitions.DOM_BOOK_UUID.toString());
             while (c.moveToNext() && !listener.isCancelled()) {
-                File cover = CatalogueDBAdapter.fetchThumbnailByUuid(c.getString(uuidCol));
-                if (cover.exists()) {
-                    if (cover.exists()
-                            && (since == null || sinceTime < cover.lastModified())) {
-                        if (!dryRun)
-                            putCoverFile(cover);
-                        ok++;
+                final String uuid = c.getString(uuidCol);
+                final BackupManifest.Item item = manifest == null ? null : manifest.add(uuid);
+                File cover = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
+                // lastModified() is 0 for a missing file, so usually saves a separate exists() call
+                final long modified = cover.lastModified();
+                if (modified != 0 || cover.exists()) {
+                    final long size = cover.length();
+                    final boolean wanted;
+                    if (item == null) {
+                        wanted = since == null || sinceTime < modified;
+                    } else if (base == null) {
+                        // Every cover goes in a full backup; writeCovers() fills in the details
+                        wanted = true;
                     } else {
-                        skipped++;
+                        item.coverSize = size;
+                        item.coverDate = modified;
+                        wanted = isCoverChanged(item, base.get(uuid), cover);
                     }
-                } else {
-                    missing++;
-                }
-                if (!dryRun) {
-                    String message;
-                    if (skipped == 0) {
-                        message = String.format(fmt_no_skip, ok, missing);
+                    if (wanted) {
+                        covers.files.add(cover);
+                        covers.items.add(item);
                     } else {
-                        message = String.format(fmt_skip, ok, missing, skipped);
+                        covers.skipped++;
                     }
-                    listener.step(message, 1);
+                } else {
+                    covers.missing++;
                 }
             }
         } finally {
@@ -238,7 +319,86 @@ public abstract class BackupWriterAbstract implements BackupWriter {
                 c.close();
         }
 
-        return ok;
+        return covers;
+    }
+
+    /**
+     * Fill in the CRC of a cover in the manifest of an incremental backup, and check if the cover
+     * needs to be written. A cover with the same size and date as in the base is taken to be
+     * unchanged, and its CRC is copied from the base; otherwise the file is read, and only written
+     * if the CRC differs (so a cover whose file was just touched is not written again).
+     *
+     * @param item     Book in the new manifest
+     * @param baseItem Book in the base, or null for a new book
+     */
+    private static boolean isCoverChanged(BackupManifest.Item item, BackupManifest.Item baseItem, File cover) {
+        if (item.isSameCoverFile(baseItem) && baseItem.coverCrc >= 0) {
+            item.coverCrc = baseItem.coverCrc;
+            return false;
+        }
+        item.coverCrc = BackupManifest.getCrc(cover);
+        return baseItem == null || !baseItem.hasCover() || item.coverCrc < 0 || item.coverCrc != baseItem.coverCrc;
+    }
+
+    /**
+     * Write each cover file found by findCovers() to the archive. Each file is read in full
+     * before its entry is started, so a cover replaced since it was found (eg. by a thumbnail
+     * update) is stored as it is now rather than failing the backup.
+     */
+    private void writeCovers(final BackupWriterListener listener, final CoverList covers) throws IOException {
+        String fmt_no_skip = BookCatalogueApp.getRes().getString(R.string.covers_progress);
+        String fmt_skip = BookCatalogueApp.getRes().getString(R.string.covers_progress_increment);
+
+        for (int i = 0; i < covers.size() && !listener.isCancelled(); i++) {
+            final File cover = covers.files.get(i);
+            final long modified = cover.lastModified();
+            final byte[] data;
+            final BackupManifest.Item item = covers.items.get(i);
+            try {
+                data = readFile(cover);
+            } catch (FileNotFoundException e) {
+                // Deleted since it was found
+                if (item != null) {
+                    item.coverSize = -1;
+                    item.coverDate = 0;
+                    item.coverCrc = -1;
+                }
+                covers.missing++;
+                listener.step(null, 1);
+                continue;
+            }
+            putCoverFile(cover.getName(), modified, data);
+            if (item != null) {
+                // Record the cover as written, which may be newer than when it was found
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+                item.coverSize = data.length;
+                item.coverDate = modified;
+                item.coverCrc = crc.getValue();
+            }
+
+            String message;
+            if (covers.skipped == 0) {
+                message = String.format(fmt_no_skip, i + 1, covers.missing);
+            } else {
+                message = String.format(fmt_skip, i + 1, covers.missing, covers.skipped);
+            }
+            listener.step(message, 1);
+        }
+    }
+
+    /**
+     * Read the whole of a file, however long it is by the time it is read.
+     */
+    protected static byte[] readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(1024, Math.min(file.length(), Integer.MAX_VALUE)));
+            byte[] buffer = new byte[32768];
+            int cnt;
+            while ((cnt = in.read(buffer)) > 0)
+                out.write(buffer, 0, cnt);
+            return out.toByteArray();
+        }
     }
 
     /**
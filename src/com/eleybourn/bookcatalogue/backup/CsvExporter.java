@@ -25,22 +25,28 @@ import android.database.Cursor;
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.BookEditFields;
 import com.eleybourn.bookcatalogue.BooksCursor;
-import com.eleybourn.bookcatalogue.BooksRowView;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
-import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.data.Author;
+import com.eleybourn.bookcatalogue.data.Series;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 /**
  * Implementation of Exporter that creates a CSV file.
+ * <p>
+ * The books are read with one cursor, and their authors, series, bookshelves and anthology
+ * titles with one cursor each, all in book id order; the child cursors are merged with the
+ * books in a single pass rather than queried for each book. Column indexes are looked up
+ * once, and cells are escaped straight into the output.
  *
  * @author pjw
  */
@@ -48,6 +54,37 @@ public class CsvExporter implements Exporter {
 
     private static final int BUFFER_SIZE = 32768;
 
+    private static final String HEADER =
+            '"' + CatalogueDBAdapter.KEY_ROW_ID + "\"," +            //0
+                    '"' + CatalogueDBAdapter.KEY_AUTHOR_DETAILS + "\"," +    //2
+                    '"' + CatalogueDBAdapter.KEY_TITLE + "\"," +            //4
+                    '"' + CatalogueDBAdapter.KEY_ISBN + "\"," +            //5
+                    '"' + CatalogueDBAdapter.KEY_PUBLISHER + "\"," +        //6
+                    '"' + CatalogueDBAdapter.KEY_DATE_PUBLISHED + "\"," +    //7
+                    '"' + CatalogueDBAdapter.KEY_RATING + "\"," +            //8
+                    '"' + "bookshelf_id\"," +                                //9
+                    '"' + CatalogueDBAdapter.KEY_BOOKSHELF + "\"," +        //10
+                    '"' + CatalogueDBAdapter.KEY_READ + "\"," +                //11
+                    '"' + CatalogueDBAdapter.KEY_SERIES_DETAILS + "\"," +    //12
+                    '"' + CatalogueDBAdapter.KEY_PAGES + "\"," +            //14
+                    '"' + CatalogueDBAdapter.KEY_NOTES + "\"," +            //15
+                    '"' + CatalogueDBAdapter.KEY_LIST_PRICE + "\"," +        //16
+                    '"' + CatalogueDBAdapter.KEY_ANTHOLOGY_MASK + "\"," +        //17
+                    '"' + CatalogueDBAdapter.KEY_LOCATION + "\"," +            //18
+                    '"' + CatalogueDBAdapter.KEY_READ_START + "\"," +        //19
+                    '"' + CatalogueDBAdapter.KEY_READ_END + "\"," +            //20
+                    '"' + CatalogueDBAdapter.KEY_FORMAT + "\"," +            //21
+                    '"' + CatalogueDBAdapter.KEY_SIGNED + "\"," +            //22
+                    '"' + CatalogueDBAdapter.KEY_LOANED_TO + "\"," +            //23
+                    '"' + "anthology_titles" + "\"," +                        //24
+                    '"' + CatalogueDBAdapter.KEY_DESCRIPTION + "\"," +        //25
+                    '"' + CatalogueDBAdapter.KEY_GENRE + "\"," +            //26
+                    '"' + DatabaseDefinitions.DOM_LANGUAGE + "\"," +            //27
+                    '"' + CatalogueDBAdapter.KEY_DATE_ADDED + "\"," +        //28
+                    '"' + DatabaseDefinitions.DOM_LAST_UPDATE_DATE + "\"," +        //29
+                    '"' + DatabaseDefinitions.DOM_BOOK_UUID + "\"," +        //30
+                    "\n";
+
     public boolean export(Context context, OutputStream outputStream, Exporter.ExportListener listener, final int backupFlags, Date since) throws IOException {
         final String UNKNOWN = BookCatalogueApp.getRes().getString(R.string.unknown);
         final String AUTHOR = BookCatalogueApp.getRes().getString(R.string.label_author);
@@ -71,47 +108,17 @@ public class CsvExporter implements Exporter {
         listener.onProgress(BookCatalogueApp.getRes().getString(R.string.export_starting_ellipsis), 0);
         boolean displayingStartupMessage = true;
 
-        StringBuilder export = new StringBuilder(
-                '"' + CatalogueDBAdapter.KEY_ROW_ID + "\"," +            //0
-                        '"' + CatalogueDBAdapter.KEY_AUTHOR_DETAILS + "\"," +    //2
-                        '"' + CatalogueDBAdapter.KEY_TITLE + "\"," +            //4
-                        '"' + CatalogueDBAdapter.KEY_ISBN + "\"," +            //5
-                        '"' + CatalogueDBAdapter.KEY_PUBLISHER + "\"," +        //6
-                        '"' + CatalogueDBAdapter.KEY_DATE_PUBLISHED + "\"," +    //7
-                        '"' + CatalogueDBAdapter.KEY_RATING + "\"," +            //8
-                        '"' + "bookshelf_id\"," +                                //9
-                        '"' + CatalogueDBAdapter.KEY_BOOKSHELF + "\"," +        //10
-                        '"' + CatalogueDBAdapter.KEY_READ + "\"," +                //11
-                        '"' + CatalogueDBAdapter.KEY_SERIES_DETAILS + "\"," +    //12
-                        '"' + CatalogueDBAdapter.KEY_PAGES + "\"," +            //14
-                        '"' + CatalogueDBAdapter.KEY_NOTES + "\"," +            //15
-                        '"' + CatalogueDBAdapter.KEY_LIST_PRICE + "\"," +        //16
-                        '"' + CatalogueDBAdapter.KEY_ANTHOLOGY_MASK + "\"," +        //17
-                        '"' + CatalogueDBAdapter.KEY_LOCATION + "\"," +            //18
-                        '"' + CatalogueDBAdapter.KEY_READ_START + "\"," +        //19
-                        '"' + CatalogueDBAdapter.KEY_READ_END + "\"," +            //20
-                        '"' + CatalogueDBAdapter.KEY_FORMAT + "\"," +            //21
-                        '"' + CatalogueDBAdapter.KEY_SIGNED + "\"," +            //22
-                        '"' + CatalogueDBAdapter.KEY_LOANED_TO + "\"," +            //23
-                        '"' + "anthology_titles" + "\"," +                        //24
-                        '"' + CatalogueDBAdapter.KEY_DESCRIPTION + "\"," +        //25
-                        '"' + CatalogueDBAdapter.KEY_GENRE + "\"," +            //26
-                        '"' + DatabaseDefinitions.DOM_LANGUAGE + "\"," +            //27
-                        '"' + CatalogueDBAdapter.KEY_DATE_ADDED + "\"," +        //28
-                        '"' + DatabaseDefinitions.DOM_LAST_UPDATE_DATE + "\"," +        //29
-                        '"' + DatabaseDefinitions.DOM_BOOK_UUID + "\"," +        //30
-                        "\n");
-
         long lastUpdate = 0;
 
-        StringBuilder row = new StringBuilder();
-
         CatalogueDBAdapter db;
         db = new CatalogueDBAdapter(context);
         db.open();
 
         BooksCursor books = db.exportBooks(since);
-        BooksRowView rv = books.getRowView();
+        Cursor authors = null;
+        Cursor series = null;
+        Cursor bookshelves = null;
+        Cursor anthology = null;
 
         try {
             final int totalBooks = books.getCount();
@@ -120,123 +127,155 @@ public class CsvExporter implements Exporter {
 
                 listener.setMax(totalBooks);
 
+                // Column indexes, so we only look them up once
+                final int idCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ROW_ID);
+                final int titleCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_TITLE);
+                final int isbnCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ISBN);
+                final int publisherCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_PUBLISHER);
+                final int datePublishedCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_DATE_PUBLISHED);
+                final int ratingCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_RATING);
+                final int readCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_READ);
+                final int pagesCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_PAGES);
+                final int notesCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_NOTES);
+                final int listPriceCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LIST_PRICE);
+                final int anthologyCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK);
+                final int locationCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LOCATION);
+                final int readStartCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_READ_START);
+                final int readEndCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_READ_END);
+                final int formatCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_FORMAT);
+                final int signedCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_SIGNED);
+                final int loanedToCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LOANED_TO);
+                final int descriptionCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_DESCRIPTION);
+                final int genreCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_GENRE);
+                final int languageCol = books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_LANGUAGE.name);
+                final int dateAddedCol = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_DATE_ADDED);
+                final int lastUpdateCol = books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name);
+                final int uuidCol = books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_BOOK_UUID.name);
+
+                // Child rows for all the books, in book id order; column 0 is the book id
+                authors = db.exportBookAuthors(since);
+                series = db.exportBookSeries(since);
+                bookshelves = db.exportBookBookshelves(since);
+                anthology = db.exportAnthologyTitles(since);
+                boolean haveAuthor = authors.moveToFirst();
+                boolean haveSeries = series.moveToFirst();
+                boolean haveBookshelf = bookshelves.moveToFirst();
+                boolean haveAnthology = anthology.moveToFirst();
+
+                // Accumulators reused for every book
+                final StringBuilder authorDetails = new StringBuilder();
+                final StringBuilder seriesDetails = new StringBuilder();
+                final StringBuilder bookshelves_id_text = new StringBuilder();
+                final StringBuilder bookshelves_name_text = new StringBuilder();
+                final StringBuilder anthology_titles = new StringBuilder();
+                long lastId = -1;
+
                 /* write to the SDCard */
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
-                out.write(export.toString());
+                Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+                out.write(HEADER);
                 if (books.moveToFirst()) {
                     do {
                         num++;
-                        long id = books.getLong(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ROW_ID));
-                        // Just get the string from the database and save it. It should be in standard SQL form already.
-                        String dateString = "";
-                        try {
-                            dateString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_DATE_PUBLISHED));
-                        } catch (Exception e) {
-                            //do nothing
-                        }
-                        // Just get the string from the database and save it. It should be in standard SQL form already.
-                        String dateReadStartString = "";
-                        try {
-                            dateReadStartString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_READ_START));
-                        } catch (Exception e) {
-                            Logger.logError(e);
-                            //do nothing
-                        }
-                        // Just get the string from the database and save it. It should be in standard SQL form already.
-                        String dateReadEndString = "";
-                        try {
-                            dateReadEndString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_READ_END));
-                        } catch (Exception e) {
-                            Logger.logError(e);
-                            //do nothing
-                        }
-                        // Just get the string from the database and save it. It should be in standard SQL form already.
-                        String dateAddedString = "";
-                        try {
-                            dateAddedString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_DATE_ADDED));
-                        } catch (Exception e) {
-                            //do nothing
-                        }
+                        final long id = books.getLong(idCol);
+
+                        // A book with more than one loan appears more than once; its child
+                        // rows have already been used, so keep what we collected last time.
+                        if (id != lastId) {
+                            lastId = id;
+                            authorDetails.setLength(0);
+                            seriesDetails.setLength(0);
+                            bookshelves_id_text.setLength(0);
+                            bookshelves_name_text.setLength(0);
+                            anthology_titles.setLength(0);
+
+                            // Skip any orphaned rows, then collect the rows for this book
+                            while (haveAuthor && authors.getLong(0) < id)
+                                haveAuthor = authors.moveToNext();
+                            while (haveAuthor && authors.getLong(0) == id) {
+                                if (authorDetails.length() > 0)
+                                    authorDetails.append('|');
+                                authorDetails.append(Utils.encodeListItem(new Author(authors.getString(1), authors.getString(2)).toString(), '|'));
+                                haveAuthor = authors.moveToNext();
+                            }
 
-                        int anthology = books.getInt(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
-                        StringBuilder anthology_titles = new StringBuilder();
-                        if (anthology != 0) {
-                            try (Cursor titles = db.fetchAnthologyTitlesByBook(id)) {
-                                if (titles.moveToFirst()) {
-                                    do {
-                                        String anthology_title = titles.getString(titles.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_TITLE));
-                                        String anthology_author = titles.getString(titles.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_AUTHOR_NAME));
-                                        anthology_titles.append(anthology_title).append(" * ").append(anthology_author).append("|");
-                                    } while (titles.moveToNext());
+                            while (haveSeries && series.getLong(0) < id)
+                                haveSeries = series.moveToNext();
+                            while (haveSeries && series.getLong(0) == id) {
+                                if (seriesDetails.length() > 0)
+                                    seriesDetails.append('|');
+                                seriesDetails.append(Utils.encodeListItem(new Series(series.getString(1), series.getString(2)).toString(), '|'));
+                                haveSeries = series.moveToNext();
+                            }
+
+                            while (haveBookshelf && bookshelves.getLong(0) < id)
+                                haveBookshelf = bookshelves.moveToNext();
+                            while (haveBookshelf && bookshelves.getLong(0) == id) {
+                                int bookshelfId = bookshelves.getInt(1);
+                                if (bookshelfId > 0) {
+                                    // Append the ID itself, not a string from an invalid index
+                                    bookshelves_id_text.append(bookshelfId).append(BookEditFields.BOOKSHELF_SEPARATOR);
                                 }
+                                String bookshelfName = bookshelves.getString(2);
+                                if (bookshelfName != null && !bookshelfName.isEmpty()) {
+                                    bookshelves_name_text.append(Utils.encodeListItem(bookshelfName, BookEditFields.BOOKSHELF_SEPARATOR)).append(BookEditFields.BOOKSHELF_SEPARATOR);
+                                }
+                                haveBookshelf = bookshelves.moveToNext();
+                            }
+
+                            while (haveAnthology && anthology.getLong(0) < id)
+                                haveAnthology = anthology.moveToNext();
+                            while (haveAnthology && anthology.getLong(0) == id) {
+                                anthology_titles.append(anthology.getString(1)).append(" * ").append(anthology.getString(2)).append("|");
+                                haveAnthology = anthology.moveToNext();
+                            }
+
+                            // Sanity check: ensure author is non-blank. This HAPPENS. Probably due to constraint failures.
+                            if (isBlank(authorDetails)) {
+                                authorDetails.setLength(0);
+                                authorDetails.append(AUTHOR).append(", ").append(UNKNOWN);
                             }
                         }
-                        String title = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_TITLE));
+
+                        final int anthologyMask = books.getInt(anthologyCol);
+
+                        String title = books.getString(titleCol);
                         // Sanity check: ensure title is non-blank. This has not happened yet, but we
                         // know it does for author, so completeness suggests making sure all 'required'
                         // fields are non-blank.
-                        if (title == null || title.trim().isEmpty())
+                        if (title == null || isBlank(title))
                             title = UNKNOWN;
 
-                        //Display the selected bookshelves
-                        Cursor bookshelves = db.fetchAllBookshelvesByBook(id);
-                        StringBuilder bookshelves_id_text = new StringBuilder();
-                        StringBuilder bookshelves_name_text = new StringBuilder();
-                        int idColIndex = bookshelves.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ROW_ID);
-                        int nameColIndex = bookshelves.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_BOOKSHELF);
-
-                        while (bookshelves.moveToNext()) {
-                            int bookshelfId = bookshelves.getInt(idColIndex);
-                            if (bookshelfId > 0) {
-                                // Append the ID itself, not a string from an invalid index
-                                bookshelves_id_text.append(bookshelfId).append(BookEditFields.BOOKSHELF_SEPARATOR);
-                            }
-                            String bookshelfName = bookshelves.getString(nameColIndex);
-                            if (bookshelfName != null && !bookshelfName.isEmpty()) {
-                                bookshelves_name_text.append(Utils.encodeListItem(bookshelfName, BookEditFields.BOOKSHELF_SEPARATOR)).append(BookEditFields.BOOKSHELF_SEPARATOR);
-                            }
-                        }
-                        bookshelves.close();
-
-                        String authorDetails = Utils.getAuthorUtils().encodeList(db.getBookAuthorList(id), '|');
-                        // Sanity check: ensure author is non-blank. This HAPPENS. Probably due to constraint failures.
-                        if (authorDetails == null || authorDetails.trim().isEmpty())
-                            authorDetails = AUTHOR + ", " + UNKNOWN;
-
-                        String seriesDetails = Utils.getSeriesUtils().encodeList(db.getBookSeriesList(id), '|');
-
-                        row.setLength(0);
-                        row.append("\"").append(formatCell(id)).append("\",");
-                        row.append("\"").append(formatCell(authorDetails)).append("\",");
-                        row.append("\"").append(formatCell(title)).append("\",");
-                        row.append("\"").append(formatCell(rv.getIsbn())).append("\",");
-                        row.append("\"").append(formatCell(rv.getPublisher())).append("\",");
-                        row.append("\"").append(formatCell(dateString)).append("\",");
-                        row.append("\"").append(formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_RATING)))).append("\",");
-                        row.append("\"").append(formatCell(bookshelves_id_text.toString())).append("\",");
-                        row.append("\"").append(formatCell(bookshelves_name_text.toString())).append("\",");
-                        row.append("\"").append(formatCell(rv.getRead())).append("\",");
-                        row.append("\"").append(formatCell(seriesDetails)).append("\",");
-                        row.append("\"").append(formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_PAGES)))).append("\",");
-                        row.append("\"").append(formatCell(rv.getNotes())).append("\",");
-                        row.append("\"").append(formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LIST_PRICE)))).append("\",");
-                        row.append("\"").append(formatCell(anthology)).append("\",");
-                        row.append("\"").append(formatCell(rv.getLocation())).append("\",");
-                        row.append("\"").append(formatCell(dateReadStartString)).append("\",");
-                        row.append("\"").append(formatCell(dateReadEndString)).append("\",");
-                        row.append("\"").append(formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_FORMAT)))).append("\",");
-                        row.append("\"").append(formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_SIGNED)))).append("\",");
-                        row.append("\"").append(formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LOANED_TO)))).append("\",");
-                        row.append("\"").append(formatCell(anthology_titles.toString())).append("\",");
-                        row.append("\"").append(formatCell(rv.getDescription())).append("\",");
-                        row.append("\"").append(formatCell(rv.getGenre())).append("\",");
-                        row.append("\"").append(formatCell(rv.getLanguage())).append("\",");
-                        row.append("\"").append(formatCell(dateAddedString)).append("\",");
-                        row.append("\"").append(formatCell(books.getString(books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name)))).append("\",");
-                        row.append("\"").append(formatCell(rv.getBookUuid())).append("\",");
-                        row.append("\n");
-                        out.write(row.toString());
-                        //export.append(row);
+                        // Dates are saved as they are in the database. They should be in standard SQL form already.
+                        writeCell(out, Long.toString(id));
+                        writeCell(out, authorDetails.toString());
+                        writeCell(out, title);
+                        writeCell(out, books.getString(isbnCol));
+                        writeCell(out, books.getString(publisherCol));
+                        writeCell(out, books.getString(datePublishedCol));
+                        writeCell(out, books.getString(ratingCol));
+                        writeCell(out, bookshelves_id_text.toString());
+                        writeCell(out, bookshelves_name_text.toString());
+                        writeCell(out, Integer.toString(books.getInt(readCol)));
+                        writeCell(out, seriesDetails.toString());
+                        writeCell(out, books.getString(pagesCol));
+                        writeCell(out, books.getString(notesCol));
+                        writeCell(out, books.getString(listPriceCol));
+                        writeCell(out, Integer.toString(anthologyMask));
+                        writeCell(out, books.getString(locationCol));
+                        writeCell(out, books.getString(readStartCol));
+                        writeCell(out, books.getString(readEndCol));
+                        writeCell(out, books.getString(formatCol));
+                        writeCell(out, books.getString(signedCol));
+                        writeCell(out, books.getString(loanedToCol));
+                        // Anthology titles are only exported for anthologies
+                        writeCell(out, anthologyMask != 0 ? anthology_titles.toString() : "");
+                        writeCell(out, books.getString(descriptionCol));
+                        writeCell(out, books.getString(genreCol));
+                        writeCell(out, books.getString(languageCol));
+                        writeCell(out, books.getString(dateAddedCol));
+                        writeCell(out, books.getString(lastUpdateCol));
+                        writeCell(out, books.getString(uuidCol));
+                        out.write('\n');
 
                         long now = System.currentTimeMillis();
                         if ((now - lastUpdate) > 200) {
@@ -261,67 +300,79 @@ public class CsvExporter implements Exporter {
                 } catch (Exception ignored) {
 
                 }
-            try {
-                books.close();
-            } catch (Exception ignored) {
-            }
+            closeQuietly(books);
+            closeQuietly(authors);
+            closeQuietly(series);
+            closeQuietly(bookshelves);
+            closeQuietly(anthology);
             db.close();
         }
         return true;
     }
 
+    private static void closeQuietly(Cursor c) {
+        if (c == null)
+            return;
+        try {
+            c.close();
+        } catch (Exception ignored) {
+        }
+    }
+
     /**
-     * Double quote all "'s" and remove all newlines
+     * Write a cell, in quotes and followed by a comma. Double quote all "'s and escape
+     * backslashes, tabs and newlines. Null, "null" and blank cells are written as "".
      *
-     * @param cell The cell the format
-     * @return The formatted cell
+     * @param out  Output
+     * @param cell The cell to write
      */
-    private String formatCell(String cell) {
-        try {
-            if (cell.equals("null") || cell.trim().isEmpty()) {
-                return "";
-            }
-            StringBuilder bld = new StringBuilder();
-            int endPos = cell.length() - 1;
-            int pos = 0;
-            while (pos <= endPos) {
-                char c = cell.charAt(pos);
-                switch (c) {
+    private static void writeCell(Writer out, String cell) throws IOException {
+        out.write('"');
+        if (cell != null && !isBlank(cell) && !cell.equals("null")) {
+            final int len = cell.length();
+            // Copy runs of plain characters in one go
+            int start = 0;
+            for (int pos = 0; pos < len; pos++) {
+                final String escaped;
+                switch (cell.charAt(pos)) {
                     case '\r':
-                        bld.append("\\r");
+                        escaped = "\\r";
                         break;
                     case '\n':
-                        bld.append("\\n");
+                        escaped = "\\n";
                         break;
                     case '\t':
-                        bld.append("\\t");
+                        escaped = "\\t";
                         break;
                     case '"':
-                        bld.append("\"\"");
+                        escaped = "\"\"";
                         break;
                     case '\\':
-                        bld.append("\\\\");
+                        escaped = "\\\\";
                         break;
                     default:
-                        bld.append(c);
+                        escaped = null;
+                }
+                if (escaped != null) {
+                    out.write(cell, start, pos - start);
+                    out.write(escaped);
+                    start = pos + 1;
                 }
-                pos++;
-
             }
-            return bld.toString();
-        } catch (NullPointerException e) {
-            return "";
+            out.write(cell, start, len - start);
         }
+        out.write("\",");
     }
 
     /**
-     * @param cell The cell the format
-     * @return The formatted cell
-     * @see #formatCell(String)
+     * Check if a cell is empty or only white space (as String.trim() would see it)
      */
-    private String formatCell(long cell) {
-        String new_cell = cell + "";
-        return formatCell(new_cell);
+    private static boolean isBlank(CharSequence cell) {
+        for (int i = 0; i < cell.length(); i++) {
+            if (cell.charAt(i) > ' ')
+                return false;
+        }
+        return true;
     }
 
 }
@@ -35,13 +35,20 @@ import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Implementation of Importer that reads a CSV file.
@@ -50,25 +57,64 @@ import java.util.Date;
  */
 public class CsvImporter {
 	private static final int BUFFER_SIZE = 32768;
+	/** Number of threads converting records; the reader and the database writer have their own */
+	private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+	/** Number of records converted by a worker at a time */
+	private static final int CONVERT_BATCH_SIZE = 100;
+	/** Maximum number of batches read but not yet written; limits memory use */
+	private static final int MAX_PENDING = THREADS * 2;
+	/** Marks the end of the queue of converted batches */
+	private static final Future<ArrayList<ImportRow>> END_OF_FILE = new FutureTask<>(() -> null);
+	/** Default number of rows imported in each transaction */
+	public static final int DEFAULT_COMMIT_SIZE = 500;
+
+	/** Number of rows imported in each transaction */
+	private final int mCommitSize;
+
+	public CsvImporter() {
+		this(DEFAULT_COMMIT_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param commitSize	Number of rows imported in each transaction. Larger transactions are
+	 * 						faster, but hold the database lock for longer.
+	 */
+	public CsvImporter(int commitSize) {
+		mCommitSize = Math.max(1, commitSize);
+	}
 
 	public void importBooks(Context context, InputStream exportStream, Importer.OnImporterListener listener, int importFlags) throws IOException {
-		BufferedReader in = new BufferedReader(new InputStreamReader(exportStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+		RecordReader in = new RecordReader(new InputStreamReader(exportStream, StandardCharsets.UTF_8));
 		importBooks(context, in, listener, importFlags);
 	}
 
-	private void importBooks(Context context, BufferedReader in, Importer.OnImporterListener listener, int importFlags) throws IOException {
-
-		String firstRecord = readNextRecord(in);
+	/**
+	 * Import the books. The work is split into three stages so that parsing overlaps with
+	 * the database updates:
+	 *
+	 * - a reader thread splits the file into records and passes them on in batches;
+	 * - a pool of threads splits each record into fields and builds the BookData, including
+	 *   the author and series lists;
+	 * - this thread takes the converted batches, in file order, and writes them to the database.
+	 *
+	 * The number of batches waiting to be written is limited so that a slow database
+	 * holds up the reader rather than filling memory.
+	 */
+	private void importBooks(final Context context, final RecordReader in, final Importer.OnImporterListener listener, int importFlags) throws IOException {
+
+		String firstRecord = in.readNextRecord();
 		if (firstRecord == null)
 			return;
 
 		Integer nCreated = 0;
 		Integer nUpdated = 0;
 
-		// Container for values.
+		// Container for column names
 		BookData values = new BookData(context);
 
-		String[] names = returnRow(firstRecord, true);
+		final String[] names = returnRow(firstRecord, true);
 
 		// Store the names so we can check what is present
 		for(int i = 0; i < names.length; i++) {
@@ -79,7 +125,7 @@ public class CsvImporter {
 		// See if we can deduce the kind of escaping to use based on column names.
 		// Version 1->3.3 export with family_name and author_id. Version 3.4+ do not; latest versions
 		// make an attempt at escaping characters etc to preserve formatting.
-		boolean fullEscaping;
+		final boolean fullEscaping;
 		//noinspection RedundantIfStatement
 		if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_ID) && values.containsKey(CatalogueDBAdapter.KEY_FAMILY_NAME)) {
 			// Old export, or one using old formats
@@ -110,10 +156,17 @@ public class CsvImporter {
 			updateOnlyIfNewer = false;
 		}
 
-		
+		// Start the reader and the workers that convert records
+		final ExecutorService converters = Executors.newFixedThreadPool(THREADS);
+		final ArrayBlockingQueue<Future<ArrayList<ImportRow>>> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+		final Thread reader = new Thread(() -> readRecords(context, in, names, fullEscaping, listener, converters, pending), "CsvImporter.reader");
+		reader.start();
+
 		CatalogueDBAdapter db;
 		db = new CatalogueDBAdapter(context);
 		db.open();
+		// Cache author/series/bookshelf IDs and leave FTS until the end
+		db.startBulkUpdate();
 
 		int row = 1; // Start after headings.
 		boolean inTx = false;
@@ -122,282 +175,196 @@ public class CsvImporter {
 		long lastUpdate = 0;
 		/* Iterate through each imported row */
 		SyncLock txLock = null;
-		String record;
 		try {
-			while ((record = readNextRecord(in)) != null && !listener.isCancelled()) {
-				if (inTx && txRowCount > 10) {
-					db.setTransactionSuccessful();
-					db.endTransaction(txLock);
-					inTx = false;
-				}
-				if (!inTx) {
-					txLock = db.startTransaction(true);
-					inTx = true;
-					txRowCount = 0;
-				}
-				txRowCount++;
-
-				// Get row
-				String[] imported = returnRow(record, fullEscaping);
-
-				values.clear();
-				for(int i = 0; i < names.length && i < imported.length; i++) {
-					values.putString(names[i], imported[i]);
-				}
-
-				boolean hasNumericId;
-				// Validate ID
-				String idStr = values.getString(CatalogueDBAdapter.KEY_ROW_ID.toLowerCase());
-				long idLong;
-				if (idStr == null || idStr.isEmpty()) {
-					hasNumericId = false;
-					idLong = 0L;
-				} else {
-					try {
-						idLong = Long.parseLong(idStr);
-						hasNumericId = true;
-					} catch (Exception e) {
-						hasNumericId = false;
-						idLong = 0L;
+			ArrayList<ImportRow> batch;
+			while ((batch = waitFor(pending.take())) != null && !listener.isCancelled()) {
+				for (ImportRow imported : batch) {
+					if (listener.isCancelled())
+						break;
+					row = imported.row;
+					// Problems found while converting stop the import, just as if we had found them here
+					if (imported.error != null)
+						throw imported.error;
+
+					if (inTx && txRowCount >= mCommitSize) {
+						db.setTransactionSuccessful();
+						db.endTransaction(txLock);
+						inTx = false;
 					}
-				}
-				if (!hasNumericId) {
-					values.putString(CatalogueDBAdapter.KEY_ROW_ID, "0");
-				}
-
-				// Get the UUID, and remove from collection if null/blank
-				boolean hasUuid;
-				final String uuidColumnName = DatabaseDefinitions.DOM_BOOK_UUID.name.toLowerCase();
-				String uuidVal = values.getString(uuidColumnName);
-				if (uuidVal != null && !uuidVal.isEmpty()) {
-					hasUuid = true;
-				} else {
-					// Remove any blank UUID column, just in case
-					if (values.containsKey(uuidColumnName))
-						values.remove(uuidColumnName);
-					hasUuid = false;
-				}
-
-				requireNonBlank(values, row, CatalogueDBAdapter.KEY_TITLE);
-				String title = values.getString(CatalogueDBAdapter.KEY_TITLE);
-
-				// Keep author handling stuff local
-				{
-					// Get the list of authors from whatever source is available.
-					String authorDetails;
-					authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_DETAILS);
-					if (authorDetails == null || authorDetails.isEmpty()) {
-						// Need to build it from other fields.
-						if (values.containsKey(CatalogueDBAdapter.KEY_FAMILY_NAME)) {
-							// Build from family/given
-							authorDetails = values.getString(CatalogueDBAdapter.KEY_FAMILY_NAME);
-							String given = "";
-							if (values.containsKey(CatalogueDBAdapter.KEY_GIVEN_NAMES))
-								given = values.getString(CatalogueDBAdapter.KEY_GIVEN_NAMES);
-							if (given != null && !given.isEmpty())
-								authorDetails += ", " + given;
-						} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_NAME)) {
-							authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_NAME);
-						} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED)) {
-							authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED);					
-						}
+					if (!inTx) {
+						txLock = db.startTransaction(true);
+						inTx = true;
+						txRowCount = 0;
 					}
+					txRowCount++;
 
-					// A pre-existing bug sometimes results in blank author-details due to bad underlying data
-					// (it seems a 'book' record gets written without an 'author' record; should not happen)
-					// so we allow blank author_details and full in a regionalized version of "Author, Unknown"
-					if (authorDetails == null || authorDetails.isEmpty()) {
-						authorDetails = BookCatalogueApp.getRes().getString(R.string.label_author) + ", " + BookCatalogueApp.getRes().getString(R.string.unknown);
-					}
+					values = imported.values;
+					long idLong = imported.idLong;
+					final String title = imported.title;
 
-					// Now build the array for authors
-					ArrayList<Author> aa = Utils.getAuthorUtils().decodeList(authorDetails, '|', false);
-					Utils.pruneList(db, aa);
-					values.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, aa);
-				}
+					// Looking up the IDs needs the database, so is done here
+					Utils.pruneList(db, imported.authors);
+					values.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, imported.authors);
+					Utils.pruneList(db, imported.series);
+					values.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, imported.series);
 
-				// Keep series handling local
-				{
-					String seriesDetails;
-					seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_DETAILS);
-					if (seriesDetails == null || seriesDetails.isEmpty()) {
-						// Try to build from SERIES_NAME and SERIES_NUM. It may all be blank
-						if (values.containsKey(CatalogueDBAdapter.KEY_SERIES_NAME)) {
-							seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_NAME);
-							if (seriesDetails != null && !seriesDetails.isEmpty()) {
-								String seriesNum = values.getString(CatalogueDBAdapter.KEY_SERIES_NUM);
-								if (seriesNum == null)
-									seriesNum = "";
-								seriesDetails += "(" + seriesNum + ")";
+					try {
+						boolean doUpdate;
+						if (!imported.hasUuid && !imported.hasNumericId) {
+							doUpdate = true;
+							// Always import empty IDs...even if they are duplicates.
+							long id = db.createBook(values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+							values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(id));
+							// Would be nice to import a cover, but with no ID/UUID that's not possible
+							//mImportCreated++;
+						} else {
+							boolean exists;
+							// newId will get the ID allocated if a book is created
+							long newId;
+
+							// Let the UUID trump the ID; we may be importing someone else's list with bogus IDs
+							if (imported.hasUuid) {
+								long l = db.getBookIdFromUuid(imported.uuid);
+								if (l != 0) {
+									exists = true;
+									idLong = l;
+								} else {
+									exists = false;
+									// We have a UUID, but book does not exist. We will create a book.
+									// Make sure the ID (if present) is not already used.
+									if (imported.hasNumericId && db.checkBookExists(idLong))
+										idLong = 0L;
+								}
 							} else {
-								seriesDetails = null;
+								exists = db.checkBookExists(idLong);
 							}
-						}
-					}
-					// Handle the series
-					ArrayList<Series> sa = Utils.getSeriesUtils().decodeList(seriesDetails, '|', false);
-					Utils.pruneSeriesList(sa);
-					Utils.pruneList(db, sa);
-					values.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, sa);				
-				}
-				
-				
-				// Make sure we have bookshelf_text if we imported bookshelf
-				if (values.containsKey(CatalogueDBAdapter.KEY_BOOKSHELF) && !values.containsKey("bookshelf_text")) {
-					values.setBookshelfList(values.getString(CatalogueDBAdapter.KEY_BOOKSHELF));
-				}
 
-				try {
-					boolean doUpdate;
-					if (!hasUuid && !hasNumericId) {
-						doUpdate = true;
-						// Always import empty IDs...even if they are duplicates.
-						long id = db.createBook(values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
-						values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(id));
-						// Would be nice to import a cover, but with no ID/UUID that's not possible
-						//mImportCreated++;
-					} else {
-						boolean exists;
-						// newId will get the ID allocated if a book is created
-						long newId;
-
-						// Let the UUID trump the ID; we may be importing someone else's list with bogus IDs
-						if (hasUuid) {
-							long l = db.getBookIdFromUuid(uuidVal);
-							if (l != 0) {
-								exists = true;
-								idLong = l;
-							} else {
-								exists = false;
-								// We have a UUID, but book does not exist. We will create a book.
-								// Make sure the ID (if present) is not already used.
-								if (hasNumericId && db.checkBookExists(idLong))
-									idLong = 0L;
-							}
-						} else {
-							exists = db.checkBookExists(idLong);							
-						}
-
-						if (exists) {
-							if (!updateOnlyIfNewer) {
-								doUpdate = true;
-							} else {
-								Date bookDate;
-								Date importDate;
-								String bookDateStr = db.getBookUpdateDate(idLong);
-								if (bookDateStr == null || bookDateStr.isEmpty()) {
-									bookDate = null; // Local record has never been updated
+							if (exists) {
+								if (!updateOnlyIfNewer) {
+									doUpdate = true;
 								} else {
-									try {
-										bookDate = Utils.parseDate(bookDateStr);
-									} catch (Exception e) {
-										bookDate = null; // Treat as if never updated
+									Date bookDate;
+									Date importDate;
+									String bookDateStr = db.getBookUpdateDate(idLong);
+									if (bookDateStr == null || bookDateStr.isEmpty()) {
+										bookDate = null; // Local record has never been updated
+									} else {
+										try {
+											bookDate = Utils.parseDate(bookDateStr);
+										} catch (Exception e) {
+											bookDate = null; // Treat as if never updated
+										}
 									}
-								}
-								String importDateStr = values.getString(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name);
-								if (importDateStr == null || importDateStr.isEmpty()) {
-									importDate = null; // Imported record has never been updated
-								} else {
-									try {
-										importDate = Utils.parseDate(importDateStr);
-									} catch (Exception e) {
-										importDate = null; // Treat as if never updated
+									String importDateStr = values.getString(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name);
+									if (importDateStr == null || importDateStr.isEmpty()) {
+										importDate = null; // Imported record has never been updated
+									} else {
+										try {
+											importDate = Utils.parseDate(importDateStr);
+										} catch (Exception e) {
+											importDate = null; // Treat as if never updated
+										}
+									}
+									if (importDate == null) {
+										doUpdate = false;
+									} else if (bookDate == null) {
+										doUpdate = true;
+									} else {
+										doUpdate = importDate.compareTo(bookDate) > 0;
 									}
 								}
-								if (importDate == null) {
-									doUpdate = false;
-								} else if (bookDate == null) {
-									doUpdate = true;
-								} else {
-									doUpdate = importDate.compareTo(bookDate) > 0;
+								if (doUpdate) {
+									db.updateBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_SKIP_PURGE_REFERENCES|CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+									nUpdated++;
 								}
+								//mImportUpdated++;
+							} else {
+								doUpdate = true;
+								newId = db.createBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+								nCreated++;
+								//mImportCreated++;
+								values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(newId));
+								idLong = newId;
 							}
-							if (doUpdate) {
-								db.updateBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_SKIP_PURGE_REFERENCES|CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);								
-								nUpdated++;
-							}
-							//mImportUpdated++;
-						} else {
-							doUpdate = true;
-							newId = db.createBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
-							nCreated++;
-							//mImportCreated++;
-							values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(newId));
-							idLong = newId;
-						}
 
-						// Note: Because Google don't allow read access to random locations, we
-						// can no longer do this.
-						//// When importing a file that has an ID or UUID, try to import a cover.
-						//if (coverFinder != null) {
-						//	coverFinder.copyOrRenameCoverFile(uuidVal, idFromFile, idLong);
-						//}
-						// Save the real ID to the collection (will/may be used later)
-						values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(idLong));
-					}
-					
-					if (doUpdate) {
-						if (values.containsKey(CatalogueDBAdapter.KEY_LOANED_TO) && !values.get(CatalogueDBAdapter.KEY_LOANED_TO).equals("")) {
-							int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROW_ID));
-							db.deleteLoan(id, false);
-							db.createLoan(values, false);
+							// Note: Because Google don't allow read access to random locations, we
+							// can no longer do this.
+							//// When importing a file that has an ID or UUID, try to import a cover.
+							//if (coverFinder != null) {
+							//	coverFinder.copyOrRenameCoverFile(uuidVal, idFromFile, idLong);
+							//}
+							// Save the real ID to the collection (will/may be used later)
+							values.putString(CatalogueDBAdapter.KEY_ROW_ID, Long.toString(idLong));
 						}
 
-						if (values.containsKey(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK)) {
-							int anthology;
-							try {
-								anthology = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
-							} catch (Exception e) {
-								anthology = 0;
-							}
-							if (anthology != 0) {
+						if (doUpdate) {
+							if (values.containsKey(CatalogueDBAdapter.KEY_LOANED_TO) && !values.get(CatalogueDBAdapter.KEY_LOANED_TO).equals("")) {
 								int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROW_ID));
-								// We have anthology details, delete the current details.
-								db.deleteAnthologyTitles(id, false);
-								int oldi = 0;
-								String anthology_titles = values.getString("anthology_titles");
+								db.deleteLoan(id, false);
+								db.createLoan(values, false);
+							}
+
+							if (values.containsKey(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK)) {
+								int anthology;
 								try {
-									int i = anthology_titles.indexOf("|", oldi);
-									while (i > -1) {
-										String extracted_title = anthology_titles.substring(oldi, i).trim();
-										
-										int j = extracted_title.indexOf("*");
-										if (j > -1) {
-											String anthology_title = extracted_title.substring(0, j).trim();
-											String anthology_author = extracted_title.substring((j+1)).trim();
-											db.createAnthologyTitle(id, anthology_author, anthology_title, true, false);
+									anthology = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
+								} catch (Exception e) {
+									anthology = 0;
+								}
+								if (anthology != 0) {
+									int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROW_ID));
+									// We have anthology details, delete the current details.
+									db.deleteAnthologyTitles(id, false);
+									int oldi = 0;
+									String anthology_titles = values.getString("anthology_titles");
+									try {
+										int i = anthology_titles.indexOf("|", oldi);
+										while (i > -1) {
+											String extracted_title = anthology_titles.substring(oldi, i).trim();
+
+											int j = extracted_title.indexOf("*");
+											if (j > -1) {
+												String anthology_title = extracted_title.substring(0, j).trim();
+												String anthology_author = extracted_title.substring((j+1)).trim();
+												db.createAnthologyTitle(id, anthology_author, anthology_title, true, false);
+											}
+											oldi = i + 1;
+											i = anthology_titles.indexOf("|", oldi);
 										}
-										oldi = i + 1;
-										i = anthology_titles.indexOf("|", oldi);
+									} catch (NullPointerException e) {
+										//do nothing. There are no anthology titles
 									}
-								} catch (NullPointerException e) {
-									//do nothing. There are no anthology titles
 								}
 							}
-						}						
-					}
+						}
 
-				} catch (Exception e) {
-					Logger.logError(e, "Import at row " + row);
-				}
+					} catch (Exception e) {
+						Logger.logError(e, "Import at row " + row);
+					}
 
-				long now = System.currentTimeMillis();
-				if ( (now - lastUpdate) > 200 && !listener.isCancelled()) {
-					listener.onProgress(title + "\n(" + BookCatalogueApp.getRes().getString(R.string.n_created_m_updated, nCreated, nUpdated) + ")", row);
-					lastUpdate = now;
+					long now = System.currentTimeMillis();
+					if ( (now - lastUpdate) > 200 && !listener.isCancelled()) {
+						listener.onProgress(title + "\n(" + BookCatalogueApp.getRes().getString(R.string.n_created_m_updated, nCreated, nUpdated) + ")", row);
+						lastUpdate = now;
+					}
 				}
-
-				// Increment row count
-				row++;
-			}	
+			}
 		} catch (Exception e) {
 			Logger.logError(e);
 			Log.d("BC", "Import failed at row " + row);
 		} finally {
+			// Stop the reader and workers if we finished early
+			reader.interrupt();
+			converters.shutdownNow();
 			if (inTx) {
 				db.setTransactionSuccessful();
 				db.endTransaction(txLock);
 			}
+			try {
+				db.endBulkUpdate();
+			} catch (Exception e) {
+				Logger.logError(e, "Failed to update FTS after import");
+			}
 			try {
 				db.purgeAuthors();
 				db.purgeSeries();
@@ -415,44 +382,305 @@ public class CsvImporter {
 		}
 	}
 
+	/**
+	 * A row converted by a worker, ready to be written to the database.
+	 */
+	private static class ImportRow {
+		/** Row number in the file, for messages */
+		final int row;
+		BookData values;
+		String title;
+		String uuid;
+		boolean hasUuid;
+		boolean hasNumericId;
+		long idLong;
+		ArrayList<Author> authors;
+		ArrayList<Series> series;
+		/** Problem found in the row; the import stops when it gets to this row */
+		RuntimeException error;
+
+		ImportRow(int row) {
+			this.row = row;
+		}
+	}
+
+	/**
+	 * Body of the reader thread. Reads records and passes them to the workers in batches,
+	 * queueing the results in file order. The last entry in the queue is END_OF_FILE, or
+	 * a result that throws the exception that stopped the reader.
+	 */
+	private void readRecords(final Context context, final RecordReader in, final String[] names, final boolean fullEscaping,
+							 final Importer.OnImporterListener listener, final ExecutorService converters,
+							 final ArrayBlockingQueue<Future<ArrayList<ImportRow>>> pending) {
+		int row = 1; // Start after headings.
+		try {
+			try {
+				while (!listener.isCancelled()) {
+					final ArrayList<String> records = new ArrayList<>(CONVERT_BATCH_SIZE);
+					String record;
+					while (records.size() < CONVERT_BATCH_SIZE && (record = in.readNextRecord()) != null)
+						records.add(record);
+					if (records.isEmpty())
+						break;
+
+					final int firstRow = row;
+					row += records.size();
+					pending.put(converters.submit(() -> convertRows(context, names, fullEscaping, records, firstRow)));
+				}
+			} catch (final IOException | RuntimeException e) {
+				// Pass it on to the writer
+				pending.put(converters.submit(() -> {
+					throw e;
+				}));
+			}
+			pending.put(END_OF_FILE);
+		} catch (InterruptedException | RejectedExecutionException e) {
+			// The import has finished early; nothing is waiting for us
+		}
+	}
+
+	/**
+	 * Convert a batch of records; runs in a worker.
+	 */
+	private ArrayList<ImportRow> convertRows(Context context, String[] names, boolean fullEscaping, ArrayList<String> records, int firstRow) {
+		final ArrayList<ImportRow> rows = new ArrayList<>(records.size());
+		int row = firstRow;
+		for (String record : records) {
+			final ImportRow imported = new ImportRow(row++);
+			try {
+				convertRow(context, names, fullEscaping, record, imported);
+			} catch (RuntimeException e) {
+				imported.error = e;
+			}
+			rows.add(imported);
+		}
+		return rows;
+	}
+
+	/**
+	 * Split a record into fields and build the book data, leaving only the parts that need
+	 * the database to the writer.
+	 */
+	private void convertRow(Context context, String[] names, boolean fullEscaping, String record, ImportRow imported) {
+		// Get row
+		String[] fields = returnRow(record, fullEscaping);
+
+		BookData values = new BookData(context);
+		imported.values = values;
+		for(int i = 0; i < names.length && i < fields.length; i++) {
+			values.putString(names[i], fields[i]);
+		}
+
+		// Validate ID
+		String idStr = values.getString(CatalogueDBAdapter.KEY_ROW_ID.toLowerCase());
+		if (idStr == null || idStr.isEmpty()) {
+			imported.hasNumericId = false;
+			imported.idLong = 0L;
+		} else {
+			try {
+				imported.idLong = Long.parseLong(idStr);
+				imported.hasNumericId = true;
+			} catch (Exception e) {
+				imported.hasNumericId = false;
+				imported.idLong = 0L;
+			}
+		}
+		if (!imported.hasNumericId) {
+			values.putString(CatalogueDBAdapter.KEY_ROW_ID, "0");
+		}
+
+		// Get the UUID, and remove from collection if null/blank
+		final String uuidColumnName = DatabaseDefinitions.DOM_BOOK_UUID.name.toLowerCase();
+		String uuidVal = values.getString(uuidColumnName);
+		if (uuidVal != null && !uuidVal.isEmpty()) {
+			imported.hasUuid = true;
+			imported.uuid = uuidVal;
+		} else {
+			// Remove any blank UUID column, just in case
+			if (values.containsKey(uuidColumnName))
+				values.remove(uuidColumnName);
+			imported.hasUuid = false;
+		}
+
+		requireNonBlank(values, imported.row, CatalogueDBAdapter.KEY_TITLE);
+		imported.title = values.getString(CatalogueDBAdapter.KEY_TITLE);
+
+		// Keep author handling stuff local
+		{
+			// Get the list of authors from whatever source is available.
+			String authorDetails;
+			authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_DETAILS);
+			if (authorDetails == null || authorDetails.isEmpty()) {
+				// Need to build it from other fields.
+				if (values.containsKey(CatalogueDBAdapter.KEY_FAMILY_NAME)) {
+					// Build from family/given
+					authorDetails = values.getString(CatalogueDBAdapter.KEY_FAMILY_NAME);
+					String given = "";
+					if (values.containsKey(CatalogueDBAdapter.KEY_GIVEN_NAMES))
+						given = values.getString(CatalogueDBAdapter.KEY_GIVEN_NAMES);
+					if (given != null && !given.isEmpty())
+						authorDetails += ", " + given;
+				} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_NAME)) {
+					authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_NAME);
+				} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED)) {
+					authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED);
+				}
+			}
+
+			// A pre-existing bug sometimes results in blank author-details due to bad underlying data
+			// (it seems a 'book' record gets written without an 'author' record; should not happen)
+			// so we allow blank author_details and full in a regionalized version of "Author, Unknown"
+			if (authorDetails == null || authorDetails.isEmpty()) {
+				authorDetails = BookCatalogueApp.getRes().getString(R.string.label_author) + ", " + BookCatalogueApp.getRes().getString(R.string.unknown);
+			}
+
+			// Now build the array for authors
+			imported.authors = Utils.getAuthorUtils().decodeList(authorDetails, '|', false);
+		}
+
+		// Keep series handling local
+		{
+			String seriesDetails;
+			seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_DETAILS);
+			if (seriesDetails == null || seriesDetails.isEmpty()) {
+				// Try to build from SERIES_NAME and SERIES_NUM. It may all be blank
+				if (values.containsKey(CatalogueDBAdapter.KEY_SERIES_NAME)) {
+					seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_NAME);
+					if (seriesDetails != null && !seriesDetails.isEmpty()) {
+						String seriesNum = values.getString(CatalogueDBAdapter.KEY_SERIES_NUM);
+						if (seriesNum == null)
+							seriesNum = "";
+						seriesDetails += "(" + seriesNum + ")";
+					} else {
+						seriesDetails = null;
+					}
+				}
+			}
+			// Handle the series
+			imported.series = Utils.getSeriesUtils().decodeList(seriesDetails, '|', false);
+			Utils.pruneSeriesList(imported.series);
+		}
+
+		// Make sure we have bookshelf_text if we imported bookshelf
+		if (values.containsKey(CatalogueDBAdapter.KEY_BOOKSHELF) && !values.containsKey("bookshelf_text")) {
+			values.setBookshelfList(values.getString(CatalogueDBAdapter.KEY_BOOKSHELF));
+		}
+	}
+
+	/**
+	 * Get the result of a worker, passing on any IOException it threw
+	 *
+	 * @return the rows, or null at the end of the file
+	 */
+	private static ArrayList<ImportRow> waitFor(Future<ArrayList<ImportRow>> f) throws IOException {
+		if (f == END_OF_FILE)
+			return null;
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Import interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException("Unable to convert imported rows", e.getCause());
+		}
+	}
+
 	//
 	// This CSV parser is not a complete parser, but it will parse files exported by older 
 	// versions. At some stage in the future it would be good to allow full CSV export 
 	// and import to allow for escape('\') chars so that cr/lf can be preserved.
-	// 
-	private String readNextRecord(BufferedReader in) throws IOException {
-		StringBuilder recordBuilder = new StringBuilder();
-		String line;
-		boolean inQuote = false;
-		while ((line = in.readLine()) != null) {
-			if (recordBuilder.length() > 0) {
-				recordBuilder.append("\n");
-			}
-			recordBuilder.append(line);
+	//
+	// Records are found by scanning a reusable character buffer rather than reading lines;
+	// line breaks inside quotes are kept as '\n', as readLine() would have done.
+	//
+	private static class RecordReader {
+		private final Reader mIn;
+		/** Characters read but not yet scanned */
+		private final char[] mBuffer = new char[BUFFER_SIZE];
+		private int mPos = 0;
+		private int mCount = 0;
+		/** The record being built; reused for each record */
+		private final StringBuilder mRecord = new StringBuilder();
+		/** The last character was a CR, so a following LF is part of the same line break */
+		private boolean mAfterCr = false;
+
+		RecordReader(Reader in) {
+			mIn = in;
+		}
 
-			// Detect if we are in a quoted section to handle multi-line records
-			for (int i = 0; i < line.length(); i++) {
-				char c = line.charAt(i);
-				// Handle both standard CSV escaped quotes ("") and backslash escapes (\")
-				if (c == ESCAPE_CHAR && i + 1 < line.length() && line.charAt(i + 1) == QUOTE_CHAR) {
-					i++; // Skip the escaped quote
-				} else if (c == QUOTE_CHAR) {
-					if (i + 1 < line.length() && line.charAt(i + 1) == QUOTE_CHAR) {
-						i++; // Skip the second quote in ""
-					} else {
-						inQuote = !inQuote;
+		/**
+		 * Get the next record, or null at the end of the file
+		 */
+		String readNextRecord() throws IOException {
+			mRecord.setLength(0);
+			boolean inQuote = false;
+			// The previous character was an escape, or an unpaired quote
+			boolean afterEscape = false;
+			boolean afterQuote = false;
+			// A line ended inside quotes; add the '\n' if another line follows
+			boolean lineBreak = false;
+			// Something has been read for this record, even an empty line
+			boolean started = false;
+
+			while (true) {
+				if (mPos >= mCount) {
+					mCount = mIn.read(mBuffer, 0, mBuffer.length);
+					mPos = 0;
+					if (mCount <= 0) {
+						mCount = 0;
+						// Whatever is left is the last record
+						return started ? mRecord.toString() : null;
 					}
 				}
-			}
+				final char c = mBuffer[mPos++];
+
+				if (c == '\n' && mAfterCr) {
+					// Second half of CR/LF
+					mAfterCr = false;
+					continue;
+				}
+				mAfterCr = (c == '\r');
+				started = true;
 
-			if (!inQuote) {
-				return recordBuilder.toString();
+				if (c == '\n' || c == '\r') {
+					// End of line. Quotes can not be paired across lines.
+					if (afterQuote)
+						inQuote = !inQuote;
+					afterQuote = false;
+					afterEscape = false;
+					if (lineBreak)
+						mRecord.append('\n');
+					if (!inQuote)
+						return mRecord.toString();
+					lineBreak = true;
+					continue;
+				}
+
+				if (lineBreak) {
+					mRecord.append('\n');
+					lineBreak = false;
+				}
+				mRecord.append(c);
+
+				// Detect if we are in a quoted section to handle multi-line records.
+				// Handle both standard CSV escaped quotes ("") and backslash escapes (\")
+				if (afterEscape) {
+					afterEscape = false;
+					if (c == QUOTE_CHAR)
+						continue; // Skip the escaped quote
+				} else if (afterQuote) {
+					afterQuote = false;
+					if (c == QUOTE_CHAR)
+						continue; // Skip the second quote in ""
+					inQuote = !inQuote;
+				}
+				if (c == ESCAPE_CHAR)
+					afterEscape = true;
+				else if (c == QUOTE_CHAR)
+					afterQuote = true;
 			}
 		}
-		if (recordBuilder.length() > 0) {
-			return recordBuilder.toString();
-		}
-		return null;
 	}
 
 	// 
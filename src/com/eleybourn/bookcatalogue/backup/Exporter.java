@@ -39,9 +39,11 @@ public interface Exporter {
 	int EXPORT_STYLES = 8;
 	int EXPORT_COVERS = 16;
 	int EXPORT_DETAILS = 32;
+	/** Flag value to indicate only changes since the last full or incremental backup should be exported; see BackupManifest */
+	int EXPORT_INCREMENTAL = 64;
 	/** Flag value to indicate ALL books should be exported */
     int EXPORT_ALL = EXPORT_PREFERENCES | EXPORT_STYLES | EXPORT_COVERS | EXPORT_DETAILS;
-    int EXPORT_MASK = EXPORT_ALL | EXPORT_SINCE;
+    int EXPORT_MASK = EXPORT_ALL | EXPORT_SINCE | EXPORT_INCREMENTAL;
 
 	/**
 	 * Listener interface to get progress messages.
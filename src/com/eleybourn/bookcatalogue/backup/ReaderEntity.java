@@ -37,7 +37,7 @@ import com.eleybourn.bookcatalogue.database.SerializationUtils.DeserializationEx
  */
 public interface ReaderEntity {
 	/** Supported entity types */
-    enum BackupEntityType { Cover, Books, Info, Database, Preferences, BooklistStyle }
+    enum BackupEntityType { Cover, Books, Info, Database, Preferences, BooklistStyle, Manifest, Deletions }
 
 	/** Get the original "file name" of the object */
     String getName();
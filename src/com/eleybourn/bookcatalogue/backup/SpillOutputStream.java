@@ -0,0 +1,148 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.backup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Output stream that collects data in memory, moving it to a temp file only if it grows
+ * past a limit. Used for archive entries whose size must be known before they are
+ * written (eg. the books export in a TAR file): most exports fit in memory, so they go
+ * straight from the exporter to the archive without touching the disk.
+ *
+ * @author pjw
+ */
+public class SpillOutputStream extends OutputStream {
+    /** Default amount kept in memory */
+    public static final int DEFAULT_MEMORY_LIMIT = 8 * 1024 * 1024;
+
+    /** Data written so far, until we spill */
+    private Buffer mMemory = new Buffer();
+    /** Temp file, once we spill */
+    private File mFile = null;
+    /** Output to temp file, once we spill */
+    private OutputStream mFileOut = null;
+    /** Maximum bytes held in memory */
+    private final int mLimit;
+    /** Total bytes written */
+    private long mSize = 0;
+
+    /**
+     * Memory buffer that can be read back without copying
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(64 * 1024);
+        }
+
+        InputStream getInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param limit Maximum bytes held in memory
+     */
+    public SpillOutputStream(int limit) {
+        mLimit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mFileOut == null && mMemory.size() + len > mLimit)
+            spill();
+        if (mFileOut != null)
+            mFileOut.write(b, off, len);
+        else
+            mMemory.write(b, off, len);
+        mSize += len;
+    }
+
+    /**
+     * Move the data collected so far to a temp file
+     */
+    private void spill() throws IOException {
+        mFile = File.createTempFile("book-cat", ".tmp");
+        mFile.deleteOnExit();
+        mFileOut = new BufferedOutputStream(new FileOutputStream(mFile), 32768);
+        mMemory.writeTo(mFileOut);
+        mMemory = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mFileOut != null)
+            mFileOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mFileOut != null) {
+            mFileOut.close();
+            mFileOut = null;
+        }
+    }
+
+    /**
+     * Total number of bytes written
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Get a stream to read back the data; the stream must be closed first.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (mFile != null)
+            return new FileInputStream(mFile);
+        else
+            return mMemory.getInputStream();
+    }
+
+    /**
+     * Release the data
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void delete() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+        mMemory = null;
+        if (mFile != null && mFile.exists())
+            mFile.delete();
+    }
+}
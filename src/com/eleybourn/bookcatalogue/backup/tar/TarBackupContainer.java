@@ -24,6 +24,7 @@ import android.content.Context;
 import com.eleybourn.bookcatalogue.backup.BackupContainer;
 import com.eleybourn.bookcatalogue.backup.BackupReader;
 import com.eleybourn.bookcatalogue.backup.BackupWriter;
+import com.eleybourn.bookcatalogue.backup.ReaderEntity.BackupEntityType;
 import com.eleybourn.bookcatalogue.utils.Logger;
 
 import java.io.FileNotFoundException;
@@ -66,6 +67,10 @@ public class TarBackupContainer implements BackupContainer {
 	public static final Pattern STYLE_PATTERN = Pattern.compile("^" + STYLE_PREFIX + "[0-9]*$", Pattern.CASE_INSENSITIVE);
 	/** Used in the storage and identification of data store in TAR file */
 	public static final String PREFERENCES = "preferences";
+	/** Used in the storage and identification of data store in TAR file */
+	public static final String MANIFEST_FILE = "manifest.txt";
+	/** Used in the storage and identification of data store in TAR file */
+	public static final String DELETIONS_FILE = "deleted.csv";
 
 	/** Backup file spec */
 	private final DocumentFile mDocFile;
@@ -101,6 +106,33 @@ public class TarBackupContainer implements BackupContainer {
 		return mContext.getContentResolver().openOutputStream(mDocFile.getUri());
 	}
 
+	/**
+	 * Determine the type of entity stored under the passed "file name"
+	 */
+	public static BackupEntityType getEntityType(String name) {
+		if (name.equalsIgnoreCase(BOOKS_FILE)) {
+			return BackupEntityType.Books;
+		} else if (BOOKS_PATTERN.matcher(name).find()) {
+			return BackupEntityType.Books;
+		} else if (name.equalsIgnoreCase(INFO_FILE)) {
+			return BackupEntityType.Info;
+		} else if (INFO_PATTERN.matcher(name).find()) {
+			return BackupEntityType.Info;
+		} else if (name.equalsIgnoreCase(DB_FILE)) {
+			return BackupEntityType.Database;
+		} else if (STYLE_PATTERN.matcher(name).find()) {
+			return BackupEntityType.BooklistStyle;
+		} else if (name.equalsIgnoreCase(PREFERENCES)) {
+			return BackupEntityType.Preferences;
+		} else if (name.equalsIgnoreCase(MANIFEST_FILE)) {
+			return BackupEntityType.Manifest;
+		} else if (name.equalsIgnoreCase(DELETIONS_FILE)) {
+			return BackupEntityType.Deletions;
+		} else {
+			return BackupEntityType.Cover;
+		}
+	}
+
 	@Override
 	public BackupReader newReader() throws IOException {
 		return new TarBackupReader(mContext, this);
@@ -104,24 +104,7 @@ public class TarBackupReader extends BackupReaderAbstract {
 		}
 
 		// Based on the file name, determine entity type
-		BackupEntityType type;
-		if (entry.getName().equalsIgnoreCase(TarBackupContainer.BOOKS_FILE)) {
-			type = BackupEntityType.Books;
-		} else if (TarBackupContainer.BOOKS_PATTERN.matcher(entry.getName()).find()) {
-			type = BackupEntityType.Books;
-		} else if (entry.getName().equalsIgnoreCase(TarBackupContainer.INFO_FILE)) {
-			type = BackupEntityType.Info;
-		} else if (TarBackupContainer.INFO_PATTERN.matcher(entry.getName()).find()) {
-			type = BackupEntityType.Info;
-		} else if (entry.getName().equalsIgnoreCase(TarBackupContainer.DB_FILE)) {
-			type = BackupEntityType.Database;
-		} else if (TarBackupContainer.STYLE_PATTERN.matcher(entry.getName()).find()) {
-			type = BackupEntityType.BooklistStyle;
-		} else if (entry.getName().equalsIgnoreCase(TarBackupContainer.PREFERENCES)) {
-			type = BackupEntityType.Preferences;
-		} else {
-			type = BackupEntityType.Cover;			
-		}
+		BackupEntityType type = TarBackupContainer.getEntityType(entry.getName());
 
 		// Create entity
 		return new TarReaderEntity(this, entry, type);
@@ -40,6 +40,7 @@ import com.eleybourn.bookcatalogue.backup.BackupContainer;
 import com.eleybourn.bookcatalogue.backup.BackupInfo;
 import com.eleybourn.bookcatalogue.backup.BackupUtils;
 import com.eleybourn.bookcatalogue.backup.BackupWriterAbstract;
+import com.eleybourn.bookcatalogue.backup.CountingOutputStream;
 import com.eleybourn.bookcatalogue.booklist.LibraryStyle;
 import com.eleybourn.bookcatalogue.database.SerializationUtils;
 
@@ -51,6 +52,8 @@ import com.eleybourn.bookcatalogue.database.SerializationUtils;
 public class TarBackupWriter extends BackupWriterAbstract {
 	private final TarBackupContainer mContainer;
 	private final TarArchiveOutputStream mOutput;
+	/** Counts bytes written to the container */
+	private final CountingOutputStream mCounter;
 	private int mStyleCounter = 0;
 
 	/**
@@ -62,8 +65,16 @@ public class TarBackupWriter extends BackupWriterAbstract {
         super(context);
         mContainer = container;
 		// Open the archive for writing
-		OutputStream out = container.getOutputStream();
-		mOutput = new TarArchiveOutputStream(out);
+		mCounter = new CountingOutputStream(container.getOutputStream());
+		mOutput = new TarArchiveOutputStream(mCounter);
+	}
+
+	/**
+	 * Total bytes written to the archive so far
+	 */
+	@Override
+	public long getBytesWritten() {
+		return mCounter.getCount();
 	}
 
 	/** 
@@ -88,17 +99,34 @@ public class TarBackupWriter extends BackupWriterAbstract {
 		streamToArchive(in);
 	}
 
+	/**
+	 * Save a books export from a stream
+	 */
+	@Override
+	public void putBooks(InputStream books, long size) throws IOException {
+		TarArchiveEntry entry = new TarArchiveEntry(new File(TarBackupContainer.BOOKS_FILE));
+		entry.setModTime(System.currentTimeMillis());
+		entry.setSize(size);
+		mOutput.putArchiveEntry(entry);
+		streamToArchive(books);
+	}
+
 	/**
 	 * Save a cover file
 	 */
 	@Override
 	public void putCoverFile(File source) throws IOException {
-		TarArchiveEntry entry = new TarArchiveEntry(source.getName());
-		entry.setModTime(source.lastModified());
-		entry.setSize(source.length());
-		mOutput.putArchiveEntry(entry);
-		FileInputStream in = new FileInputStream(source);
-		streamToArchive(in);
+		final long lastModified = source.lastModified();
+		putCoverFile(source.getName(), lastModified, readFile(source));
+	}
+
+	/**
+	 * Save a cover that has already been read. The header size comes from the data, so it
+	 * always matches what is written even if the file has changed since it was found.
+	 */
+	@Override
+	public void putCoverFile(String name, long lastModified, byte[] data) throws IOException {
+		bytesToArchive(name, lastModified, data);
 	}
 
 	/**
@@ -139,6 +167,22 @@ public class TarBackupWriter extends BackupWriterAbstract {
 		bytesToArchive(TarBackupContainer.PREFERENCES, infoData.toByteArray());
 	}
 
+	/**
+	 * Save the manifest
+	 */
+	@Override
+	public void putManifest(byte[] manifest) throws IOException {
+		bytesToArchive(TarBackupContainer.MANIFEST_FILE, manifest);
+	}
+
+	/**
+	 * Save the list of deletions
+	 */
+	@Override
+	public void putDeletions(byte[] deletions) throws IOException {
+		bytesToArchive(TarBackupContainer.DELETIONS_FILE, deletions);
+	}
+
 	/**
 	 * Utility routine to send the contents of a stream to the current archive entry
 	 * 
@@ -166,7 +210,19 @@ public class TarBackupWriter extends BackupWriterAbstract {
 	 * @param bytes		bytes to write
 	 */
 	private void bytesToArchive(String name, byte[] bytes) throws IOException {
+		bytesToArchive(name, System.currentTimeMillis(), bytes);
+	}
+
+	/**
+	 * Utility routine to save the passed bytes to an entry with the passed name and date
+	 * 
+	 * @param name		name of "file" in archive
+	 * @param modTime	date of the entry
+	 * @param bytes		bytes to write
+	 */
+	private void bytesToArchive(String name, long modTime, byte[] bytes) throws IOException {
 		TarArchiveEntry entry = new TarArchiveEntry(name);
+		entry.setModTime(modTime);
 		entry.setSize(bytes.length);
 		mOutput.putArchiveEntry(entry);
 		InputStream in = new ByteArrayInputStream(bytes);
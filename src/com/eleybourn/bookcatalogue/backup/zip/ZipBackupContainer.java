@@ -0,0 +1,138 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.backup.zip;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+
+import com.eleybourn.bookcatalogue.backup.BackupContainer;
+import com.eleybourn.bookcatalogue.backup.BackupReader;
+import com.eleybourn.bookcatalogue.backup.BackupWriter;
+import com.eleybourn.bookcatalogue.utils.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import androidx.documentfile.provider.DocumentFile;
+
+/**
+ * Class to handle ZIP archive storage.
+ * <p>
+ * Entries use the same "file names" as the TAR format (see TarBackupContainer), but:
+ * <p>
+ * - entries are compressed on worker threads while earlier ones are written; covers, which are
+ *   already JPEG files, are stored as-is.
+ * - the central directory at the end of the file is an index of all entries, so a reader can
+ *   go straight to the books, styles or a single cover without reading the rest.
+ * <p>
+ * The files can also be opened by any ZIP tool.
+ *
+ * @author pjw
+ */
+public class ZipBackupContainer implements BackupContainer {
+	private final Context mContext;
+
+	/** Backup file spec */
+	private final DocumentFile mDocFile;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file		DocumentFile to use
+	 */
+	public ZipBackupContainer(Context context, DocumentFile file) {
+		mContext = context;
+		mDocFile = file;
+	}
+
+	/**
+	 * Check if the passed file starts with a ZIP local file header.
+	 */
+	public static boolean isZipFile(Context context, DocumentFile file) {
+		try (InputStream in = context.getContentResolver().openInputStream(file.getUri())) {
+			if (in == null)
+				return false;
+			byte[] magic = new byte[4];
+			int n = 0;
+			while (n < magic.length) {
+				int cnt = in.read(magic, n, magic.length - n);
+				if (cnt <= 0)
+					return false;
+				n += cnt;
+			}
+			return magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+		} catch (IOException | SecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the output stream for the associated file.
+	 * @return OutputStream for file
+	 * @throws FileNotFoundException	If file not found
+	 */
+	public OutputStream getOutputStream() throws FileNotFoundException {
+		return mContext.getContentResolver().openOutputStream(mDocFile.getUri());
+	}
+
+	/**
+	 * Open the associated file for random access reads.
+	 * @return File descriptor; must be closed by the caller
+	 * @throws FileNotFoundException	If file not found
+	 */
+	public ParcelFileDescriptor openFileDescriptor() throws FileNotFoundException {
+		ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(mDocFile.getUri(), "r");
+		if (pfd == null)
+			throw new FileNotFoundException("Unable to open " + mDocFile.getUri());
+		return pfd;
+	}
+
+	@Override
+	public BackupReader newReader() throws IOException {
+		return new ZipBackupReader(mContext, this);
+	}
+
+	@Override
+	public BackupWriter newWriter(Context context) throws IOException {
+		return new ZipBackupWriter(context, this);
+	}
+
+	@Override
+	public int getVersion() {
+		return 1;
+	}
+
+	@Override
+	public boolean isValid() {
+		// The reader will do basic validation.
+		try {
+			BackupReader reader = new ZipBackupReader(mContext, this);
+			reader.close();
+		} catch (IOException | SecurityException e) {
+			Logger.logError(e);
+			return false;
+		}
+
+		return true;
+	}
+
+}
@@ -0,0 +1,359 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.backup.zip;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+
+import com.eleybourn.bookcatalogue.backup.BackupContainer;
+import com.eleybourn.bookcatalogue.backup.BackupInfo;
+import com.eleybourn.bookcatalogue.backup.BackupReaderAbstract;
+import com.eleybourn.bookcatalogue.backup.ReaderEntity;
+import com.eleybourn.bookcatalogue.backup.ReaderEntity.BackupEntityType;
+import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Implementation of ZIP-specific reader functions.
+ * <p>
+ * The central directory is read when the reader is created. INFO is read from it without touching
+ * any other entry, and nextEntity() returns the entries in restore order rather than archive
+ * order: deletions and books first, then preferences and styles, and the covers last. A restore
+ * cancelled part way through the covers has already restored everything else.
+ * 
+ * @author pjw
+ */
+public class ZipBackupReader extends BackupReaderAbstract {
+	/** Parent container */
+	private final ZipBackupContainer mContainer;
+	/** The open archive */
+	private ParcelFileDescriptor mFd;
+	private FileInputStream mFileInput;
+	private FileChannel mChannel;
+	/** All entries except INFO, in restore order */
+	private final ArrayList<ZipReaderEntity> mEntries = new ArrayList<>();
+	/** Position of the next entry returned by nextEntity() */
+	private int mNext = 0;
+	/** Entry last returned by nextEntity(); its stream is closed when the next one is returned */
+	private ZipReaderEntity mCurrent = null;
+	/** The INFO data */
+	private final BackupInfo mInfo;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param container		Parent
+	 */
+	public ZipBackupReader(Context context, ZipBackupContainer container) throws IOException {
+		super(context);
+		mContainer = container;
+
+		try {
+			mFd = container.openFileDescriptor();
+			mFileInput = new FileInputStream(mFd.getFileDescriptor());
+			mChannel = mFileInput.getChannel();
+
+			ZipReaderEntity info = readDirectory();
+			if (info == null)
+				throw new IOException("Not a valid backup");
+			try {
+				mInfo = new BackupInfo(info.getBundle());
+			} finally {
+				info.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the central directory
+	 *
+	 * @return The first INFO entry, if any
+	 */
+	private ZipReaderEntity readDirectory() throws IOException {
+		final long fileSize = mChannel.size();
+		if (fileSize < ZipFormat.END_SIZE)
+			throw new IOException("Not a valid backup");
+
+		// Find the end record; it is followed only by an optional comment of up to 64K
+		final int tailSize = (int) Math.min(fileSize, ZipFormat.END_SIZE + 0xFFFF);
+		final long tailStart = fileSize - tailSize;
+		final ByteBuffer tail = read(tailStart, tailSize);
+		int endPos = -1;
+		for (int i = tailSize - ZipFormat.END_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == ZipFormat.END_SIG) {
+				endPos = i;
+				break;
+			}
+		}
+		if (endPos < 0)
+			throw new IOException("Not a valid backup: no ZIP directory");
+
+		long count = tail.getShort(endPos + 10) & 0xFFFF;
+		long dirSize = tail.getInt(endPos + 12) & ZipFormat.ZIP64_MAGIC;
+		long dirStart = tail.getInt(endPos + 16) & ZipFormat.ZIP64_MAGIC;
+
+		// Use the ZIP64 record if any field overflowed
+		if (count == ZipFormat.ZIP64_MAGIC_SHORT || dirSize == ZipFormat.ZIP64_MAGIC || dirStart == ZipFormat.ZIP64_MAGIC) {
+			final long locatorPos = tailStart + endPos - ZipFormat.ZIP64_LOCATOR_SIZE;
+			if (locatorPos < 0)
+				throw new IOException("Not a valid backup: bad ZIP directory");
+			ByteBuffer locator = read(locatorPos, ZipFormat.ZIP64_LOCATOR_SIZE);
+			if (locator.getInt(0) != ZipFormat.ZIP64_LOCATOR_SIG)
+				throw new IOException("Not a valid backup: bad ZIP directory");
+			ByteBuffer end64 = read(locator.getLong(8), ZipFormat.ZIP64_END_SIZE);
+			if (end64.getInt(0) != ZipFormat.ZIP64_END_SIG)
+				throw new IOException("Not a valid backup: bad ZIP directory");
+			count = end64.getLong(32);
+			dirSize = end64.getLong(40);
+			dirStart = end64.getLong(48);
+		}
+		if (dirSize > Integer.MAX_VALUE || dirStart + dirSize > fileSize)
+			throw new IOException("Not a valid backup: bad ZIP directory");
+
+		final ByteBuffer dir = read(dirStart, (int) dirSize);
+		ZipReaderEntity info = null;
+		int pos = 0;
+		for (long i = 0; i < count; i++) {
+			if (dir.getInt(pos) != ZipFormat.CENTRAL_HEADER_SIG)
+				throw new IOException("Not a valid backup: bad ZIP directory entry");
+			final int flags = dir.getShort(pos + 8) & 0xFFFF;
+			final int method = dir.getShort(pos + 10) & 0xFFFF;
+			final long dosTime = dir.getInt(pos + 12) & ZipFormat.ZIP64_MAGIC;
+			long compressedSize = dir.getInt(pos + 20) & ZipFormat.ZIP64_MAGIC;
+			long size = dir.getInt(pos + 24) & ZipFormat.ZIP64_MAGIC;
+			final int nameLen = dir.getShort(pos + 28) & 0xFFFF;
+			final int extraLen = dir.getShort(pos + 30) & 0xFFFF;
+			final int commentLen = dir.getShort(pos + 32) & 0xFFFF;
+			long offset = dir.getInt(pos + 42) & ZipFormat.ZIP64_MAGIC;
+
+			final byte[] nameBytes = new byte[nameLen];
+			dir.position(pos + ZipFormat.CENTRAL_HEADER_SIZE);
+			dir.get(nameBytes);
+			final String name = new String(nameBytes, (flags & ZipFormat.FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+			// ZIP64 values are present only for the fields that overflowed, in this order
+			int extraPos = pos + ZipFormat.CENTRAL_HEADER_SIZE + nameLen;
+			final int extraEnd = extraPos + extraLen;
+			while (extraPos + 4 <= extraEnd) {
+				final int id = dir.getShort(extraPos) & 0xFFFF;
+				final int len = dir.getShort(extraPos + 2) & 0xFFFF;
+				if (id == ZipFormat.ZIP64_EXTRA_ID) {
+					int p = extraPos + 4;
+					if (size == ZipFormat.ZIP64_MAGIC) {
+						size = dir.getLong(p);
+						p += 8;
+					}
+					if (compressedSize == ZipFormat.ZIP64_MAGIC) {
+						compressedSize = dir.getLong(p);
+						p += 8;
+					}
+					if (offset == ZipFormat.ZIP64_MAGIC)
+						offset = dir.getLong(p);
+				}
+				extraPos += 4 + len;
+			}
+			pos += ZipFormat.CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+
+			if (method != ZipFormat.METHOD_STORED && method != ZipFormat.METHOD_DEFLATED)
+				throw new IOException("Unsupported compression method " + method + " for " + name);
+			// Directories are not used by backups
+			if (name.endsWith("/"))
+				continue;
+
+			final BackupEntityType type = TarBackupContainer.getEntityType(name);
+			final ZipReaderEntity e = new ZipReaderEntity(this, name, type, method, offset, compressedSize,
+					new Date(ZipFormat.fromDosTime(dosTime)));
+			if (type == BackupEntityType.Info) {
+				if (info == null)
+					info = e;
+			} else {
+				mEntries.add(e);
+			}
+		}
+		// The sort is stable, so entries of the same type stay in archive order
+		Collections.sort(mEntries, (a, b) -> Integer.compare(getRestorePriority(a.getType()), getRestorePriority(b.getType())));
+		return info;
+	}
+
+	/**
+	 * Position of each type of entry in restore order. Deletions stay before books, as they are
+	 * written.
+	 */
+	private static int getRestorePriority(BackupEntityType type) {
+		switch (type) {
+			case Deletions:
+				return 0;
+			case Books:
+				return 1;
+			case Preferences:
+				return 2;
+			case BooklistStyle:
+				return 3;
+			case Cover:
+				return 4;
+			default:
+				return 5;
+		}
+	}
+
+	/**
+	 * Read part of the archive
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			if (mChannel.read(buf, position + buf.position()) < 0)
+				throw new IOException("Unexpected end of backup file");
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Open a stream over the data of an entry. Used by ZipReaderEntity.
+	 */
+	InputStream openEntry(long headerOffset, int method, long compressedSize) throws IOException {
+		ByteBuffer h = read(headerOffset, ZipFormat.LOCAL_HEADER_SIZE);
+		if (h.getInt(0) != ZipFormat.LOCAL_HEADER_SIG)
+			throw new IOException("Bad ZIP entry header");
+		final long dataStart = headerOffset + ZipFormat.LOCAL_HEADER_SIZE + (h.getShort(26) & 0xFFFF) + (h.getShort(28) & 0xFFFF);
+
+		if (method == ZipFormat.METHOD_STORED)
+			return new BufferedInputStream(new ChannelInputStream(mChannel, dataStart, compressedSize, false), TarBackupContainer.BUFFER_SIZE);
+
+		final Inflater inflater = new Inflater(true);
+		return new InflaterInputStream(new ChannelInputStream(mChannel, dataStart, compressedSize, true), inflater, TarBackupContainer.BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inflater.end();
+			}
+		};
+	}
+
+	/**
+	 * Stream over part of the archive, using positional reads so that several can be open at once.
+	 */
+	private static class ChannelInputStream extends InputStream {
+		private final FileChannel mChannel;
+		private long mPosition;
+		private final long mEnd;
+		/** Inflater in 'nowrap' mode may want an extra byte at the end */
+		private boolean mDummyByte;
+
+		ChannelInputStream(FileChannel channel, long start, long length, boolean dummyByte) {
+			mChannel = channel;
+			mPosition = start;
+			mEnd = start + length;
+			mDummyByte = dummyByte;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) <= 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (mPosition >= mEnd) {
+				if (mDummyByte) {
+					mDummyByte = false;
+					b[off] = 0;
+					return 1;
+				}
+				return -1;
+			}
+			len = (int) Math.min(len, mEnd - mPosition);
+			int cnt = mChannel.read(ByteBuffer.wrap(b, off, len), mPosition);
+			if (cnt < 0)
+				throw new IOException("Unexpected end of backup file");
+			mPosition += cnt;
+			return cnt;
+		}
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public BackupContainer getContainer() {
+		return mContainer;
+	}
+
+	/**
+	 * Get the next entity, skipping INFO. The stream of the previous one is closed, which
+	 * releases its Inflater.
+	 */
+	@Override
+	public ReaderEntity nextEntity() throws IOException {
+		closeCurrent();
+		if (mNext >= mEntries.size())
+			return null;
+		mCurrent = mEntries.get(mNext++);
+		return mCurrent;
+	}
+
+	/**
+	 * Close the stream of the entry last returned by nextEntity(), if any
+	 */
+	private void closeCurrent() throws IOException {
+		if (mCurrent != null) {
+			mCurrent.close();
+			mCurrent = null;
+		}
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public BackupInfo getInfo() {
+		return mInfo;
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		closeCurrent();
+		if (mFileInput != null)
+			mFileInput.close();
+		if (mFd != null)
+			mFd.close();
+	}
+}
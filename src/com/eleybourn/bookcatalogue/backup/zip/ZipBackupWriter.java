@@ -0,0 +1,420 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.backup.zip;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.eleybourn.bookcatalogue.backup.BackupContainer;
+import com.eleybourn.bookcatalogue.backup.BackupInfo;
+import com.eleybourn.bookcatalogue.backup.BackupUtils;
+import com.eleybourn.bookcatalogue.backup.BackupWriterAbstract;
+import com.eleybourn.bookcatalogue.backup.CountingOutputStream;
+import com.eleybourn.bookcatalogue.backup.ReaderEntity.BackupEntityType;
+import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
+import com.eleybourn.bookcatalogue.booklist.LibraryStyle;
+import com.eleybourn.bookcatalogue.database.SerializationUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Implementation of ZIP-specific writer functions.
+ * <p>
+ * Each entry is read and compressed by a worker thread; the results are written to the
+ * archive in the order the entries were added, as each becomes ready. The central directory
+ * is written by finishArchive().
+ *
+ * @author pjw
+ */
+public class ZipBackupWriter extends BackupWriterAbstract {
+	/** Number of threads used to read and compress entries */
+	private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	/** Maximum number of entries read but not yet written; limits memory use */
+	private static final int MAX_PENDING = THREADS * 2;
+
+	private final ZipBackupContainer mContainer;
+	/** The archive; counts bytes so we know the offset of each entry */
+	private final CountingOutputStream mOutput;
+	/** Workers */
+	private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+	/** Entries being prepared, in archive order */
+	private final ArrayDeque<Future<Entry>> mPending = new ArrayDeque<>();
+	/** Entries written, for the central directory */
+	private final ArrayList<Entry> mWritten = new ArrayList<>();
+	private int mStyleCounter = 0;
+
+	/**
+	 * Details of an entry, and its data until written
+	 */
+	private static class Entry {
+		byte[] name;
+		int method;
+		long crc;
+		long size;
+		long dosTime;
+		byte[] data;
+		int dataLength;
+		long offset;
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param container		Parent
+	 */
+	public ZipBackupWriter(Context context, ZipBackupContainer container) throws IOException {
+		super(context);
+		mContainer = container;
+		// Open the archive for writing
+		mOutput = new CountingOutputStream(new BufferedOutputStream(container.getOutputStream(), TarBackupContainer.BUFFER_SIZE));
+	}
+
+	/** 
+	 * Accessor
+	 */
+	@Override
+	public BackupContainer getContainer() {
+		return mContainer;
+	}
+
+	/**
+	 * Total bytes written to the archive so far
+	 */
+	@Override
+	public long getBytesWritten() {
+		return mOutput.getCount();
+	}
+
+	/**
+	 * Save the books export file
+	 */
+	@Override
+	public void putBooks(final File books) throws IOException {
+		addEntry(TarBackupContainer.BOOKS_FILE, books.lastModified(), () -> readFully(new FileInputStream(books), books.length()));
+	}
+
+	/**
+	 * Save a books export from a stream
+	 */
+	@Override
+	public void putBooks(final InputStream books, final long size) throws IOException {
+		addEntry(TarBackupContainer.BOOKS_FILE, System.currentTimeMillis(), () -> readFully(books, size));
+	}
+
+	/**
+	 * Save a cover file
+	 */
+	@Override
+	public void putCoverFile(File source) throws IOException {
+		final long lastModified = source.lastModified();
+		putCoverFile(source.getName(), lastModified, readFile(source));
+	}
+
+	/**
+	 * Save a cover that has already been read
+	 */
+	@Override
+	public void putCoverFile(String name, long lastModified, final byte[] data) throws IOException {
+		addEntry(name, lastModified, () -> data);
+	}
+
+	/**
+	 * Save the INFO data
+	 */
+	@Override
+	public void putInfo(BackupInfo info) throws IOException {
+		ByteArrayOutputStream infoData = new ByteArrayOutputStream();
+		BufferedWriter infoOut = new BufferedWriter(new OutputStreamWriter(infoData, StandardCharsets.UTF_8), TarBackupContainer.BUFFER_SIZE);
+		BackupUtils.bundleToXml(infoOut, info.getBundle());
+		infoOut.close();
+		final byte[] bytes = infoData.toByteArray();
+		addEntry(TarBackupContainer.INFO_FILE, System.currentTimeMillis(), () -> bytes);
+	}
+
+	/**
+	 * Save a Booklist style. We save them with increasing suffix counters to ensure uniqueness
+	 */
+	@Override
+	public void putBooklistStyle(LibraryStyle style) throws IOException {
+		// Turn the object into a byte array
+		final byte[] blob = SerializationUtils.serializeObject(style);
+		mStyleCounter++;
+		addEntry(TarBackupContainer.STYLE_PREFIX + mStyleCounter, System.currentTimeMillis(), () -> blob);
+	}
+
+	/**
+	 * Save the preferences.
+	 */
+	@Override
+	public void putPreferences(SharedPreferences prefs) throws IOException {
+		// Turn the preferences into an XML file in a byte array
+		ByteArrayOutputStream infoData = new ByteArrayOutputStream();
+		BufferedWriter infoOut = new BufferedWriter(new OutputStreamWriter(infoData, StandardCharsets.UTF_8), TarBackupContainer.BUFFER_SIZE);
+		BackupUtils.preferencesToXml(infoOut, prefs);
+		infoOut.close();
+		final byte[] bytes = infoData.toByteArray();
+		addEntry(TarBackupContainer.PREFERENCES, System.currentTimeMillis(), () -> bytes);
+	}
+
+	/**
+	 * Save the manifest
+	 */
+	@Override
+	public void putManifest(final byte[] manifest) throws IOException {
+		addEntry(TarBackupContainer.MANIFEST_FILE, System.currentTimeMillis(), () -> manifest);
+	}
+
+	/**
+	 * Save the list of deletions
+	 */
+	@Override
+	public void putDeletions(final byte[] deletions) throws IOException {
+		addEntry(TarBackupContainer.DELETIONS_FILE, System.currentTimeMillis(), () -> deletions);
+	}
+
+	/**
+	 * Queue an entry to be read and compressed by a worker, then written. Writes any
+	 * entries that are ready, and waits for the oldest if too many are outstanding.
+	 *
+	 * @param name		"File" name
+	 * @param modTime	Modification time
+	 * @param source	Returns the uncompressed data; called in a worker thread
+	 */
+	private void addEntry(final String name, final long modTime, final Callable<byte[]> source) throws IOException {
+		// Covers are JPEG files, so there is nothing to gain by compressing them again
+		final boolean compress = TarBackupContainer.getEntityType(name) != BackupEntityType.Cover;
+
+		mPending.add(mExecutor.submit(() -> {
+			final byte[] bytes = source.call();
+			return prepareEntry(name, modTime, bytes, compress);
+		}));
+
+		while (!mPending.isEmpty() && (mPending.size() > MAX_PENDING || mPending.peek().isDone())) {
+			writeEntry(waitFor(mPending.remove()));
+		}
+	}
+
+	/**
+	 * Calculate the CRC of the data and compress it if requested and worthwhile. Runs in a worker.
+	 */
+	private static Entry prepareEntry(String name, long modTime, byte[] bytes, boolean compress) {
+		Entry e = new Entry();
+		e.name = name.getBytes(StandardCharsets.UTF_8);
+		e.dosTime = ZipFormat.toDosTime(modTime);
+		e.size = bytes.length;
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		e.crc = crc.getValue();
+
+		e.method = ZipFormat.METHOD_STORED;
+		e.data = bytes;
+		e.dataLength = bytes.length;
+		if (compress && bytes.length > 0) {
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				deflater.setInput(bytes);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+				byte[] buffer = new byte[TarBackupContainer.BUFFER_SIZE];
+				while (!deflater.finished()) {
+					int cnt = deflater.deflate(buffer);
+					out.write(buffer, 0, cnt);
+				}
+				// Only keep it if it's smaller
+				if (out.size() < bytes.length) {
+					e.method = ZipFormat.METHOD_DEFLATED;
+					e.data = out.toByteArray();
+					e.dataLength = e.data.length;
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Get the result of a worker, passing on any IOException it threw
+	 */
+	private static Entry waitFor(Future<Entry> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Backup interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException("Unable to write backup entry", e.getCause());
+		}
+	}
+
+	/**
+	 * Write the local header and data of an entry
+	 */
+	private void writeEntry(Entry e) throws IOException {
+		e.offset = mOutput.getCount();
+
+		ByteBuffer h = ByteBuffer.allocate(ZipFormat.LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(ZipFormat.LOCAL_HEADER_SIG);
+		h.putShort((short) ZipFormat.VERSION_DEFLATE);
+		h.putShort((short) ZipFormat.FLAG_UTF8);
+		h.putShort((short) e.method);
+		h.putInt((int) e.dosTime);
+		h.putInt((int) e.crc);
+		h.putInt(e.dataLength);
+		h.putInt((int) e.size);
+		h.putShort((short) e.name.length);
+		h.putShort((short) 0);
+		mOutput.write(h.array());
+		mOutput.write(e.name);
+		mOutput.write(e.data, 0, e.dataLength);
+
+		e.data = null;
+		mWritten.add(e);
+	}
+
+	/**
+	 * Write any outstanding entries, then the central directory.
+	 */
+	@Override
+	protected void finishArchive() throws IOException {
+		while (!mPending.isEmpty())
+			writeEntry(waitFor(mPending.remove()));
+
+		final long dirStart = mOutput.getCount();
+		for (Entry e : mWritten) {
+			final boolean zip64 = e.offset >= ZipFormat.ZIP64_MAGIC;
+			final int extraLen = zip64 ? 12 : 0;
+
+			ByteBuffer h = ByteBuffer.allocate(ZipFormat.CENTRAL_HEADER_SIZE + extraLen).order(ByteOrder.LITTLE_ENDIAN);
+			h.putInt(ZipFormat.CENTRAL_HEADER_SIG);
+			h.putShort((short) (zip64 ? ZipFormat.VERSION_ZIP64 : ZipFormat.VERSION_DEFLATE));
+			h.putShort((short) (zip64 ? ZipFormat.VERSION_ZIP64 : ZipFormat.VERSION_DEFLATE));
+			h.putShort((short) ZipFormat.FLAG_UTF8);
+			h.putShort((short) e.method);
+			h.putInt((int) e.dosTime);
+			h.putInt((int) e.crc);
+			h.putInt(e.dataLength);
+			h.putInt((int) e.size);
+			h.putShort((short) e.name.length);
+			h.putShort((short) extraLen);
+			h.putShort((short) 0);	// Comment
+			h.putShort((short) 0);	// Disk
+			h.putShort((short) 0);	// Internal attributes
+			h.putInt(0);			// External attributes
+			h.putInt(zip64 ? (int) ZipFormat.ZIP64_MAGIC : (int) e.offset);
+			// The extra field goes after the name; write the fixed part first
+			mOutput.write(h.array(), 0, ZipFormat.CENTRAL_HEADER_SIZE);
+			mOutput.write(e.name);
+			if (zip64) {
+				h.clear();
+				h.putShort((short) ZipFormat.ZIP64_EXTRA_ID);
+				h.putShort((short) 8);
+				h.putLong(e.offset);
+				mOutput.write(h.array(), 0, extraLen);
+			}
+		}
+		final long dirEnd = mOutput.getCount();
+		final long dirSize = dirEnd - dirStart;
+		final int count = mWritten.size();
+
+		final boolean zip64 = dirStart >= ZipFormat.ZIP64_MAGIC || dirSize >= ZipFormat.ZIP64_MAGIC || count >= ZipFormat.ZIP64_MAGIC_SHORT;
+		if (zip64) {
+			ByteBuffer z = ByteBuffer.allocate(ZipFormat.ZIP64_END_SIZE + ZipFormat.ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			z.putInt(ZipFormat.ZIP64_END_SIG);
+			z.putLong(ZipFormat.ZIP64_END_SIZE - 12);
+			z.putShort((short) ZipFormat.VERSION_ZIP64);
+			z.putShort((short) ZipFormat.VERSION_ZIP64);
+			z.putInt(0);
+			z.putInt(0);
+			z.putLong(count);
+			z.putLong(count);
+			z.putLong(dirSize);
+			z.putLong(dirStart);
+			// Locator
+			z.putInt(ZipFormat.ZIP64_LOCATOR_SIG);
+			z.putInt(0);
+			z.putLong(dirEnd);
+			z.putInt(1);
+			mOutput.write(z.array());
+		}
+
+		ByteBuffer end = ByteBuffer.allocate(ZipFormat.END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(ZipFormat.END_SIG);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) (zip64 ? ZipFormat.ZIP64_MAGIC_SHORT : count));
+		end.putShort((short) (zip64 ? ZipFormat.ZIP64_MAGIC_SHORT : count));
+		end.putInt(zip64 ? (int) ZipFormat.ZIP64_MAGIC : (int) dirSize);
+		end.putInt(zip64 ? (int) ZipFormat.ZIP64_MAGIC : (int) dirStart);
+		end.putShort((short) 0);
+		mOutput.write(end.array());
+		mOutput.flush();
+	}
+
+	/**
+	 * Read a stream of known size into memory, and close it
+	 */
+	private static byte[] readFully(InputStream in, long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Entry too large for backup: " + size + " bytes");
+		try (in) {
+			final byte[] bytes = new byte[(int) size];
+			int pos = 0;
+			while (pos < bytes.length) {
+				int cnt = in.read(bytes, pos, bytes.length - pos);
+				if (cnt <= 0)
+					throw new IOException("Unexpected end of data; expected " + size + " bytes, got " + pos);
+				pos += cnt;
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * Cleanup
+	 */
+	@Override
+	public void close() throws IOException {
+		super.close();
+		mExecutor.shutdownNow();
+		mOutput.close();
+	}
+}
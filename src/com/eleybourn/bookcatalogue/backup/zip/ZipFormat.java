@@ -0,0 +1,88 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.backup.zip;
+
+import java.util.Calendar;
+
+/**
+ * Constants and helpers for the parts of the ZIP format used by the backup reader and writer.
+ * Only methods STORED and DEFLATED are used; ZIP64 records are written and read when offsets
+ * or the number of entries do not fit the original fields.
+ *
+ * @author pjw
+ */
+class ZipFormat {
+	static final int LOCAL_HEADER_SIG = 0x04034b50;
+	static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	static final int END_SIG = 0x06054b50;
+	static final int ZIP64_END_SIG = 0x06064b50;
+	static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+	static final int LOCAL_HEADER_SIZE = 30;
+	static final int CENTRAL_HEADER_SIZE = 46;
+	static final int END_SIZE = 22;
+	static final int ZIP64_END_SIZE = 56;
+	static final int ZIP64_LOCATOR_SIZE = 20;
+	/** ID of the ZIP64 extra field */
+	static final int ZIP64_EXTRA_ID = 0x0001;
+
+	static final int METHOD_STORED = 0;
+	static final int METHOD_DEFLATED = 8;
+
+	/** Version needed: 2.0 for deflate, 4.5 for ZIP64 */
+	static final int VERSION_DEFLATE = 20;
+	static final int VERSION_ZIP64 = 45;
+	/** General purpose flag: names are UTF-8 */
+	static final int FLAG_UTF8 = 0x0800;
+
+	/** Value stored in 32 bit fields when the real value is in the ZIP64 fields */
+	static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	/** Value stored in 16 bit fields when the real value is in the ZIP64 fields */
+	static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+
+	/**
+	 * Convert a java time to MS-DOS date (high 16 bits) and time (low 16 bits)
+	 */
+	static long toDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		long date = ((year - 1980) << 9) | ((c.get(Calendar.MONTH) + 1) << 5) | c.get(Calendar.DAY_OF_MONTH);
+		long tod = (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+		return (date << 16) | tod;
+	}
+
+	/**
+	 * Convert an MS-DOS date and time, as returned by toDosTime(), to a java time
+	 */
+	static long fromDosTime(long dosTime) {
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		c.set((int) ((dosTime >> 25) & 0x7f) + 1980,
+				(int) ((dosTime >> 21) & 0x0f) - 1,
+				(int) ((dosTime >> 16) & 0x1f),
+				(int) ((dosTime >> 11) & 0x1f),
+				(int) ((dosTime >> 5) & 0x3f),
+				(int) ((dosTime << 1) & 0x3e));
+		return c.getTimeInMillis();
+	}
+}
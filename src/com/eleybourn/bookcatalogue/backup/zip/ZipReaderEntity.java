@@ -0,0 +1,114 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.backup.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+import com.eleybourn.bookcatalogue.backup.ReaderEntityAbstract;
+
+/**
+ * Implementation of ZIP-specific ReaderEntity functions. The data is only read when
+ * getStream() is first called.
+ * 
+ * @author pjw
+ */
+public class ZipReaderEntity extends ReaderEntityAbstract {
+	private final ZipBackupReader mReader;
+	private final String mName;
+	private final BackupEntityType mType;
+	private final int mMethod;
+	private final long mHeaderOffset;
+	private final long mCompressedSize;
+	private final Date mDateModified;
+	/** Stream over the data, once opened */
+	private InputStream mStream = null;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param reader			Parent
+	 * @param name				"File" name
+	 * @param type				Type of item
+	 * @param method			ZIP compression method
+	 * @param headerOffset		Position of the local header in the archive
+	 * @param compressedSize	Size of data in the archive
+	 * @param dateModified		Modification date
+	 */
+	ZipReaderEntity(ZipBackupReader reader, String name, BackupEntityType type, int method, long headerOffset, long compressedSize, Date dateModified) {
+		mReader = reader;
+		mName = name;
+		mType = type;
+		mMethod = method;
+		mHeaderOffset = headerOffset;
+		mCompressedSize = compressedSize;
+		mDateModified = dateModified;
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public BackupEntityType getType() {
+		return mType;
+	}
+
+	/**
+	 * Get the stream; the same stream is returned by each call.
+	 */
+	@Override
+	public InputStream getStream() {
+		if (mStream == null) {
+			try {
+				mStream = mReader.openEntry(mHeaderOffset, mMethod, mCompressedSize);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read backup entry " + mName, e);
+			}
+		}
+		return mStream;
+	}
+
+	/**
+	 * Close the stream, if it was opened. Called by the reader once the entity has been processed.
+	 */
+	void close() throws IOException {
+		if (mStream != null) {
+			mStream.close();
+			mStream = null;
+		}
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public String getName() {
+		return mName;
+	}
+	
+	/**
+	 * Accessor
+	 */
+	@Override
+	public Date getDateModified() {
+		return mDateModified;
+	}
+}
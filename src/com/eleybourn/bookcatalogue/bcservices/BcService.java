@@ -5,6 +5,7 @@ import android.os.Bundle;
 import androidx.annotation.NonNull;
 
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.SearchCacheThread;
 import com.eleybourn.bookcatalogue.SearchThread.BookSearchResults;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
 import com.eleybourn.bookcatalogue.utils.Logger;
@@ -333,6 +334,8 @@ public class BcService {
         String filename = Utils.saveThumbnailFromUrl(url, sfx);
         if (!filename.isEmpty() && bookData != null) {
             Utils.appendOrAdd(bookData, "__thumbnail", filename);
+            // Remember where it came from, for the search cache
+            Utils.appendOrAdd(bookData, SearchCacheThread.THUMBNAIL_URL_KEY, url);
             return true;
         } else {
             return false;
@@ -22,11 +22,16 @@ package com.eleybourn.bookcatalogue.booklist;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Locale;
 import java.util.Map.Entry;
 
 import android.database.AbstractCursor;
+import android.os.SystemClock;
 
 import com.eleybourn.bookcatalogue.debug.Tracker;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
 /**
@@ -51,6 +56,12 @@ import com.eleybourn.bookcatalogue.utils.Utils;
  * Cursors are kept in a hash based on their position; cursors more than 3 'windows' away from the current
  * position are eligible for purging if they are not in the Most Recently Used (MRU) list. The MRU list 
  * holds 8 cursors.
+ * Later: flinging through a long list still built and discarded a 20 row cursor every few frames. The
+ * window size now follows the scroll speed, and once the user is half way through a window, the next one
+ * in the direction of the scroll is built in a background thread. Cursors are now keyed by their start
+ * position since windows vary in size. See WindowStats for the counters used to tune this.
+ * If the builder has an in-memory snapshot of the list when this cursor is made, rows are read from
+ * the snapshot instead and no cursors are built at all.
  * 
  * @author Philip Warner
  */
@@ -60,28 +71,185 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	/** Cached RowView for this cursor */
 	private LibraryRowView mRowView = null;
 
-	/** Collection of current cursors */
-	private final Hashtable<Integer, BooklistCursor> mCursors;
+	/** Collection of current cursors, keyed by start position */
+	private final Hashtable<Integer, Window> mCursors;
 	/** The cursor to use for the last onMove() event */
 	private BooklistCursor mActiveCursor = null;
+	/** The window holding the active cursor */
+	private Window mActiveWindow = null;
 	/** MRU ring buffer of cursors */
 	private final int[] mMruList;
 	/** Current MRU ring buffer position */
 	private int mMruListPos = 0;
 	/** Pseudo-count obtained from Builder */
 	private Integer mPseudoCount = null;
-	
+	/** In-memory copy of the list, if the builder has one */
+	private final BooklistSnapshot mSnapshot;
+	/** Absolute row in the snapshot for the current position */
+	private int mSnapshotRow = -1;
+
+	/** Last position passed to onMove(); used to estimate scroll speed */
+	private int mLastPosition = -1;
+	/** Time of the last onMove(), from SystemClock.uptimeMillis() */
+	private long mLastMoveTime = 0;
+	/** Smoothed scroll speed in rows per second; negative when moving up the list */
+	private float mVelocity = 0;
+	/** Start position of the window being prefetched, or -1 if none */
+	private int mPrefetchStart = -1;
+	/** Incremented whenever the cursors are cleared so that stale prefetches can be discarded */
+	private volatile int mGeneration = 0;
 
 	/** Utils object; we need an instance for cover retrieval because it uses a DB connection
 	 * that we do not want to make static. This instance is used by BookMultitypeListHandler.
 	 */
 	private Utils mUtils = null;
 
-	/** Number of rows to return in each cursor. No tuning has been done to pick this number. */
+	/** Number of rows to return in each cursor when not scrolling. No tuning has been done to pick this number. */
 	private final static int CURSOR_SIZE = 20;
+	/** Largest window; at this size a cursor takes a few tens of milliseconds to fill on a slow phone. */
+	private final static int MAX_CURSOR_SIZE = 200;
+	/** Windows are sized to hold this many seconds of scrolling at the current speed */
+	private final static float WINDOW_SECONDS = 0.5f;
+	/** A pause in moves longer than this means a new scroll, so the speed starts again from zero */
+	private final static long SCROLL_PAUSE_MS = 300;
 	/** Size of MRU list. Not based on tuning; just set to more than 2*3+1. */
 	private final static int MRU_LIST_SIZE = 8;
 
+	/** Queue for building windows ahead of the scroll. One thread; each cursor fill is serialized by the database anyway */
+	private static final SimpleTaskQueue mPrefetchQueue = new SimpleTaskQueue("booklist-prefetch", 1);
+	/** Counters for all pseudo cursors */
+	private static final WindowStats mStats = new WindowStats();
+
+	/**
+	 * A cursor over part of the list.
+	 */
+	private static class Window {
+		/** Position of the first row */
+		final int start;
+		/** Number of rows requested; may be more than the cursor returns at the end of the list */
+		final int size;
+		final BooklistCursor cursor;
+		/** Set if built by a prefetch and not yet used */
+		boolean prefetched;
+
+		Window(int start, int size, BooklistCursor cursor, boolean prefetched) {
+			this.start = start;
+			this.size = size;
+			this.cursor = cursor;
+			this.prefetched = prefetched;
+		}
+
+		boolean contains(int position) {
+			return position >= start && position < start + size;
+		}
+	}
+
+	/**
+	 * Counters for window lookups and cursor fills, shared by all pseudo cursors. Used to tune
+	 * the window sizes; see getStats().
+	 *
+	 * @author Philip Warner
+	 */
+	public static class WindowStats {
+		/** Moves that found their row in an existing window */
+		private long mHits = 0;
+		/** Moves that needed a new window built in the UI thread */
+		private long mMisses = 0;
+		/** Hits on a prefetched window that had not been used yet */
+		private long mPrefetchHits = 0;
+		/** Prefetched windows discarded without being used */
+		private long mPrefetchWasted = 0;
+		/** Number of cursor fills, foreground and background */
+		private long mFetches = 0;
+		/** Total time filling cursors, in nanoseconds */
+		private long mTotalFetchNs = 0;
+		/** Longest single fill, in nanoseconds */
+		private long mMaxFetchNs = 0;
+		/** Total rows fetched */
+		private long mRows = 0;
+
+		synchronized void hit(boolean wasPrefetched) {
+			mHits++;
+			if (wasPrefetched)
+				mPrefetchHits++;
+		}
+
+		synchronized void miss() {
+			mMisses++;
+		}
+
+		synchronized void wasted() {
+			mPrefetchWasted++;
+		}
+
+		synchronized void fetched(long ns, int rows) {
+			mFetches++;
+			mTotalFetchNs += ns;
+			if (ns > mMaxFetchNs)
+				mMaxFetchNs = ns;
+			mRows += rows;
+		}
+
+		public synchronized void reset() {
+			mHits = 0;
+			mMisses = 0;
+			mPrefetchHits = 0;
+			mPrefetchWasted = 0;
+			mFetches = 0;
+			mTotalFetchNs = 0;
+			mMaxFetchNs = 0;
+			mRows = 0;
+		}
+
+		public synchronized long getHits() {
+			return mHits;
+		}
+
+		public synchronized long getMisses() {
+			return mMisses;
+		}
+
+		public synchronized long getPrefetchHits() {
+			return mPrefetchHits;
+		}
+
+		public synchronized long getPrefetchWasted() {
+			return mPrefetchWasted;
+		}
+
+		public synchronized long getFetches() {
+			return mFetches;
+		}
+
+		/**
+		 * Average time to fill a cursor, in milliseconds.
+		 */
+		public synchronized double getAverageFetchMs() {
+			return mFetches == 0 ? 0 : mTotalFetchNs / 1000000.0 / mFetches;
+		}
+
+		/**
+		 * Longest time to fill a cursor, in milliseconds.
+		 */
+		public synchronized double getMaxFetchMs() {
+			return mMaxFetchNs / 1000000.0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "hits=" + mHits + " (prefetched " + mPrefetchHits + "), misses=" + mMisses
+					+ ", wasted prefetches=" + mPrefetchWasted + ", fetches=" + mFetches + " (" + mRows + " rows)"
+					+ String.format(Locale.ENGLISH, ", avg=%.1fms, max=%.1fms", getAverageFetchMs(), getMaxFetchMs());
+		}
+	}
+
+	/**
+	 * Get the window counters shared by all pseudo cursors.
+	 */
+	public static WindowStats getStats() {
+		return mStats;
+	}
+
 	/**
 	 * Constructor
 	 * 
@@ -89,6 +257,7 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	BooklistPseudoCursor(LibraryBuilder builder) {
 		mBuilder = builder;
+		mSnapshot = builder.getSnapshot();
 		mCursors = new Hashtable<>();
 		mMruList = new int[MRU_LIST_SIZE];
 		for(int i = 0; i < MRU_LIST_SIZE; i++)
@@ -128,86 +297,248 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	public boolean onMove(int oldPosition, int newPosition) {
 		if (newPosition < 0 || newPosition >= getCount())
 			return false;
-		// Get the ID we use for the cursor at the new position
-		int cursorId = newPosition / CURSOR_SIZE;
-		// Determine the actual start position
-		int cursorStartPos = cursorId * CURSOR_SIZE;
 
-		// Synchronize cursor adjustments. Just in case.
+		if (mSnapshot != null) {
+			mSnapshotRow = mSnapshot.getAbsoluteRow(newPosition);
+			return true;
+		}
+
+		updateVelocity(newPosition);
+
+		// Synchronize cursor adjustments. Prefetched windows are added from the UI thread, but just in case.
 		synchronized(this) {
-			if (!mCursors.containsKey(cursorId)) {
-				// Get a new cursor
-				mCursors.put(cursorId, mBuilder.getOffsetCursor(cursorStartPos, CURSOR_SIZE));
+			Window w = mActiveWindow;
+			if (w == null || !w.contains(newPosition))
+				w = findWindow(newPosition);
+
+			if (w == null) {
+				mStats.miss();
+				// Get a new cursor, extending in the direction of the scroll
+				final int size = getWindowSize();
+				int start = newPosition;
+				if (mVelocity < 0)
+					start = Math.max(0, newPosition - size + 1);
+				w = new Window(start, size, fetch(start, size), false);
+				// A smaller window may already start at the same position
+				Window old = mCursors.put(start, w);
+				if (old != null)
+					old.cursor.close();
 
 				// Add this cursor id to the 'top' of the MRU list.
-				mMruListPos = (mMruListPos + 1) % MRU_LIST_SIZE;
-				mMruList[mMruListPos] = cursorId;
+				bringToTop(start);
 
 				// Remove any stale cursors
-				purgeOldCursors(cursorId);
+				purgeOldCursors(start);
 			} else {
-				// Bring to top of MRU list, if present. It may not be in the MRU list if it was
-				// preserved because it was in the window
-				int oldPos = -1;
-				for(int i = 0; i < MRU_LIST_SIZE; i++) {
-					if (mMruList[i] == cursorId) {
-						// TODO (4.1+): Remove Sanity check for com.eleybourn.bookcatalogue.debug; should just 'break' from loop after setting oldPos
-						if (oldPos >= 0)
-							throw new RuntimeException("Cursor appears twice in MRU list");
-						oldPos = i;
-					}
-				}
-				if (oldPos < 0) {
-					// Not in MRU; just add it to the top
-					mMruListPos = (mMruListPos + 1) % MRU_LIST_SIZE;
-                } else {
-					if (oldPos <= mMruListPos) {
-						// Just shuffle intervening items down
-						int n = oldPos;
-						int i;
-						while(n < mMruListPos) {
-							i = n++;
-							mMruList[i] = mMruList[n];
-						}
-					} else {
-						// Need to shuffle intervening items 'down' with a wrap; this code
-						// would actually work for the above case, but it's slower. Not sure
-						// if it really matters.
-						int n = oldPos; // 'next' position
-						int i; // current position
-						// Count of rows to move
-						int c = (MRU_LIST_SIZE - (oldPos - mMruListPos)) % MRU_LIST_SIZE;
-						while(c-- > 0) {
-							i = n;
-							n = (n + 1) % MRU_LIST_SIZE;
-							mMruList[i] = mMruList[n];
-						}
-					}
-                }
-                mMruList[mMruListPos] = cursorId;
-
-            }
+				mStats.hit(w.prefetched);
+				w.prefetched = false;
+				if (w != mActiveWindow)
+					bringToTop(w.start);
+			}
+
 			// Set the active cursor, and set its position correctly
-			mActiveCursor = mCursors.get(cursorId);
-            assert mActiveCursor != null;
-            mActiveCursor.moveToPosition(newPosition - cursorStartPos);
+			mActiveWindow = w;
+			mActiveCursor = w.cursor;
+			mActiveCursor.moveToPosition(newPosition - w.start);
+
+			prefetchIfNecessary(newPosition);
 		}
 		return true;			
 	}
 
+	/**
+	 * Find a window containing the passed position.
+	 */
+	private Window findWindow(int position) {
+		for(Window w: mCursors.values()) {
+			if (w.contains(position))
+				return w;
+		}
+		return null;
+	}
+
+	/**
+	 * Bring a cursor to the top of the MRU list. It may not be in the MRU list if it was
+	 * preserved because it was in the window, or was added by a prefetch.
+	 *
+	 * @param cursorId	Start position of the cursor
+	 */
+	private void bringToTop(int cursorId) {
+		int oldPos = -1;
+		for(int i = 0; i < MRU_LIST_SIZE; i++) {
+			if (mMruList[i] == cursorId) {
+				// TODO (4.1+): Remove Sanity check for com.eleybourn.bookcatalogue.debug; should just 'break' from loop after setting oldPos
+				if (oldPos >= 0)
+					throw new RuntimeException("Cursor appears twice in MRU list");
+				oldPos = i;
+			}
+		}
+		if (oldPos < 0) {
+			// Not in MRU; just add it to the top
+			mMruListPos = (mMruListPos + 1) % MRU_LIST_SIZE;
+		} else {
+			if (oldPos <= mMruListPos) {
+				// Just shuffle intervening items down
+				int n = oldPos;
+				int i;
+				while(n < mMruListPos) {
+					i = n++;
+					mMruList[i] = mMruList[n];
+				}
+			} else {
+				// Need to shuffle intervening items 'down' with a wrap; this code
+				// would actually work for the above case, but it's slower. Not sure
+				// if it really matters.
+				int n = oldPos; // 'next' position
+				int i; // current position
+				// Count of rows to move
+				int c = (MRU_LIST_SIZE - (oldPos - mMruListPos)) % MRU_LIST_SIZE;
+				while(c-- > 0) {
+					i = n;
+					n = (n + 1) % MRU_LIST_SIZE;
+					mMruList[i] = mMruList[n];
+				}
+			}
+		}
+		mMruList[mMruListPos] = cursorId;
+	}
+
+	/**
+	 * Update the smoothed scroll speed from the time since the last move.
+	 */
+	private void updateVelocity(int newPosition) {
+		final long now = SystemClock.uptimeMillis();
+		if (mLastPosition >= 0 && newPosition != mLastPosition) {
+			final long elapsed = now - mLastMoveTime;
+			if (elapsed > SCROLL_PAUSE_MS) {
+				mVelocity = 0;
+			} else {
+				final float current = (newPosition - mLastPosition) * 1000f / Math.max(elapsed, 1);
+				// Weight recent moves; ListView moves to each row as it is bound, so single moves are noisy.
+				mVelocity = mVelocity * 0.7f + current * 0.3f;
+			}
+		}
+		if (newPosition != mLastPosition) {
+			mLastPosition = newPosition;
+			mLastMoveTime = now;
+		}
+	}
+
+	/**
+	 * Number of rows for a new window: enough for WINDOW_SECONDS of scrolling at the current
+	 * speed, in multiples of CURSOR_SIZE.
+	 */
+	private int getWindowSize() {
+		final int rows = (int)(Math.abs(mVelocity) * WINDOW_SECONDS);
+		final int size = ((rows + CURSOR_SIZE - 1) / CURSOR_SIZE) * CURSOR_SIZE;
+		return Math.max(CURSOR_SIZE, Math.min(MAX_CURSOR_SIZE, size));
+	}
+
+	/**
+	 * Build a cursor and fill it. getCount() makes SQLite run the query now rather than on first access.
+	 */
+	private BooklistCursor fetch(int start, int size) {
+		final long t0 = System.nanoTime();
+		BooklistCursor c = mBuilder.getOffsetCursor(start, size);
+		final int rows = c.getCount();
+		mStats.fetched(System.nanoTime() - t0, rows);
+		return c;
+	}
+
+	/**
+	 * If the position is past the middle of the active window in the direction of the scroll, and
+	 * the next window is not already built, build it in the background.
+	 */
+	private void prefetchIfNecessary(int position) {
+		if (mVelocity == 0 || mPrefetchStart >= 0 || isClosed())
+			return;
+
+		final Window w = mActiveWindow;
+		final int middle = w.start + w.size / 2;
+		final int size = getWindowSize();
+		final int start;
+		if (mVelocity > 0) {
+			if (position < middle)
+				return;
+			start = w.start + w.size;
+			if (start >= getCount())
+				return;
+		} else {
+			if (position >= middle || w.start == 0)
+				return;
+			start = Math.max(0, w.start - size);
+		}
+		// Only need the rows not already covered
+		final int end = mVelocity > 0 ? start + size : w.start;
+		if (findWindow(mVelocity > 0 ? start : end - 1) != null)
+			return;
+
+		mPrefetchStart = start;
+		mPrefetchQueue.enqueue(new PrefetchTask(start, end - start, mGeneration));
+	}
+
+	/**
+	 * Background task to build a window ahead of the scroll. The window is added to the
+	 * collection in the UI thread, unless the cursors were cleared or closed in the meantime.
+	 *
+	 * @author Philip Warner
+	 */
+	private class PrefetchTask implements SimpleTask {
+		private final int mStart;
+		private final int mSize;
+		private final int mTaskGeneration;
+		private BooklistCursor mCursor = null;
+
+		PrefetchTask(int start, int size, int generation) {
+			mStart = start;
+			mSize = size;
+			mTaskGeneration = generation;
+		}
+
+		@Override
+		public void run(SimpleTaskContext taskContext) {
+			if (isClosed() || mTaskGeneration != mGeneration)
+				return;
+			mCursor = fetch(mStart, mSize);
+		}
+
+		@Override
+		public void onFinish(Exception e) {
+			synchronized(BooklistPseudoCursor.this) {
+				if (mTaskGeneration == mGeneration)
+					mPrefetchStart = -1;
+
+				if (mCursor == null)
+					return;
+
+				if (e != null || isClosed() || mTaskGeneration != mGeneration || mCursors.containsKey(mStart)) {
+					mCursor.close();
+					mStats.wasted();
+					return;
+				}
+				mCursors.put(mStart, new Window(mStart, mSize, mCursor, true));
+				// Keep it from being purged until it has had a chance to be used.
+				bringToTop(mStart);
+				if (mActiveWindow != null)
+					bringToTop(mActiveWindow.start);
+				purgeOldCursors(mStart);
+			}
+		}
+	}
+
 	/**
 	 * Remove any old cursors that can be purged.
 	 * 
-	 * @param currentId		Current cursor ID
+	 * @param currentId		Current cursor ID (start position)
 	 */
 	private void purgeOldCursors(final Integer currentId) {
 		// List of cursors to purge
 		ArrayList<Integer> toPurge = new ArrayList<>();
 		// Scan the hash
-		for(Entry<Integer, BooklistCursor> cursorEntry: mCursors.entrySet()) {
+		for(Entry<Integer, Window> cursorEntry: mCursors.entrySet()) {
 			// If it is more than 3 'pages' from the current position, it's a candidate
 			final Integer thisKey = cursorEntry.getKey();
-			if ( Math.abs(thisKey) > 3 ) {
+			if ( Math.abs(thisKey - currentId) > 3 * cursorEntry.getValue().size ) {
 				// Must not be in the MRU list
 				if (!checkMru(thisKey))
 					toPurge.add(thisKey);
@@ -215,9 +546,11 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 		}
 		// Purge them
 		for(Integer i: toPurge) {
-			BooklistCursor c = mCursors.remove(i);
-            assert c != null;
-            c.close();
+			Window w = mCursors.remove(i);
+            assert w != null;
+			if (w.prefetched)
+				mStats.wasted();
+            w.cursor.close();
 		}
 	}
 
@@ -261,6 +594,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	@Override
 	public double getDouble(int column) {
+		if (mSnapshot != null)
+			return mSnapshot.getDouble(column, mSnapshotRow);
 		return mActiveCursor.getDouble(column);
 	}
 
@@ -269,6 +604,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	@Override
 	public float getFloat(int column) {
+		if (mSnapshot != null)
+			return (float) mSnapshot.getDouble(column, mSnapshotRow);
 		return mActiveCursor.getFloat(column);
 	}
 
@@ -277,6 +614,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	@Override
 	public int getInt(int column) {
+		if (mSnapshot != null)
+			return (int) mSnapshot.getLong(column, mSnapshotRow);
 		return mActiveCursor.getInt(column);
 	}
 
@@ -285,6 +624,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	@Override
 	public long getLong(int column) {
+		if (mSnapshot != null)
+			return mSnapshot.getLong(column, mSnapshotRow);
 		return mActiveCursor.getLong(column);
 	}
 
@@ -293,6 +634,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	@Override
 	public short getShort(int column) {
+		if (mSnapshot != null)
+			return (short) mSnapshot.getLong(column, mSnapshotRow);
 		return mActiveCursor.getShort(column);
 	}
 
@@ -301,6 +644,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	@Override
 	public String getString(int column) {
+		if (mSnapshot != null)
+			return mSnapshot.getString(column, mSnapshotRow);
 		return mActiveCursor.getString(column);
 	}
 
@@ -309,6 +654,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	@Override
 	public boolean isNull(int column) {
+		if (mSnapshot != null)
+			return mSnapshot.isNull(column, mSnapshotRow);
 		return mActiveCursor.isNull(column);
 	}
 
@@ -342,13 +689,19 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	}
 
 	private void clearCursors() {
-		for(Entry<Integer, BooklistCursor> cursorEntry: mCursors.entrySet()) {
-			cursorEntry.getValue().close();
+		synchronized(this) {
+			for(Entry<Integer, Window> cursorEntry: mCursors.entrySet()) {
+				cursorEntry.getValue().cursor.close();
+			}
+			mCursors.clear();
+			mActiveCursor = null;
+			mActiveWindow = null;
+			// Any prefetch in progress is now stale
+			mGeneration++;
+			mPrefetchStart = -1;
+
+			Arrays.fill(mMruList, -1);
 		}
-		mCursors.clear();
-		mActiveCursor = null;
-
-        Arrays.fill(mMruList, -1);
 	}
 
 	/**
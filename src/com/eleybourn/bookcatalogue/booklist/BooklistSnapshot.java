@@ -0,0 +1,374 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.booklist;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * In-memory copy of a built book list, in display order, so that scrolling, expand/collapse
+ * and book lookups do not need to go back to the database.
+ * <p>
+ * Data is held by column: columns holding only integers in long arrays, everything else as
+ * indexes into a pool of distinct strings (most strings in a list are repeated: author, series, format...).
+ * The level, book and expanded/visible flags are also kept in their own arrays for
+ * navigation.
+ * <p>
+ * The LibraryBuilder keeps the expanded/visible flags in step with its navigator table; the
+ * rest of the snapshot never changes. All rows are 'absolute' positions, as used by the builder.
+ *
+ * @author Philip Warner
+ */
+public class BooklistSnapshot {
+    /** Number of rows */
+    private final int mRows;
+    /** Integer column data, or null for string columns */
+    private final long[][] mLongs;
+    /** Null flags for integer columns, or null for string columns */
+    private final boolean[][] mNulls;
+    /** String column data as indexes into mPool (-1 for null), or null for integer columns */
+    private final int[][] mStrings;
+    /** Distinct strings */
+    private final String[] mPool;
+
+    /** Level of each row */
+    private final byte[] mLevel;
+    /** Book ID of each row; 0 for headers */
+    private final long[] mBookId;
+    /** Visible flag of each row */
+    private final boolean[] mVisible;
+    /** Expanded flag of each row */
+    private final boolean[] mExpanded;
+    /** Last row below each row; the rows of a node are (row, end] */
+    private final int[] mSubtreeEnd;
+    /** Rows sorted by book ID, for finding all rows for a book */
+    private final int[] mRowsByBook;
+
+    /** Absolute row of each visible row, in order */
+    private int[] mVisibleRows;
+    /** Number of valid entries in mVisibleRows */
+    private int mVisibleCount;
+
+    /**
+     * Constructor. Reads all rows from the cursor.
+     *
+     * @param c           Cursor over all rows in display order. The first columnCount columns are
+     *                    the list columns; they are followed by 'visible', 'expanded' and 'subtree_end'.
+     * @param columnCount Number of list columns
+     * @param levelCol    Index of the level column
+     * @param bookCol     Index of the book ID column
+     */
+    BooklistSnapshot(Cursor c, int columnCount, int levelCol, int bookCol) {
+        mRows = c.getCount();
+
+        // Columns declared as integer can still hold text (eg. a year of 'Unknown'), so check the values.
+        final boolean[] isInteger = new boolean[columnCount];
+        Arrays.fill(isInteger, true);
+        while (c.moveToNext()) {
+            for (int col = 0; col < columnCount; col++) {
+                if (isInteger[col]) {
+                    final int type = c.getType(col);
+                    isInteger[col] = type == Cursor.FIELD_TYPE_INTEGER || type == Cursor.FIELD_TYPE_NULL;
+                }
+            }
+        }
+        c.moveToPosition(-1);
+
+        mLongs = new long[columnCount][];
+        mNulls = new boolean[columnCount][];
+        mStrings = new int[columnCount][];
+        for (int col = 0; col < columnCount; col++) {
+            if (isInteger[col]) {
+                mLongs[col] = new long[mRows];
+                mNulls[col] = new boolean[mRows];
+            } else {
+                mStrings[col] = new int[mRows];
+            }
+        }
+        mLevel = new byte[mRows];
+        mBookId = new long[mRows];
+        mVisible = new boolean[mRows];
+        mExpanded = new boolean[mRows];
+        mSubtreeEnd = new int[mRows];
+
+        final HashMap<String, Integer> poolIndex = new HashMap<>();
+        final ArrayList<String> pool = new ArrayList<>();
+        final int visibleCol = columnCount;
+        final int expandedCol = columnCount + 1;
+        final int subtreeEndCol = columnCount + 2;
+
+        int row = 0;
+        while (c.moveToNext() && row < mRows) {
+            for (int col = 0; col < columnCount; col++) {
+                if (isInteger[col]) {
+                    if (c.isNull(col))
+                        mNulls[col][row] = true;
+                    else
+                        mLongs[col][row] = c.getLong(col);
+                } else {
+                    final String s = c.getString(col);
+                    if (s == null) {
+                        mStrings[col][row] = -1;
+                    } else {
+                        Integer i = poolIndex.get(s);
+                        if (i == null) {
+                            i = pool.size();
+                            pool.add(s);
+                            poolIndex.put(s, i);
+                        }
+                        mStrings[col][row] = i;
+                    }
+                }
+            }
+            mLevel[row] = (byte) c.getInt(levelCol);
+            mBookId[row] = c.isNull(bookCol) ? 0 : c.getLong(bookCol);
+            mVisible[row] = c.getInt(visibleCol) == 1;
+            mExpanded[row] = c.getInt(expandedCol) == 1;
+            // Stored as a navigator row ID, which is one more than the row
+            mSubtreeEnd[row] = c.getInt(subtreeEndCol) - 1;
+            row++;
+        }
+        mPool = pool.toArray(new String[0]);
+        mRowsByBook = sortRowsByBook();
+        rebuildVisibleRows();
+    }
+
+    /**
+     * Build the index of rows ordered by book ID; headers are left out.
+     */
+    private int[] sortRowsByBook() {
+        int count = 0;
+        for (int i = 0; i < mRows; i++) {
+            if (mBookId[i] != 0)
+                count++;
+        }
+        final long[] keys = new long[count];
+        int n = 0;
+        for (int i = 0; i < mRows; i++) {
+            // Book IDs fit comfortably in the top 32 bits; the row makes the key unique and
+            // keeps rows for the same book in display order.
+            if (mBookId[i] != 0)
+                keys[n++] = (mBookId[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        final int[] rows = new int[count];
+        for (int i = 0; i < count; i++)
+            rows[i] = (int) (keys[i] & 0xFFFFFFFFL);
+        return rows;
+    }
+
+    /**
+     * Recalculate the list of visible rows after the flags change.
+     */
+    private void rebuildVisibleRows() {
+        if (mVisibleRows == null)
+            mVisibleRows = new int[mRows];
+        int n = 0;
+        for (int i = 0; i < mRows; i++) {
+            if (mVisible[i])
+                mVisibleRows[n++] = i;
+        }
+        mVisibleCount = n;
+    }
+
+    /**
+     * Total number of rows, visible or not.
+     */
+    public int getRowCount() {
+        return mRows;
+    }
+
+    /**
+     * Number of visible rows; the length of the displayed list.
+     */
+    public synchronized int getVisibleCount() {
+        return mVisibleCount;
+    }
+
+    /**
+     * Get the absolute row for a position in the displayed list.
+     */
+    public synchronized int getAbsoluteRow(int listPosition) {
+        return mVisibleRows[listPosition];
+    }
+
+    /**
+     * Given an absolute position, return the position in the displayed list. If the row is not
+     * visible, the previous visible row is used. Same rules as LibraryBuilder.getPosition().
+     */
+    public synchronized int getPosition(int absolutePosition) {
+        // Number of visible rows before the passed one
+        int lo = 0;
+        int hi = mVisibleCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mVisibleRows[mid] < absolutePosition)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        if (absolutePosition >= 0 && absolutePosition < mRows && mVisible[absolutePosition])
+            return lo;
+        else
+            return lo > 0 ? lo - 1 : 0;
+    }
+
+    /**
+     * Get all absolute rows for a book, in display order.
+     *
+     * @return Array of rows; empty if the book is not in the list
+     */
+    public int[] getBookRows(long bookId) {
+        // Find the first entry for the book
+        int lo = 0;
+        int hi = mRowsByBook.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBookId[mRowsByBook[mid]] < bookId)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int end = lo;
+        while (end < mRowsByBook.length && mBookId[mRowsByBook[end]] == bookId)
+            end++;
+        final int[] rows = new int[end - lo];
+        System.arraycopy(mRowsByBook, lo, rows, 0, rows.length);
+        return rows;
+    }
+
+    /**
+     * Get the book ID of each book row, and the navigator row ID (absolute position + 1) of
+     * each, in display order. Used to give a FlattenedBooklist an in-memory copy.
+     *
+     * @return Two arrays: row IDs and book IDs
+     */
+    public long[][] getFlattenedBooks() {
+        final long[] rowIds = new long[mRowsByBook.length];
+        final long[] bookIds = new long[mRowsByBook.length];
+        int n = 0;
+        for (int i = 0; i < mRows; i++) {
+            if (mBookId[i] != 0) {
+                rowIds[n] = i + 1;
+                bookIds[n] = mBookId[i];
+                n++;
+            }
+        }
+        return new long[][]{rowIds, bookIds};
+    }
+
+    public synchronized boolean isVisible(int row) {
+        return mVisible[row];
+    }
+
+    public synchronized boolean isExpanded(int row) {
+        return mExpanded[row];
+    }
+
+    public int getLevel(int row) {
+        return mLevel[row];
+    }
+
+    public long getBookId(int row) {
+        return mBookId[row];
+    }
+
+    /**
+     * Find the level 1 row at or before the passed row.
+     */
+    public int getRootRow(int row) {
+        while (row > 0 && mLevel[row] != 1)
+            row--;
+        return row;
+    }
+
+    /**
+     * Toggle the expanded state of a node, and show or hide the rows below it. Mirrors the
+     * navigator table updates in LibraryBuilder.toggleExpandNode().
+     */
+    public synchronized void toggleExpand(int row) {
+        final boolean exp = !mExpanded[row];
+        final int end = Math.min(mSubtreeEnd[row], mRows - 1);
+        for (int i = row + 1; i <= end; i++) {
+            mVisible[i] = exp;
+            mExpanded[i] = exp;
+        }
+        mExpanded[row] = exp;
+        rebuildVisibleRows();
+    }
+
+    /**
+     * Expand or collapse all nodes. Mirrors LibraryBuilder.expandAll().
+     */
+    public synchronized void expandAll(boolean expand) {
+        for (int i = 0; i < mRows; i++) {
+            mExpanded[i] = expand;
+            mVisible[i] = expand || mLevel[i] == 1;
+        }
+        rebuildVisibleRows();
+    }
+
+    public boolean isNull(int col, int row) {
+        if (mStrings[col] != null)
+            return mStrings[col][row] < 0;
+        else
+            return mNulls[col][row];
+    }
+
+    public String getString(int col, int row) {
+        if (mStrings[col] != null) {
+            final int i = mStrings[col][row];
+            return i < 0 ? null : mPool[i];
+        } else {
+            return mNulls[col][row] ? null : Long.toString(mLongs[col][row]);
+        }
+    }
+
+    public long getLong(int col, int row) {
+        if (mLongs[col] != null)
+            return mLongs[col][row];
+        // Same as SQLite: text that is not a number gives 0
+        final String s = getString(col, row);
+        if (s == null)
+            return 0;
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return (long) getDouble(col, row);
+        }
+    }
+
+    public double getDouble(int col, int row) {
+        if (mLongs[col] != null)
+            return mLongs[col][row];
+        final String s = getString(col, row);
+        if (s == null)
+            return 0;
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
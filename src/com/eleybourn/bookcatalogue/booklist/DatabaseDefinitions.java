@@ -137,6 +137,11 @@ public class DatabaseDefinitions {
 	public static final DomainDefinition DOM_SERIES_NUM = new DomainDefinition(KEY_SERIES_NUM, "integer", "", "");
 	public static final DomainDefinition DOM_SERIES_POSITION = new DomainDefinition(KEY_SERIES_POSITION, "integer", "", "");
 	public static final DomainDefinition DOM_STYLE = new DomainDefinition("style", "blob", "",  "not null");
+	/** ID of the last navigator row below a node; see LibraryBuilder.getSubtreeEndSql() */
+	public static final DomainDefinition DOM_SUBTREE_END = new DomainDefinition("subtree_end", "int", "", "");
+	public static final DomainDefinition DOM_SYNC_DELETE = new DomainDefinition("is_delete", "int", "default 0", "not null");
+	/** Number of flushes an outbox entry has failed in while others got through */
+	public static final DomainDefinition DOM_SYNC_FAILURES = new DomainDefinition("failures", "int", "default 0", "not null");
 	public static final DomainDefinition DOM_TITLE = new DomainDefinition(KEY_TITLE, "text", "", "");
 	public static final DomainDefinition DOM_TITLE_LETTER = new DomainDefinition("title_letter", "text", "", "");
 	public static final DomainDefinition DOM_UPDATE_DAY = new DomainDefinition("read_day", "int", "", "");
@@ -149,6 +154,14 @@ public class DatabaseDefinitions {
 			DOM_DESCRIPTION, DOM_NOTES, DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN)
 					.setType(TableTypes.FTS3);
 
+	/** Change log of books whose FTS data needs to be refreshed by the background indexer */
+	public static final TableDefinition TBL_BOOKS_FTS_DIRTY = new TableDefinition("books_fts_dirty", DOM_BOOK)
+		.addIndex("book", true, DOM_BOOK);
+
+	/** Books whose changes have not yet been sent to the cloud backup; ids increase with each change */
+	public static final TableDefinition TBL_SYNC_OUTBOX = new TableDefinition("sync_outbox", DOM_ID, DOM_BOOK, DOM_SYNC_DELETE, DOM_SYNC_FAILURES)
+		.addIndex("book", true, DOM_BOOK);
+
 	/** Temporary table used to store flattened bok lists */
 	public static final TableDefinition TBL_BOOK_LIST_DEF = new TableDefinition(TBL_BOOK_LIST_NAME, DOM_ID, DOM_LEVEL, DOM_KIND,
 			// Many others...this is a temp table created at runtime.
@@ -225,7 +238,7 @@ public class DatabaseDefinitions {
 
 	/** Definition of ROW_NAVIGATOR temp table */
 	public static final TableDefinition TBL_ROW_NAVIGATOR_DEF = new TableDefinition(TBL_BOOK_LIST_NAME + "_row_pos",
-			DOM_ID, DOM_REAL_ROW_ID, DOM_LEVEL, DOM_VISIBLE, DOM_EXPANDED, DOM_ROOT_KEY)
+			DOM_ID, DOM_REAL_ROW_ID, DOM_LEVEL, DOM_VISIBLE, DOM_EXPANDED, DOM_ROOT_KEY, DOM_SUBTREE_END)
 		.setType(TableTypes.Temporary)
 		.addReference(TBL_BOOK_LIST_DEF, DOM_REAL_ROW_ID)
 		.setAlias(ALIAS_BOOK_LIST_ROW_POSITION)
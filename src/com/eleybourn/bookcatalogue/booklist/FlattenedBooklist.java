@@ -11,6 +11,11 @@ import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
 import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition.TableTypes;
 import com.eleybourn.bookcatalogue.database.SqlStatementManager;
 
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+
 /**
  * Class to provide a simple interface into a temporary table containing a list of book IDs on
  * the same order as an underlying book list.
@@ -18,6 +23,39 @@ import com.eleybourn.bookcatalogue.database.SqlStatementManager;
  * @author pjw
  */
 public class FlattenedBooklist {
+	/**
+	 * In-memory copies of flattened lists, keyed by table name. Registered when the list was made
+	 * from an in-memory book list; the table still exists in case the process is restarted.
+	 * <p>
+	 * Held softly: a list that is abandoned without deleteData() (eg. its activity was destroyed
+	 * on an error path) is released under memory pressure, and a FlattenedBooklist opened after
+	 * that simply reads the table. Lists in use are held by their FlattenedBooklist.
+	 */
+	private static final Hashtable<String, SoftReference<long[][]>> sInMemoryLists = new Hashtable<>();
+
+	/**
+	 * Register an in-memory copy of a flattened list.
+	 *
+	 * @param tableName	Name of the table holding the same data
+	 * @param rowIds	Row IDs, ascending
+	 * @param bookIds	Book ID for each row
+	 */
+	static void registerInMemory(String tableName, long[] rowIds, long[] bookIds) {
+		synchronized(sInMemoryLists) {
+			// Forget lists that have been released
+			Iterator<SoftReference<long[][]>> i = sInMemoryLists.values().iterator();
+			while (i.hasNext()) {
+				if (i.next().get() == null)
+					i.remove();
+			}
+			sInMemoryLists.put(tableName, new SoftReference<>(new long[][] {rowIds, bookIds}));
+		}
+	}
+
+	/** Row IDs from the in-memory copy, or null if none */
+	private long[] mRowIds = null;
+	/** Book IDs from the in-memory copy, or null if none */
+	private long[] mBookIds = null;
 	/** Underlying temporary table definition */
 	private TableDefinition mTable;
 	/** Connection to db; we need this to keep the table alive */
@@ -62,6 +100,12 @@ public class FlattenedBooklist {
 		mDb = db;
 		mTable = table;
 		mStatements = new SqlStatementManager(mDb);
+		final SoftReference<long[][]> ref = sInMemoryLists.get(table.getName());
+		final long[][] data = ref == null ? null : ref.get();
+		if (data != null) {
+			mRowIds = data[0];
+			mBookIds = data[1];
+		}
 	}
 
 	/**
@@ -89,6 +133,7 @@ public class FlattenedBooklist {
 	 * Clean-up the underlying table
 	 */
 	public void deleteData() {
+		sInMemoryLists.remove(mTable.getName());
 		mTable.drop(mDb);
 		mTable.close();
 	}
@@ -115,6 +160,19 @@ public class FlattenedBooklist {
 		return true;
 	}
 
+	/**
+	 * Update the 'current' row details from an index into the in-memory copy.
+	 *
+	 * @return	true if the index is valid
+	 */
+	private boolean setPositionFromIndex(int i) {
+		if (i < 0 || i >= mRowIds.length)
+			return false;
+		mPosition = mRowIds[i];
+		mBookId = mBookIds[i];
+		return true;
+	}
+
 	/**
 	 * Check that the referenced table exists. This is important for resumed activities
 	 * where th underlying database connection may have closed and the table been deleted
@@ -134,6 +192,14 @@ public class FlattenedBooklist {
 	 * @return	true if successful
 	 */
 	public boolean moveNext() {
+		if (mRowIds != null) {
+			// First row after the current one, skipping rows for the same book
+			int i = Arrays.binarySearch(mRowIds, mPosition);
+			i = i >= 0 ? i + 1 : -i - 1;
+			while (i < mRowIds.length && mBookId != null && mBookIds[i] == mBookId)
+				i++;
+			return setPositionFromIndex(i);
+		}
 		SynchronizedStatement stmt = mStatements.get(NEXT_STMT_NAME);
 		if (stmt == null) {
 			String sql = "Select " + mTable.dot(DOM_ID) + "|| '/' || " + mTable.dot(DOM_BOOK) 
@@ -161,6 +227,14 @@ public class FlattenedBooklist {
 	 * @return	true if successful
 	 */
 	public boolean movePrev() {
+		if (mRowIds != null) {
+			// Last row before the current one, skipping rows for the same book
+			int i = Arrays.binarySearch(mRowIds, mPosition);
+			i = i >= 0 ? i - 1 : -i - 2;
+			while (i >= 0 && mBookId != null && mBookIds[i] == mBookId)
+				i--;
+			return setPositionFromIndex(i);
+		}
 		SynchronizedStatement stmt = mStatements.get(PREV_STMT_NAME);
 		if (stmt == null) {
 			String sql = "Select " + mTable.dot(DOM_ID) + "|| '/' || " + mTable.dot(DOM_BOOK) 
@@ -187,6 +261,16 @@ public class FlattenedBooklist {
      * The row ID should be the row number in the table, including header-related rows.
      */
 	public void moveTo(Integer pos) {
+		if (mRowIds != null) {
+			int i = Arrays.binarySearch(mRowIds, pos);
+			if (!setPositionFromIndex(i)) {
+				long posSav = mPosition;
+				mPosition = pos;
+				if (!moveNext() && !movePrev())
+					mPosition = posSav;
+			}
+			return;
+		}
 		SynchronizedStatement stmt = mStatements.get(MOVE_STMT_NAME);
 		if (stmt == null) {
 			String sql = "Select " + mTable.dot(DOM_ID) + "|| '/' || " + mTable.dot(DOM_BOOK) 
@@ -244,6 +328,8 @@ public class FlattenedBooklist {
 	 * @return	number of rows
 	 */
 	public long getCount() {
+		if (mRowIds != null)
+			return mRowIds.length;
 		SynchronizedStatement stmt = mStatements.get(COUNT_STMT_NAME);
 		if (stmt == null) {
 			String sql = "Select Count(*) From " + mTable.ref();
@@ -262,6 +348,11 @@ public class FlattenedBooklist {
 	 * @return	position
 	 */
 	public long getAbsolutePosition() {
+		if (mRowIds != null) {
+			// Number of rows with an ID <= the current one
+			int i = Arrays.binarySearch(mRowIds, mPosition);
+			return i >= 0 ? i + 1 : -i - 1;
+		}
 		SynchronizedStatement stmt = mStatements.get(POSITION_STMT_NAME);
 		if (stmt == null) {
 			String sql = "Select Count(*) From " + mTable.ref()
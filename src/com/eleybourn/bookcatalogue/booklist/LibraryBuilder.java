@@ -93,6 +93,7 @@ import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIE
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_NUM;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_NUM_FLOAT;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_POSITION;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SUBTREE_END;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_TITLE;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_TITLE_LETTER;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_UPDATE_DAY;
@@ -120,6 +121,7 @@ import android.database.sqlite.SQLiteDoneException;
 import androidx.annotation.NonNull;
 
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.booklist.LibraryGroup.BooklistAuthorGroup;
@@ -174,6 +176,20 @@ public class LibraryBuilder {
             + " Else " + TBL_AUTHORS.dot(DOM_GIVEN_NAMES) + "|| ' ' || " + TBL_AUTHORS.dot(DOM_FAMILY_NAME)
             + " End";
     private static Integer mBooklistBuilderIdCounter = 0;
+    /**
+     * Maximum number of changed books applied to a copy of a list by buildWithChanges(); beyond this
+     * a full build is likely to be as fast.
+     */
+    private static final int MAX_DELTA_BOOKS = 250;
+    /**
+     * Header rows are added by nested triggers as each book row is inserted in sorted order
+     */
+    public static final int BOOKLIST_GENERATE_NESTED_TRIGGER = 1;
+    /**
+     * Book rows are inserted without triggers, then the header rows for each level are added by
+     * a single grouped insert
+     */
+    public static final int BOOKLIST_GENERATE_GROUPED = 2;
 
     // List of columns for the group-by clause, including COLLATE clauses. Set by build() method.
     //private String mGroupColumnList;
@@ -231,11 +247,40 @@ public class LibraryBuilder {
     private SynchronizedStatement mGetPositionCheckVisibleStmt = null;
     private SynchronizedStatement mGetPositionStmt = null;
     private SynchronizedStatement mGetNodeRootStmt = null;
-    private SynchronizedStatement mGetNodeLevelStmt = null;
-    private SynchronizedStatement mGetNextAtSameLevelStmt = null;
+    private SynchronizedStatement mGetNodeRangeStmt = null;
+    private SynchronizedStatement mCountChangedStmt = null;
     private SynchronizedStatement mShowStmt = null;
     private SynchronizedStatement mExpandStmt = null;
     private boolean mReferenceDecremented = false;
+    /**
+     * 'Insert...' tail used to add the rows for specific books; ends with 'in (' ready for a list of book IDs
+     */
+    private String mDeltaSelectSql = null;
+    /**
+     * Order for the navigator table based only on the data in the list table, so that headers sort
+     * before their children even when rows were not added in order
+     */
+    private String mDeltaOrderBy = null;
+    /**
+     * Names of sorted domains; the sorted group domains identify a header, as in the header triggers
+     */
+    private HashSet<String> mSortedDomainNames = null;
+    /**
+     * Books with a last update date on or after this (UTC) may have changed since the list was built
+     */
+    private String mChangeWatermark = null;
+    /**
+     * Highest book ID when the list was built; anything higher is a new book
+     */
+    private long mMaxBookIdAtBuild = 0;
+    /**
+     * In-memory copy of the list, if created; see createSnapshot()
+     */
+    private BooklistSnapshot mSnapshot = null;
+    /**
+     * Number of visible rows in the navigator, kept up to date by expand/collapse; -1 if not known
+     */
+    private int mVisibleCount = -1;
 
     /**
      * Constructor
@@ -267,6 +312,39 @@ public class LibraryBuilder {
         mNavTable.setType(TableTypes.Temporary); //RELEASE Make sure is TEMPORARY
     }
 
+    /**
+     * Constructor used by buildWithChanges(). Takes the style, criteria and table layout of a
+     * builder that has already been built; the tables themselves are filled by applyChanges().
+     *
+     * @param previous Builder to copy
+     */
+    private LibraryBuilder(LibraryBuilder previous) {
+        // Allocate ID
+        synchronized (sBooklistBuilderIdLock) {
+            mBooklistBuilderId = ++mBooklistBuilderIdCounter;
+        }
+        mDb = previous.mDb;
+        mStatements = new SqlStatementManager(mDb);
+        mStyle = previous.mStyle;
+        mExtraDomains.putAll(previous.mExtraDomains);
+
+        // Same columns as the previous list, new names
+        mListTable = TBL_BOOK_LIST_DEF.clone();
+        mListTable.setName(mListTable.getName() + "_" + getId());
+        mListTable.setType(TableTypes.Temporary); //RELEASE Make sure is TEMPORARY
+        mListTable.addDomains(previous.mListTable.getDomains());
+
+        mNavTable = TBL_ROW_NAVIGATOR_DEF.clone()
+                .addReference(mListTable, DOM_REAL_ROW_ID)
+        ;
+        mNavTable.setName(mNavTable.getName() + "_" + getId());
+        mNavTable.setType(TableTypes.Temporary); //RELEASE Make sure is TEMPORARY
+
+        mDeltaSelectSql = previous.mDeltaSelectSql;
+        mDeltaOrderBy = previous.mDeltaOrderBy;
+        mSortedDomainNames = previous.mSortedDomainNames;
+    }
+
     @NonNull
     private static String getString(SummaryBuilder summary, boolean collationIsCs) {
         String sortColNameList;
@@ -324,9 +402,56 @@ public class LibraryBuilder {
                 + " Where " + mListTable.dot(DOM_BOOK) + " Not Null "
                 + " Order by " + mNavTable.dot(DOM_ID);
         mDb.execSQL(sql);
+        final BooklistSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            final long[][] books = snapshot.getFlattenedBooks();
+            FlattenedBooklist.registerInMemory(flat.getName(), books[0], books[1]);
+        }
         return new FlattenedBooklist(mDb, flat);
     }
 
+    /**
+     * Load the whole list, in display order, into memory. Once done, list cursors, position
+     * lookups and expand/collapse use the in-memory copy instead of querying the list tables;
+     * the tables are still maintained so that node settings and rebuilds work as before.
+     * Should be called in a background thread after the list is built.
+     *
+     * @return The snapshot
+     */
+    public BooklistSnapshot createSnapshot() {
+        if (mSnapshot != null)
+            return mSnapshot;
+
+        Tracker.handleEvent(this, "createSnapshot-" + getId(), Tracker.States.Enter);
+        try {
+            final ArrayList<DomainDefinition> domains = mListTable.getDomains();
+            final StringBuilder cols = new StringBuilder();
+            for (DomainDefinition d : domains) {
+                cols.append(mListTable.dot(d)).append(" as ").append(d.name).append(", ");
+            }
+            // Same columns as getOffsetCursor(), plus the navigator flags
+            final String sql = "select " + cols + " (" + mNavTable.dot(DOM_ID) + " - 1) As " + DOM_ABSOLUTE_POSITION
+                    + ", " + mNavTable.dot(DOM_VISIBLE) + ", " + mNavTable.dot(DOM_EXPANDED) + ", " + mNavTable.dot(DOM_SUBTREE_END)
+                    + " from " + mListTable.ref() + mListTable.join(mNavTable)
+                    + " Order by " + mNavTable.dot(DOM_ID);
+
+            try (Cursor c = mDb.rawQuery(sql, EMPTY_STRING_ARRAY)) {
+                mSnapshot = new BooklistSnapshot(c, domains.size() + 1,
+                        domains.indexOf(DOM_LEVEL), domains.indexOf(DOM_BOOK));
+            }
+            return mSnapshot;
+        } finally {
+            Tracker.handleEvent(this, "createSnapshot-" + getId(), Tracker.States.Exit);
+        }
+    }
+
+    /**
+     * Get the in-memory copy of the list, or null if createSnapshot() has not been called.
+     */
+    public BooklistSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
     /**
      * Accessor.
      */
@@ -375,11 +500,26 @@ public class LibraryBuilder {
 
     }
 
+    /**
+     * Get the way header rows will be generated, from the preferences.
+     */
+    private int getGenerationMode() {
+        int mode = BookCatalogueApp.getAppPreferences().getInt(BookCataloguePreferences.PREF_BOOKLIST_GENERATION_MODE, BOOKLIST_GENERATE_NESTED_TRIGGER);
+        if (mode != BOOKLIST_GENERATE_GROUPED)
+            mode = BOOKLIST_GENERATE_NESTED_TRIGGER;
+        return mode;
+    }
+
     /**
      * Drop and recreate all the data based on previous criteria
      */
     public void rebuild() {
+        if (mSummary == null)
+            throw new RuntimeException("List was not created by build(); use buildWithChanges() or a new builder");
         mSummary.recreateTable();
+        // Any in-memory copy is now out of date
+        mSnapshot = null;
+        mVisibleCount = -1;
 
         mNavTable.drop(mDb);
         mNavTable.create(mDb, true);
@@ -543,6 +683,8 @@ public class LibraryBuilder {
             // We can not use triggers to fill in headings in API < 8 since SQLite 3.5.9 is broken
             // Allow for the user preferences to override in case another build is broken.
             boolean flatTriggers = false;
+            // Triggers are the default; the grouped build does not need them at all.
+            final boolean groupedHeaders = getGenerationMode() == BOOKLIST_GENERATE_GROUPED;
             //// Based on the users choice, decide how the list will be generated.
             //switch(listMode) {
             //
@@ -971,6 +1113,14 @@ public class LibraryBuilder {
             // List of column names appropriate for 'Order By' clause
             String sortColNameList = getString(summary, collationIsCs);
 
+            // Save what is needed to apply later book changes to a copy of this list; see buildWithChanges()
+            mDeltaSelectSql = "(" + sqlCmp.destinationColumns + ") " + sqlCmp.select + "\n From\n" + sqlCmp.join
+                    + (sqlCmp.where.isEmpty() ? " where " : sqlCmp.where + " and ") + TBL_BOOKS.dot(DOM_ID) + " in (";
+            mDeltaOrderBy = getDeltaOrderBy(summary, collationIsCs);
+            mSortedDomainNames = new HashSet<>();
+            for (SortedDomainInfo sdi : summary.getSortedColumns())
+                mSortedDomainNames.add(sdi.domain.name);
+
             // Process the group-by columns suitable for a group-by statement or index
             {
                 final ArrayList<DomainDefinition> group = summary.cloneGroups();
@@ -990,13 +1140,20 @@ public class LibraryBuilder {
             try {
                 mLevelBuildStmt = new ArrayList<>();
 
+                // Anything changed after this point will be picked up by buildWithChanges()
+                saveChangeWatermark();
+
                 // Build the lowest level summary using our initial insert statement
                 // If we are using triggers, then we insert them in order and rely on the
                 // triggers to build the summary rows in the correct place.
-                String tgt = makeTriggers(summary, flatTriggers);
+                // Otherwise the book rows are added directly, and the headers are generated afterwards.
+                String tgt = groupedHeaders ? mListTable.getName() : makeTriggers(summary, flatTriggers);
                 mBaseBuildStmt = mStatements.add("mBaseBuildStmt", "Insert Into " + tgt + "(" + sqlCmp.destinationColumns + ") " + sqlCmp.select + "\n From\n" + sqlCmp.join + sqlCmp.where + " order by " + sortColNameList);
                 mBaseBuildStmt.execute();
 
+                if (groupedHeaders)
+                    makeGroupedHeaders();
+
                 // Analyze the table
                 mDb.execSQL("analyze " + mListTable);
 
@@ -1006,19 +1163,15 @@ public class LibraryBuilder {
                 mNavTable.drop(mDb);
                 mNavTable.create(mDb, true);
 
+                // Triggers add the rows in display order; grouped headers are added at the end.
                 String sortExpression;
-                sortExpression = mListTable.dot(DOM_ID);
+                if (groupedHeaders)
+                    sortExpression = mDeltaOrderBy;
+                else
+                    sortExpression = mListTable.dot(DOM_ID);
 
                 // TODO: Rebuild with state preserved is SLOWEST option. Need a better way to preserve state.
-                String insSql = mNavTable.getInsert(DOM_REAL_ROW_ID, DOM_LEVEL, DOM_ROOT_KEY, DOM_VISIBLE, DOM_EXPANDED) +
-                        " Select " + mListTable.dot(DOM_ID) + "," + mListTable.dot(DOM_LEVEL) + "," + mListTable.dot(DOM_ROOT_KEY) +
-                        " ,\n	Case When " + DOM_LEVEL + " = 1 Then 1 \n" +
-                        "	When " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_ROOT_KEY) + " is null Then 0\n	Else 1 end,\n " +
-                        "	Case When " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_ROOT_KEY) + " is null Then 0 Else 1 end\n" +
-                        " From " + mListTable.ref() + "\n	left outer join " + TBL_BOOK_LIST_NODE_SETTINGS.ref() +
-                        "\n		On " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_ROOT_KEY) + " = " + mListTable.dot(DOM_ROOT_KEY) +
-                        "\n			And " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_KIND) + " = " + mStyle.getGroupAt(0).kind +
-                        "\n	Order by " + sortExpression;
+                String insSql = getNavInsertSql(sortExpression);
                 // Always save the state-preserving navigator for rebuilds
                 SynchronizedStatement navStmt = mStatements.add("InsNav", insSql);
                 mLevelBuildStmt.add(navStmt);
@@ -1045,20 +1198,33 @@ public class LibraryBuilder {
 
                 // Create index on nav table
                 {
-                    String sql = "Create Index " + mNavTable + "_IX1" + " On " + mNavTable + "(" + DOM_LEVEL + "," + DOM_EXPANDED + "," + DOM_ROOT_KEY + ")";
-                    SynchronizedStatement ixStmt = mStatements.add("navIx1", sql);
+                    SynchronizedStatement ixStmt = mStatements.add("navIx1", getNavIndexSql()[0]);
                     mLevelBuildStmt.add(ixStmt);
                     ixStmt.execute();
                 }
 
                 {
                     // Essential for main query! If not present, will make getCount() take ages because main query is a cross with no index.
-                    String sql = "Create Unique Index " + mNavTable + "_IX2" + " On " + mNavTable + "(" + DOM_REAL_ROW_ID + ")";
-                    SynchronizedStatement ixStmt = mStatements.add("navIx2", sql);
+                    SynchronizedStatement ixStmt = mStatements.add("navIx2", getNavIndexSql()[1]);
+                    mLevelBuildStmt.add(ixStmt);
+                    ixStmt.execute();
+                }
+
+                {
+                    // Used to find the end of each node's rows
+                    SynchronizedStatement ixStmt = mStatements.add("navIx3", getNavIndexSql()[2]);
                     mLevelBuildStmt.add(ixStmt);
                     ixStmt.execute();
                 }
 
+                // Record the range of rows below each node so expand/collapse can go straight to them
+                String[] endSql = getSubtreeEndSql();
+                for (int i = 0; i < endSql.length; i++) {
+                    SynchronizedStatement endStmt = mStatements.add("navEnd" + i, endSql[i]);
+                    mLevelBuildStmt.add(endStmt);
+                    endStmt.execute();
+                }
+
                 mDb.execSQL("analyze " + mNavTable);
                 mDb.setTransactionSuccessful();
 
@@ -1099,6 +1265,353 @@ public class LibraryBuilder {
         }
     }
 
+    /**
+     * SQL to fill the navigator table from the list table, preserving the expanded state of
+     * top level nodes via the node settings table.
+     *
+     * @param orderBy Order of the rows in the navigator (and therefore the displayed list)
+     */
+    private String getNavInsertSql(String orderBy) {
+        return mNavTable.getInsert(DOM_REAL_ROW_ID, DOM_LEVEL, DOM_ROOT_KEY, DOM_VISIBLE, DOM_EXPANDED) +
+                " Select " + mListTable.dot(DOM_ID) + "," + mListTable.dot(DOM_LEVEL) + "," + mListTable.dot(DOM_ROOT_KEY) +
+                " ,\n	Case When " + DOM_LEVEL + " = 1 Then 1 \n" +
+                "	When " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_ROOT_KEY) + " is null Then 0\n	Else 1 end,\n " +
+                "	Case When " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_ROOT_KEY) + " is null Then 0 Else 1 end\n" +
+                " From " + mListTable.ref() + "\n	left outer join " + TBL_BOOK_LIST_NODE_SETTINGS.ref() +
+                "\n		On " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_ROOT_KEY) + " = " + mListTable.dot(DOM_ROOT_KEY) +
+                "\n			And " + TBL_BOOK_LIST_NODE_SETTINGS.dot(DOM_KIND) + " = " + mStyle.getGroupAt(0).kind +
+                "\n	Order by " + orderBy;
+    }
+
+    /**
+     * SQL for the indexes on the navigator table.
+     */
+    private String[] getNavIndexSql() {
+        return new String[]{
+                "Create Index " + mNavTable + "_IX1" + " On " + mNavTable + "(" + DOM_LEVEL + "," + DOM_EXPANDED + "," + DOM_ROOT_KEY + ")",
+                "Create Unique Index " + mNavTable + "_IX2" + " On " + mNavTable + "(" + DOM_REAL_ROW_ID + ")",
+                "Create Index " + mNavTable + "_IX3" + " On " + mNavTable + "(" + DOM_LEVEL + "," + DOM_ID + ")"
+        };
+    }
+
+    /**
+     * SQL to set the subtree end of every navigator row: the ID of the last row below it. The rows
+     * of a node are then the contiguous range (ID, subtree end]. A node ends just before the next
+     * row at the same or a higher level, which is found with one index lookup on (level, ID) per
+     * level above it.
+     */
+    private String[] getSubtreeEndSql() {
+        final String nav = mNavTable.getName();
+        final int leafLevel = mStyle.size() + 1;
+        final String[] sql = new String[leafLevel];
+        // If there is no following row, the node runs to the end of the list
+        final String lastRow = "(Select max(" + DOM_ID + ") From " + nav + ") + 1";
+        for (int level = 1; level < leafLevel; level++) {
+            final StringBuilder next = new StringBuilder();
+            for (int k = 1; k <= level; k++) {
+                if (k > 1)
+                    next.append(", ");
+                next.append("Coalesce((Select min(n.").append(DOM_ID).append(") From ").append(nav).append(" n Where n.")
+                        .append(DOM_LEVEL).append(" = ").append(k).append(" and n.").append(DOM_ID).append(" > ")
+                        .append(nav).append(".").append(DOM_ID).append("), ").append(lastRow).append(")");
+            }
+            // The multi-argument min() is a scalar function; with one argument it would be an aggregate
+            final String expr = level == 1 ? next.toString() : "min(" + next + ")";
+            sql[level - 1] = "Update " + nav + " Set " + DOM_SUBTREE_END + " = " + expr + " - 1 Where " + DOM_LEVEL + " = " + level;
+        }
+        // Books have no rows below them
+        sql[leafLevel - 1] = "Update " + nav + " Set " + DOM_SUBTREE_END + " = " + DOM_ID + " Where " + DOM_LEVEL + " = " + leafLevel;
+        return sql;
+    }
+
+    /**
+     * Build an 'Order By' list for the navigator that does not depend on the order rows were added
+     * to the list table. For each level, the sorted group domains of that level are followed by
+     * '(level > n)', which puts a header before the rows below it regardless of the sort direction.
+     * The remaining sorted domains then order the books within their lowest group.
+     */
+    private String getDeltaOrderBy(SummaryBuilder summary, boolean collationIsCs) {
+        final StringBuilder order = new StringBuilder();
+        final HashSet<DomainDefinition> used = new HashSet<>();
+        for (int i = 0; i < mStyle.size(); i++) {
+            final LibraryGroup g = mStyle.getGroupAt(i);
+            for (SortedDomainInfo sdi : summary.getSortedColumns()) {
+                if (g.groupDomains.contains(sdi.domain) && used.add(sdi.domain))
+                    appendOrderColumn(order, sdi, collationIsCs);
+            }
+            order.append(mListTable.dot(DOM_LEVEL)).append(" > ").append(i + 1).append(", ");
+        }
+        for (SortedDomainInfo sdi : summary.getSortedColumns()) {
+            if (!sdi.domain.equals(DOM_LEVEL) && used.add(sdi.domain))
+                appendOrderColumn(order, sdi, collationIsCs);
+        }
+        order.append(mListTable.dot(DOM_ID));
+        return order.toString();
+    }
+
+    /**
+     * Add a single sort column, handling collation the same way as the main build.
+     */
+    private void appendOrderColumn(StringBuilder order, SortedDomainInfo sdi, boolean collationIsCs) {
+        final String col = mListTable.dot(sdi.domain);
+        if (sdi.domain.type.equalsIgnoreCase("text")) {
+            if (collationIsCs)
+                order.append("lower(").append(col).append(")");
+            else
+                order.append(col);
+            order.append(CatalogueDBAdapter.COLLATION);
+        } else {
+            order.append(col);
+        }
+        if (sdi.isDescending)
+            order.append(" desc");
+        order.append(", ");
+    }
+
+    /**
+     * Record the point from which book changes must be applied by buildWithChanges(). The time is
+     * backed off slightly; re-applying a book that did not change is harmless.
+     */
+    private void saveChangeWatermark() {
+        try (Cursor c = mDb.rawQuery("Select datetime('now', '-2 seconds'), Coalesce(max(" + DOM_ID + "), 0) From " + TBL_BOOKS, EMPTY_STRING_ARRAY)) {
+            c.moveToFirst();
+            mChangeWatermark = c.getString(0);
+            mMaxBookIdAtBuild = c.getLong(1);
+        }
+    }
+
+    /**
+     * Get the books that were added, updated or deleted since this list was built.
+     *
+     * @return Comma separated list of book IDs, empty if none, or null if there are too many to
+     * apply as changes
+     */
+    private String getChangedBookIdList() {
+        final int leafLevel = mStyle.size() + 1;
+        // Nearly all edits, including global ones such as renaming a series, update the last update
+        // date of each book affected. Deleted books are found by checking the list itself.
+        final String sql = "Select " + TBL_BOOKS.dot(DOM_ID) + " From " + TBL_BOOKS.ref()
+                + " Where " + TBL_BOOKS.dot(DOM_LAST_UPDATE_DATE) + " >= ? or " + TBL_BOOKS.dot(DOM_ID) + " > " + mMaxBookIdAtBuild
+                + " Union Select " + mListTable.dot(DOM_BOOK) + " From " + mListTable.ref()
+                + " Where " + mListTable.dot(DOM_LEVEL) + " = " + leafLevel
+                + " and Not Exists(Select 1 From " + TBL_BOOKS.ref() + " Where " + TBL_BOOKS.dot(DOM_ID) + " = " + mListTable.dot(DOM_BOOK) + ")"
+                + " Limit " + (MAX_DELTA_BOOKS + 1);
+
+        final StringBuilder ids = new StringBuilder();
+        try (Cursor c = mDb.rawQuery(sql, new String[]{mChangeWatermark})) {
+            if (c.getCount() > MAX_DELTA_BOOKS)
+                return null;
+            while (c.moveToNext()) {
+                if (ids.length() > 0)
+                    ids.append(",");
+                ids.append(c.getLong(0));
+            }
+        }
+        return ids.toString();
+    }
+
+    /**
+     * Get a builder for the same style and criteria whose list reflects the books that were added,
+     * updated or deleted since this list was built. The new list is a copy of this one with only
+     * the rows of the changed books replaced, and headers added or removed for the groups they
+     * joined or left; the navigator is then regenerated in sort order. This avoids re-running the
+     * full query and the header triggers for every book in the list.
+     * <p>
+     * This builder and its tables are not changed, so an existing cursor over it stays valid
+     * until the caller switches to the new list.
+     *
+     * @return The new builder, this builder if nothing changed, or null if a full build() is
+     * needed (this builder was not built, or too many books changed)
+     */
+    public LibraryBuilder buildWithChanges() {
+        if (mDeltaSelectSql == null || mChangeWatermark == null)
+            return null;
+
+        Tracker.handleEvent(this, "buildWithChanges-" + getId(), Tracker.States.Enter);
+        try {
+            final String idList = getChangedBookIdList();
+            if (idList == null)
+                return null;
+            if (idList.isEmpty())
+                return this;
+
+            LibraryBuilder b = new LibraryBuilder(this);
+            boolean ok = false;
+            try {
+                b.applyChanges(this, idList);
+                ok = true;
+            } finally {
+                if (!ok)
+                    b.close();
+            }
+            return b;
+        } finally {
+            Tracker.handleEvent(this, "buildWithChanges-" + getId(), Tracker.States.Exit);
+        }
+    }
+
+    /**
+     * Fill the tables of a builder created by the copy constructor; see buildWithChanges().
+     *
+     * @param previous Builder whose list is copied
+     * @param idList   Comma separated list of changed book IDs
+     */
+    private void applyChanges(LibraryBuilder previous, String idList) {
+        final int leafLevel = mStyle.size() + 1;
+        final String changedRows = " Where " + DOM_LEVEL + " = " + leafLevel + " and " + DOM_BOOK + " in (" + idList + ")";
+        final String deltaTbl = mListTable + "_delta";
+
+        SyncLock txLock = mDb.beginTransaction(true);
+        try {
+            saveChangeWatermark();
+
+            // Start with a copy of the previous list
+            StringBuilder cols = new StringBuilder();
+            for (DomainDefinition d : mListTable.getDomains()) {
+                if (cols.length() > 0)
+                    cols.append(", ");
+                cols.append(d.name);
+            }
+            mListTable.create(mDb, false);
+            mDb.execSQL("Insert Into " + mListTable + " (" + cols + ") Select " + cols + " From " + previous.mListTable);
+
+            // Keep the old rows of the changed books; the groups they were in may now be empty.
+            mDb.execSQL("Drop Table If Exists " + deltaTbl);
+            mDb.execSQL("Create Temp Table " + deltaTbl + " As Select * From " + mListTable + changedRows);
+            mDb.execSQL("Delete From " + mListTable + changedRows);
+
+            // Add the current rows for the books that still meet the criteria, and keep those too
+            // since the groups they are in may be new.
+            mDb.execSQL("Insert Into " + mListTable + " " + mDeltaSelectSql + idList + ")");
+            mDb.execSQL("Insert Into " + deltaTbl + " Select * From " + mListTable + changedRows);
+
+            for (int i = 0; i < mStyle.size(); i++)
+                applyHeaderChanges(i, deltaTbl, idList);
+
+            mDb.execSQL("Drop Table " + deltaTbl);
+            mDb.execSQL("analyze " + mListTable);
+
+            // The row IDs no longer reflect the sort order, so order the navigator by the data.
+            mNavTable.create(mDb, true);
+            mDb.execSQL(getNavInsertSql(mDeltaOrderBy));
+            for (String sql : getNavIndexSql())
+                mDb.execSQL(sql);
+            for (String sql : getSubtreeEndSql())
+                mDb.execSQL(sql);
+            mDb.execSQL("analyze " + mNavTable);
+
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction(txLock);
+        }
+    }
+
+    /**
+     * Remove the headers of groups at one level that the changed books left and that are now empty,
+     * and add headers for groups they joined that did not exist. Headers are matched on the sorted
+     * group domains, as in the header triggers.
+     *
+     * @param groupIndex Index of the group in the style; the level is one more
+     * @param deltaTbl   Table holding the old and new rows of the changed books
+     * @param idList     Comma separated list of changed book IDs
+     */
+    private void applyHeaderChanges(int groupIndex, String deltaTbl, String idList) {
+        final LibraryGroup g = mStyle.getGroupAt(groupIndex);
+        final int level = groupIndex + 1;
+        final int leafLevel = mStyle.size() + 1;
+        final String tbl = mListTable.getName();
+
+        final ArrayList<DomainDefinition> keys = getGroupKeys(g);
+
+        // Headers of groups the books left, if nothing else is in them now
+        mDb.execSQL("Delete From " + tbl + " Where " + DOM_LEVEL + " = " + level
+                + " and Exists(Select 1 From " + deltaTbl + " d Where " + matchGroup(keys, tbl, "d") + ")"
+                + " and Not Exists(Select 1 From " + tbl + " c Where c." + DOM_LEVEL + " = " + leafLevel
+                + " and " + matchGroup(keys, tbl, "c") + ")");
+
+        // Headers for groups the books joined, if not already present
+        mDb.execSQL(getGroupedHeaderSql(groupIndex, keys, " and c." + DOM_BOOK + " in (" + idList + ")")
+                + " Where Not Exists(Select 1 From " + tbl + " h Where h." + DOM_LEVEL + " = " + level
+                + " and " + matchGroup(keys, "h", "n") + ")");
+    }
+
+    /**
+     * Get the sorted domains of a group; these identify a header, as in the header triggers.
+     */
+    private ArrayList<DomainDefinition> getGroupKeys(LibraryGroup g) {
+        final ArrayList<DomainDefinition> keys = new ArrayList<>();
+        for (DomainDefinition d : g.groupDomains) {
+            if (mSortedDomainNames.contains(d.name))
+                keys.add(d);
+        }
+        return keys;
+    }
+
+    /**
+     * Build an 'Insert...Select' that adds one header row at the level of the passed group for each
+     * distinct set of key values among the book rows. The book rows are aliased 'c' and the grouped
+     * rows 'n', so callers can append a 'Where' clause to filter the headers.
+     *
+     * @param groupIndex Index of the group in the style; the level is one more
+     * @param keys       Sorted domains of the group
+     * @param leafFilter Extra condition on the book rows (starting with ' and '), or an empty string
+     */
+    private String getGroupedHeaderSql(int groupIndex, ArrayList<DomainDefinition> keys, String leafFilter) {
+        final LibraryGroup g = mStyle.getGroupAt(groupIndex);
+        final int level = groupIndex + 1;
+        final int leafLevel = mStyle.size() + 1;
+        final String tbl = mListTable.getName();
+
+        final StringBuilder cols = new StringBuilder(DOM_LEVEL + ", " + DOM_KIND + ", " + DOM_ROOT_KEY);
+        final StringBuilder exprs = new StringBuilder(level + " as " + DOM_LEVEL + ", " + g.kind + " as " + DOM_KIND
+                + ", max(c." + DOM_ROOT_KEY + ") as " + DOM_ROOT_KEY);
+        for (DomainDefinition d : g.groupDomains) {
+            cols.append(", ").append(d);
+            exprs.append(", max(c.").append(d).append(") as ").append(d);
+        }
+        final StringBuilder groupBy = new StringBuilder();
+        for (DomainDefinition d : keys) {
+            if (groupBy.length() > 0)
+                groupBy.append(", ");
+            groupBy.append("Coalesce(c.").append(d).append(", '')").append(CatalogueDBAdapter.COLLATION);
+        }
+        return "Insert Into " + tbl + " (" + cols + ") Select " + cols + " From ("
+                + "Select " + exprs + " From " + tbl + " c Where c." + DOM_LEVEL + " = " + leafLevel + leafFilter
+                // Without a 'Group By' an aggregate returns a row even when there are no books
+                + (groupBy.length() > 0 ? " Group By " + groupBy : " Having count(*) > 0") + ") n";
+    }
+
+    /**
+     * Add the header rows for every level after the book rows have been added, using one grouped
+     * insert per level instead of the per-row header triggers. The header rows end up after the
+     * book rows in the list table, so the navigator must be ordered by the data rather than by
+     * row ID; see getDeltaOrderBy().
+     */
+    private void makeGroupedHeaders() {
+        for (int i = 0; i < mStyle.size(); i++) {
+            final String sql = getGroupedHeaderSql(i, getGroupKeys(mStyle.getGroupAt(i)), "");
+            SynchronizedStatement stmt = mStatements.add("Headers L" + i, sql);
+            mLevelBuildStmt.add(stmt);
+            stmt.execute();
+        }
+    }
+
+    /**
+     * Condition matching two rows on the passed domains, using the same comparison as the header triggers.
+     */
+    private String matchGroup(ArrayList<DomainDefinition> keys, String a, String b) {
+        if (keys.isEmpty())
+            return "1 = 1";
+        final StringBuilder cond = new StringBuilder();
+        for (DomainDefinition d : keys) {
+            if (cond.length() > 0)
+                cond.append(" and ");
+            cond.append("Coalesce(").append(a).append(".").append(d).append(", '') = Coalesce(")
+                    .append(b).append(".").append(d).append(", '')").append(CatalogueDBAdapter.COLLATION);
+        }
+        return cond.toString();
+    }
+
     /**
      * Build a collection of triggers on the list table designed to fill in the summary/header records
      * as the data records are added in sorted order.
@@ -1417,6 +1930,17 @@ public class LibraryBuilder {
      * @return    ArrayList	Array of row details, including absolute positions and visibility. Null if not present
      */
     public ArrayList<BookRowInfo> getBookAbsolutePositions(long bookId) {
+        final BooklistSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            int[] found = snapshot.getBookRows(bookId);
+            if (found.length == 0)
+                return null;
+            ArrayList<BookRowInfo> rows = new ArrayList<>();
+            for (int absPos : found)
+                rows.add(new BookRowInfo(absPos, snapshot.getPosition(absPos), snapshot.isVisible(absPos) ? 1 : 0));
+            return rows;
+        }
+
         String sql = "select " + mNavTable.dot(DOM_ID) + ", " + mNavTable.dot(DOM_VISIBLE) + " From " + mListTable + " bl "
                 + mListTable.join(mNavTable) + " Where " + mListTable.dot(DOM_BOOK) + " = " + bookId;
 
@@ -1488,7 +2012,12 @@ public class LibraryBuilder {
      * logical count of rows using a simple query rather than scanning the entire result set.
      */
     public int getPseudoCount() {
-        return pseudoCount("Select count(*) from " + mNavTable + " Where " + DOM_VISIBLE + " = 1");
+        if (mSnapshot != null)
+            return mSnapshot.getVisibleCount();
+        // Counted once, then kept up to date by expand/collapse
+        if (mVisibleCount < 0)
+            mVisibleCount = pseudoCount("Select count(*) from " + mNavTable + " Where " + DOM_VISIBLE + " = 1");
+        return mVisibleCount;
     }
 
     /**
@@ -1542,6 +2071,9 @@ public class LibraryBuilder {
      * @return        Actual list position.
      */
     public int getPosition(int absolutePosition) {
+        if (mSnapshot != null)
+            return mSnapshot.getPosition(absolutePosition);
+
         if (mGetPositionCheckVisibleStmt == null) {
             String sql = "Select visible from " + mNavTable + " Where " + DOM_ID + " = ?";
             mGetPositionCheckVisibleStmt = mStatements.add("mGetPositionCheckVisibleStmt", sql);
@@ -1583,6 +2115,16 @@ public class LibraryBuilder {
 
         final long rowId = absPos + 1;
 
+        final BooklistSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            if (absPos >= snapshot.getRowCount())
+                return;
+            final int root = snapshot.getRootRow((int) absPos);
+            if (root != absPos && !snapshot.isExpanded(root))
+                toggleExpandNode(root);
+            return;
+        }
+
         if (mGetNodeRootStmt == null) {
             String sql = "Select " + DOM_ID + "||'/'||" + DOM_EXPANDED + " From " + mNavTable + " Where " + DOM_LEVEL + " = 1 and " + DOM_ID + " <= ? Order by " + DOM_ID + " Desc Limit 1";
             mGetNodeRootStmt = mStatements.add("mGetNodeRootStmt", sql);
@@ -1602,22 +2144,19 @@ public class LibraryBuilder {
      * Build statements used by expand/collapse code.
      */
     private void buildExpandNodeStatements() {
-        if (mGetNodeLevelStmt == null) {
-            String sql = "Select " + DOM_LEVEL + "||'/'||" + DOM_EXPANDED + " From " + mNavTable.ref() + " Where " + mNavTable.dot(DOM_ID) + " = ?";
-            mGetNodeLevelStmt = mStatements.add("mGetNodeLevelStmt", sql);
+        if (mGetNodeRangeStmt == null) {
+            String sql = "Select " + DOM_EXPANDED + "||'/'||" + DOM_SUBTREE_END + " From " + mNavTable.ref() + " Where " + mNavTable.dot(DOM_ID) + " = ?";
+            mGetNodeRangeStmt = mStatements.add("mGetNodeRangeStmt", sql);
         }
-        if (mGetNextAtSameLevelStmt == null) {
-            String sql = "Select Coalesce( max(" + DOM_ID + "), -1) From (" +
-                    " Select " + DOM_ID + " From " + mNavTable.ref() + " Where " +
-                    mNavTable.dot(DOM_ID) + " > ?" +
-                    " and " + mNavTable.dot(DOM_LEVEL) + " = ?" +
-                    " Order by " + DOM_ID + " Limit 1) zzz";
-            mGetNextAtSameLevelStmt = mStatements.add("mGetNextAtSameLevelStmt", sql);
+        if (mCountChangedStmt == null) {
+            String sql = "Select count(*) From " + mNavTable +
+                    " where " + DOM_ID + " > ? and " + DOM_ID + " <= ? and " + DOM_VISIBLE + " <> ?";
+            mCountChangedStmt = mStatements.add("mCountChangedStmt", sql);
         }
         if (mShowStmt == null) {
             String sql = "Update " + mNavTable +
                     " Set " + DOM_VISIBLE + " = ?," + DOM_EXPANDED + " = ?" +
-                    " where " + DOM_ID + " > ? and " + DOM_LEVEL + " > ? and " + DOM_ID + " < ?";
+                    " where " + DOM_ID + " > ? and " + DOM_ID + " <= ?";
             mShowStmt = mStatements.add("mShowStmt", sql);
         }
         if (mExpandStmt == null) {
@@ -1644,6 +2183,13 @@ public class LibraryBuilder {
             mDb.execSQL(sql);
             deleteListNodeSettings();
         }
+        // Every row, or just the top level rows, are now visible. IDs run from 1 with no gaps.
+        if (expand)
+            mVisibleCount = pseudoCount("Select Coalesce(max(" + DOM_ID + "), 0) From " + mNavTable);
+        else
+            mVisibleCount = pseudoCount("Select count(*) From " + mNavTable + " Where " + DOM_LEVEL + " = 1");
+        if (mSnapshot != null)
+            mSnapshot.expandAll(expand);
     }
 
     /**
@@ -1658,33 +2204,39 @@ public class LibraryBuilder {
         // row position starts at 0, id's start at 1...
         final long rowId = absPos + 1;
 
-        // Get the details of the passed row position.
-        mGetNodeLevelStmt.bindLong(1, rowId);
-        String[] info = mGetNodeLevelStmt.simpleQueryForString().split("/");
-        long level = Long.parseLong(info[0]);
-        int exp = (Integer.parseInt(info[1]) == 1) ? 0 : 1;
-
-        // Find the next row at the same level
-        mGetNextAtSameLevelStmt.bindLong(1, rowId);
-        mGetNextAtSameLevelStmt.bindLong(2, level);
-        long next = mGetNextAtSameLevelStmt.simpleQueryForLong();
-        if (next < 0)
-            next = Long.MAX_VALUE;
-
-        // Mark intervening nodes as visible/invisible
-        mShowStmt.bindLong(1, exp);
-        mShowStmt.bindLong(2, exp);
-        mShowStmt.bindLong(3, rowId);
-        mShowStmt.bindLong(4, level);
-        mShowStmt.bindLong(5, next);
+        // Get the details of the passed row position; its rows are the range (rowId, end]
+        mGetNodeRangeStmt.bindLong(1, rowId);
+        String[] info = mGetNodeRangeStmt.simpleQueryForString().split("/");
+        int exp = (Integer.parseInt(info[0]) == 1) ? 0 : 1;
+        long end = Long.parseLong(info[1]);
+
+        if (end > rowId) {
+            // Keep the visible count up to date from the rows that will change
+            if (mVisibleCount >= 0) {
+                mCountChangedStmt.bindLong(1, rowId);
+                mCountChangedStmt.bindLong(2, end);
+                mCountChangedStmt.bindLong(3, exp);
+                int changed = (int) mCountChangedStmt.simpleQueryForLong();
+                mVisibleCount += (exp == 1) ? changed : -changed;
+            }
 
-        mShowStmt.execute();
+            // Mark intervening nodes as visible/invisible
+            mShowStmt.bindLong(1, exp);
+            mShowStmt.bindLong(2, exp);
+            mShowStmt.bindLong(3, rowId);
+            mShowStmt.bindLong(4, end);
+            mShowStmt.execute();
+        }
 
         // Mark this node as expanded.
         mExpandStmt.bindLong(1, exp);
         mExpandStmt.bindLong(2, rowId);
         mExpandStmt.execute();
 
+        // Keep the in-memory copy in step
+        if (mSnapshot != null)
+            mSnapshot.toggleExpand((int) absPos);
+
         // Update settings
         saveListNodeSetting(rowId);
     }
@@ -1757,8 +2309,8 @@ public class LibraryBuilder {
         mGetPositionCheckVisibleStmt = null;
         mGetPositionStmt = null;
         mGetNodeRootStmt = null;
-        mGetNodeLevelStmt = null;
-        mGetNextAtSameLevelStmt = null;
+        mGetNodeRangeStmt = null;
+        mCountChangedStmt = null;
         mShowStmt = null;
         mExpandStmt = null;
     }
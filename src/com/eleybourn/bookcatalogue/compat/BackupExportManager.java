@@ -90,6 +90,14 @@ public class BackupExportManager
                     Exporter.EXPORT_ALL,
                     null,
                     this);
+        } else if ((settings.options & Exporter.EXPORT_INCREMENTAL) != 0) {
+            // The writer works out what changed from the manifest of the last backup
+            mBackupFile = BackupManager.backupCatalogue(activity,
+                    settings.file,
+                    ID.TASK_ID_SAVE,
+                    settings.options,
+                    null,
+                    this);
         } else if (settings.options != 0) {
             if (settings.dateFrom == null) {
                 String lastBackup = BookCatalogueApp.getAppPreferences().getString(
@@ -2,14 +2,15 @@ package com.eleybourn.bookcatalogue.compat;
 
 import android.content.ActivityNotFoundException;
 import android.content.Intent;
+import android.net.Uri;
 import android.widget.Toast;
 
 import com.eleybourn.bookcatalogue.ID;
 import com.eleybourn.bookcatalogue.R;
+import com.eleybourn.bookcatalogue.backup.BackupContainer;
 import com.eleybourn.bookcatalogue.backup.BackupManager;
 import com.eleybourn.bookcatalogue.backup.BackupManager.BackupListener;
 import com.eleybourn.bookcatalogue.backup.Importer;
-import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
 import com.eleybourn.bookcatalogue.dialogs.ImportTypeSelectionDialogFragment;
 import com.eleybourn.bookcatalogue.dialogs.ImportTypeSelectionDialogFragment.OnImportTypeSelectionDialogResultListener;
 import com.eleybourn.bookcatalogue.dialogs.MessageDialogFragment;
@@ -18,9 +19,14 @@ import com.eleybourn.bookcatalogue.utils.SimpleTaskQueueProgressFragment;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueueProgressFragment.FragmentTask;
 
 import androidx.activity.result.ActivityResultLauncher;
-import androidx.activity.result.contract.ActivityResultContracts.OpenDocument;
+import androidx.activity.result.contract.ActivityResultContracts.OpenMultipleDocuments;
 import androidx.documentfile.provider.DocumentFile;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class BackupImportManager
 		implements OnImportTypeSelectionDialogResultListener,
 				   BackupListener
@@ -40,9 +46,17 @@ public class BackupImportManager
 										   .getSimpleName() + " must implement OnImportTypeSelectionDialogResultListener");
 		}
 
+        // Several files can be selected, to restore a full backup and the incremental backups based on it
         mBackupImportPickerLauncher = activity.registerForActivityResult(
-				new OpenDocument(),
-				result -> {
+				new OpenMultipleDocuments(),
+				results -> {
+					if (results == null || results.isEmpty())
+						return;
+					if (results.size() > 1) {
+						openChain(activity, results);
+						return;
+					}
+					final Uri result = results.get(0);
 					if (result != null) {
 						try {
 							activity.getContentResolver().takePersistableUriPermission(result, Intent.FLAG_GRANT_READ_URI_PERMISSION);
@@ -52,7 +66,7 @@ public class BackupImportManager
 						try {
 							DocumentFile f = DocumentFile.fromSingleUri(activity, result);
 							if (f != null) {
-								TarBackupContainer bkp = new TarBackupContainer(activity, f);
+								BackupContainer bkp = BackupManager.openContainer(activity, f);
 								// Each format should provide a validator of some kind
 								if (!bkp.isValid()) {
 									Toast.makeText(activity,
@@ -73,6 +87,29 @@ public class BackupImportManager
 		);
 	}
 
+	/**
+	 * Check that the selected files are a full backup and the incremental backups based on it,
+	 * and ask how to import them.
+	 */
+	private void openChain(BookCatalogueActivity activity, List<Uri> uris) {
+		final List<DocumentFile> files = new ArrayList<>();
+		for (Uri uri : uris) {
+			DocumentFile f = DocumentFile.fromSingleUri(activity, uri);
+			if (f != null)
+				files.add(f);
+		}
+		final List<DocumentFile> chain;
+		try {
+			chain = BackupManager.getRestoreOrder(activity, files);
+		} catch (IOException e) {
+			Logger.logError(e, "Error opening backup files");
+			Toast.makeText(activity, R.string.invalid_backup_chain, Toast.LENGTH_LONG).show();
+			return;
+		}
+		ImportTypeSelectionDialogFragment frag = ImportTypeSelectionDialogFragment.newInstance(ID.DIALOG_OPEN_IMPORT_TYPE, chain);
+		frag.show(activity.getSupportFragmentManager(), null);
+	}
+
 	public void start() {
 		try {
 			mBackupImportPickerLauncher.launch(new String[] {"*/*"});
@@ -86,10 +123,12 @@ public class BackupImportManager
 	public void onImportTypeSelectionDialogResult(int dialogId, ImportTypeSelectionDialogFragment dialog, int rowId, DocumentFile file) {
 		BookCatalogueActivity activity = (BookCatalogueActivity) dialog.requireActivity();
 
+		// A full backup and the incremental backups based on it are restored in turn
+		final List<DocumentFile> files = dialog.getChain() != null ? dialog.getChain() : Collections.singletonList(file);
         if (rowId == R.id.all_books_row) {
-			BackupManager.restoreCatalogue(activity, file, ID.TASK_ID_OPEN, Importer.IMPORT_ALL, this);
+			BackupManager.restoreCatalogue(activity, files, ID.TASK_ID_OPEN, Importer.IMPORT_ALL, this);
 		} else if (rowId == R.id.new_and_changed_books_row) {
-			BackupManager.restoreCatalogue(activity, file, ID.TASK_ID_OPEN, Importer.IMPORT_NEW_OR_UPDATED, this);
+			BackupManager.restoreCatalogue(activity, files, ID.TASK_ID_OPEN, Importer.IMPORT_NEW_OR_UPDATED, this);
 		}
 	}
 
@@ -22,6 +22,8 @@ package com.eleybourn.bookcatalogue.database;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 
 import android.content.ContentValues;
@@ -30,7 +32,10 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.graphics.Bitmap;
 
+import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.CoverTransferQueue;
 import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedDb;
 import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedStatement;
 import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer;
@@ -45,7 +50,7 @@ import com.eleybourn.bookcatalogue.utils.Utils;
 /**
  * DB Helper for Covers DB on external storage.
  * In the initial pass, the covers database has a single table whose members are accessed via unique
- * 'file names'.
+ * 'file names'. Version 2 added a cache of internet search results, keyed by normalized ISBN.
  * 
  * @author Philip Warner
  */
@@ -66,7 +71,9 @@ public class CoversDbHelper {
 	/** DB location */
 	private static final String COVERS_DATABASE_NAME = StorageUtils.getBCData() + "/covers.db";
 	/** DB Version */
-	private static final int COVERS_DATABASE_VERSION = 1;
+	private static final int COVERS_DATABASE_VERSION = 6;
+	/** Number of read-only connections opened when WAL mode is enabled */
+	private static final int READ_POOL_SIZE = 2;
 
 	// Domain and table definitions
 	
@@ -79,6 +86,16 @@ public class CoversDbHelper {
 			super(dbFilePath, factory, version);
 		}
 
+		/**
+		 * Close the read pool along with the database, so that it does not outlive it.
+		 */
+		@Override
+		public synchronized void close() {
+			if (mSharedDb != null)
+				mSharedDb.closeReadPool();
+			super.close();
+		}
+
 		/**
 		 * As with SQLiteOpenHelper, routine called to create DB
 		 */
@@ -91,7 +108,22 @@ public class CoversDbHelper {
 		 */
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			throw new RuntimeException("Upgrades not handled yet!");
+			if (oldVersion < 2) {
+				DbUtils.createTables(new SynchronizedDb(db, mSynchronizer), new TableDefinition[] {TBL_SEARCH_CACHE}, true);
+			}
+			if (oldVersion < 3) {
+				DbUtils.createTables(new SynchronizedDb(db, mSynchronizer), new TableDefinition[] {TBL_COVER_HASH}, true);
+			}
+			if (oldVersion < 4) {
+				DbUtils.createTables(new SynchronizedDb(db, mSynchronizer), new TableDefinition[] {TBL_COVER_TRANSFER}, true);
+			}
+			if (oldVersion < 5) {
+				DbUtils.createTables(new SynchronizedDb(db, mSynchronizer), new TableDefinition[] {TBL_COVER_SYNC}, true);
+			}
+			// Tables created above already have the column
+			if (oldVersion >= 4 && oldVersion < 6) {
+				db.execSQL("ALTER TABLE " + TBL_COVER_TRANSFER + " Add " + DOM_FAILURES.getDefinition(true));
+			}
 		}
 
 	}
@@ -111,7 +143,46 @@ public class CoversDbHelper {
 			.addIndex("file_date", true, DOM_FILENAME, DOM_DATE);
 	}
 
-    public static final TableDefinition[] TABLES = new TableDefinition[] {TBL_IMAGE};
+	public static final DomainDefinition DOM_ISBN = new DomainDefinition( "isbn", "text", "", "not null");	// Normalized ISBN-13
+	public static final DomainDefinition DOM_RESULTS = new DomainDefinition( "results", "blob", "", "not null");	// Serialized search results
+	public static final TableDefinition TBL_SEARCH_CACHE = new TableDefinition("search_cache", DOM_ID, DOM_ISBN, DOM_DATE, DOM_RESULTS );
+	static {
+		TBL_SEARCH_CACHE
+			.addIndex("id", true, DOM_ID)
+			.addIndex("isbn", true, DOM_ISBN)
+			.addIndex("date", false, DOM_DATE);
+	}
+
+	public static final DomainDefinition DOM_UUID = new DomainDefinition( "uuid", "text", "", "not null");	// Book UUID
+	public static final DomainDefinition DOM_MTIME = new DomainDefinition( "mtime", "integer", "", "not null");	// File last-modified time, in ms
+	public static final DomainDefinition DOM_MD5 = new DomainDefinition( "md5", "text", "", "not null");	// MD5 of the file contents
+	public static final TableDefinition TBL_COVER_HASH = new TableDefinition("cover_hash", DOM_ID, DOM_UUID, DOM_SIZE, DOM_MTIME, DOM_MD5 );
+	static {
+		TBL_COVER_HASH
+			.addIndex("id", true, DOM_ID)
+			.addIndex("uuid", true, DOM_UUID);
+	}
+
+	public static final DomainDefinition DOM_DIRECTION = new DomainDefinition( "direction", "integer", "", "not null");	// CoverTransferQueue.UPLOAD or DOWNLOAD
+	public static final DomainDefinition DOM_BOOK = new DomainDefinition( "book", "integer", "", "not null");	// Local book ID
+	public static final DomainDefinition DOM_URL = new DomainDefinition( "url", "text", "", "not null");
+	public static final DomainDefinition DOM_FAILURES = new DomainDefinition( "failures", "integer", "default 0", "not null");	// Runs the transfer failed in
+	public static final TableDefinition TBL_COVER_TRANSFER = new TableDefinition("cover_transfer", DOM_ID, DOM_DIRECTION, DOM_BOOK, DOM_UUID, DOM_URL, DOM_MD5, DOM_FAILURES );
+	static {
+		TBL_COVER_TRANSFER
+			.addIndex("id", true, DOM_ID)
+			.addIndex("direction_book", true, DOM_DIRECTION, DOM_BOOK);
+	}
+
+	/** MD5 of the cover last sent to the cloud backup for each book */
+	public static final TableDefinition TBL_COVER_SYNC = new TableDefinition("cover_sync", DOM_ID, DOM_UUID, DOM_MD5 );
+	static {
+		TBL_COVER_SYNC
+			.addIndex("id", true, DOM_ID)
+			.addIndex("uuid", true, DOM_UUID);
+	}
+
+    public static final TableDefinition[] TABLES = new TableDefinition[] {TBL_IMAGE, TBL_SEARCH_CACHE, TBL_COVER_HASH, TBL_COVER_TRANSFER, TBL_COVER_SYNC};
 
 	/**
 	 * Constructor. Fill in required fields. This is NOT based on SQLiteOpenHelper so does not need a context.
@@ -127,9 +198,16 @@ public class CoversDbHelper {
 			// Try to connect.
 			try {
 				mSharedDb = new SynchronizedDb(mHelper, mSynchronizer);				
+				// Let cover lookups for the book list proceed while covers are being written
+				if (BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_DB_WAL_MODE, false))
+					mSharedDb.enableWriteAheadLogging(READ_POOL_SIZE);
 			} catch (Exception e) {
 				// Assume exception means DB corrupt. Log, rename, and retry
 				Logger.logError(e, "Failed to open covers db");
+				if (mSharedDb != null) {
+					mSharedDb.closeReadPool();
+					mSharedDb = null;
+				}
 				File f = new File(COVERS_DATABASE_NAME);
 				f.renameTo(new File(COVERS_DATABASE_NAME + ".dead"));
 
@@ -197,7 +275,7 @@ public class CoversDbHelper {
 	public final byte[] getFile(final String filename, final Date lastModified) {
 		SynchronizedDb db = this.getDb();
 
-        try (Cursor c = db.query(TBL_IMAGE.getName(), new String[]{DOM_IMAGE.name}, DOM_FILENAME + "=? and " + DOM_DATE + " > ?",
+        try (Cursor c = db.queryForRead(TBL_IMAGE.getName(), new String[]{DOM_IMAGE.name}, DOM_FILENAME + "=? and " + DOM_DATE + " > ?",
                 new String[]{filename, Utils.toSqlDateTime(lastModified)}, null, null, null)) {
             if (!c.moveToFirst())
                 return null;
@@ -212,7 +290,7 @@ public class CoversDbHelper {
 	 */
 	public boolean isEntryValid(String filename, Date lastModified) {
 		SynchronizedDb db = this.getDb();
-        try (Cursor c = db.query(TBL_IMAGE.getName(), new String[]{DOM_ID.name}, DOM_FILENAME + "=? and " + DOM_DATE + " > ?",
+        try (Cursor c = db.queryForRead(TBL_IMAGE.getName(), new String[]{DOM_ID.name}, DOM_FILENAME + "=? and " + DOM_DATE + " > ?",
                 new String[]{filename, Utils.toSqlDateTime(lastModified)}, null, null, null)) {
             return c.moveToFirst();
         }
@@ -221,20 +299,69 @@ public class CoversDbHelper {
 	 * Save the passed bitmap to a 'file'
 	 */
 	public void saveFile(final String filename, final Bitmap bm) {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		bm.compress(Bitmap.CompressFormat.JPEG, 90, out);
-		byte[] bytes = out.toByteArray();
+		byte[] bytes = compress(bm);
 
 		saveFile(filename, bm.getHeight(), bm.getWidth(), bytes);
 	}
 
+	/**
+	 * Save the passed bitmaps in a single transaction. Compression is done before the
+	 * transaction is started so that the database is locked only for the writes.
+	 *
+	 * @param filenames	'File' names
+	 * @param bms		Bitmaps, in the same order. Null entries are skipped.
+	 */
+	public void saveFiles(final String[] filenames, final Bitmap[] bms) {
+		byte[][] data = new byte[bms.length][];
+		for(int i = 0; i < bms.length; i++) {
+			if (bms[i] != null)
+				data[i] = compress(bms[i]);
+		}
+
+		SynchronizedDb db = this.getDb();
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			for(int i = 0; i < bms.length; i++) {
+				if (data[i] != null)
+					writeFile(filenames[i], bms[i].getHeight(), bms[i].getWidth(), data[i]);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+	}
+
+	/**
+	 * Encode a bitmap as stored in the database
+	 */
+	private static byte[] compress(final Bitmap bm) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bm.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		return out.toByteArray();
+	}
+
 	/**
 	 * Save the passed encoded image data to a 'file'
 	 */
-	private SynchronizedStatement mExistsStmt = null;
 	public void saveFile(final String filename, final int height, final int width, final byte[] bytes) {
 		SynchronizedDb db = this.getDb();
 
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			writeFile(filename, height, width, bytes);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+	}
+
+	/**
+	 * Insert or update a 'file'; must be called in a transaction.
+	 */
+	private SynchronizedStatement mExistsStmt = null;
+	private void writeFile(final String filename, final int height, final int width, final byte[] bytes) {
+		SynchronizedDb db = this.getDb();
+
 		if (mExistsStmt == null) {
 			String sql = "Select Count(" + DOM_ID + ") From " + TBL_IMAGE + " Where " + DOM_FILENAME + " = ?";
 			mExistsStmt = mStatements.add(db, "mExistsStmt", sql);
@@ -254,14 +381,119 @@ public class CoversDbHelper {
 		mExistsStmt.bindString(1, filename);
 		long rows;
 		
+		if (mExistsStmt.simpleQueryForLong() == 0) {
+			rows = db.insert(TBL_IMAGE.getName(), null, cv);
+		} else {
+			rows = db.update(TBL_IMAGE.getName(), cv, DOM_FILENAME.name + " = ?", new String[] {filename});
+		}
+		if (rows == 0)
+			throw new RuntimeException("Failed to insert data");
+	}
+
+	/**
+	 * Get the cached search results for the passed ISBN, if saved after the passed date.
+	 * 
+	 * @param isbn		Normalized ISBN
+	 * @param since		Oldest acceptable entry
+	 * 
+	 * @return	Serialized results, or null if none
+	 */
+	public byte[] getSearchResults(final String isbn, final Date since) {
+		SynchronizedDb db = this.getDb();
+		try (Cursor c = db.queryForRead(TBL_SEARCH_CACHE.getName(), new String[]{DOM_RESULTS.name}, DOM_ISBN + "=? and " + DOM_DATE + " > ?",
+				new String[]{isbn, Utils.toSqlDateTime(since)}, null, null, null)) {
+			if (!c.moveToFirst())
+				return null;
+			return c.getBlob(0);
+		}
+	}
+
+	/**
+	 * Save the search results for the passed ISBN, then drop entries older than the passed date
+	 * and, oldest first, any beyond the passed limit.
+	 * 
+	 * @param isbn			Normalized ISBN
+	 * @param results		Serialized results
+	 * @param expired		Entries saved before this date are removed
+	 * @param maxEntries	Maximum number of entries to keep
+	 */
+	private SynchronizedStatement mDeleteExpiredResultsStmt = null;
+	private SynchronizedStatement mTrimResultsStmt = null;
+	public void saveSearchResults(final String isbn, final byte[] results, final Date expired, final int maxEntries) {
+		SynchronizedDb db = this.getDb();
+
+		if (mDeleteExpiredResultsStmt == null) {
+			String sql = "Delete From " + TBL_SEARCH_CACHE + " Where " + DOM_DATE + " < ?";
+			mDeleteExpiredResultsStmt = mStatements.add(db, "mDeleteExpiredResultsStmt", sql);
+		}
+		if (mTrimResultsStmt == null) {
+			String sql = "Delete From " + TBL_SEARCH_CACHE + " Where " + DOM_ID + " not in"
+					+ " (Select " + DOM_ID + " From " + TBL_SEARCH_CACHE + " Order By " + DOM_DATE + " Desc Limit ?)";
+			mTrimResultsStmt = mStatements.add(db, "mTrimResultsStmt", sql);
+		}
+
+		ContentValues cv = new ContentValues();
+		cv.put(DOM_ISBN.name, isbn);
+		cv.put(DOM_DATE.name, Utils.toSqlDateTime(new Date()));
+		cv.put(DOM_RESULTS.name, results);
+
 		SyncLock txLock = db.beginTransaction(true);
 		try {
-			if (mExistsStmt.simpleQueryForLong() == 0) {
-				rows = db.insert(TBL_IMAGE.getName(), null, cv);
-			} else {
-				rows = db.update(TBL_IMAGE.getName(), cv, DOM_FILENAME.name + " = ?", new String[] {filename});
-			}
-			if (rows == 0)
+			db.delete(TBL_SEARCH_CACHE.getName(), DOM_ISBN + " = ?", new String[] {isbn});
+			if (db.insert(TBL_SEARCH_CACHE.getName(), null, cv) < 0)
+				throw new RuntimeException("Failed to insert data");
+
+			mDeleteExpiredResultsStmt.bindString(1, Utils.toSqlDateTime(expired));
+			mDeleteExpiredResultsStmt.execute();
+			mTrimResultsStmt.bindLong(1, maxEntries);
+			mTrimResultsStmt.execute();
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+	}
+
+	/**
+	 * Get the saved MD5 of the cover file for the passed book, if the file still has the same
+	 * size and modification time as when it was hashed.
+	 * 
+	 * @param uuid		Book UUID
+	 * @param size		Current file size
+	 * @param mtime		Current file modification time
+	 * 
+	 * @return	MD5 as a hex string, or null if not known
+	 */
+	public String getCoverHash(final String uuid, final long size, final long mtime) {
+		SynchronizedDb db = this.getDb();
+		try (Cursor c = db.queryForRead(TBL_COVER_HASH.getName(), new String[]{DOM_MD5.name}, DOM_UUID + "=? and " + DOM_SIZE + "=? and " + DOM_MTIME + "=?",
+				new String[]{uuid, Long.toString(size), Long.toString(mtime)}, null, null, null)) {
+			if (!c.moveToFirst())
+				return null;
+			return c.getString(0);
+		}
+	}
+
+	/**
+	 * Save the MD5 of the cover file for the passed book, replacing any earlier entry.
+	 * 
+	 * @param uuid		Book UUID
+	 * @param size		File size when hashed
+	 * @param mtime		File modification time when hashed
+	 * @param md5		MD5 as a hex string
+	 */
+	public void saveCoverHash(final String uuid, final long size, final long mtime, final String md5) {
+		SynchronizedDb db = this.getDb();
+
+		ContentValues cv = new ContentValues();
+		cv.put(DOM_UUID.name, uuid);
+		cv.put(DOM_SIZE.name, size);
+		cv.put(DOM_MTIME.name, mtime);
+		cv.put(DOM_MD5.name, md5);
+
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			db.delete(TBL_COVER_HASH.getName(), DOM_UUID + " = ?", new String[] {uuid});
+			if (db.insert(TBL_COVER_HASH.getName(), null, cv) < 0)
 				throw new RuntimeException("Failed to insert data");
 			db.setTransactionSuccessful();
 		} finally {
@@ -269,6 +501,164 @@ public class CoversDbHelper {
 		}
 	}
 
+	/**
+	 * Forget the saved MD5 of the cover file for the passed book.
+	 * 
+	 * @param uuid		Book UUID
+	 */
+	private SynchronizedStatement mDeleteCoverHashStmt = null;
+	public void deleteCoverHash(final String uuid) {
+		SynchronizedDb db = this.getDb();
+
+		if (mDeleteCoverHashStmt == null) {
+			String sql = "Delete From " + TBL_COVER_HASH + " Where " + DOM_UUID + " = ?";
+			mDeleteCoverHashStmt = mStatements.add(db, "mDeleteCoverHashStmt", sql);
+		}
+		mDeleteCoverHashStmt.bindString(1, uuid);
+		mDeleteCoverHashStmt.execute();
+	}
+
+	/**
+	 * Save pending cover transfers, replacing any already saved for the same book and direction.
+	 * A transfer that is the same as the one it replaces keeps its count of failed runs.
+	 * 
+	 * @param transfers		Transfers to save
+	 */
+	public void saveCoverTransfers(final Collection<CoverTransferQueue.Transfer> transfers) {
+		SynchronizedDb db = this.getDb();
+
+		final String failuresSql = "Select " + DOM_FAILURES + " From " + TBL_COVER_TRANSFER
+				+ " Where " + DOM_DIRECTION + " = ? and " + DOM_BOOK + " = ? and " + DOM_UUID + " = ? and " + DOM_URL + " = ? and " + DOM_MD5 + " = ?";
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			ContentValues cv = new ContentValues();
+			for(CoverTransferQueue.Transfer t: transfers) {
+				int failures = 0;
+				try (Cursor c = db.rawQuery(failuresSql, new String[] {Integer.toString(t.direction), Long.toString(t.bookId), t.uuid, t.url, t.md5})) {
+					if (c.moveToFirst())
+						failures = c.getInt(0);
+				}
+				db.delete(TBL_COVER_TRANSFER.getName(), DOM_DIRECTION + " = ? and " + DOM_BOOK + " = ?",
+						new String[] {Integer.toString(t.direction), Long.toString(t.bookId)});
+				cv.clear();
+				cv.put(DOM_DIRECTION.name, t.direction);
+				cv.put(DOM_BOOK.name, t.bookId);
+				cv.put(DOM_UUID.name, t.uuid);
+				cv.put(DOM_URL.name, t.url);
+				cv.put(DOM_MD5.name, t.md5);
+				cv.put(DOM_FAILURES.name, failures);
+				if (db.insert(TBL_COVER_TRANSFER.getName(), null, cv) < 0)
+					throw new RuntimeException("Failed to insert data");
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+	}
+
+	/**
+	 * Get all pending cover transfers in the passed direction.
+	 * 
+	 * @param direction		CoverTransferQueue.UPLOAD or DOWNLOAD
+	 */
+	public ArrayList<CoverTransferQueue.Transfer> getCoverTransfers(final int direction) {
+		SynchronizedDb db = this.getDb();
+		ArrayList<CoverTransferQueue.Transfer> transfers = new ArrayList<>();
+		try (Cursor c = db.queryForRead(TBL_COVER_TRANSFER.getName(), new String[]{DOM_BOOK.name, DOM_UUID.name, DOM_URL.name, DOM_MD5.name},
+				DOM_DIRECTION + "=?", new String[]{Integer.toString(direction)}, null, null, DOM_ID.name)) {
+			while (c.moveToNext()) {
+				transfers.add(new CoverTransferQueue.Transfer(direction, c.getLong(0), c.getString(1), c.getString(2), c.getString(3)));
+			}
+		}
+		return transfers;
+	}
+
+	/**
+	 * Remove a finished cover transfer.
+	 * 
+	 * @param direction		CoverTransferQueue.UPLOAD or DOWNLOAD
+	 * @param bookId		Local book ID
+	 */
+	private SynchronizedStatement mDeleteCoverTransferStmt = null;
+	public void deleteCoverTransfer(final int direction, final long bookId) {
+		SynchronizedDb db = this.getDb();
+
+		if (mDeleteCoverTransferStmt == null) {
+			String sql = "Delete From " + TBL_COVER_TRANSFER + " Where " + DOM_DIRECTION + " = ? and " + DOM_BOOK + " = ?";
+			mDeleteCoverTransferStmt = mStatements.add(db, "mDeleteCoverTransferStmt", sql);
+		}
+		mDeleteCoverTransferStmt.bindLong(1, direction);
+		mDeleteCoverTransferStmt.bindLong(2, bookId);
+		mDeleteCoverTransferStmt.execute();
+	}
+
+	/**
+	 * Count a run in which a cover transfer failed every attempt.
+	 * 
+	 * @param direction		CoverTransferQueue.UPLOAD or DOWNLOAD
+	 * @param bookId		Local book ID
+	 */
+	public void recordCoverTransferFailure(final int direction, final long bookId) {
+		SynchronizedDb db = this.getDb();
+		db.execSQL("Update " + TBL_COVER_TRANSFER + " Set " + DOM_FAILURES + " = " + DOM_FAILURES + " + 1"
+				+ " Where " + DOM_DIRECTION + " = " + direction + " and " + DOM_BOOK + " = " + bookId);
+	}
+
+	/**
+	 * Remove the saved cover transfers in the passed direction that have failed in at least the
+	 * passed number of runs; 0 removes them all.
+	 * 
+	 * @param direction		CoverTransferQueue.UPLOAD or DOWNLOAD
+	 * @param minFailures	Number of failed runs
+	 */
+	public void deleteCoverTransfers(final int direction, final int minFailures) {
+		SynchronizedDb db = this.getDb();
+		db.execSQL("Delete From " + TBL_COVER_TRANSFER
+				+ " Where " + DOM_DIRECTION + " = " + direction + " and " + DOM_FAILURES + " >= " + minFailures);
+	}
+
+	/**
+	 * Get the MD5 of the cover last sent to the cloud backup for the passed book.
+	 * 
+	 * @param uuid		Book UUID
+	 * 
+	 * @return	MD5 as a hex string, or null if not known
+	 */
+	public String getSyncedCoverMd5(final String uuid) {
+		SynchronizedDb db = this.getDb();
+		try (Cursor c = db.queryForRead(TBL_COVER_SYNC.getName(), new String[]{DOM_MD5.name}, DOM_UUID + "=?",
+				new String[]{uuid}, null, null, null)) {
+			if (!c.moveToFirst())
+				return null;
+			return c.getString(0);
+		}
+	}
+
+	/**
+	 * Record the MD5 of the cover the cloud backup has for the passed book.
+	 * 
+	 * @param uuid		Book UUID
+	 * @param md5		MD5 as a hex string, or null if the backup has no cover
+	 */
+	public void saveSyncedCoverMd5(final String uuid, final String md5) {
+		SynchronizedDb db = this.getDb();
+
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			db.delete(TBL_COVER_SYNC.getName(), DOM_UUID + " = ?", new String[] {uuid});
+			if (md5 != null) {
+				ContentValues cv = new ContentValues();
+				cv.put(DOM_UUID.name, uuid);
+				cv.put(DOM_MD5.name, md5);
+				if (db.insert(TBL_COVER_SYNC.getName(), null, cv) < 0)
+					throw new RuntimeException("Failed to insert data");
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+	}
+
 	/**
 	 * Erase all images in the covers cache
 	 */
@@ -309,6 +699,10 @@ public class CoversDbHelper {
 		mDeleteBookCoversStmt = null;
 		mExistsStmt = null;
 		mEraseCoverCacheStmt = null;
+		mDeleteExpiredResultsStmt = null;
+		mTrimResultsStmt = null;
+		mDeleteCoverHashStmt = null;
+		mDeleteCoverTransferStmt = null;
 		synchronized(mInstanceCount) {
 			mInstanceCount--;
 		}
@@ -35,8 +35,11 @@ import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.LockTypes;
 import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
 import com.eleybourn.bookcatalogue.utils.Logger;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -55,24 +58,58 @@ public class DbSync {
      * calls can be made as necessary so long as an unlock() is called for all get*() calls by using the
      * SyncLock object returned from getX() call.
      * These can be called in any order and locks in the current thread never block requests.
-     * Deadlocks are not possible because the implementation involves a single lock object.
-     * NOTE: This lock can cause writer starvation since it does not introduce pending locks.
+     * <p>
+     * Each thread keeps its own shared hold count in a ThreadLocal, so the common case of a
+     * reentrant shared lock does not touch any shared collection. Writers are preferred: once a
+     * writer is waiting, threads that do not already hold a lock wait for it before taking a new
+     * shared lock, so a steady stream of readers can no longer starve a writer.
+     * <p>
+     * A thread holding a shared lock can upgrade to an exclusive lock when it is the only reader.
+     * Two readers trying to upgrade at the same time will deadlock, as before.
+     * <p>
+     * Time spent waiting for each lock type is recorded in a LockStats histogram; see getStats().
      *
      * @author Philip Warner
      */
     public static class Synchronizer {
         /**
-         * Main lock for synchronization
+         * How long a waiting writer sleeps before checking for readers that died holding a lock
          */
-        private final ReentrantLock mLock = new ReentrantLock();
+        private static final long DEAD_READER_CHECK_MS = 1000;
         /**
-         * Condition fired when a reader releases a lock
+         * Monitor protecting the fields below; never held while the caller does any work.
          */
-        private final Condition mReleased = mLock.newCondition();
+        private final ReentrantLock mMonitor = new ReentrantLock();
         /**
-         * Collection of threads that have shared locks
+         * Condition fired whenever a lock is released
          */
-        private final Hashtable<Thread, Integer> mSharedOwners = new Hashtable<>();
+        private final Condition mReleased = mMonitor.newCondition();
+        /**
+         * Shared hold count for the current thread
+         */
+        private final ThreadLocal<int[]> mSharedHolds = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+        /**
+         * Threads that currently hold at least one shared lock. Only changed when a thread's
+         * hold count moves between zero and one; used to detect readers that have died.
+         */
+        private final HashSet<Thread> mSharedOwners = new HashSet<>();
+        /**
+         * Thread holding the exclusive lock, if any
+         */
+        private volatile Thread mExclusiveOwner = null;
+        /**
+         * Number of times mExclusiveOwner has taken the exclusive lock
+         */
+        private int mExclusiveHolds = 0;
+        /**
+         * Number of threads waiting for the exclusive lock
+         */
+        private int mWaitingWriters = 0;
         /**
          * Lock used to pass back to consumers of shared locks
          */
@@ -81,114 +118,178 @@ public class DbSync {
          * Lock used to pass back to consumers of exclusive locks
          */
         private final ExclusiveLock mExclusiveLock = new ExclusiveLock();
+        /**
+         * Wait time statistics for shared locks
+         */
+        private final LockStats mSharedStats = new LockStats();
+        /**
+         * Wait time statistics for exclusive locks
+         */
+        private final LockStats mExclusiveStats = new LockStats();
 
         /**
          * Routine to purge shared locks held by dead threads. Can only be called
-         * while mLock is held.
+         * while mMonitor is held.
          */
         private void purgeOldLocks() {
-            if (!mLock.isHeldByCurrentThread())
+            if (!mMonitor.isHeldByCurrentThread())
                 throw new RuntimeException("Can not cleanup old locks if not locked");
 
-            Enumeration<Thread> it = mSharedOwners.keys();
-            while (it.hasMoreElements()) {
-                Thread t = it.nextElement();
-                if (!t.isAlive())
-                    mSharedOwners.remove(t);
+            Iterator<Thread> it = mSharedOwners.iterator();
+            while (it.hasNext()) {
+                if (!it.next().isAlive())
+                    it.remove();
             }
-
         }
 
         /**
-         * Add a new SharedLock to the collection and return it.
+         * Get a shared lock; waits if another thread holds, or is waiting for, the exclusive lock
+         * unless the current thread already holds a lock.
          */
         public SyncLock getSharedLock() {
+            final int[] holds = mSharedHolds.get();
             final Thread t = Thread.currentThread();
-            mLock.lock();
-            purgeOldLocks();
-            try {
-                int count;
-                if (mSharedOwners.containsKey(t)) {
-                    count = mSharedOwners.get(t) + 1;
-                } else {
-                    count = 1;
+
+            // Reentrant case: we already hold a lock, so no other writer can be active. Never block.
+            if (holds[0] > 0 || mExclusiveOwner == t) {
+                if (holds[0]++ == 0) {
+                    mMonitor.lock();
+                    try {
+                        mSharedOwners.add(t);
+                    } finally {
+                        mMonitor.unlock();
+                    }
                 }
-                mSharedOwners.put(t, count);
+                mSharedStats.record(0);
                 return mSharedLock;
+            }
+
+            long waitStart = 0;
+            mMonitor.lock();
+            try {
+                while (mExclusiveOwner != null || mWaitingWriters > 0) {
+                    if (waitStart == 0)
+                        waitStart = System.nanoTime();
+                    try {
+                        mReleased.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException("Unable to get shared lock", e);
+                    }
+                }
+                mSharedOwners.add(t);
+                holds[0] = 1;
             } finally {
-                mLock.unlock();
+                mMonitor.unlock();
             }
+            mSharedStats.record(waitStart == 0 ? 0 : System.nanoTime() - waitStart);
+            return mSharedLock;
         }
 
         /**
          * Release a shared lock. If no more locks in thread, remove from list.
          */
         public void releaseSharedLock() {
-            final Thread t = Thread.currentThread();
-            mLock.lock();
-            try {
-                if (mSharedOwners.containsKey(t)) {
-                    int count = mSharedOwners.get(t) - 1;
-                    if (count < 0)
-                        throw new RuntimeException("Release a lock count already zero");
-                    if (count != 0) {
-                        mSharedOwners.put(t, count);
-                    } else {
-                        mSharedOwners.remove(t);
-                        mReleased.signal();
-                    }
-                } else {
-                    throw new RuntimeException("Release a lock when not held");
+            final int[] holds = mSharedHolds.get();
+            if (holds[0] <= 0)
+                throw new RuntimeException("Release a lock when not held");
+
+            if (--holds[0] == 0) {
+                mMonitor.lock();
+                try {
+                    mSharedOwners.remove(Thread.currentThread());
+                    mReleased.signalAll();
+                } finally {
+                    mMonitor.unlock();
                 }
-            } finally {
-                mLock.unlock();
             }
         }
 
         /**
          * Return when exclusive access is available.
-         * - take a lock on the collection
-         * - see if there are any other locks
-         * - if not, return with the lock still held -- this prevents more EX or SH locks.
-         * - if there are other SH locks, wait for one to be release and loop.
+         * - register as a waiting writer, which stops new readers starting
+         * - wait until no other thread holds a shared or exclusive lock
+         * - if the current thread is the only reader, the lock is upgraded.
          */
         public SyncLock getExclusiveLock() {
             final Thread t = Thread.currentThread();
-            //long t0 = System.currentTimeMillis();
-            // Synchronize with other code
-            mLock.lock();
-            while (true) {
-                // Cleanup any old threads that are dead.
-                purgeOldLocks();
+            final boolean isReader = mSharedHolds.get()[0] > 0;
+
+            long waitStart = 0;
+            mMonitor.lock();
+            try {
+                // Reentrant case
+                if (mExclusiveOwner == t) {
+                    mExclusiveHolds++;
+                    mExclusiveStats.record(0);
+                    return mExclusiveLock;
+                }
+
+                mWaitingWriters++;
                 try {
-                    // Simple case -- no locks held, just return and keep the lock
-                    if (mSharedOwners.isEmpty())
-                        return mExclusiveLock;
-                    // Check for one lock, and it being this thread.
-                    if (mSharedOwners.size() == 1 && mSharedOwners.containsValue(t)) {
-                        // One locker, and it is us...so upgrade is OK.
-                        return mExclusiveLock;
+                    while (true) {
+                        // Other readers are all the owners, excluding us if we are upgrading
+                        final int otherReaders = mSharedOwners.size() - (isReader ? 1 : 0);
+                        if (mExclusiveOwner == null && otherReaders == 0)
+                            break;
+                        if (waitStart == 0)
+                            waitStart = System.nanoTime();
+                        // Wake up periodically in case a reader died without releasing its lock.
+                        if (!mReleased.await(DEAD_READER_CHECK_MS, TimeUnit.MILLISECONDS))
+                            purgeOldLocks();
                     }
-                    // Someone else has it. Wait.
-                    mReleased.await();
-                } catch (Exception e) {
+                } catch (InterruptedException e) {
                     // Probably happens because thread was interrupted. Just die.
-                    try {
-                        mLock.unlock();
-                    } catch (Exception ignored) {
-                    }
                     throw new RuntimeException("Unable to get exclusive lock", e);
+                } finally {
+                    mWaitingWriters--;
+                    // Readers blocked behind us may be able to proceed if we gave up.
+                    if (mExclusiveOwner != t)
+                        mReleased.signalAll();
                 }
+                mExclusiveOwner = t;
+                mExclusiveHolds = 1;
+            } finally {
+                mMonitor.unlock();
             }
+            mExclusiveStats.record(waitStart == 0 ? 0 : System.nanoTime() - waitStart);
+            return mExclusiveLock;
         }
 
         /**
          * Release the lock previously taken
          */
         public void releaseExclusiveLock() {
-            if (!mLock.isHeldByCurrentThread())
-                throw new RuntimeException("Exclusive Lock is not held by this thread");
-            mLock.unlock();
+            mMonitor.lock();
+            try {
+                if (mExclusiveOwner != Thread.currentThread())
+                    throw new RuntimeException("Exclusive Lock is not held by this thread");
+                if (--mExclusiveHolds == 0) {
+                    mExclusiveOwner = null;
+                    mReleased.signalAll();
+                }
+            } finally {
+                mMonitor.unlock();
+            }
+        }
+
+        /**
+         * Get the wait time statistics for the passed lock type.
+         */
+        public LockStats getStats(LockTypes type) {
+            return type == LockTypes.shared ? mSharedStats : mExclusiveStats;
+        }
+
+        /**
+         * Reset the wait time statistics for all lock types.
+         */
+        public void resetStats() {
+            mSharedStats.reset();
+            mExclusiveStats.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "shared: " + mSharedStats + "\nexclusive: " + mExclusiveStats;
         }
 
         /**
@@ -207,6 +308,99 @@ public class DbSync {
             LockTypes getType();
         }
 
+        /**
+         * Histogram of the time spent waiting to get a lock. Bucket 0 counts requests that did
+         * not wait at all; bucket n (n > 0) counts waits of less than 4^(n-1) milliseconds, and
+         * the last bucket counts everything longer.
+         *
+         * @author Philip Warner
+         */
+        public static class LockStats {
+            /** Upper bounds, in milliseconds, of the timed buckets */
+            private static final long[] BUCKET_LIMITS_MS = {1, 4, 16, 64, 256, 1024, 4096};
+            /** Bucket counts; one for 'no wait', one per limit and one for longer waits */
+            private final long[] mBuckets = new long[BUCKET_LIMITS_MS.length + 2];
+            /** Total time spent waiting, in nanoseconds */
+            private long mTotalWaitNs = 0;
+            /** Longest single wait, in nanoseconds */
+            private long mMaxWaitNs = 0;
+
+            /**
+             * Add a request to the histogram.
+             *
+             * @param waitNs Time spent waiting, in nanoseconds.
+             */
+            synchronized void record(long waitNs) {
+                if (waitNs <= 0) {
+                    mBuckets[0]++;
+                    return;
+                }
+                mTotalWaitNs += waitNs;
+                if (waitNs > mMaxWaitNs)
+                    mMaxWaitNs = waitNs;
+                final long ms = waitNs / 1000000;
+                int i = 0;
+                while (i < BUCKET_LIMITS_MS.length && ms >= BUCKET_LIMITS_MS[i])
+                    i++;
+                mBuckets[i + 1]++;
+            }
+
+            synchronized void reset() {
+                Arrays.fill(mBuckets, 0);
+                mTotalWaitNs = 0;
+                mMaxWaitNs = 0;
+            }
+
+            /**
+             * Get a copy of the bucket counts; see class notes for the layout.
+             */
+            public synchronized long[] getBuckets() {
+                return mBuckets.clone();
+            }
+
+            /**
+             * Get the upper bound, in milliseconds, of the timed buckets.
+             */
+            public static long[] getBucketLimits() {
+                return BUCKET_LIMITS_MS.clone();
+            }
+
+            /**
+             * Total number of requests, including those that did not wait.
+             */
+            public synchronized long getCount() {
+                long total = 0;
+                for (long b : mBuckets)
+                    total += b;
+                return total;
+            }
+
+            /**
+             * Total time spent waiting, in milliseconds.
+             */
+            public synchronized long getTotalWaitMs() {
+                return mTotalWaitNs / 1000000;
+            }
+
+            /**
+             * Longest single wait, in milliseconds.
+             */
+            public synchronized long getMaxWaitMs() {
+                return mMaxWaitNs / 1000000;
+            }
+
+            @Override
+            public synchronized String toString() {
+                StringBuilder s = new StringBuilder();
+                s.append(getCount()).append(" requests, ").append(getTotalWaitMs()).append("ms waiting, max ")
+                        .append(getMaxWaitMs()).append("ms; none=").append(mBuckets[0]);
+                for (int i = 0; i < BUCKET_LIMITS_MS.length; i++)
+                    s.append(", <").append(BUCKET_LIMITS_MS[i]).append("ms=").append(mBuckets[i + 1]);
+                s.append(", more=").append(mBuckets[mBuckets.length - 1]);
+                return s.toString();
+            }
+        }
+
         /**
          * Internal implementation of a Shared Lock.
          *
@@ -242,6 +436,84 @@ public class DbSync {
         }
     }
 
+    /**
+     * Small pool of read-only connections to a database that is in WAL mode.
+     *
+     * In WAL mode readers on other connections see the last committed snapshot and are not
+     * blocked by the writer, so cursors opened here do not need to wait for the Synchronizer
+     * of the owning SynchronizedDb. They use their own Synchronizer, which only ever hands out
+     * shared locks, so the locking in SynchronizedCursor is effectively free.
+     *
+     * Temporary tables and views belong to the connection that created them, so queries that
+     * use them (eg. the booklist tables) must NOT be sent to this pool.
+     *
+     * @author Philip Warner
+     */
+    public static class ReadConnectionPool {
+        /** Read-only connections */
+        private final SQLiteDatabase[] mConnections;
+        /** Synchronizer for cursors from this pool; no exclusive locks are ever taken */
+        private final Synchronizer mSync = new Synchronizer();
+        /** Used to hand out connections in rotation */
+        private final AtomicInteger mNext = new AtomicInteger(0);
+
+        /**
+         * Constructor. Opens the connections.
+         *
+         * @param path Database file; it must already be in WAL mode
+         * @param size Number of connections to open
+         */
+        ReadConnectionPool(String path, int size) {
+            mConnections = new SQLiteDatabase[size];
+            try {
+                for (int i = 0; i < size; i++)
+                    mConnections[i] = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Get the next connection in rotation. Each SQLiteDatabase serializes its own use, so
+         * spreading queries over the pool allows that many cursors to fill at once.
+         */
+        SQLiteDatabase get() {
+            int i = (mNext.getAndIncrement() & Integer.MAX_VALUE) % mConnections.length;
+            return mConnections[i];
+        }
+
+        /**
+         * Accessor
+         */
+        Synchronizer getSynchronizer() {
+            return mSync;
+        }
+
+        /**
+         * Number of connections in the pool
+         */
+        public int size() {
+            return mConnections.length;
+        }
+
+        /**
+         * Close all connections. Cursors still open on them will fail.
+         */
+        void close() {
+            for (int i = 0; i < mConnections.length; i++) {
+                if (mConnections[i] != null) {
+                    try {
+                        mConnections[i].close();
+                    } catch (Exception e) {
+                        Logger.logError(e, "Failed to close read connection");
+                    }
+                    mConnections[i] = null;
+                }
+            }
+        }
+    }
+
     /**
      * Database wrapper class that performs thread synchronization on all operations.
      *
@@ -264,6 +536,15 @@ public class DbSync {
          * Currently held transaction lock, if any
          */
         private SyncLock mTxLock = null;
+        /**
+         * Read-only connections used for queries when WAL mode is enabled; null otherwise.
+         * Volatile because readers check it without taking a lock.
+         */
+        private volatile ReadConnectionPool mReadPool = null;
+        /**
+         * Factory for SynchronizedCursor objects from the read pool
+         */
+        private final CursorFactory mReadCursorFactory = (db, masterQuery, editTable, query) -> new SynchronizedCursor(db, masterQuery, editTable, query, getSynchronizerFor(db));
 
         /**
          * Constructor. Use of this method is not recommended. It is better to use
@@ -372,6 +653,153 @@ public class DbSync {
             }
         }
 
+        /**
+         * Switch the database to write-ahead logging and open a pool of read-only connections
+         * for use by the 'ForRead' query methods. Writes continue to go through this object,
+         * on a single connection, and are serialized by the Synchronizer as before.
+         *
+         * WAL is turned on with a pragma rather than SQLiteDatabase.enableWriteAheadLogging()
+         * because the latter lets Android run reads on secondary connections, and those
+         * connections can not see the temporary tables created by LibraryBuilder.
+         *
+         * Does nothing if already enabled. If WAL can not be enabled (eg. in-memory database
+         * or unsupported file system), the database is left as it was and false is returned.
+         *
+         * @param readers Number of read-only connections to open
+         * @return true if WAL mode and the read pool are active
+         */
+        public boolean enableWriteAheadLogging(int readers) {
+            if (mReadPool != null)
+                return true;
+
+            final String path = mDb.getPath();
+            if (path == null || path.isEmpty() || path.equals(":memory:"))
+                return false;
+
+            SyncLock l = mSync.getExclusiveLock();
+            try {
+                String mode;
+                // The pragma returns the new mode, so it must be run as a query.
+                try (Cursor c = mDb.rawQuery("PRAGMA journal_mode = WAL", null)) {
+                    mode = c.moveToFirst() ? c.getString(0) : "";
+                }
+                if (!"wal".equalsIgnoreCase(mode))
+                    return false;
+                // Safe in WAL mode; commits are durable after the next checkpoint rather than on each commit
+                try (Cursor c = mDb.rawQuery("PRAGMA synchronous = NORMAL", null)) {
+                    c.moveToFirst();
+                }
+                mReadPool = new ReadConnectionPool(path, readers);
+                return true;
+            } catch (Exception e) {
+                Logger.logError(e, "Unable to enable WAL mode for " + path);
+                return false;
+            } finally {
+                l.unlock();
+            }
+        }
+
+        /**
+         * Close the read pool. The database itself stays in WAL mode until it is next opened
+         * without it, when Android resets the journal mode.
+         *
+         * Must be called whenever the underlying database is closed or replaced, otherwise the
+         * pool keeps reading the old file.
+         */
+        public void closeReadPool() {
+            SyncLock l = mSync.getExclusiveLock();
+            try {
+                ReadConnectionPool pool = mReadPool;
+                mReadPool = null;
+                if (pool != null)
+                    pool.close();
+            } finally {
+                l.unlock();
+            }
+        }
+
+        /**
+         * Close the read pool, then the underlying database.
+         */
+        public void close() {
+            closeReadPool();
+            SyncLock l = mSync.getExclusiveLock();
+            try {
+                mDb.close();
+            } finally {
+                l.unlock();
+            }
+        }
+
+        /**
+         * Indicates if queries can be sent to the read pool.
+         */
+        public boolean hasReadPool() {
+            return mReadPool != null;
+        }
+
+        /**
+         * Get the Synchronizer that cursors on the passed connection should use. Custom cursor
+         * factories passed to rawQueryForRead() should call this rather than using the database
+         * Synchronizer directly, otherwise a cursor on a pooled connection would still wait on
+         * the writer.
+         *
+         * @param db Connection the cursor was created on
+         */
+        public Synchronizer getSynchronizerFor(SQLiteDatabase db) {
+            ReadConnectionPool pool = mReadPool;
+            if (pool == null || db == mDb)
+                return mSync;
+            return pool.getSynchronizer();
+        }
+
+        /**
+         * Get a connection for a read-only query, or null if the query must use the main connection.
+         *
+         * A thread that is inside a transaction must read from the main connection so that
+         * it sees its own uncommitted changes.
+         */
+        private SQLiteDatabase getReadConnection() {
+            ReadConnectionPool pool = mReadPool;
+            if (pool == null || mDb.inTransaction())
+                return null;
+            return pool.get();
+        }
+
+        /**
+         * Run a query on a read-only connection when the read pool is active, otherwise
+         * the same as rawQuery(). The query must not use temporary tables.
+         */
+        public SynchronizedCursor rawQueryForRead(String sql, String[] selectionArgs) {
+            SQLiteDatabase db = getReadConnection();
+            if (db == null)
+                return rawQuery(sql, selectionArgs);
+            return (SynchronizedCursor) db.rawQueryWithFactory(mReadCursorFactory, sql, selectionArgs, "");
+        }
+
+        /**
+         * Run a query with a custom cursor factory on a read-only connection when the read
+         * pool is active, otherwise the same as rawQueryWithFactory(). The query must not use
+         * temporary tables, and the factory should use getSynchronizerFor().
+         */
+        public Cursor rawQueryForRead(SQLiteDatabase.CursorFactory cursorFactory, String sql, String[] selectionArgs) {
+            SQLiteDatabase db = getReadConnection();
+            if (db == null)
+                return rawQueryWithFactory(cursorFactory, sql, selectionArgs, "");
+            return db.rawQueryWithFactory(cursorFactory, sql, selectionArgs, "");
+        }
+
+        /**
+         * Run a query on a read-only connection when the read pool is active, otherwise
+         * the same as query(). The query must not use temporary tables.
+         */
+        public Cursor queryForRead(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy) {
+            SQLiteDatabase db = getReadConnection();
+            if (db == null)
+                return query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
+            return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
+        }
+
         /**
          * Locking-aware wrapper for underlying database method.
          */
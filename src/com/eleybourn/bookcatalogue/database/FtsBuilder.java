@@ -0,0 +1,273 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.database;
+
+import static com.eleybourn.bookcatalogue.CatalogueDBAdapter.KEY_FAMILY_NAME;
+import static com.eleybourn.bookcatalogue.CatalogueDBAdapter.KEY_GIVEN_NAMES;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_AUTHOR_NAME;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_AUTHOR_POSITION;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_BOOK;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_DESCRIPTION;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_DOCID;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_GENRE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_ID;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_ISBN;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_LOCATION;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_NOTES;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_POSITION;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_PUBLISHER;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_NAME;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_NUM;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_SERIES_POSITION;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_TITLE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_ANTHOLOGY;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_AUTHORS;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_AUTHOR;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_SERIES;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_SERIES;
+
+import android.database.Cursor;
+
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedDb;
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedStatement;
+import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
+import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
+
+import java.util.Locale;
+
+/**
+ * Set-based builder for the FTS table.
+ * <p>
+ * Rather than running three queries per book to collect authors, series and anthology titles,
+ * this class opens one cursor for each of books, authors, series and anthology titles, all
+ * sorted by book id, and merges them in a single pass. Rows are sent to the FTS statement
+ * and committed in batches of mBatchSize books so that a rebuild of a large catalogue
+ * does not hold one huge transaction.
+ * <p>
+ * The parameter order of the statements passed in MUST match the order used by
+ * getInsertSql(): author, title, description, notes, publisher, genre, location, isbn, docid.
+ *
+ * @author Philip Warner
+ */
+public class FtsBuilder {
+    /** Default number of books sent per transaction */
+    public static final int DEFAULT_BATCH_SIZE = 2000;
+
+    /** Database to use */
+    private final SynchronizedDb mDb;
+    /** Number of books per transaction; zero or less means 'one transaction' */
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Constructor.
+     *
+     * @param db Database to read from and write to
+     */
+    public FtsBuilder(SynchronizedDb db) {
+        mDb = db;
+    }
+
+    /**
+     * Set the number of books to send in each transaction.
+     *
+     * @param size Books per transaction; zero or less for a single transaction.
+     * @return this (for chaining)
+     */
+    public FtsBuilder setBatchSize(int size) {
+        mBatchSize = size;
+        return this;
+    }
+
+    /**
+     * Build the SQL to insert into the passed FTS table. The parameter order is the one
+     * expected by sendBooks().
+     *
+     * @param fts Table to insert into
+     * @return SQL for the insert statement
+     */
+    public static String getInsertSql(TableDefinition fts) {
+        return fts.getInsert(DOM_AUTHOR_NAME, DOM_TITLE, DOM_DESCRIPTION, DOM_NOTES,
+                DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN, DOM_DOCID)
+                + " Values (?,?,?,?,?,?,?,?,?)";
+    }
+
+    /**
+     * Fill the passed (empty) FTS table with every book in the database.
+     *
+     * @param fts Table to fill
+     * @return Number of books sent
+     */
+    public int fill(TableDefinition fts) {
+        SynchronizedStatement stmt = mDb.compileStatement(getInsertSql(fts));
+        try {
+            return sendBooks(stmt, null);
+        } finally {
+            try {
+                stmt.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Send the FTS details of the selected books to the passed statement.
+     *
+     * @param stmt     Insert or update statement; see class notes for parameter order
+     * @param idFilter Optional SQL predicate applied to the book id, eg. " in (1,2,3)".
+     *                 If null, all books are sent.
+     * @return Number of books sent
+     */
+    public int sendBooks(SynchronizedStatement stmt, String idFilter) {
+        final String bookId = TBL_BOOKS.dot(DOM_ID);
+        final String bookWhere = idFilter == null ? "" : " Where " + bookId + idFilter;
+
+        // Books, in id order
+        final String booksSql = "Select " + bookId + ", " + TBL_BOOKS.dot(DOM_TITLE) + ", " + TBL_BOOKS.dot(DOM_DESCRIPTION) + ", "
+                + TBL_BOOKS.dot(DOM_NOTES) + ", " + TBL_BOOKS.dot(DOM_PUBLISHER) + ", " + TBL_BOOKS.dot(DOM_GENRE) + ", "
+                + TBL_BOOKS.dot(DOM_LOCATION) + ", " + TBL_BOOKS.dot(DOM_ISBN)
+                + " From " + TBL_BOOKS.ref() + bookWhere
+                + " Order by " + bookId;
+
+        // All authors, in book id order
+        final String authorFilter = idFilter == null ? "" : " Where " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + idFilter;
+        final String authorSql = "Select " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + ", "
+                + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME)
+                + " From " + TBL_BOOK_AUTHOR.ref() + TBL_BOOK_AUTHOR.join(TBL_AUTHORS) + authorFilter
+                + " Order by " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + ", " + TBL_BOOK_AUTHOR.dot(DOM_AUTHOR_POSITION);
+
+        // All series, in book id order
+        final String seriesFilter = idFilter == null ? "" : " Where " + TBL_BOOK_SERIES.dot(DOM_BOOK) + idFilter;
+        final String seriesSql = "Select " + TBL_BOOK_SERIES.dot(DOM_BOOK) + ", "
+                + TBL_SERIES.dot(DOM_SERIES_NAME) + " || ' ' || Coalesce(" + TBL_BOOK_SERIES.dot(DOM_SERIES_NUM) + ",'')"
+                + " From " + TBL_BOOK_SERIES.ref() + TBL_BOOK_SERIES.join(TBL_SERIES) + seriesFilter
+                + " Order by " + TBL_BOOK_SERIES.dot(DOM_BOOK) + ", " + TBL_BOOK_SERIES.dot(DOM_SERIES_POSITION);
+
+        // All anthology titles, in book id order
+        final String anthologyFilter = idFilter == null ? "" : " Where " + TBL_ANTHOLOGY.dot(DOM_BOOK) + idFilter;
+        final String anthologySql = "Select " + TBL_ANTHOLOGY.dot(DOM_BOOK) + ", "
+                + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME) + ", "
+                + TBL_ANTHOLOGY.dot(DOM_TITLE)
+                + " From " + TBL_ANTHOLOGY.ref() + TBL_ANTHOLOGY.join(TBL_AUTHORS) + anthologyFilter
+                + " Order by " + TBL_ANTHOLOGY.dot(DOM_BOOK) + ", " + TBL_ANTHOLOGY.dot(DOM_POSITION);
+
+        // Only manage our own transactions if the caller has not started one.
+        final boolean useBatches = mDb.outsideTransaction();
+
+        int count = 0;
+        int inBatch = 0;
+        SyncLock l = null;
+
+        try (Cursor books = mDb.rawQuery(booksSql);
+             Cursor authors = mDb.rawQuery(authorSql);
+             Cursor series = mDb.rawQuery(seriesSql);
+             Cursor anthology = mDb.rawQuery(anthologySql)) {
+
+            // Accumulators reused for every book
+            final StringBuilder authorText = new StringBuilder();
+            final StringBuilder seriesText = new StringBuilder();
+            final StringBuilder titleText = new StringBuilder();
+
+            // Position the child cursors on their first rows
+            boolean haveAuthor = authors.moveToFirst();
+            boolean haveSeries = series.moveToFirst();
+            boolean haveAnthology = anthology.moveToFirst();
+
+            while (books.moveToNext()) {
+                if (useBatches && l == null)
+                    l = mDb.beginTransaction(true);
+
+                final long id = books.getLong(0);
+                authorText.setLength(0);
+                seriesText.setLength(0);
+                titleText.setLength(0);
+
+                // Skip any orphaned rows, then collect the rows for this book
+                while (haveAuthor && authors.getLong(0) < id)
+                    haveAuthor = authors.moveToNext();
+                while (haveAuthor && authors.getLong(0) == id) {
+                    authorText.append(authors.getString(1)).append(";");
+                    haveAuthor = authors.moveToNext();
+                }
+
+                while (haveSeries && series.getLong(0) < id)
+                    haveSeries = series.moveToNext();
+                while (haveSeries && series.getLong(0) == id) {
+                    seriesText.append(series.getString(1)).append(";");
+                    haveSeries = series.moveToNext();
+                }
+
+                while (haveAnthology && anthology.getLong(0) < id)
+                    haveAnthology = anthology.moveToNext();
+                while (haveAnthology && anthology.getLong(0) == id) {
+                    authorText.append(anthology.getString(1)).append(";");
+                    titleText.append(anthology.getString(2)).append(";");
+                    haveAnthology = anthology.moveToNext();
+                }
+
+                bindStringOrNull(stmt, 1, authorText.toString());
+                // Titles should only contain title, not SERIES
+                bindStringOrNull(stmt, 2, books.getString(1) + "; " + titleText);
+                // Series are added as part of the description
+                bindStringOrNull(stmt, 3, nonNull(books.getString(2)) + seriesText);
+                bindStringOrNull(stmt, 4, books.getString(3));
+                bindStringOrNull(stmt, 5, books.getString(4));
+                bindStringOrNull(stmt, 6, books.getString(5));
+                bindStringOrNull(stmt, 7, books.getString(6));
+                bindStringOrNull(stmt, 8, books.getString(7));
+                stmt.bindLong(9, id);
+                stmt.execute();
+
+                count++;
+                inBatch++;
+                if (l != null && mBatchSize > 0 && inBatch >= mBatchSize) {
+                    mDb.setTransactionSuccessful();
+                    mDb.endTransaction(l);
+                    l = null;
+                    inBatch = 0;
+                }
+            }
+            if (l != null)
+                mDb.setTransactionSuccessful();
+        } finally {
+            if (l != null)
+                mDb.endTransaction(l);
+        }
+        return count;
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * Bind a string or NULL value; same semantics as CatalogueDBAdapter.bindStringOrNull().
+     * Because FTS does not understand locales in all android up to 4.2, we do case folding
+     * here using the default locale.
+     */
+    private static void bindStringOrNull(SynchronizedStatement stmt, int position, String s) {
+        if (s == null) {
+            stmt.bindNull(position);
+        } else {
+            stmt.bindString(position, s.toLowerCase(Locale.getDefault()));
+        }
+    }
+}
@@ -92,6 +92,7 @@ public class ExportTypeSelectionDialogFragment extends BookCatalogueDialogFragme
         alertDialog.setCanceledOnTouchOutside(false);
 
         setOnClickListener(v, R.id.all_books_row);
+        setOnClickListener(v, R.id.incremental_row);
         setOnClickListener(v, R.id.advanced_row);
 
         return alertDialog;
@@ -107,7 +108,10 @@ public class ExportTypeSelectionDialogFragment extends BookCatalogueDialogFragme
                 if (a != null) {
                     ExportSettings settings = new ExportSettings();
                     settings.file = mDocFile;
-                    settings.options = Exporter.EXPORT_ALL;
+                    if (v.getId() == R.id.incremental_row)
+                        settings.options = Exporter.EXPORT_ALL | Exporter.EXPORT_INCREMENTAL;
+                    else
+                        settings.options = Exporter.EXPORT_ALL;
                     a.onExportTypeSelectionDialogResult(mDialogId, this, settings);
                 }
             }
@@ -25,10 +25,14 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import java.io.IOException;
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ImportTypeSelectionDialogFragment extends BookCatalogueDialogFragment {
     private int mDialogId;
     private DocumentFile mDocFile;
+    /** Backups to restore in order, ending with mDocFile; null if just one */
+    private ArrayList<DocumentFile> mChain;
     private boolean mArchiveHasValidDates;
     private final OnClickListener mRowClickListener = this::handleClick;
 
@@ -48,6 +52,29 @@ public class ImportTypeSelectionDialogFragment extends BookCatalogueDialogFragme
         return frag;
     }
 
+    /**
+     * Constructor for restoring a full backup and the incremental backups based on it
+     *
+     * @param dialogId ID passed by caller. Can be 0, will be passed back in event
+     * @param chain    Files to import, in order (see BackupManager.getRestoreOrder())
+     * @return Created fragment
+     */
+    public static ImportTypeSelectionDialogFragment newInstance(int dialogId, List<DocumentFile> chain) {
+        ImportTypeSelectionDialogFragment frag = newInstance(dialogId, chain.get(chain.size() - 1));
+        String[] uris = new String[chain.size()];
+        for (int i = 0; i < uris.length; i++)
+            uris[i] = chain.get(i).getUri().toString();
+        frag.requireArguments().putStringArray("chainUris", uris);
+        return frag;
+    }
+
+    /**
+     * Get the backups to restore in order, or null if just one was selected
+     */
+    public List<DocumentFile> getChain() {
+        return mChain;
+    }
+
     /**
      * Ensure activity supports event
      */
@@ -87,6 +114,13 @@ public class ImportTypeSelectionDialogFragment extends BookCatalogueDialogFragme
         mDocFile = DocumentFile.fromSingleUri(requireContext(), uri);
         assert (mDocFile != null);
 
+        String[] chainUris = args.getStringArray("chainUris");
+        if (chainUris != null) {
+            mChain = new ArrayList<>();
+            for (String u : chainUris)
+                mChain.add(DocumentFile.fromSingleUri(requireContext(), Uri.parse(u)));
+        }
+
         BackupInfo info = null;
         View v = requireActivity().getLayoutInflater().inflate(R.layout.dialog_import_type_selection, null);
 
@@ -119,6 +153,10 @@ public class ImportTypeSelectionDialogFragment extends BookCatalogueDialogFragme
             String date = DateFormat.getDateTimeInstance().format(info.getCreateDate());
             String s_info = r.getString(R.string.para_selected_archive_info, size, date);
             s = s_info + "\n\n" + r.getString(R.string.para_selected_archive_contains, s);
+            if (mChain != null)
+                s = s + "\n\n" + r.getString(R.string.para_selected_archive_chain, mChain.size());
+            else if (info.isIncremental())
+                s = s + "\n\n" + r.getString(R.string.para_selected_archive_incremental, info.getBaseName());
         } else {
             String size = Utils.formatFileSize(mDocFile.length());
             String date = DateFormat.getDateTimeInstance().format(mDocFile.lastModified());
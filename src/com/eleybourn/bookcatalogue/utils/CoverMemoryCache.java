@@ -0,0 +1,289 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory tier of the thumbnail cache, in front of the covers database (CoversDbHelper).
+ * <p>
+ * Decoded thumbnails are kept in an LRU keyed by the cover cache ID (see Utils.getCoverCacheId())
+ * and limited by the size of the decoded bitmaps rather than by the number of entries.
+ * <p>
+ * Bitmaps dropped from the LRU may still be on screen, so they are never recycled here. Bitmaps
+ * that callers know to be unused (eg. the view was recycled before the image arrived) are passed
+ * to release() and kept in a small pool; decode() reuses their memory via BitmapFactory inBitmap.
+ *
+ * @author Philip Warner
+ */
+public class CoverMemoryCache {
+    /** Fraction of the VM heap used for cached bitmaps */
+    private static final int HEAP_FRACTION = 8;
+    /** Maximum number of unused bitmaps kept for reuse */
+    private static final int MAX_POOL_SIZE = 8;
+
+    /** The single instance */
+    private static CoverMemoryCache mInstance = null;
+
+    /** The LRU; iteration order is least recently used first */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    /** Bitmaps currently in the LRU, to make sure we never recycle or reuse one */
+    private final IdentityHashMap<Bitmap, String> mCachedBitmaps = new IdentityHashMap<>();
+    /** Unused bitmaps available for inBitmap */
+    private final ArrayList<Bitmap> mPool = new ArrayList<>();
+    /** Maximum size of all cached bitmaps, in bytes */
+    private final long mMaxBytes;
+    /** Current size of all cached bitmaps, in bytes */
+    private long mBytes = 0;
+
+    // Statistics
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+    private long mReused = 0;
+
+    /**
+     * Cached bitmap and the time it was added, for checking against the cover file date.
+     */
+    private static class Entry {
+        final Bitmap bitmap;
+        final long added;
+        final int bytes;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            this.added = System.currentTimeMillis();
+            this.bytes = bitmap.getAllocationByteCount();
+        }
+    }
+
+    /**
+     * Summary of cache usage; see getStats().
+     */
+    public static class CacheStats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long reused;
+        public final int entries;
+        public final long bytes;
+        public final long maxBytes;
+
+        CacheStats(CoverMemoryCache c) {
+            hits = c.mHits;
+            misses = c.mMisses;
+            evictions = c.mEvictions;
+            reused = c.mReused;
+            entries = c.mEntries.size();
+            bytes = c.mBytes;
+            maxBytes = c.mMaxBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", reused=" + reused
+                    + ", entries=" + entries + ", bytes=" + bytes + "/" + maxBytes;
+        }
+    }
+
+    /**
+     * Get the cache, creating it on first use.
+     */
+    public static synchronized CoverMemoryCache getInstance() {
+        if (mInstance == null)
+            mInstance = new CoverMemoryCache(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+        return mInstance;
+    }
+
+    private CoverMemoryCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Get a cached bitmap.
+     *
+     * @param cacheId ID of the image
+     * @param expiry  Date of the original cover file; entries older than this are dropped. May be null.
+     * @return Bitmap, or null if not cached
+     */
+    public synchronized Bitmap get(String cacheId, Date expiry) {
+        final Entry e = mEntries.get(cacheId);
+        if (e == null || e.bitmap.isRecycled() || (expiry != null && e.added < expiry.getTime())) {
+            if (e != null)
+                remove(cacheId);
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return e.bitmap;
+    }
+
+    /**
+     * Add a bitmap to the cache. The bitmap must not be recycled by the caller after this;
+     * use release() instead, which ignores cached bitmaps.
+     */
+    public synchronized void put(String cacheId, Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        final Entry e = new Entry(bitmap);
+        // Not worth evicting everything else for one huge image
+        if (e.bytes > mMaxBytes / 4)
+            return;
+
+        final Entry old = mEntries.put(cacheId, e);
+        if (old != null) {
+            mBytes -= old.bytes;
+            if (old.bitmap != bitmap)
+                mCachedBitmaps.remove(old.bitmap);
+        }
+        mCachedBitmaps.put(bitmap, cacheId);
+        mBytes += e.bytes;
+        trim();
+    }
+
+    /**
+     * Drop least recently used entries until we are within budget.
+     */
+    private void trim() {
+        final Iterator<Map.Entry<String, Entry>> i = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && i.hasNext()) {
+            final Entry e = i.next().getValue();
+            i.remove();
+            mCachedBitmaps.remove(e.bitmap);
+            mBytes -= e.bytes;
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Remove a single entry.
+     */
+    public synchronized void remove(String cacheId) {
+        final Entry e = mEntries.remove(cacheId);
+        if (e != null) {
+            mCachedBitmaps.remove(e.bitmap);
+            mBytes -= e.bytes;
+        }
+    }
+
+    /**
+     * Remove all entries for a book, at any size. Must match the names built by Utils.getCoverCacheId().
+     */
+    public synchronized void removeBook(String hash) {
+        final String prefix = hash + ".";
+        final Iterator<Map.Entry<String, Entry>> i = mEntries.entrySet().iterator();
+        while (i.hasNext()) {
+            final Map.Entry<String, Entry> me = i.next();
+            if (me.getKey().startsWith(prefix)) {
+                i.remove();
+                mCachedBitmaps.remove(me.getValue().bitmap);
+                mBytes -= me.getValue().bytes;
+            }
+        }
+    }
+
+    /**
+     * Remove all entries and pooled bitmaps.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mCachedBitmaps.clear();
+        mBytes = 0;
+        for (Bitmap b : mPool)
+            b.recycle();
+        mPool.clear();
+    }
+
+    /**
+     * Called when the caller no longer needs a bitmap. Cached bitmaps are left alone; others
+     * are kept for reuse if possible, or recycled.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mCachedBitmaps.containsKey(bitmap))
+            return;
+        if (bitmap.isMutable() && mPool.size() < MAX_POOL_SIZE) {
+            mPool.add(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Take the smallest pooled bitmap that can hold the passed number of bytes.
+     */
+    private synchronized Bitmap takeFromPool(long bytes) {
+        int best = -1;
+        for (int i = 0; i < mPool.size(); i++) {
+            final int size = mPool.get(i).getAllocationByteCount();
+            if (size >= bytes && (best < 0 || size < mPool.get(best).getAllocationByteCount()))
+                best = i;
+        }
+        if (best < 0)
+            return null;
+        mReused++;
+        return mPool.remove(best);
+    }
+
+    /**
+     * Decode image data, reusing the memory of a pooled bitmap if one is large enough.
+     * The result is mutable so that it can itself be reused once released.
+     *
+     * @return Bitmap, or null if the data could not be decoded
+     */
+    public Bitmap decode(byte[] bytes) {
+        final BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+        if (opt.outWidth <= 0 || opt.outHeight <= 0)
+            return null;
+
+        opt.inJustDecodeBounds = false;
+        opt.inMutable = true;
+        // Decoded as ARGB_8888: 4 bytes per pixel
+        final Bitmap reuse = takeFromPool(4L * opt.outWidth * opt.outHeight);
+        opt.inBitmap = reuse;
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be used after all; decode into a new one
+            if (reuse == null)
+                throw e;
+            reuse.recycle();
+            opt.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+        }
+    }
+
+    /**
+     * Get the current statistics.
+     */
+    public synchronized CacheStats getStats() {
+        return new CacheStats(this);
+    }
+}
@@ -113,6 +113,25 @@ public class IsbnUtils {
         }
     }
 
+    /**
+     * Get the ISBN-13 form of an ISBN, ignoring hyphens and spaces, so that the ISBN-10 and
+     * ISBN-13 forms of the same ISBN give the same string.
+     *
+     * @return  Normalized ISBN, or null if the ISBN is not valid
+     */
+    public static String normalize(String isbn) {
+        if (isbn == null)
+            return null;
+        StringBuilder sb = new StringBuilder(isbn.length());
+        for (int i = 0; i < isbn.length(); i++) {
+            final char c = isbn.charAt(i);
+            if (c != '-' && c != ' ')
+                sb.append(c);
+        }
+        IsbnInfo info = new IsbnInfo(sb.toString());
+        return info.isValid ? info.getIsbn13() : null;
+    }
+
     private static class IsbnInfo {
         public final int[] digits;
         public int size;
@@ -25,6 +25,7 @@ import java.util.Stack;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import android.os.Handler;
+import android.os.Looper;
 
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.database.CoversDbHelper;
@@ -63,7 +64,7 @@ public class SimpleTaskQueue {
 	// Flag indicating this object should terminate.
 	private boolean mTerminate = false;
 	// Handler for sending tasks to the UI thread.
-	private final Handler mHandler = new Handler();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
 	// Name for this queue
 	private final String mName;
 	// Threads associate with this queue
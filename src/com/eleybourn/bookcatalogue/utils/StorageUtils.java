@@ -399,6 +399,10 @@ public class StorageUtils {
                             if (in != null) {
                                 Utils.saveInputToFile(in, dst);
                                 in.close();
+                                if (toDir == coverDir) {
+                                    // Drop any cached images and hash for the cover we just replaced
+                                    db.getUtils().eraseCachedBookCover(name.substring(0, name.length() - 4));
+                                }
                                 // TODO: Decide if this is a good idea! --
                                 // file.delete();
                             }
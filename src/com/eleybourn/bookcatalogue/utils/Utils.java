@@ -97,6 +97,7 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -198,6 +199,8 @@ public class Utils {
      * Database is non-static member so we don't make it linger longer than necessary
      */
     private CoversDbHelper mCoversDb = null;
+    /** Cover hashes are not saved for files modified more recently than this */
+    private static final long COVER_HASH_MTIME_GRACE_MS = 2000;
 
     /**
      * Add a format to the parser list; if nedEnglish is set, also add the localized English version
@@ -432,8 +435,13 @@ public class Utils {
         }
     }
 
+    /** Sequence number to keep the files of concurrent thumbnail downloads apart */
+    private static final AtomicInteger mThumbnailDownloadSeq = new AtomicInteger();
+
     /**
      * Given a URL, get an image and save to a file, optionally appending a suffix to the file.
+     * A sequence number is also added, so searches running at the same time do not overwrite
+     * each other's files.
      *
      * @param urlText        Image file URL
      * @param filenameSuffix Suffix to add
@@ -451,7 +459,7 @@ public class Utils {
             if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
                 try (InputStream in = conn.getInputStream()) {
                     // Get the output file
-                    File file = CatalogueDBAdapter.getTempThumbnail(filenameSuffix);
+                    File file = CatalogueDBAdapter.getTempThumbnail(filenameSuffix + "_" + mThumbnailDownloadSeq.incrementAndGet());
                     // Save to file
                     if (saveInputToFile(in, file)) {
                         return file.getAbsolutePath();
@@ -690,8 +698,19 @@ public class Utils {
      *
      * @param result Book data
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     static public void cleanupThumbnails(Bundle result) {
+        cleanupThumbnails(result, CatalogueDBAdapter.getTempThumbnail());
+    }
+
+    /**
+     * If there is a '__thumbnails' key, pick the largest image, rename it to
+     * the passed file and delete the others. Finally, remove the key.
+     *
+     * @param result Book data
+     * @param target File to rename the largest image to
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static public void cleanupThumbnails(Bundle result, File target) {
         if (result.containsKey("__thumbnail")) {
             long best = -1;
             int bestFile = -1;
@@ -726,7 +745,7 @@ public class Utils {
             // Get the best file (if present) and rename it.
             if (bestFile >= 0) {
                 File file = new File(files.get(bestFile));
-                file.renameTo(CatalogueDBAdapter.getTempThumbnail());
+                file.renameTo(target);
             }
 
             // Delete all but the best one. Note there *may* be no best one,
@@ -1688,7 +1707,9 @@ public class Utils {
         CoversDbHelper coversDb = getCoversDb();
         if (coversDb != null) {
             coversDb.deleteBookCover(hash);
+            coversDb.deleteCoverHash(hash);
         }
+        CoverMemoryCache.getInstance().removeBook(hash);
     }
 
     /**
@@ -1700,19 +1721,21 @@ public class Utils {
      * @return Bitmap (if cached) or NULL (if not cached)
      */
     public Bitmap fetchCachedImageIntoImageView(final File originalFile, final ImageView destView, final String cacheId) {
-        Bitmap bm = null;                    // resultant Bitmap (which we will return)
+        Date expiry;
+        if (originalFile == null)
+            expiry = new Date(0L);
+        else
+            expiry = new Date(originalFile.lastModified());
+
+        // Try memory first
+        final CoverMemoryCache memCache = CoverMemoryCache.getInstance();
+        Bitmap bm = memCache.get(cacheId, expiry);    // resultant Bitmap (which we will return)
 
         // Get the db
-        CoversDbHelper coversDb = getCoversDb();
+        CoversDbHelper coversDb = bm == null ? getCoversDb() : null;
         if (coversDb != null) {
             byte[] bytes;
             // Wrap in try/catch. It's possible the SDCard got removed and DB is now inaccessible
-            Date expiry;
-            if (originalFile == null)
-                expiry = new Date(0L);
-            else
-                expiry = new Date(originalFile.lastModified());
-
             try {
                 bytes = coversDb.getFile(cacheId, expiry);
             } catch (Exception e) {
@@ -1720,12 +1743,37 @@ public class Utils {
             }
             if (bytes != null) {
                 try {
-                    bm = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                    bm = memCache.decode(bytes);
                 } catch (Exception ignored) {
                 }
+                if (bm != null)
+                    memCache.put(cacheId, bm);
             }
         }
 
+        return showCachedImage(bm, destView);
+    }
+
+    /**
+     * Called in the UI thread, will return an image from the memory cache OR NULL. Unlike
+     * fetchCachedImageIntoImageView() this does no IO, so can be used while cache tasks are running.
+     *
+     * @param originalFile File representing original image file
+     * @param destView     View to populate
+     * @param cacheId      ID of the image in the cache
+     * @return Bitmap (if cached) or NULL (if not cached)
+     */
+    private Bitmap fetchMemoryCachedImageIntoImageView(final File originalFile, final ImageView destView, final String cacheId) {
+        final Date expiry = new Date(originalFile == null ? 0L : originalFile.lastModified());
+        return showCachedImage(CoverMemoryCache.getInstance().get(cacheId, expiry), destView);
+    }
+
+    /**
+     * Put an image found in the cache into the view, if both are present.
+     *
+     * @return The passed bitmap
+     */
+    private Bitmap showCachedImage(final Bitmap bm, final ImageView destView) {
         if (bm != null) {
             //
             // Remove any tasks that may be getting the image because they may overwrite anything we do.
@@ -1771,6 +1819,9 @@ public class Utils {
             final String cacheId = getCoverCacheId(hash, maxWidth, maxHeight);
             bm = fetchCachedImageIntoImageView(coverFile, destView, cacheId);
             cacheWasChecked = true;
+        } else if (checkCache) {
+            // Memory is cheap to check even when the cache tasks are busy
+            bm = fetchMemoryCachedImageIntoImageView(coverFile, destView, getCoverCacheId(hash, maxWidth, maxHeight));
         }
 
         if (bm != null)
@@ -1837,6 +1888,7 @@ public class Utils {
         CoversDbHelper db = getCoversDb();
         if (db != null)
             db.eraseCoverCache();
+        CoverMemoryCache.getInstance().clear();
     }
 
     /**
@@ -1846,7 +1898,51 @@ public class Utils {
         CoversDbHelper db = getCoversDb();
         if (db != null) {
             db.eraseCachedBookCover(uuid);
+            db.deleteCoverHash(uuid);
+        }
+        CoverMemoryCache.getInstance().removeBook(uuid);
+    }
+
+    /**
+     * Get the MD5 of a book's cover file, using the hash saved in the covers db when the file
+     * has the same size and modification time as when it was last hashed.
+     * <p>
+     * Files modified in the last few seconds are not saved since a later write in the same
+     * timestamp tick would not be noticed.
+     *
+     * @param uuid Book UUID
+     * @param file Cover file
+     * @return The MD5 hash as a hex string, or an empty string if there is no file.
+     */
+    public String getCoverMd5(String uuid, File file) {
+        if (file == null || !file.exists()) {
+            return "";
+        }
+        final long size = file.length();
+        final long mtime = file.lastModified();
+
+        CoversDbHelper db = getCoversDb();
+        if (db != null && uuid != null && !uuid.isEmpty()) {
+            try {
+                String md5 = db.getCoverHash(uuid, size, mtime);
+                if (md5 != null)
+                    return md5;
+            } catch (Exception e) {
+                Logger.logError(e, "Failed to read cover hash");
+            }
+        }
+
+        String md5 = calculateMD5(file);
+        if (db != null && uuid != null && !uuid.isEmpty() && !md5.isEmpty()
+                && Math.abs(System.currentTimeMillis() - mtime) > COVER_HASH_MTIME_GRACE_MS
+                && file.length() == size && file.lastModified() == mtime) {
+            try {
+                db.saveCoverHash(uuid, size, mtime, md5);
+            } catch (Exception e) {
+                Logger.logError(e, "Failed to save cover hash");
+            }
         }
+        return md5;
     }
 
     public interface Factory<T> {